@@ -0,0 +1,33 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * How the number of rays probed on each Z-slice is chosen.
+ */
+public enum AngularSampling
+{
+	/**
+	 * Rays are probed at a fixed angle from each other, whatever the tube
+	 * radius. On small tubes, several rays fall in the same column of the
+	 * unwrapped image; on large tubes, each ray spans several columns.
+	 */
+	FIXED_ANGLE( "Fixed angle between rays" ),
+
+	/**
+	 * One ray is probed per column of the unwrapped image, so that the number
+	 * of rays grows with the radius of the tube on the first Z-slice.
+	 */
+	ONE_RAY_PER_PIXEL( "One ray per unwrapped pixel" );
+
+	private final String name;
+
+	private AngularSampling( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
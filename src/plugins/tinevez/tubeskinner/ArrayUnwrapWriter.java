@@ -0,0 +1,43 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Writes the rows of the unwrapped image in in-memory <code>float[]</code>
+ * arrays, one per channel.
+ */
+public class ArrayUnwrapWriter implements UnwrapWriter
+{
+
+	private final float[][] unwrapped;
+
+	private final int nx;
+
+	/**
+	 * Creates a writer over the specified arrays.
+	 *
+	 * @param unwrapped
+	 *            the arrays of the unwrapped image, one per channel, laid out
+	 *            line by line.
+	 * @param nx
+	 *            the width of the unwrapped image.
+	 */
+	public ArrayUnwrapWriter( final float[][] unwrapped, final int nx )
+	{
+		this.unwrapped = unwrapped;
+		this.nx = nx;
+	}
+
+	@Override
+	public void writeRow( final int z, final float[][] row )
+	{
+		for ( int c = 0; c < unwrapped.length; c++ )
+			System.arraycopy( row[ c ], 0, unwrapped[ c ], z * nx, nx );
+	}
+
+	/**
+	 * Returns the arrays of the unwrapped image.
+	 */
+	public float[][] getUnwrapped()
+	{
+		return unwrapped;
+	}
+}
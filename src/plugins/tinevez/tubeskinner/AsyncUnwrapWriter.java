@@ -0,0 +1,166 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Passes the unwrapped rows to another writer on a consumer thread, so that
+ * the fit does not wait for the writes.
+ * <p>
+ * Rows are copied into a ring of slots, then written and notified to the slice
+ * listener in Z order by the consumer. {@link #close()} waits until all the
+ * rows have been written.
+ */
+class AsyncUnwrapWriter implements UnwrapWriter, AutoCloseable
+{
+
+	/**
+	 * Marks the end of the rows in the queue of filled slots.
+	 */
+	private static final int END = -1;
+
+	private final UnwrapWriter writer;
+
+	private final TubeSkinnerEngine.SliceListener listener;
+
+	/**
+	 * Row of each slot, one array per channel.
+	 */
+	private final float[][][] rows;
+
+	/**
+	 * Z-slice of the row of each slot.
+	 */
+	private final int[] zs;
+
+	private final BlockingQueue< Integer > free;
+
+	private final BlockingQueue< Integer > filled;
+
+	private final Thread consumer;
+
+	private volatile Throwable error;
+
+	/**
+	 * Creates an asynchronous writer and starts its consumer.
+	 *
+	 * @param writer
+	 *            the writer to pass the rows to.
+	 * @param listener
+	 *            the listener to notify after each row is written. Can be
+	 *            <code>null</code>.
+	 * @param nc
+	 *            the number of channels.
+	 * @param nx
+	 *            the width of the rows.
+	 * @param depth
+	 *            the number of rows that can be pending.
+	 */
+	AsyncUnwrapWriter( final UnwrapWriter writer, final TubeSkinnerEngine.SliceListener listener, final int nc, final int nx,
+			final int depth )
+	{
+		this.writer = writer;
+		this.listener = listener;
+		this.rows = new float[ depth ][ nc ][ nx ];
+		this.zs = new int[ depth ];
+		this.free = new ArrayBlockingQueue<>( depth );
+		// One more for the end marker.
+		this.filled = new ArrayBlockingQueue<>( depth + 1 );
+		for ( int slot = 0; slot < depth; slot++ )
+			free.add( slot );
+
+		this.consumer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				consume();
+			}
+		}, "TubeSkinner unwrap writer" );
+		consumer.setDaemon( true );
+		consumer.start();
+	}
+
+	private void consume()
+	{
+		try
+		{
+			while ( true )
+			{
+				final int slot = filled.take();
+				if ( slot == END )
+					return;
+				if ( null == error )
+				{
+					try
+					{
+						writer.writeRow( zs[ slot ], rows[ slot ] );
+						if ( null != listener )
+							listener.sliceProcessed( zs[ slot ] );
+					}
+					catch ( final Throwable t )
+					{
+						// Reported to the fit. Slots keep flowing so that it
+						// is not blocked.
+						error = t;
+					}
+				}
+				free.put( slot );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void writeRow( final int z, final float[][] row )
+	{
+		rethrow();
+		final int slot;
+		try
+		{
+			slot = free.take();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException( "Interrupted while writing row z=" + z + ".", e );
+		}
+		for ( int c = 0; c < row.length; c++ )
+			System.arraycopy( row[ c ], 0, rows[ slot ][ c ], 0, row[ c ].length );
+		zs[ slot ] = z;
+		filled.add( slot );
+	}
+
+	/**
+	 * Waits until all the rows have been written.
+	 */
+	@Override
+	public void close()
+	{
+		filled.add( END );
+		try
+		{
+			consumer.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		rethrow();
+	}
+
+	private void rethrow()
+	{
+		final Throwable t = error;
+		if ( null == t )
+			return;
+		if ( t instanceof RuntimeException )
+			throw ( RuntimeException ) t;
+		if ( t instanceof Error )
+			throw ( Error ) t;
+		throw new IllegalStateException( "Could not write the unwrapped rows.", t );
+	}
+}
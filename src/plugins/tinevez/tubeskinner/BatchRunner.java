@@ -0,0 +1,720 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import icy.common.exception.UnsupportedFormatException;
+import icy.file.Loader;
+import icy.file.SequenceFileImporter;
+
+/**
+ * Fits and unwraps the tubes of many image files listed in a manifest, without
+ * Icy GUI.
+ * <p>
+ * The manifest is a CSV file. Its first line is a header naming the columns;
+ * lines starting with <code>#</code> and blank lines are ignored. The
+ * required columns are:
+ * <ul>
+ * <li><code>file</code>: the image file, relative to the manifest folder or
+ * absolute;
+ * <li><code>cx</code>, <code>cy</code>, <code>r</code>: the circle that gives
+ * the tube section on the first Z-slice.
+ * </ul>
+ * The optional columns are <code>name</code> (the prefix of the output files,
+ * by default the file name and the time-point), <code>t</code>,
+ * <code>channel</code>, <code>thickness</code>, <code>window</code>,
+ * <code>thetaStart</code>, <code>thetaRange</code>, <code>search</code>
+ * (a {@link CrownSearchMethod} name), <code>pyramidLevels</code>,
+ * <code>predictionWindow</code>,
+ * <code>sampling</code> (a {@link RadialSampling} name),
+ * <code>radialStep</code>, <code>angularSampling</code> (an
+ * {@link AngularSampling} name), <code>sampleAngle</code>,
+ * <code>projection</code> (a {@link WallProjection} name),
+ * <code>projectionBand</code> and <code>regionReading</code>
+ * (<code>true</code> to only read the crown region of each Z-slice, see
+ * {@link TubeSkinnerEngine#setRegionReading(boolean)}). Empty cells take the
+ * default value of the plugin.
+ * <p>
+ * Jobs are run on a work-stealing pool. Before reading a stack, each job is
+ * admitted against a memory budget with the heap estimated by
+ * {@link TubeSkinnerEngine#estimateMemory(PlaneSource, double)}, so that
+ * several large stacks are not loaded at once. The planes are streamed from
+ * the image file, and the unwrapped image is written to a
+ * {@link MappedUnwrapFile}, so that the heap used by a job does not grow with
+ * the stack size. For each job, the output directory receives:
+ * <ul>
+ * <li><code>name.tsku</code>: the unwrapped image;
+ * <li><code>name_contours.csv</code>: the fitted contours, see
+ * {@link ContourExporter#writePolylines(TubeFit, Writer)};
+ * <li><code>name_metrics.csv</code>: the metrics of each Z-slice.
+ * </ul>
+ * and <code>{@value #SUMMARY}</code> gives the status and timings of every
+ * job.
+ */
+public class BatchRunner
+{
+
+	/**
+	 * Name of the summary file written in the output directory.
+	 */
+	public static final String SUMMARY = "batch_summary.csv";
+
+	/**
+	 * Opens the stack of one time-point of an image file.
+	 */
+	public static interface SourceOpener
+	{
+		/**
+		 * Opens the specified time-point of an image file. Opening should only
+		 * read the metadata: the planes are requested later, once the job is
+		 * admitted. If the source implements {@link Closeable}, it is closed
+		 * when the job completes.
+		 *
+		 * @param file
+		 *            the image file.
+		 * @param timepoint
+		 *            the time-point.
+		 * @return the stack.
+		 * @throws IOException
+		 *             if the file cannot be opened.
+		 */
+		public PlaneSource open( File file, int timepoint ) throws IOException;
+	}
+
+	/**
+	 * One line of the manifest.
+	 */
+	public static class Job
+	{
+
+		final String name;
+
+		final File file;
+
+		final int timepoint;
+
+		final double cx;
+
+		final double cy;
+
+		final double r;
+
+		final Map< String, String > parameters;
+
+		/**
+		 * Creates a job with the default parameters.
+		 *
+		 * @param name
+		 *            the prefix of the output files.
+		 * @param file
+		 *            the image file.
+		 * @param timepoint
+		 *            the time-point to process.
+		 * @param cx
+		 *            the X position of the tube center on the first Z-slice.
+		 * @param cy
+		 *            the Y position of the tube center on the first Z-slice.
+		 * @param r
+		 *            the radius of the tube on the first Z-slice.
+		 */
+		public Job( final String name, final File file, final int timepoint, final double cx, final double cy, final double r )
+		{
+			this( name, file, timepoint, cx, cy, r, new HashMap< String, String >() );
+		}
+
+		private Job( final String name, final File file, final int timepoint, final double cx, final double cy, final double r,
+				final Map< String, String > parameters )
+		{
+			this.name = name;
+			this.file = file;
+			this.timepoint = timepoint;
+			this.cx = cx;
+			this.cy = cy;
+			this.r = r;
+			this.parameters = parameters;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * Creates the engine with the parameters of this job.
+		 */
+		TubeSkinnerEngine createEngine()
+		{
+			final TubeSkinnerEngine engine = new TubeSkinnerEngine(
+					getInt( "channel", 0 ),
+					getDouble( "thickness", 15. ),
+					getInt( "window", 5 ),
+					getDouble( "thetaStart", 0. ),
+					getInt( "thetaRange", 360 ) );
+			if ( parameters.containsKey( "search" ) )
+				engine.setCrownSearchMethod( CrownSearchMethod.valueOf( parameters.get( "search" ).toUpperCase( Locale.ROOT ) ) );
+			engine.setPyramidLevels( getInt( "pyramidLevels", 0 ) );
+			engine.setPredictionWindow( getInt( "predictionWindow", 0 ) );
+			if ( parameters.containsKey( "sampling" ) )
+				engine.setRadialSampling( RadialSampling.valueOf( parameters.get( "sampling" ).toUpperCase( Locale.ROOT ) ) );
+			engine.setRadialStep( getDouble( "radialStep", 1. ) );
+			if ( parameters.containsKey( "angularSampling" ) )
+				engine.setAngularSampling( AngularSampling.valueOf( parameters.get( "angularSampling" ).toUpperCase( Locale.ROOT ) ) );
+			engine.setSampleAngle( getDouble( "sampleAngle", TubeSkinnerEngine.SAMPLE_ANGLE ) );
+			if ( parameters.containsKey( "projection" ) )
+				engine.setWallProjection( WallProjection.valueOf( parameters.get( "projection" ).toUpperCase( Locale.ROOT ) ) );
+			engine.setProjectionBand( getInt( "projectionBand", 3 ) );
+			engine.setRegionReading( Boolean.parseBoolean( parameters.get( "regionReading" ) ) );
+			return engine;
+		}
+
+		private int getInt( final String key, final int defaultValue )
+		{
+			final String value = parameters.get( key );
+			return ( null == value ) ? defaultValue : Integer.parseInt( value );
+		}
+
+		private double getDouble( final String key, final double defaultValue )
+		{
+			final String value = parameters.get( key );
+			return ( null == value ) ? defaultValue : Double.parseDouble( value );
+		}
+	}
+
+	/**
+	 * The outcome of one job.
+	 */
+	public static class Result
+	{
+
+		final Job job;
+
+		/**
+		 * <code>null</code> if the job completed.
+		 */
+		String error;
+
+		boolean canceled;
+
+		long estimatedBytes;
+
+		long waitNanos;
+
+		long openNanos;
+
+		long processNanos;
+
+		long exportNanos;
+
+		int sizeZ;
+
+		private Result( final Job job )
+		{
+			this.job = job;
+		}
+
+		public Job getJob()
+		{
+			return job;
+		}
+
+		/**
+		 * Returns <code>true</code> if the job completed and all its outputs
+		 * were written.
+		 */
+		public boolean isSuccess()
+		{
+			return null == error && !canceled;
+		}
+
+		/**
+		 * Returns the error message of a failed job, or <code>null</code>.
+		 */
+		public String getError()
+		{
+			return error;
+		}
+
+		/**
+		 * Returns the time (in ns) the job waited to be admitted.
+		 */
+		public long getWaitNanos()
+		{
+			return waitNanos;
+		}
+
+		/**
+		 * Returns the time (in ns) spent fitting and unwrapping the tube.
+		 */
+		public long getProcessNanos()
+		{
+			return processNanos;
+		}
+
+		private String status()
+		{
+			return canceled ? "CANCELED" : ( null == error ) ? "OK" : "FAILED";
+		}
+	}
+
+	private final File outputDirectory;
+
+	private final int parallelism;
+
+	private final long memoryBudget;
+
+	/**
+	 * The source opener, or <code>null</code> to open the image files with
+	 * the Icy importers. The importer opener is only created by the jobs, so
+	 * that a batch with its own opener runs without the Icy classes.
+	 */
+	private SourceOpener opener = null;
+
+	private final Set< TubeSkinnerEngine > running = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean canceled = false;
+
+	/**
+	 * Heap (in bytes) admitted to the running jobs.
+	 */
+	private long admitted = 0l;
+
+	private long peakAdmitted = 0l;
+
+	/**
+	 * Creates a batch runner.
+	 *
+	 * @param outputDirectory
+	 *            the directory in which the results are written. It is created
+	 *            if needed.
+	 * @param parallelism
+	 *            the maximal number of jobs running concurrently.
+	 * @param memoryBudget
+	 *            the heap (in bytes) that the running jobs may use. A job
+	 *            whose estimate exceeds it alone is run alone.
+	 */
+	public BatchRunner( final File outputDirectory, final int parallelism, final long memoryBudget )
+	{
+		this.outputDirectory = outputDirectory;
+		this.parallelism = Math.max( 1, parallelism );
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Sets how the image files are opened. By default, they are opened with
+	 * the Icy importers, and their planes streamed with an
+	 * {@link ImporterPlaneSource}.
+	 *
+	 * @param opener
+	 *            the source opener.
+	 */
+	public void setSourceOpener( final SourceOpener opener )
+	{
+		this.opener = opener;
+	}
+
+	/**
+	 * Returns the largest heap (in bytes) admitted at once to the jobs of the
+	 * last run.
+	 */
+	public synchronized long getPeakAdmittedBytes()
+	{
+		return peakAdmitted;
+	}
+
+	/**
+	 * Reads the jobs of a manifest.
+	 *
+	 * @param manifest
+	 *            the manifest file.
+	 * @return the jobs, in the manifest order.
+	 * @throws IOException
+	 *             if the manifest cannot be read.
+	 * @throws IllegalArgumentException
+	 *             if the manifest is malformed.
+	 */
+	public static List< Job > readManifest( final File manifest ) throws IOException
+	{
+		final File folder = manifest.getAbsoluteFile().getParentFile();
+		final List< Job > jobs = new ArrayList<>();
+		final Set< String > names = new HashSet<>();
+		try (BufferedReader reader = new BufferedReader( new FileReader( manifest ) ))
+		{
+			String[] header = null;
+			String line;
+			int lineNumber = 0;
+			while ( null != ( line = reader.readLine() ) )
+			{
+				lineNumber++;
+				if ( line.trim().isEmpty() || line.trim().startsWith( "#" ) )
+					continue;
+
+				final String[] cells = line.split( ",", -1 );
+				if ( null == header )
+				{
+					header = cells;
+					for ( int i = 0; i < header.length; i++ )
+						header[ i ] = header[ i ].trim();
+					continue;
+				}
+				if ( cells.length > header.length )
+					throw new IllegalArgumentException( manifest + ", line " + lineNumber + ": more cells than columns." );
+
+				final Map< String, String > values = new HashMap<>();
+				for ( int i = 0; i < cells.length; i++ )
+					if ( !cells[ i ].trim().isEmpty() )
+						values.put( header[ i ], cells[ i ].trim() );
+				for ( final String required : new String[] { "file", "cx", "cy", "r" } )
+					if ( !values.containsKey( required ) )
+						throw new IllegalArgumentException( manifest + ", line " + lineNumber + ": missing " + required + "." );
+
+				File file = new File( values.remove( "file" ) );
+				if ( !file.isAbsolute() )
+					file = new File( folder, file.getPath() );
+				final String t = values.remove( "t" );
+				final int timepoint = ( null == t ) ? 0 : Integer.parseInt( t );
+				final String defaultName = file.getName().replaceFirst( "\\.[^.]*$", "" ) + "_t" + timepoint;
+				final String name = values.containsKey( "name" ) ? values.remove( "name" ) : defaultName;
+				if ( !names.add( name ) )
+					throw new IllegalArgumentException( manifest + ", line " + lineNumber + ": duplicate job name " + name + ". Set the name column." );
+
+				try
+				{
+					final Job job = new Job( name, file, timepoint,
+							Double.parseDouble( values.remove( "cx" ) ),
+							Double.parseDouble( values.remove( "cy" ) ),
+							Double.parseDouble( values.remove( "r" ) ),
+							values );
+					// Fail on bad parameters now rather than in the middle of the batch.
+					job.createEngine();
+					jobs.add( job );
+				}
+				catch ( final IllegalArgumentException e )
+				{
+					throw new IllegalArgumentException( manifest + ", line " + lineNumber + ": " + e.getMessage(), e );
+				}
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Runs the specified jobs, writes their outputs and the summary file, and
+	 * returns their results. A job that fails does not stop the others.
+	 *
+	 * @param jobs
+	 *            the jobs to run.
+	 * @return the results, in the order of the jobs.
+	 * @throws IOException
+	 *             if the summary file cannot be written.
+	 */
+	public List< Result > run( final List< Job > jobs ) throws IOException
+	{
+		if ( !outputDirectory.isDirectory() && !outputDirectory.mkdirs() )
+			throw new IOException( "Cannot create the output directory " + outputDirectory + "." );
+
+		canceled = false;
+		synchronized ( this )
+		{
+			peakAdmitted = 0l;
+		}
+		final ForkJoinPool pool = new ForkJoinPool( parallelism );
+		final List< Result > results = new ArrayList<>( jobs.size() );
+		try
+		{
+			final List< Future< Result > > futures = new ArrayList<>( jobs.size() );
+			for ( final Job job : jobs )
+			{
+				futures.add( pool.submit( new Callable< Result >()
+				{
+					@Override
+					public Result call()
+					{
+						return run( job );
+					}
+				} ) );
+			}
+
+			for ( final Future< Result > future : futures )
+				results.add( future.get() );
+		}
+		catch ( final InterruptedException e )
+		{
+			cancel();
+			Thread.currentThread().interrupt();
+		}
+		catch ( final ExecutionException e )
+		{
+			// Jobs catch their own errors.
+			throw new IllegalStateException( e.getCause() );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		writeSummary( results );
+		return results;
+	}
+
+	/**
+	 * Cancels the running and pending jobs.
+	 */
+	public void cancel()
+	{
+		canceled = true;
+		for ( final TubeSkinnerEngine engine : running )
+			engine.cancel();
+	}
+
+	private Result run( final Job job )
+	{
+		final Result result = new Result( job );
+		if ( canceled )
+		{
+			result.canceled = true;
+			return result;
+		}
+
+		final TubeSkinnerEngine engine = job.createEngine();
+		PlaneSource source = null;
+		boolean admittedJob = false;
+		try
+		{
+			final long t0 = System.nanoTime();
+			source = ( null == opener ) ? new ImporterOpener().open( job.file, job.timepoint ) : opener.open( job.file, job.timepoint );
+			final long t1 = System.nanoTime();
+			result.openNanos = t1 - t0;
+			result.sizeZ = source.getSizeZ();
+
+			result.estimatedBytes = engine.estimateMemory( source, job.r );
+			admit( result.estimatedBytes );
+			admittedJob = true;
+			final long t2 = System.nanoTime();
+			result.waitNanos = t2 - t1;
+
+			running.add( engine );
+			if ( canceled )
+				engine.cancel();
+			final int nx = engine.getUnwrapWidth( job.r );
+			final TubeFit fit;
+			try (MappedUnwrapFile unwrapped = MappedUnwrapFile.create( new File( outputDirectory, job.name + ".tsku" ), nx,
+					source.getSizeZ(), source.getSizeC(), 1 ))
+			{
+				fit = engine.process( source, job.cx, job.cy, job.r, unwrapped.writer( 0 ), null );
+			}
+			finally
+			{
+				running.remove( engine );
+			}
+			final long t3 = System.nanoTime();
+			result.processNanos = t3 - t2;
+			if ( !fit.isComplete() )
+			{
+				result.canceled = true;
+				return result;
+			}
+
+			try (Writer writer = new BufferedWriter( new FileWriter( new File( outputDirectory, job.name + "_contours.csv" ) ) ))
+			{
+				ContourExporter.writePolylines( fit, writer );
+			}
+			try (Writer writer = new BufferedWriter( new FileWriter( new File( outputDirectory, job.name + "_metrics.csv" ) ) ))
+			{
+				fit.getMetrics().writeCSV( writer );
+			}
+			result.exportNanos = System.nanoTime() - t3;
+		}
+		catch ( final InterruptedException e )
+		{
+			result.canceled = true;
+			Thread.currentThread().interrupt();
+		}
+		catch ( final Exception e )
+		{
+			result.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+		}
+		finally
+		{
+			if ( admittedJob )
+				release( result.estimatedBytes );
+			if ( source instanceof Closeable )
+			{
+				try
+				{
+					( ( Closeable ) source ).close();
+				}
+				catch ( final IOException e )
+				{
+					if ( null == result.error )
+						result.error = "Cannot close " + job.file + ": " + e.getMessage();
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Waits until the specified heap can be admitted within the budget. A job
+	 * larger than the budget is admitted when no other job runs.
+	 */
+	private synchronized void admit( final long bytes ) throws InterruptedException
+	{
+		while ( admitted > 0 && admitted + bytes > memoryBudget )
+			wait();
+		admitted += bytes;
+		peakAdmitted = Math.max( peakAdmitted, admitted );
+	}
+
+	private synchronized void release( final long bytes )
+	{
+		admitted -= bytes;
+		notifyAll();
+	}
+
+	private void writeSummary( final List< Result > results ) throws IOException
+	{
+		try (Writer writer = new BufferedWriter( new FileWriter( new File( outputDirectory, SUMMARY ) ) ))
+		{
+			final StringBuilder str = new StringBuilder();
+			str.append( "name,file,t,status,sizeZ,estimatedBytes,waitMs,openMs,processMs,exportMs,slicesPerSecond,error\n" );
+			for ( final Result result : results )
+			{
+				str.append( result.job.name ).append( ',' );
+				str.append( result.job.file.getPath().replace( ',', '_' ) ).append( ',' );
+				str.append( result.job.timepoint ).append( ',' );
+				str.append( result.status() ).append( ',' );
+				str.append( result.sizeZ ).append( ',' );
+				str.append( result.estimatedBytes ).append( ',' );
+				ContourExporter.appendFixed( str, result.waitNanos / 1e6 );
+				str.append( ',' );
+				ContourExporter.appendFixed( str, result.openNanos / 1e6 );
+				str.append( ',' );
+				ContourExporter.appendFixed( str, result.processNanos / 1e6 );
+				str.append( ',' );
+				ContourExporter.appendFixed( str, result.exportNanos / 1e6 );
+				str.append( ',' );
+				ContourExporter.appendFixed( str, result.processNanos > 0 ? result.sizeZ / ( result.processNanos / 1e9 ) : 0. );
+				str.append( ',' );
+				if ( null != result.error )
+					str.append( result.error.replace( ',', ';' ).replace( '\n', ' ' ) );
+				str.append( '\n' );
+			}
+			writer.append( str );
+		}
+	}
+
+	/**
+	 * Opens image files with the Icy importers.
+	 */
+	private static class ImporterOpener implements SourceOpener
+	{
+		@Override
+		public PlaneSource open( final File file, final int timepoint ) throws IOException
+		{
+			final String path = file.getAbsolutePath();
+			final SequenceFileImporter importer = Loader.getSequenceFileImporter( path, true );
+			if ( null == importer )
+				throw new IOException( "No importer can read " + path + "." );
+			try
+			{
+				if ( !importer.open( path, 0 ) )
+					throw new IOException( "Cannot open " + path + "." );
+				return new ClosingImporterPlaneSource( importer, timepoint );
+			}
+			catch ( final UnsupportedFormatException | IOException | RuntimeException e )
+			{
+				importer.close();
+				if ( e instanceof IOException )
+					throw ( IOException ) e;
+				throw new IOException( "Cannot open " + path + ": " + e.getMessage(), e );
+			}
+		}
+	}
+
+	/**
+	 * Closes its importer with the source.
+	 */
+	private static class ClosingImporterPlaneSource extends ImporterPlaneSource implements Closeable
+	{
+
+		private final SequenceFileImporter importer;
+
+		private ClosingImporterPlaneSource( final SequenceFileImporter importer, final int timepoint ) throws UnsupportedFormatException, IOException
+		{
+			super( importer, 0, timepoint );
+			this.importer = importer;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			importer.close();
+		}
+	}
+
+	/**
+	 * Runs the jobs of a manifest, with no display.
+	 * <p>
+	 * Arguments: the manifest file, the output directory, and optionally the
+	 * number of concurrent jobs (all the processors by default) and the memory
+	 * budget in MB (3/4 of the max heap by default). The Icy jar and the
+	 * importer plugins must be on the class path.
+	 *
+	 * @param args
+	 *            the arguments.
+	 * @throws IOException
+	 *             if the manifest or the summary file cannot be read or
+	 *             written.
+	 */
+	public static void main( final String[] args ) throws IOException
+	{
+		if ( args.length < 2 )
+		{
+			System.err.println( "Usage: BatchRunner manifest.csv output-directory [jobs] [memory-MB]" );
+			System.exit( 2 );
+		}
+		System.setProperty( "java.awt.headless", "true" );
+
+		final List< Job > jobs = readManifest( new File( args[ 0 ] ) );
+		final int parallelism = ( args.length > 2 ) ? Integer.parseInt( args[ 2 ] ) : Runtime.getRuntime().availableProcessors();
+		final long budget = ( args.length > 3 ) ? Long.parseLong( args[ 3 ] ) << 20 : Runtime.getRuntime().maxMemory() / 4 * 3;
+		final BatchRunner runner = new BatchRunner( new File( args[ 1 ] ), parallelism, budget );
+
+		final long start = System.nanoTime();
+		final List< Result > results = runner.run( jobs );
+		int nFailed = 0;
+		for ( final Result result : results )
+		{
+			if ( !result.isSuccess() )
+			{
+				nFailed++;
+				System.err.println( result.job.name + ": " + result.status() + ( null == result.error ? "" : " - " + result.error ) );
+			}
+		}
+		System.out.println( String.format( "%d jobs, %d failed, in %.1f s.", results.size(), nFailed, ( System.nanoTime() - start ) / 1e9 ) );
+		System.exit( nFailed == 0 ? 0 : 1 );
+	}
+}
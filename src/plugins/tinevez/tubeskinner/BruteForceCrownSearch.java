@@ -0,0 +1,42 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Searches for the tube center by sampling the inner and outer crown circles
+ * from scratch for every candidate offset.
+ */
+class BruteForceCrownSearch implements CrownSearch
+{
+
+	private final CrownGeometry geometry;
+
+	BruteForceCrownSearch( final CrownGeometry geometry )
+	{
+		this.geometry = geometry;
+	}
+
+	@Override
+	public double search( final Plane plane, final int cx, final int cy, final int window, final int[] bestOffset )
+	{
+		double currentMax = Integer.MIN_VALUE;
+		bestOffset[ 0 ] = 0;
+		bestOffset[ 1 ] = 0;
+		for ( int xOffset = -window; xOffset <= window; xOffset++ )
+		{
+			for ( int yOffset = -window; yOffset <= window; yOffset++ )
+			{
+				final int x = cx + xOffset;
+				final int y = cy + yOffset;
+				final double val = CrownGeometry.ringMean( plane, x, y, geometry.outerDx, geometry.outerDy, geometry.outerSubX, geometry.outerSubY )
+						- CrownGeometry.ringMean( plane, x, y, geometry.innerDx, geometry.innerDy, geometry.innerSubX, geometry.innerSubY );
+
+				if ( val > currentMax )
+				{
+					currentMax = val;
+					bestOffset[ 0 ] = xOffset;
+					bestOffset[ 1 ] = yOffset;
+				}
+			}
+		}
+		return currentMax;
+	}
+}
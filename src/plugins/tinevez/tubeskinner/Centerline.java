@@ -0,0 +1,331 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * A smooth 3D centerline of a tube, sampled at a step of 1 pixel along its
+ * arc length, with a frame orthogonal to the tube at each sample.
+ * <p>
+ * The centerline is fitted from the tube centers of a fit in XY slices, by
+ * smoothing them along Z with a Gaussian kernel. The frame at each sample is
+ * made of the unit tangent and of two unit normals, <code>u</code> and
+ * <code>v</code>, spanning the plane orthogonal to the tube. The normals are
+ * transported from one sample to the next with as little rotation as
+ * possible, so that the sections resampled in these planes do not twist
+ * around the tube. For a tube along the Z axis, <code>u</code> and
+ * <code>v</code> are the X and Y axes.
+ */
+public class Centerline
+{
+
+	private final int size;
+
+	/**
+	 * Position of each sample, in pixels, Z being the slice index.
+	 */
+	private final double[] x;
+
+	private final double[] y;
+
+	private final double[] z;
+
+	/**
+	 * Unit tangent of each sample.
+	 */
+	private final double[] tx;
+
+	private final double[] ty;
+
+	private final double[] tz;
+
+	/**
+	 * First unit normal of each sample.
+	 */
+	private final double[] ux;
+
+	private final double[] uy;
+
+	private final double[] uz;
+
+	/**
+	 * Second unit normal of each sample, the cross product of the tangent by
+	 * the first normal.
+	 */
+	private final double[] vx;
+
+	private final double[] vy;
+
+	private final double[] vz;
+
+	private Centerline( final double[] x, final double[] y, final double[] z, final double[] tx, final double[] ty,
+			final double[] tz )
+	{
+		this.size = x.length;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.tx = tx;
+		this.ty = ty;
+		this.tz = tz;
+		this.ux = new double[ size ];
+		this.uy = new double[ size ];
+		this.uz = new double[ size ];
+		this.vx = new double[ size ];
+		this.vy = new double[ size ];
+		this.vz = new double[ size ];
+
+		// Start from the X axis, projected on the first orthogonal plane.
+		double nx = 1.;
+		double ny = 0.;
+		double nz = 0.;
+		for ( int i = 0; i < size; i++ )
+		{
+			// Transport the previous normal by projecting it on the new plane.
+			final double dot = nx * tx[ i ] + ny * ty[ i ] + nz * tz[ i ];
+			nx -= dot * tx[ i ];
+			ny -= dot * ty[ i ];
+			nz -= dot * tz[ i ];
+			final double norm = Math.sqrt( nx * nx + ny * ny + nz * nz );
+			if ( norm < 1e-9 )
+			{
+				// Tangent along the previous normal: start again from Y.
+				nx = -ty[ i ] * tx[ i ];
+				ny = 1. - ty[ i ] * ty[ i ];
+				nz = -ty[ i ] * tz[ i ];
+				final double n = Math.sqrt( nx * nx + ny * ny + nz * nz );
+				nx /= n;
+				ny /= n;
+				nz /= n;
+			}
+			else
+			{
+				nx /= norm;
+				ny /= norm;
+				nz /= norm;
+			}
+			ux[ i ] = nx;
+			uy[ i ] = ny;
+			uz[ i ] = nz;
+			vx[ i ] = ty[ i ] * nz - tz[ i ] * ny;
+			vy[ i ] = tz[ i ] * nx - tx[ i ] * nz;
+			vz[ i ] = tx[ i ] * ny - ty[ i ] * nx;
+		}
+	}
+
+	/**
+	 * Fits a centerline on the tube centers of the specified fit.
+	 *
+	 * @param fit
+	 *            the tube fit in XY slices.
+	 * @param sigma
+	 *            the standard deviation (in Z-slices) of the Gaussian kernel
+	 *            smoothing the centers along Z. 0 for no smoothing.
+	 * @return a new centerline, from the first to the last Z-slice.
+	 */
+	public static Centerline fit( final TubeFit fit, final double sigma )
+	{
+		final int nz = fit.getSizeZ();
+		final double[] cx = new double[ nz ];
+		final double[] cy = new double[ nz ];
+		for ( int iz = 0; iz < nz; iz++ )
+		{
+			cx[ iz ] = fit.getCenterX( iz );
+			cy[ iz ] = fit.getCenterY( iz );
+		}
+		return fit( smooth( cx, sigma ), smooth( cy, sigma ) );
+	}
+
+	/**
+	 * Creates a centerline through the specified tube centers, one per
+	 * Z-slice, resampled along its arc length.
+	 *
+	 * @param cx
+	 *            the X position of the centerline on each Z-slice.
+	 * @param cy
+	 *            the Y position of the centerline on each Z-slice.
+	 * @return a new centerline, from the first to the last Z-slice.
+	 */
+	public static Centerline fit( final double[] cx, final double[] cy )
+	{
+		final int nz = cx.length;
+
+		// Arc length at each Z-slice.
+		final double[] length = new double[ nz ];
+		for ( int iz = 1; iz < nz; iz++ )
+		{
+			final double dx = cx[ iz ] - cx[ iz - 1 ];
+			final double dy = cy[ iz ] - cy[ iz - 1 ];
+			length[ iz ] = length[ iz - 1 ] + Math.sqrt( dx * dx + dy * dy + 1. );
+		}
+
+		// Samples every pixel of arc length.
+		final int size = 1 + ( int ) Math.floor( length[ nz - 1 ] );
+		final double[] x = new double[ size ];
+		final double[] y = new double[ size ];
+		final double[] z = new double[ size ];
+		final double[] tx = new double[ size ];
+		final double[] ty = new double[ size ];
+		final double[] tz = new double[ size ];
+		int iz = 0;
+		for ( int i = 0; i < size; i++ )
+		{
+			while ( iz < nz - 2 && length[ iz + 1 ] < i )
+				iz++;
+			final double segment = ( nz > 1 ) ? length[ iz + 1 ] - length[ iz ] : 1.;
+			final double t = ( nz > 1 ) ? Math.min( 1., ( i - length[ iz ] ) / segment ) : 0.;
+			final int next = Math.min( nz - 1, iz + 1 );
+			x[ i ] = cx[ iz ] + t * ( cx[ next ] - cx[ iz ] );
+			y[ i ] = cy[ iz ] + t * ( cy[ next ] - cy[ iz ] );
+			z[ i ] = iz + t * ( next - iz );
+
+			// Tangent interpolated between the central differences.
+			final double dx = ( 1. - t ) * derivative( cx, iz ) + t * derivative( cx, next );
+			final double dy = ( 1. - t ) * derivative( cy, iz ) + t * derivative( cy, next );
+			final double norm = Math.sqrt( dx * dx + dy * dy + 1. );
+			tx[ i ] = dx / norm;
+			ty[ i ] = dy / norm;
+			tz[ i ] = 1. / norm;
+		}
+		return new Centerline( x, y, z, tx, ty, tz );
+	}
+
+	/**
+	 * Returns the derivative along Z of the specified values, by central
+	 * differences.
+	 */
+	private static double derivative( final double[] values, final int i )
+	{
+		final int n = values.length;
+		if ( n < 2 )
+			return 0.;
+		final int before = Math.max( 0, i - 1 );
+		final int after = Math.min( n - 1, i + 1 );
+		return ( values[ after ] - values[ before ] ) / ( after - before );
+	}
+
+	/**
+	 * Smooths the specified values with a Gaussian kernel. The kernel is
+	 * truncated at the ends and renormalized.
+	 */
+	private static double[] smooth( final double[] values, final double sigma )
+	{
+		if ( sigma <= 0. )
+			return values.clone();
+
+		final int n = values.length;
+		final int half = ( int ) Math.ceil( 3. * sigma );
+		final double[] kernel = new double[ 2 * half + 1 ];
+		for ( int k = -half; k <= half; k++ )
+			kernel[ k + half ] = Math.exp( -k * k / ( 2. * sigma * sigma ) );
+
+		final double[] smoothed = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			double sum = 0.;
+			double weights = 0.;
+			for ( int k = Math.max( -half, -i ); k <= Math.min( half, n - 1 - i ); k++ )
+			{
+				sum += kernel[ k + half ] * values[ i + k ];
+				weights += kernel[ k + half ];
+			}
+			smoothed[ i ] = sum / weights;
+		}
+		return smoothed;
+	}
+
+	/**
+	 * Returns the number of samples along the centerline.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the X position of the specified sample.
+	 */
+	public double getX( final int i )
+	{
+		return x[ i ];
+	}
+
+	public double getY( final int i )
+	{
+		return y[ i ];
+	}
+
+	/**
+	 * Returns the Z position of the specified sample, in Z-slices.
+	 */
+	public double getZ( final int i )
+	{
+		return z[ i ];
+	}
+
+	/**
+	 * Returns the angle (in radians) between the tube and the Z axis at the
+	 * specified sample.
+	 */
+	public double getTilt( final int i )
+	{
+		return Math.acos( Math.min( 1., tz[ i ] ) );
+	}
+
+	/**
+	 * Returns the position in the stack of a point of the plane orthogonal to
+	 * the centerline at the specified sample.
+	 *
+	 * @param i
+	 *            the sample.
+	 * @param u
+	 *            the offset of the point along the first normal.
+	 * @param v
+	 *            the offset of the point along the second normal.
+	 * @param position
+	 *            the array to write the X, Y and Z positions of the point in.
+	 */
+	public void toStack( final int i, final double u, final double v, final double[] position )
+	{
+		position[ 0 ] = x[ i ] + u * ux[ i ] + v * vx[ i ];
+		position[ 1 ] = y[ i ] + u * uy[ i ] + v * vy[ i ];
+		position[ 2 ] = z[ i ] + u * uz[ i ] + v * vz[ i ];
+	}
+
+	/**
+	 * Returns the extent along Z of the square of half-size
+	 * <code>half</code> centered on the specified sample, in the plane
+	 * orthogonal to the centerline.
+	 */
+	double getHalfExtentZ( final int i, final double half )
+	{
+		return half * ( Math.abs( uz[ i ] ) + Math.abs( vz[ i ] ) );
+	}
+
+	double getUx( final int i )
+	{
+		return ux[ i ];
+	}
+
+	double getUy( final int i )
+	{
+		return uy[ i ];
+	}
+
+	double getUz( final int i )
+	{
+		return uz[ i ];
+	}
+
+	double getVx( final int i )
+	{
+		return vx[ i ];
+	}
+
+	double getVy( final int i )
+	{
+		return vy[ i ];
+	}
+
+	double getVz( final int i )
+	{
+		return vz[ i ];
+	}
+}
@@ -0,0 +1,167 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Exports the fitted tube contours of a {@link TubeFit} directly from the
+ * fitted radii, without going through 3D ROIs.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ * <li>a polyline set, as CSV: one line per ray and Z-slice;
+ * <li>a triangle mesh of the tube wall, as binary PLY: one vertex per ray and
+ * Z-slice, and two triangles between consecutive rays of consecutive
+ * Z-slices.
+ * </ul>
+ * Coordinates are written in pixel units, Z being the slice index. In the CSV
+ * file, numbers are written with {@value #DECIMALS} decimals and formatted by
+ * hand, which is much faster than going through <code>String.format()</code>.
+ */
+public class ContourExporter
+{
+
+	private static final int DECIMALS = 3;
+
+	private static final int SCALE = 1000;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Writes the tube contours as a polyline set. Each line holds the Z-slice,
+	 * the ray index, the ray angle (in radians), the fitted radius and the X
+	 * and Y position of the contour point.
+	 *
+	 * @param fit
+	 *            the tube fit.
+	 * @param writer
+	 *            the writer to write to. It is not closed by this method.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	public static void writePolylines( final TubeFit fit, final Writer writer ) throws IOException
+	{
+		final StringBuilder str = new StringBuilder();
+		writer.write( "z,ray,theta,radius,x,y\n" );
+		for ( int z = 0; z < fit.getSizeZ(); z++ )
+		{
+			str.setLength( 0 );
+			for ( int iTheta = 0; iTheta < fit.getNAngles(); iTheta++ )
+			{
+				str.append( z ).append( ',' ).append( iTheta ).append( ',' );
+				appendFixed( str, fit.getTheta( iTheta ) );
+				str.append( ',' );
+				appendFixed( str, fit.getRadius( z, iTheta ) );
+				str.append( ',' );
+				appendFixed( str, fit.getContourX( z, iTheta ) );
+				str.append( ',' );
+				appendFixed( str, fit.getContourY( z, iTheta ) );
+				str.append( '\n' );
+			}
+			writer.append( str );
+		}
+	}
+
+	/**
+	 * Writes the tube wall as a triangle mesh, in the binary little-endian PLY
+	 * format. If the rays cover the full circle, the mesh is closed around the
+	 * tube axis.
+	 *
+	 * @param fit
+	 *            the tube fit.
+	 * @param out
+	 *            the stream to write to. It is not closed by this method.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	public static void writeMesh( final TubeFit fit, final OutputStream out ) throws IOException
+	{
+		final int nz = fit.getSizeZ();
+		final int nAngles = fit.getNAngles();
+		final int nQuads = isClosed( fit ) ? nAngles : nAngles - 1;
+		final int nFaces = 2 * nQuads * Math.max( 0, nz - 1 );
+
+		final String header = "ply\n"
+				+ "format binary_little_endian 1.0\n"
+				+ "element vertex " + ( nz * nAngles ) + "\n"
+				+ "property float x\n"
+				+ "property float y\n"
+				+ "property float z\n"
+				+ "element face " + nFaces + "\n"
+				+ "property list uchar int vertex_indices\n"
+				+ "end_header\n";
+		out.write( header.getBytes( StandardCharsets.US_ASCII ) );
+
+		final ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		for ( int z = 0; z < nz; z++ )
+		{
+			for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+			{
+				if ( buffer.remaining() < 12 )
+					flush( buffer, out );
+				buffer.putFloat( ( float ) fit.getContourX( z, iTheta ) );
+				buffer.putFloat( ( float ) fit.getContourY( z, iTheta ) );
+				buffer.putFloat( z );
+			}
+		}
+
+		for ( int z = 0; z < nz - 1; z++ )
+		{
+			for ( int iTheta = 0; iTheta < nQuads; iTheta++ )
+			{
+				final int a = z * nAngles + iTheta;
+				final int b = z * nAngles + ( iTheta + 1 ) % nAngles;
+				final int c = a + nAngles;
+				final int d = b + nAngles;
+				if ( buffer.remaining() < 26 )
+					flush( buffer, out );
+				buffer.put( ( byte ) 3 ).putInt( a ).putInt( b ).putInt( d );
+				buffer.put( ( byte ) 3 ).putInt( a ).putInt( d ).putInt( c );
+			}
+		}
+		flush( buffer, out );
+	}
+
+	private static void flush( final ByteBuffer buffer, final OutputStream out ) throws IOException
+	{
+		out.write( buffer.array(), 0, buffer.position() );
+		buffer.clear();
+	}
+
+	/**
+	 * Returns <code>true</code> if the rays of the fit go around the full
+	 * circle.
+	 */
+	private static boolean isClosed( final TubeFit fit )
+	{
+		final int nAngles = fit.getNAngles();
+		if ( nAngles < 3 )
+			return false;
+		final double step = fit.getTheta( 1 ) - fit.getTheta( 0 );
+		return Math.abs( step * nAngles - 2 * Math.PI ) < 1e-6;
+	}
+
+	/**
+	 * Appends the specified value with {@value #DECIMALS} decimals.
+	 */
+	static void appendFixed( final StringBuilder str, final double v )
+	{
+		long fixed = Math.round( Math.abs( v ) * SCALE );
+		if ( v < 0 && fixed != 0 )
+			str.append( '-' );
+		str.append( fixed / SCALE ).append( '.' );
+		fixed %= SCALE;
+		for ( int div = SCALE / 10; div > 0; div /= 10 )
+		{
+			str.append( ( char ) ( '0' + fixed / div ) );
+			fixed %= div;
+		}
+	}
+
+	private ContourExporter()
+	{}
+}
@@ -0,0 +1,247 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Geometry of the crown search and of the radial scan, precomputed once per
+ * run.
+ * <p>
+ * During a run, the angles probed and the radii of the crown never change, and
+ * the tube center only moves by integer offsets from Z-slice to Z-slice. The
+ * sub-pixel part of the center is therefore constant, and all the pixel
+ * positions sampled around the center can be stored as integer offsets
+ * relative to the integer part of the center. Every Z-slice then reuses these
+ * tables instead of calling <code>Math.cos</code> / <code>Math.sin</code> in
+ * the inner loops.
+ * <p>
+ * Offsets are computed from the absolute pixel positions around the center of
+ * the first Z-slice, so that pixel rounding matches what a direct computation
+ * would give. The crown samples are stored floored, and the original search
+ * truncated their positions toward zero: the two only differ for absolute
+ * positions in (-1, 0), which the original search read as pixel 0. The crown
+ * samples therefore also record whether their position has a sub-pixel part,
+ * and {@link #ringMean(Plane, int, int, int[], int[], boolean[], boolean[])}
+ * reads a sample floored to -1 with a sub-pixel part as pixel 0.
+ */
+class CrownGeometry
+{
+
+	/**
+	 * Number of pixels sampled on each of the crown circles.
+	 */
+	final int nCrown;
+
+	/**
+	 * X and Y pixel offsets of the samples on the outer crown circle, relative
+	 * to the integer part of the center.
+	 */
+	final int[] outerDx;
+
+	final int[] outerDy;
+
+	/**
+	 * X and Y pixel offsets of the samples on the inner crown circle, relative
+	 * to the integer part of the center.
+	 */
+	final int[] innerDx;
+
+	final int[] innerDy;
+
+	/**
+	 * Whether the X and Y positions of the samples on the outer crown circle
+	 * have a sub-pixel part, which their offsets floor.
+	 */
+	final boolean[] outerSubX;
+
+	final boolean[] outerSubY;
+
+	/**
+	 * Whether the X and Y positions of the samples on the inner crown circle
+	 * have a sub-pixel part, which their offsets floor.
+	 */
+	final boolean[] innerSubX;
+
+	final boolean[] innerSubY;
+
+	/**
+	 * Number of rays probed in the radial scan.
+	 */
+	final int nAngles;
+
+	/**
+	 * Angle (in radians) of each ray.
+	 */
+	final double[] theta;
+
+	/**
+	 * Unit vector of each ray.
+	 */
+	final double[] cos;
+
+	final double[] sin;
+
+	/**
+	 * Number of samples along each ray.
+	 */
+	final int nRadii;
+
+	/**
+	 * Radius of each sample along a ray.
+	 */
+	final double[] radii;
+
+	/**
+	 * X and Y pixel offsets of the ray samples, relative to the integer part of
+	 * the center. Sample <code>ir</code> of ray <code>iTheta</code> is stored
+	 * at <code>iTheta * nRadii + ir</code>.
+	 */
+	final int[] rayDx;
+
+	final int[] rayDy;
+
+	/**
+	 * Column of each ray in the unwrapped image, projected on the initial
+	 * circle.
+	 */
+	final int[] columns;
+
+	/**
+	 * Sub-pixel part of the center.
+	 */
+	final double fx;
+
+	final double fy;
+
+	/**
+	 * Precomputes the crown and ray geometry.
+	 *
+	 * @param thetaStart
+	 *            the angle (in degrees) corresponding to x=0 in the unwrapped
+	 *            image.
+	 * @param thetaRange
+	 *            the angular arc (in degrees) to evaluate.
+	 * @param nAngles
+	 *            the number of rays of the radial scan.
+	 * @param rOuter
+	 *            the radius of the outer crown circle.
+	 * @param rInner
+	 *            the radius of the inner crown circle.
+	 * @param windowRay
+	 *            the search window for the local max of intensity along a ray.
+	 * @param cx
+	 *            the X position of the tube center on the first Z-slice.
+	 * @param cy
+	 *            the Y position of the tube center on the first Z-slice.
+	 */
+	CrownGeometry( final double thetaStart, final int thetaRange, final int nAngles, final double rOuter,
+			final double rInner, final int windowRay, final double cx, final double cy )
+	{
+		final int ix = ( int ) Math.floor( cx );
+		final int iy = ( int ) Math.floor( cy );
+		this.fx = cx - ix;
+		this.fy = cy - iy;
+
+		final double theta0Rad = 2 * Math.PI * ( thetaStart / 360. );
+		final double thetaRangeRad = 2 * Math.PI * ( thetaRange / 360. );
+
+		/*
+		 * Crown circles, sampled every 0.1 radian.
+		 */
+
+		int n = 0;
+		for ( float angle = ( float ) theta0Rad; angle < thetaRangeRad + theta0Rad; angle += 0.1 )
+			n++;
+		this.nCrown = n;
+		this.outerDx = new int[ nCrown ];
+		this.outerDy = new int[ nCrown ];
+		this.innerDx = new int[ nCrown ];
+		this.innerDy = new int[ nCrown ];
+		this.outerSubX = new boolean[ nCrown ];
+		this.outerSubY = new boolean[ nCrown ];
+		this.innerSubX = new boolean[ nCrown ];
+		this.innerSubY = new boolean[ nCrown ];
+		int k = 0;
+		for ( float angle = ( float ) theta0Rad; angle < thetaRangeRad + theta0Rad; angle += 0.1 )
+		{
+			final double ca = Math.cos( angle );
+			final double sa = Math.sin( angle );
+			final double outerX = cx + ca * rOuter;
+			final double outerY = cy + sa * rOuter;
+			final double innerX = cx + ca * rInner;
+			final double innerY = cy + sa * rInner;
+			outerDx[ k ] = ( int ) Math.floor( outerX ) - ix;
+			outerDy[ k ] = ( int ) Math.floor( outerY ) - iy;
+			innerDx[ k ] = ( int ) Math.floor( innerX ) - ix;
+			innerDy[ k ] = ( int ) Math.floor( innerY ) - iy;
+			outerSubX[ k ] = outerX != Math.floor( outerX );
+			outerSubY[ k ] = outerY != Math.floor( outerY );
+			innerSubX[ k ] = innerX != Math.floor( innerX );
+			innerSubY[ k ] = innerY != Math.floor( innerY );
+			k++;
+		}
+
+		/*
+		 * Rays of the radial scan.
+		 */
+
+		this.nAngles = nAngles;
+		this.theta = new double[ nAngles ];
+		this.cos = new double[ nAngles ];
+		this.sin = new double[ nAngles ];
+		this.columns = new int[ nAngles ];
+		for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+		{
+			theta[ iTheta ] = theta0Rad + 2 * Math.PI * thetaRange / 360 * ( ( double ) iTheta / nAngles );
+			cos[ iTheta ] = Math.cos( theta[ iTheta ] );
+			sin[ iTheta ] = Math.sin( theta[ iTheta ] );
+			columns[ iTheta ] = ( int ) Math.round( rOuter * ( theta[ iTheta ] - thetaStart / 180. * Math.PI ) );
+		}
+
+		n = 0;
+		for ( double r = rOuter - windowRay; r < rOuter + windowRay; r++ )
+			n++;
+		this.nRadii = n;
+		this.radii = new double[ nRadii ];
+		k = 0;
+		for ( double r = rOuter - windowRay; r < rOuter + windowRay; r++ )
+			radii[ k++ ] = r;
+
+		this.rayDx = new int[ nAngles * nRadii ];
+		this.rayDy = new int[ nAngles * nRadii ];
+		for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+		{
+			for ( int ir = 0; ir < nRadii; ir++ )
+			{
+				rayDx[ iTheta * nRadii + ir ] = ( int ) Math.round( cx + cos[ iTheta ] * radii[ ir ] ) - ix;
+				rayDy[ iTheta * nRadii + ir ] = ( int ) Math.round( cy + sin[ iTheta ] * radii[ ir ] ) - iy;
+			}
+		}
+	}
+
+	/**
+	 * Returns the mean of the pixel values on a crown circle centered on the
+	 * specified integer position. Samples falling outside the image are
+	 * ignored. Samples floored to -1 with a sub-pixel part are read as pixel
+	 * 0, as a truncation toward zero would give.
+	 */
+	static double ringMean( final Plane plane, final int x, final int y, final int[] dx, final int[] dy, final boolean[] subX,
+			final boolean[] subY )
+	{
+		final int width = plane.width;
+		final int height = plane.height;
+		double s = 0.;
+		int n = 0;
+		for ( int k = 0; k < dx.length; k++ )
+		{
+			int xx = x + dx[ k ];
+			int yy = y + dy[ k ];
+			if ( xx == -1 && subX[ k ] )
+				xx = 0;
+			if ( yy == -1 && subY[ k ] )
+				yy = 0;
+			if ( xx < 0 || yy < 0 || xx >= width || yy >= height )
+				continue;
+			s += plane.get( yy * width + xx );
+			n++;
+		}
+		return s / n;
+	}
+}
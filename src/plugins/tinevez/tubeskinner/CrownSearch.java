@@ -0,0 +1,36 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Interface for the algorithms that search for the tube center on a Z-slice,
+ * by maximizing the crown score around the center found in the previous
+ * Z-slice.
+ * <p>
+ * The crown score of a candidate center is the mean intensity on the outer
+ * crown circle minus the mean intensity on the inner crown circle. Pixels
+ * falling outside the image are ignored. Candidates are evaluated for X
+ * offsets in increasing order, then for Y offsets in increasing order, and
+ * the first maximum is retained.
+ */
+interface CrownSearch
+{
+
+	/**
+	 * Searches for the best tube center.
+	 *
+	 * @param plane
+	 *            the Z-slice, in the segmentation channel.
+	 * @param cx
+	 *            the X position of the integer part of the previous center.
+	 * @param cy
+	 *            the Y position of the integer part of the previous center.
+	 * @param window
+	 *            the search window. Offsets from <code>-window</code> to
+	 *            <code>+window</code> are evaluated in X and Y.
+	 * @param bestOffset
+	 *            a 2-element array in which the X and Y offsets of the best
+	 *            center are written.
+	 * @return the crown score of the best center.
+	 */
+	public double search( Plane plane, int cx, int cy, int window, int[] bestOffset );
+
+}
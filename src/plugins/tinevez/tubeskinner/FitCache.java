@@ -0,0 +1,204 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Persistent on-disk cache of the tube geometry fitted on a stack.
+ * <p>
+ * The engine stores, for each Z-slice, the crown center and the index of the
+ * fitted radius along each ray. When a stack is processed again with the same
+ * fit parameters, the geometry is read back from the cache, and only the
+ * pixels are sampled again: the center search and the radial scan are
+ * skipped, which makes re-unwrapping much faster. The unwrapped image is the
+ * same as with a full run.
+ * <p>
+ * Cache entries are keyed by the identity of the stack, given by the caller,
+ * and by all the parameters the fit depends on: the segmentation channel,
+ * the crown thickness, the search window, the ray window, the angular range
+ * (the crown is sampled over the evaluated arc only), the number of pyramid
+ * levels, the prediction window, the number of rays, the ray sampling, the
+ * initial circle and the stack size. Each key is stored in its own file of
+ * the cache directory, so that several parameter sets can be cached for the
+ * same stack.
+ */
+public class FitCache
+{
+
+	private static final int MAGIC = 0x54534b43; // "TSKC"
+
+	private static final int VERSION = 1;
+
+	private static final String EXTENSION = ".tubefit";
+
+	private final File directory;
+
+	private final String sourceId;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param directory
+	 *            the directory in which cache files are stored. It is created
+	 *            if needed.
+	 * @param sourceId
+	 *            a string that uniquely identifies the stack and the
+	 *            time-point to process, for instance the path of the image
+	 *            file, its size and modification date, and the time-point.
+	 */
+	public FitCache( final File directory, final String sourceId )
+	{
+		this.directory = directory;
+		this.sourceId = sourceId;
+	}
+
+	/**
+	 * The fitted geometry of one time-point.
+	 */
+	static class Track
+	{
+
+		final int nz;
+
+		final int nAngles;
+
+		final int[] crownX;
+
+		final int[] crownY;
+
+		final double[] scores;
+
+		/**
+		 * Index of the fitted radius of ray <code>iTheta</code> on Z-slice
+		 * <code>z</code>, at <code>z * nAngles + iTheta</code>.
+		 */
+		final short[] radiusIndices;
+
+		Track( final int nz, final int nAngles )
+		{
+			this.nz = nz;
+			this.nAngles = nAngles;
+			this.crownX = new int[ nz ];
+			this.crownY = new int[ nz ];
+			this.scores = new double[ nz ];
+			this.radiusIndices = new short[ nz * nAngles ];
+		}
+
+		/**
+		 * Records the fit of the specified Z-slice.
+		 */
+		void record( final int z, final TubeFitter fitter, final double score )
+		{
+			crownX[ z ] = fitter.getCrownX();
+			crownY[ z ] = fitter.getCrownY();
+			scores[ z ] = score;
+			for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+				radiusIndices[ z * nAngles + iTheta ] = ( short ) fitter.radiusIndices[ iTheta ];
+		}
+	}
+
+	/**
+	 * Reads the track stored for the specified parameters.
+	 *
+	 * @param parameters
+	 *            the fit parameters.
+	 * @param nz
+	 *            the number of Z-slices.
+	 * @param nAngles
+	 *            the number of rays.
+	 * @return the track, or <code>null</code> if there is none in the cache,
+	 *         or if it cannot be read.
+	 */
+	Track read( final String parameters, final int nz, final int nAngles )
+	{
+		final String key = key( parameters );
+		final File file = file( key );
+		if ( !file.exists() )
+			return null;
+
+		try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals( key ) )
+				return null;
+			if ( in.readInt() != nz || in.readInt() != nAngles )
+				return null;
+
+			final Track track = new Track( nz, nAngles );
+			for ( int z = 0; z < nz; z++ )
+			{
+				track.crownX[ z ] = in.readInt();
+				track.crownY[ z ] = in.readInt();
+				track.scores[ z ] = in.readDouble();
+				for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+					track.radiusIndices[ z * nAngles + iTheta ] = in.readShort();
+			}
+			return track;
+		}
+		catch ( final IOException e )
+		{
+			// A corrupted or truncated cache file is fitted again.
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the track fitted for the specified parameters. The file is
+	 * written aside then moved, so that an interrupted write does not leave a
+	 * truncated cache file.
+	 *
+	 * @param parameters
+	 *            the fit parameters.
+	 * @param track
+	 *            the track to store.
+	 */
+	void write( final String parameters, final Track track )
+	{
+		final String key = key( parameters );
+		final File file = file( key );
+		try
+		{
+			Files.createDirectories( directory.toPath() );
+			final File tmp = new File( directory, file.getName() + ".tmp" );
+			try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ))
+			{
+				out.writeInt( MAGIC );
+				out.writeInt( VERSION );
+				out.writeUTF( key );
+				out.writeInt( track.nz );
+				out.writeInt( track.nAngles );
+				for ( int z = 0; z < track.nz; z++ )
+				{
+					out.writeInt( track.crownX[ z ] );
+					out.writeInt( track.crownY[ z ] );
+					out.writeDouble( track.scores[ z ] );
+					for ( int iTheta = 0; iTheta < track.nAngles; iTheta++ )
+						out.writeShort( track.radiusIndices[ z * track.nAngles + iTheta ] );
+				}
+			}
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	private String key( final String parameters )
+	{
+		return sourceId + '\n' + parameters;
+	}
+
+	private File file( final String key )
+	{
+		return new File( directory, String.format( "%08x", key.hashCode() ) + EXTENSION );
+	}
+}
@@ -0,0 +1,133 @@
+package plugins.tinevez.tubeskinner;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import icy.common.exception.UnsupportedFormatException;
+import icy.file.SequenceFileImporter;
+import icy.sequence.MetaDataUtil;
+import ome.xml.meta.OMEXMLMetadata;
+
+/**
+ * Streams the Z-planes of one time-point from an image file opened with an Icy
+ * importer, without loading the whole sequence.
+ * <p>
+ * Each plane is read from the file when the engine requests it, so that only
+ * one Z-slice is held in memory. This allows processing stacks much larger
+ * than the memory available to Icy.
+ * <p>
+ * Regions are read through the importer too, so that tiled formats only
+ * read and decode the tiles the region overlaps.
+ */
+public class ImporterPlaneSource implements RegionPlaneSource
+{
+
+	private final SequenceFileImporter importer;
+
+	private final int series;
+
+	private final int timepoint;
+
+	private final int width;
+
+	private final int height;
+
+	private final int sizeZ;
+
+	private final int sizeC;
+
+	private final boolean signed;
+
+	/**
+	 * Creates a source for the specified time-point of an image file.
+	 *
+	 * @param importer
+	 *            the importer, already opened on the file. It is not closed by
+	 *            this source.
+	 * @param series
+	 *            the series to read in the file.
+	 * @param timepoint
+	 *            the time-point to read.
+	 * @throws UnsupportedFormatException
+	 *             if the metadata of the file cannot be read.
+	 * @throws IOException
+	 *             if the metadata of the file cannot be read.
+	 */
+	public ImporterPlaneSource( final SequenceFileImporter importer, final int series, final int timepoint ) throws UnsupportedFormatException, IOException
+	{
+		this.importer = importer;
+		this.series = series;
+		this.timepoint = timepoint;
+		final OMEXMLMetadata metadata = importer.getOMEXMLMetaData();
+		this.width = MetaDataUtil.getSizeX( metadata, series );
+		this.height = MetaDataUtil.getSizeY( metadata, series );
+		this.sizeZ = MetaDataUtil.getSizeZ( metadata, series );
+		this.sizeC = MetaDataUtil.getSizeC( metadata, series );
+		this.signed = MetaDataUtil.getDataType( metadata, series ).isSigned();
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return height;
+	}
+
+	@Override
+	public int getSizeZ()
+	{
+		return sizeZ;
+	}
+
+	@Override
+	public int getSizeC()
+	{
+		return sizeC;
+	}
+
+	@Override
+	public boolean isSigned()
+	{
+		return signed;
+	}
+
+	@Override
+	public Object getPlane( final int z, final int c )
+	{
+		try
+		{
+			return importer.getPixels( series, 0, null, z, timepoint, c );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		catch ( final UnsupportedFormatException e )
+		{
+			throw new IllegalStateException( "Cannot read plane z=" + z + ", c=" + c + ", t=" + timepoint + ".", e );
+		}
+	}
+
+	@Override
+	public Object getRegion( final int z, final int c, final int x, final int y, final int regionWidth, final int regionHeight )
+	{
+		try
+		{
+			return importer.getPixels( series, 0, new Rectangle( x, y, regionWidth, regionHeight ), z, timepoint, c );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		catch ( final UnsupportedFormatException e )
+		{
+			throw new IllegalStateException( "Cannot read region of plane z=" + z + ", c=" + c + ", t=" + timepoint + ".", e );
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file holding the unwrapped images of all the time-points, written through
+ * memory mapping as the rows are produced.
+ * <p>
+ * The file starts with a header of {@value #HEADER_SIZE} bytes, followed by
+ * the raw 32-bit float planes of <code>nx x nz</code> pixels, channel after
+ * channel, time-point after time-point, in the native byte order recorded in
+ * the header. The rows of a time-point are copied directly from the sampling
+ * buffer into the mapped pages, without any intermediate buffer or system
+ * call, and are flushed to disk by the OS. The unwrapped images therefore do
+ * not use any heap, whatever the number of time-points and Z-slices, and can
+ * be read back one time-point at a time.
+ * <p>
+ * Different time-points can be written concurrently.
+ */
+public class MappedUnwrapFile implements AutoCloseable
+{
+
+	/**
+	 * Size (in bytes) of the file header.
+	 */
+	public static final int HEADER_SIZE = 64;
+
+	private static final int MAGIC = 0x54534b55; // "TSKU"
+
+	private static final int VERSION = 1;
+
+	private final FileChannel channel;
+
+	private final ByteOrder order;
+
+	private final int nx;
+
+	private final int nz;
+
+	private final int nc;
+
+	private final int nt;
+
+	private MappedUnwrapFile( final FileChannel channel, final ByteOrder order, final int nx, final int nz, final int nc,
+			final int nt )
+	{
+		this.channel = channel;
+		this.order = order;
+		this.nx = nx;
+		this.nz = nz;
+		this.nc = nc;
+		this.nt = nt;
+	}
+
+	/**
+	 * Creates a new file, or overwrites an existing one, for the unwrapped
+	 * images of the specified size.
+	 *
+	 * @param file
+	 *            the file to create.
+	 * @param nx
+	 *            the width of the unwrapped images.
+	 * @param nz
+	 *            the height of the unwrapped images, that is the number of
+	 *            Z-slices.
+	 * @param nc
+	 *            the number of channels.
+	 * @param nt
+	 *            the number of time-points.
+	 * @return the file, open for writing.
+	 * @throws IOException
+	 *             if the file cannot be created.
+	 */
+	public static MappedUnwrapFile create( final File file, final int nx, final int nz, final int nc, final int nt )
+			throws IOException
+	{
+		if ( 4l * nx * nz > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Unwrapped planes of " + nx + " x " + nz + " pixels are too large to be mapped." );
+
+		final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+		final ByteOrder order = ByteOrder.nativeOrder();
+		final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.BIG_ENDIAN );
+		header.putInt( MAGIC ).putInt( VERSION );
+		header.putInt( order == ByteOrder.BIG_ENDIAN ? 0 : 1 );
+		header.putInt( nx ).putInt( nz ).putInt( nc ).putInt( nt );
+		header.clear();
+		while ( header.hasRemaining() )
+			channel.write( header, header.position() );
+		return new MappedUnwrapFile( channel, order, nx, nz, nc, nt );
+	}
+
+	/**
+	 * Opens an existing file.
+	 *
+	 * @param file
+	 *            the file to open.
+	 * @return the file, open for reading and writing.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not an unwrapped image
+	 *             file.
+	 */
+	public static MappedUnwrapFile open( final File file ) throws IOException
+	{
+		final FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE );
+		final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.BIG_ENDIAN );
+		while ( header.hasRemaining() )
+		{
+			if ( channel.read( header, header.position() ) < 0 )
+				break;
+		}
+		header.flip();
+		if ( header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION )
+		{
+			channel.close();
+			throw new IOException( file + " is not an unwrapped image file." );
+		}
+		final ByteOrder order = header.getInt() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		final int nx = header.getInt();
+		final int nz = header.getInt();
+		final int nc = header.getInt();
+		final int nt = header.getInt();
+		return new MappedUnwrapFile( channel, order, nx, nz, nc, nt );
+	}
+
+	public int getWidth()
+	{
+		return nx;
+	}
+
+	public int getHeight()
+	{
+		return nz;
+	}
+
+	public int getSizeC()
+	{
+		return nc;
+	}
+
+	public int getSizeT()
+	{
+		return nt;
+	}
+
+	/**
+	 * Returns a writer of the rows of the unwrapped image of the specified
+	 * time-point. The planes of the time-point are mapped until the writer is
+	 * garbage collected.
+	 *
+	 * @param t
+	 *            the time-point index in the file.
+	 * @return a new writer.
+	 */
+	public UnwrapWriter writer( final int t )
+	{
+		final FloatBuffer[] planes = new FloatBuffer[ nc ];
+		for ( int c = 0; c < nc; c++ )
+			planes[ c ] = map( t, c, MapMode.READ_WRITE ).asFloatBuffer();
+
+		return new UnwrapWriter()
+		{
+			@Override
+			public void writeRow( final int z, final float[][] row )
+			{
+				for ( int c = 0; c < planes.length; c++ )
+				{
+					planes[ c ].position( z * nx );
+					planes[ c ].put( row[ c ], 0, nx );
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads the unwrapped plane of the specified time-point and channel.
+	 *
+	 * @param t
+	 *            the time-point index in the file.
+	 * @param c
+	 *            the channel.
+	 * @param target
+	 *            the array to read into, of size <code>nx x nz</code>, or
+	 *            <code>null</code> to allocate a new one.
+	 * @return the plane array.
+	 */
+	public float[] readPlane( final int t, final int c, final float[] target )
+	{
+		final float[] plane = ( null == target ) ? new float[ nx * nz ] : target;
+		map( t, c, MapMode.READ_ONLY ).asFloatBuffer().get( plane, 0, nx * nz );
+		return plane;
+	}
+
+	private MappedByteBuffer map( final int t, final int c, final MapMode mode )
+	{
+		if ( t < 0 || t >= nt || c < 0 || c >= nc )
+			throw new IndexOutOfBoundsException( "No unwrapped plane for t=" + t + ", c=" + c + "." );
+
+		final long planeSize = 4l * nx * nz;
+		final long position = HEADER_SIZE + ( ( long ) t * nc + c ) * planeSize;
+		try
+		{
+			final MappedByteBuffer buffer = channel.map( mode, position, planeSize );
+			buffer.order( order );
+			return buffer;
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	/**
+	 * Closes the file. Mapped planes stay valid until they are garbage
+	 * collected.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
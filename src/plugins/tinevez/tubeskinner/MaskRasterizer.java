@@ -0,0 +1,134 @@
+package plugins.tinevez.tubeskinner;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+
+import icy.roi.BooleanMask2D;
+
+/**
+ * Rasterizes the fitted tube sections directly into boolean masks, without
+ * going through intermediate 2D ROIs.
+ * <p>
+ * Like the inclusive masks of Icy ROIs, a pixel belongs to the mask if the
+ * shape overlaps it. The masks are the same as those of the
+ * <code>ROI2DEllipse</code> and <code>ROI2DPolyLine</code> ROIs they replace.
+ */
+class MaskRasterizer
+{
+
+	/**
+	 * Returns the mask of a disc.
+	 *
+	 * @param cx
+	 *            the X position of the disc center.
+	 * @param cy
+	 *            the Y position of the disc center.
+	 * @param r
+	 *            the disc radius.
+	 * @return a new mask.
+	 */
+	static BooleanMask2D disc( final double cx, final double cy, final double r )
+	{
+		// Same corners and arithmetic as the ellipse of the ROI, so that
+		// pixels touching the circle are decided the same way.
+		final double x0 = cx - r;
+		final double y0 = cy - r;
+		final double d = ( cx + r ) - x0;
+		final double dh = ( cy + r ) - y0;
+		final int minX = ( int ) Math.floor( x0 );
+		final int minY = ( int ) Math.floor( y0 );
+		final int maxX = ( int ) Math.ceil( x0 + d ) - 1;
+		final int maxY = ( int ) Math.ceil( y0 + dh ) - 1;
+		final int w = Math.max( 0, maxX - minX + 1 );
+		final int h = Math.max( 0, maxY - minY + 1 );
+
+		final boolean[] mask = new boolean[ w * h ];
+		if ( d <= 0. || dh <= 0. )
+			return new BooleanMask2D( new Rectangle( minX, minY, w, h ), mask );
+		for ( int y = 0; y < h; y++ )
+		{
+			// Closest point of the pixel to the center, in units of the
+			// diameter.
+			final double ny0 = ( minY + y - y0 ) / dh - 0.5;
+			final double ny1 = ny0 + 1. / dh;
+			final double ny = ny0 > 0. ? ny0 : ny1 < 0. ? ny1 : 0.;
+			for ( int x = 0; x < w; x++ )
+			{
+				final double nx0 = ( minX + x - x0 ) / d - 0.5;
+				final double nx1 = nx0 + 1. / d;
+				final double nx = nx0 > 0. ? nx0 : nx1 < 0. ? nx1 : 0.;
+				mask[ y * w + x ] = nx * nx + ny * ny < 0.25;
+			}
+		}
+		return new BooleanMask2D( new Rectangle( minX, minY, w, h ), mask );
+	}
+
+	/**
+	 * Returns the mask of an open polyline: the pixels crossed by its
+	 * segments. The last vertex is not joined back to the first one, so a
+	 * contour over an arc of less than 360 degrees has no closing chord.
+	 *
+	 * @param xs
+	 *            the X position of the polyline vertices.
+	 * @param ys
+	 *            the Y position of the polyline vertices.
+	 * @param n
+	 *            the number of vertices.
+	 * @return a new mask.
+	 */
+	static BooleanMask2D polyline( final double[] xs, final double[] ys, final int n )
+	{
+		if ( n == 0 )
+			return new BooleanMask2D( new Rectangle(), new boolean[ 0 ] );
+
+		double xMin = Double.POSITIVE_INFINITY;
+		double yMin = Double.POSITIVE_INFINITY;
+		double xMax = Double.NEGATIVE_INFINITY;
+		double yMax = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < n; i++ )
+		{
+			xMin = Math.min( xMin, xs[ i ] );
+			yMin = Math.min( yMin, ys[ i ] );
+			xMax = Math.max( xMax, xs[ i ] );
+			yMax = Math.max( yMax, ys[ i ] );
+		}
+
+		// Same integer bounds as the ROI, which clip the pixels that the
+		// polyline only touches on their border.
+		final int minX = ( int ) Math.floor( xMin );
+		final int minY = ( int ) Math.floor( yMin );
+		final int maxX = Math.max( minX, ( int ) Math.ceil( xMax ) - 1 );
+		final int maxY = Math.max( minY, ( int ) Math.ceil( yMax ) - 1 );
+		final int w = maxX - minX + 1;
+		final int h = maxY - minY + 1;
+		final boolean[] mask = new boolean[ w * h ];
+
+		// Test the pixels that touch the bounding box of each segment.
+		final Rectangle2D.Double pixel = new Rectangle2D.Double();
+		for ( int i = 0; i + 1 < n; i++ )
+		{
+			final double x0 = xs[ i ];
+			final double y0 = ys[ i ];
+			final double x1 = xs[ i + 1 ];
+			final double y1 = ys[ i + 1 ];
+			final int pxMin = Math.max( minX, ( int ) Math.ceil( Math.min( x0, x1 ) ) - 1 );
+			final int pxMax = Math.min( maxX, ( int ) Math.floor( Math.max( x0, x1 ) ) );
+			final int pyMin = Math.max( minY, ( int ) Math.ceil( Math.min( y0, y1 ) ) - 1 );
+			final int pyMax = Math.min( maxY, ( int ) Math.floor( Math.max( y0, y1 ) ) );
+			for ( int py = pyMin; py <= pyMax; py++ )
+			{
+				for ( int px = pxMin; px <= pxMax; px++ )
+				{
+					pixel.setRect( px, py, 1., 1. );
+					if ( pixel.intersectsLine( x0, y0, x1, y1 ) )
+						mask[ ( py - minY ) * w + px - minX ] = true;
+				}
+			}
+		}
+
+		return new BooleanMask2D( new Rectangle( minX, minY, w, h ), mask );
+	}
+
+	private MaskRasterizer()
+	{}
+}
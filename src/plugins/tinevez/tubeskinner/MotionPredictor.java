@@ -0,0 +1,167 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Predicts the crown center on the next Z-slice from its trajectory on the
+ * previous ones, so that the center can be searched in a small window around
+ * the predicted position instead of the full search window.
+ * <p>
+ * The predictor assumes a constant velocity along Z: the displacement of the
+ * center from one Z-slice to the next is smoothed exponentially, which is the
+ * steady state of an alpha-beta (constant gain Kalman) filter whose position
+ * is the measured crown center. The prediction is only trusted if the center
+ * found around it is strictly inside the small window, and if its crown score
+ * did not drop by more than {@value #SCORE_DROP} of the running mean score.
+ * Otherwise, the fitter falls back to the full search.
+ * <p>
+ * The small window is clamped inside the full search window, so that the
+ * center never moves further than with a full search.
+ */
+class MotionPredictor
+{
+
+	/**
+	 * Gain of the velocity update.
+	 */
+	private static final double BETA = 0.5;
+
+	/**
+	 * Gain of the running mean of the crown score.
+	 */
+	private static final double SCORE_GAIN = 0.2;
+
+	/**
+	 * Relative drop of the crown score, below its running mean, that triggers
+	 * the full search.
+	 */
+	static final double SCORE_DROP = 0.1;
+
+	/**
+	 * Number of Z-slices searched with the full window before the velocity is
+	 * trusted.
+	 */
+	private static final int WARMUP = 2;
+
+	/**
+	 * Half-size of the search window around the predicted center.
+	 */
+	final int window;
+
+	/**
+	 * Half-size of the full search window.
+	 */
+	private final int searchWindow;
+
+	private int lastX;
+
+	private int lastY;
+
+	private double vx;
+
+	private double vy;
+
+	private double meanScore;
+
+	private int nUpdates;
+
+	/**
+	 * Creates a predictor.
+	 *
+	 * @param window
+	 *            the half-size of the search window around the predicted
+	 *            center.
+	 * @param searchWindow
+	 *            the half-size of the full search window.
+	 * @param x
+	 *            the integer part of the initial center.
+	 * @param y
+	 *            the integer part of the initial center.
+	 */
+	MotionPredictor( final int window, final int searchWindow, final int x, final int y )
+	{
+		this.window = window;
+		this.searchWindow = searchWindow;
+		reset( x, y );
+	}
+
+	/**
+	 * Restarts the trajectory from the specified center, forgetting the
+	 * velocity.
+	 */
+	void reset( final int x, final int y )
+	{
+		lastX = x;
+		lastY = y;
+		vx = 0.;
+		vy = 0.;
+		meanScore = 0.;
+		nUpdates = 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if the center can be searched around the
+	 * prediction on the next Z-slice.
+	 */
+	boolean isReady()
+	{
+		return nUpdates >= WARMUP && window < searchWindow;
+	}
+
+	/**
+	 * Returns the X offset of the predicted center from the last center,
+	 * clamped so that the small window stays inside the full search window.
+	 */
+	int predictDx()
+	{
+		return clamp( vx );
+	}
+
+	int predictDy()
+	{
+		return clamp( vy );
+	}
+
+	private int clamp( final double v )
+	{
+		final int max = searchWindow - window;
+		return Math.max( -max, Math.min( max, ( int ) Math.round( v ) ) );
+	}
+
+	/**
+	 * Returns <code>true</code> if the center found around the prediction can
+	 * be accepted.
+	 *
+	 * @param score
+	 *            the crown score of the center.
+	 * @param offset
+	 *            the offset of the center from the predicted one.
+	 */
+	boolean accept( final double score, final int[] offset )
+	{
+		if ( Math.abs( offset[ 0 ] ) >= window || Math.abs( offset[ 1 ] ) >= window )
+			return false;
+		return meanScore > 0. && score >= ( 1. - SCORE_DROP ) * meanScore;
+	}
+
+	/**
+	 * Returns <code>true</code> if this predictor and the specified one would
+	 * make the same predictions and decisions on the next Z-slices.
+	 */
+	boolean sameState( final MotionPredictor other )
+	{
+		return lastX == other.lastX && lastY == other.lastY && vx == other.vx && vy == other.vy
+				&& meanScore == other.meanScore && isReady() == other.isReady();
+	}
+
+	/**
+	 * Adds the center found on a Z-slice to the trajectory.
+	 */
+	void update( final int x, final int y, final double score )
+	{
+		vx += BETA * ( x - lastX - vx );
+		vy += BETA * ( y - lastY - vy );
+		lastX = x;
+		lastY = y;
+		meanScore = ( nUpdates == 0 ) ? score : meanScore + SCORE_GAIN * ( score - meanScore );
+		nUpdates++;
+	}
+}
@@ -0,0 +1,339 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Read access to the pixel values of a single 2D plane, backed by the
+ * primitive array of the image it comes from.
+ * <p>
+ * There is one implementation per pixel type, so that pixel values are read
+ * directly from the source array without converting the whole plane to
+ * <code>double</code> first. A plane instance can be re-pointed to the array
+ * of another plane of the same size with {@link #setData(Object)}, so that the
+ * same instance is reused over all the Z-slices.
+ */
+abstract class Plane
+{
+
+	final int width;
+
+	final int height;
+
+	private Plane( final int width, final int height )
+	{
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Returns the value of the pixel at the specified index in the plane
+	 * array, that is <code>y * width + x</code>.
+	 */
+	abstract double get( int index );
+
+	/**
+	 * Re-points this plane to the specified array. It must be of the same type
+	 * and size as the array this plane was created with.
+	 */
+	abstract void setData( Object array );
+
+	/**
+	 * Returns the value at the specified position, bilinearly interpolated
+	 * from its 4 neighbor pixels. Neighbors falling outside the plane count as
+	 * 0.
+	 */
+	final double getInterpolated( final double x, final double y )
+	{
+		final int xi = ( int ) x;
+		final int yi = ( int ) y;
+		final double ratioNextX = x - xi;
+		final double ratioNextY = y - yi;
+		final double ratioCurX = 1. - ratioNextX;
+		final double ratioCurY = 1. - ratioNextY;
+
+		double value = 0.;
+		if ( xi >= 0 && yi >= 0 && xi < width && yi < height )
+			value += get( yi * width + xi ) * ratioCurX * ratioCurY;
+		if ( xi + 1 >= 0 && yi >= 0 && xi + 1 < width && yi < height )
+			value += get( yi * width + xi + 1 ) * ratioNextX * ratioCurY;
+		if ( xi >= 0 && yi + 1 >= 0 && xi < width && yi + 1 < height )
+			value += get( ( yi + 1 ) * width + xi ) * ratioCurX * ratioNextY;
+		if ( xi + 1 >= 0 && yi + 1 >= 0 && xi + 1 < width && yi + 1 < height )
+			value += get( ( yi + 1 ) * width + xi + 1 ) * ratioNextX * ratioNextY;
+		return value;
+	}
+
+	/**
+	 * Creates a plane backed by the specified primitive array.
+	 *
+	 * @param array
+	 *            the plane array. Must be a <code>byte[]</code>,
+	 *            <code>short[]</code>, <code>int[]</code>,
+	 *            <code>float[]</code> or <code>double[]</code> array.
+	 * @param signed
+	 *            whether integer pixel values are signed.
+	 * @param width
+	 *            the plane width.
+	 * @param height
+	 *            the plane height.
+	 * @return a new plane.
+	 */
+	static Plane wrap( final Object array, final boolean signed, final int width, final int height )
+	{
+		final Plane plane;
+		if ( array instanceof byte[] )
+			plane = signed ? new BytePlane( width, height ) : new UnsignedBytePlane( width, height );
+		else if ( array instanceof short[] )
+			plane = signed ? new ShortPlane( width, height ) : new UnsignedShortPlane( width, height );
+		else if ( array instanceof int[] )
+			plane = signed ? new IntPlane( width, height ) : new UnsignedIntPlane( width, height );
+		else if ( array instanceof float[] )
+			plane = new FloatPlane( width, height );
+		else if ( array instanceof double[] )
+			plane = new DoublePlane( width, height );
+		else
+			throw new IllegalArgumentException( "Unsupported plane array type: " + array.getClass().getSimpleName() );
+
+		plane.setData( array );
+		return plane;
+	}
+
+	/**
+	 * Creates a plane downsampled by 2 from the specified plane, each pixel
+	 * being the mean of a 2x2 block of the source plane.
+	 * <p>
+	 * Pixels are only computed when they are first read, and then cached.
+	 * Re-pointing the downsampled plane to its source plane with
+	 * {@link #setData(Object)}, after the source plane changed, invalidates
+	 * the cache. Downsampling a Z-slice therefore only costs for the pixels
+	 * actually read.
+	 *
+	 * @param source
+	 *            the plane to downsample.
+	 * @return a new plane.
+	 */
+	static Plane downsample( final Plane source )
+	{
+		final Plane plane = new DownsampledPlane( source.width / 2, source.height / 2 );
+		plane.setData( source );
+		return plane;
+	}
+
+	private static final class BytePlane extends Plane
+	{
+		private byte[] data;
+
+		private BytePlane( final int width, final int height )
+		{
+			super( width, height );
+		}
+
+		@Override
+		double get( final int index )
+		{
+			return data[ index ];
+		}
+
+		@Override
+		void setData( final Object array )
+		{
+			this.data = ( byte[] ) array;
+		}
+	}
+
+	private static final class UnsignedBytePlane extends Plane
+	{
+		private byte[] data;
+
+		private UnsignedBytePlane( final int width, final int height )
+		{
+			super( width, height );
+		}
+
+		@Override
+		double get( final int index )
+		{
+			return data[ index ] & 0xff;
+		}
+
+		@Override
+		void setData( final Object array )
+		{
+			this.data = ( byte[] ) array;
+		}
+	}
+
+	private static final class ShortPlane extends Plane
+	{
+		private short[] data;
+
+		private ShortPlane( final int width, final int height )
+		{
+			super( width, height );
+		}
+
+		@Override
+		double get( final int index )
+		{
+			return data[ index ];
+		}
+
+		@Override
+		void setData( final Object array )
+		{
+			this.data = ( short[] ) array;
+		}
+	}
+
+	private static final class UnsignedShortPlane extends Plane
+	{
+		private short[] data;
+
+		private UnsignedShortPlane( final int width, final int height )
+		{
+			super( width, height );
+		}
+
+		@Override
+		double get( final int index )
+		{
+			return data[ index ] & 0xffff;
+		}
+
+		@Override
+		void setData( final Object array )
+		{
+			this.data = ( short[] ) array;
+		}
+	}
+
+	private static final class IntPlane extends Plane
+	{
+		private int[] data;
+
+		private IntPlane( final int width, final int height )
+		{
+			super( width, height );
+		}
+
+		@Override
+		double get( final int index )
+		{
+			return data[ index ];
+		}
+
+		@Override
+		void setData( final Object array )
+		{
+			this.data = ( int[] ) array;
+		}
+	}
+
+	private static final class UnsignedIntPlane extends Plane
+	{
+		private int[] data;
+
+		private UnsignedIntPlane( final int width, final int height )
+		{
+			super( width, height );
+		}
+
+		@Override
+		double get( final int index )
+		{
+			return data[ index ] & 0xffffffffl;
+		}
+
+		@Override
+		void setData( final Object array )
+		{
+			this.data = ( int[] ) array;
+		}
+	}
+
+	private static final class FloatPlane extends Plane
+	{
+		private float[] data;
+
+		private FloatPlane( final int width, final int height )
+		{
+			super( width, height );
+		}
+
+		@Override
+		double get( final int index )
+		{
+			return data[ index ];
+		}
+
+		@Override
+		void setData( final Object array )
+		{
+			this.data = ( float[] ) array;
+		}
+	}
+
+	private static final class DoublePlane extends Plane
+	{
+		private double[] data;
+
+		private DoublePlane( final int width, final int height )
+		{
+			super( width, height );
+		}
+
+		@Override
+		double get( final int index )
+		{
+			return data[ index ];
+		}
+
+		@Override
+		void setData( final Object array )
+		{
+			this.data = ( double[] ) array;
+		}
+	}
+
+	private static final class DownsampledPlane extends Plane
+	{
+		private Plane source;
+
+		private final float[] values;
+
+		/**
+		 * Generation at which each pixel was computed. A pixel is valid if its
+		 * stamp is the current generation.
+		 */
+		private final int[] stamps;
+
+		private int generation = 0;
+
+		private DownsampledPlane( final int width, final int height )
+		{
+			super( width, height );
+			this.values = new float[ width * height ];
+			this.stamps = new int[ width * height ];
+		}
+
+		@Override
+		double get( final int index )
+		{
+			if ( stamps[ index ] != generation )
+			{
+				final int y = index / width;
+				final int x = index - y * width;
+				final int i0 = 2 * y * source.width + 2 * x;
+				final int i1 = i0 + source.width;
+				values[ index ] = ( float ) ( 0.25 * ( source.get( i0 ) + source.get( i0 + 1 ) + source.get( i1 ) + source.get( i1 + 1 ) ) );
+				stamps[ index ] = generation;
+			}
+			return values[ index ];
+		}
+
+		@Override
+		void setData( final Object array )
+		{
+			this.source = ( Plane ) array;
+			generation++;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Supplies the Z-planes of one time-point of a multi-channel image stack to
+ * the {@link TubeSkinnerEngine}.
+ * <p>
+ * Planes are returned as primitive arrays, laid out line by line (the pixel at
+ * <code>(x, y)</code> is at index <code>y * width + x</code>). Supported array
+ * types are <code>byte[]</code>, <code>short[]</code>, <code>int[]</code>,
+ * <code>float[]</code> and <code>double[]</code>. All the planes of a source
+ * must have the same type.
+ * <p>
+ * The engine requests the planes of one Z-slice, all channels, then fits the
+ * tube on them before moving to the next Z-slice. Sources may therefore reuse
+ * one array per channel, and only keep one Z-slice in memory: this allows
+ * streaming stacks that do not fit in memory.
+ */
+public interface PlaneSource
+{
+
+	/**
+	 * Returns the width of the planes.
+	 */
+	public int getWidth();
+
+	/**
+	 * Returns the height of the planes.
+	 */
+	public int getHeight();
+
+	/**
+	 * Returns the number of Z-planes.
+	 */
+	public int getSizeZ();
+
+	/**
+	 * Returns the number of channels.
+	 */
+	public int getSizeC();
+
+	/**
+	 * Returns whether integer pixel values are signed.
+	 */
+	public boolean isSigned();
+
+	/**
+	 * Returns the pixel array of the specified plane. The array is only read
+	 * until the planes of another Z-slice are requested.
+	 *
+	 * @param z
+	 *            the Z position of the plane.
+	 * @param c
+	 *            the channel of the plane.
+	 * @return the plane pixel array.
+	 */
+	public Object getPlane( int z, int c );
+
+}
@@ -0,0 +1,195 @@
+package plugins.tinevez.tubeskinner;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the planes of another source ahead of the fit, on a producer thread.
+ * <p>
+ * The producer copies the planes of the next Z-slices, all channels, into a
+ * ring of slots, while the fit runs on the current Z-slice. This hides the
+ * latency of sources that read from disk or from a network mount. Planes must
+ * be requested in increasing Z order, which is what the engine does. The
+ * producer is stopped by {@link #close()}.
+ */
+class PrefetchPlaneSource implements PlaneSource, AutoCloseable
+{
+
+	/**
+	 * Marks the failure of the producer in the queue of filled slots.
+	 */
+	private static final int FAILED = -1;
+
+	private final PlaneSource source;
+
+	/**
+	 * Plane arrays of each slot, one per channel.
+	 */
+	private final Object[][] slots;
+
+	private final BlockingQueue< Integer > free;
+
+	private final BlockingQueue< Integer > filled;
+
+	private final Thread producer;
+
+	private volatile Throwable error;
+
+	private volatile boolean closed = false;
+
+	private int currentZ = -1;
+
+	private int currentSlot = -1;
+
+	/**
+	 * Creates a prefetching source and starts its producer.
+	 *
+	 * @param source
+	 *            the source to read ahead.
+	 * @param depth
+	 *            the number of Z-slices that can be read ahead.
+	 */
+	PrefetchPlaneSource( final PlaneSource source, final int depth )
+	{
+		this.source = source;
+		this.slots = new Object[ depth ][ source.getSizeC() ];
+		this.free = new ArrayBlockingQueue<>( depth );
+		this.filled = new ArrayBlockingQueue<>( depth );
+		for ( int slot = 0; slot < depth; slot++ )
+			free.add( slot );
+
+		this.producer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				produce();
+			}
+		}, "TubeSkinner plane prefetch" );
+		producer.setDaemon( true );
+		producer.start();
+	}
+
+	private void produce()
+	{
+		try
+		{
+			for ( int z = 0; z < source.getSizeZ(); z++ )
+			{
+				final int slot = free.take();
+				if ( closed )
+					return;
+				for ( int c = 0; c < source.getSizeC(); c++ )
+					slots[ slot ][ c ] = copy( source.getPlane( z, c ), slots[ slot ][ c ] );
+				filled.put( slot );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( final Throwable t )
+		{
+			error = t;
+			// There is always room: the producer holds a slot.
+			filled.offer( FAILED );
+		}
+	}
+
+	/**
+	 * Copies a plane array into a slot array, allocated on first use.
+	 */
+	private static Object copy( final Object plane, final Object target )
+	{
+		final int length = Array.getLength( plane );
+		final Object copy = ( null == target ) ? Array.newInstance( plane.getClass().getComponentType(), length ) : target;
+		System.arraycopy( plane, 0, copy, 0, length );
+		return copy;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return source.getWidth();
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return source.getHeight();
+	}
+
+	@Override
+	public int getSizeZ()
+	{
+		return source.getSizeZ();
+	}
+
+	@Override
+	public int getSizeC()
+	{
+		return source.getSizeC();
+	}
+
+	@Override
+	public boolean isSigned()
+	{
+		return source.isSigned();
+	}
+
+	@Override
+	public Object getPlane( final int z, final int c )
+	{
+		if ( z != currentZ )
+		{
+			if ( z != currentZ + 1 )
+				throw new IllegalStateException( "Planes must be requested in increasing Z order. Expected z=" + ( currentZ + 1 ) + ", got z=" + z + "." );
+
+			// The planes of the previous Z-slice are not read anymore.
+			if ( currentSlot >= 0 )
+				free.add( currentSlot );
+
+			try
+			{
+				currentSlot = filled.take();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException( "Interrupted while waiting for plane z=" + z + ".", e );
+			}
+			if ( currentSlot == FAILED )
+			{
+				if ( error instanceof RuntimeException )
+					throw ( RuntimeException ) error;
+				if ( error instanceof Error )
+					throw ( Error ) error;
+				throw new IllegalStateException( "Could not read plane z=" + z + ".", error );
+			}
+			currentZ = z;
+		}
+		return slots[ currentSlot ][ c ];
+	}
+
+	/**
+	 * Stops the producer, after the plane it is reading if any. The producer
+	 * is not interrupted, as this would close the file channels it reads
+	 * from.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		// Wakes up the producer if it waits for a free slot.
+		free.offer( 0 );
+		try
+		{
+			producer.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Searches for the tube center coarse-to-fine, on a pyramid of downsampled
+ * planes.
+ * <p>
+ * Level <code>l</code> of the pyramid is the Z-slice downsampled by
+ * <code>2^l</code>, each pixel being the mean of the block it covers. The
+ * center is first searched over the whole window on the coarsest level, where
+ * the window and the crown are <code>2^l</code> times smaller in each
+ * direction. The center found is then refined on each finer level, down to
+ * the full resolution, within a small window of {@value #REFINE_WINDOW}
+ * pixels. This makes large search windows affordable.
+ * <p>
+ * The pyramid levels are rebuilt for every Z-slice, but their pixels are
+ * only computed when the crown searches read them. The search on each level
+ * is delegated to a {@link CrownSearch} created for the crown geometry of that
+ * level.
+ */
+class PyramidCrownSearch implements CrownSearch
+{
+
+	/**
+	 * Half-size of the search window used to refine the center on the finer
+	 * levels.
+	 */
+	static final int REFINE_WINDOW = 2;
+
+	private final int nLevels;
+
+	/**
+	 * Crown geometry of each level, level 0 being the full resolution.
+	 */
+	private final CrownGeometry[] geometries;
+
+	private final CrownSearch[] searches;
+
+	/**
+	 * Planes of each level. Level 0 is the Z-slice being searched, the other
+	 * levels are created on the first search.
+	 */
+	private final Plane[] planes;
+
+	private final int[] bestLevelOffset = new int[ 2 ];
+
+	/**
+	 * Creates a pyramid search.
+	 *
+	 * @param geometries
+	 *            the crown geometry of each level, level <code>l</code> being
+	 *            computed for a center and radii divided by <code>2^l</code>.
+	 * @param searches
+	 *            the crown search of each level.
+	 */
+	PyramidCrownSearch( final CrownGeometry[] geometries, final CrownSearch[] searches )
+	{
+		this.nLevels = geometries.length;
+		this.geometries = geometries;
+		this.searches = searches;
+		this.planes = new Plane[ nLevels ];
+	}
+
+	@Override
+	public double search( final Plane plane, final int cx, final int cy, final int window, final int[] bestOffset )
+	{
+		/*
+		 * Re-point the pyramid to the new Z-slice.
+		 */
+
+		planes[ 0 ] = plane;
+		for ( int l = 1; l < nLevels; l++ )
+		{
+			if ( null == planes[ l ] )
+				planes[ l ] = Plane.downsample( planes[ l - 1 ] );
+			else
+				planes[ l ].setData( planes[ l - 1 ] );
+		}
+
+		/*
+		 * Search coarse-to-fine.
+		 */
+
+		final double x = cx + geometries[ 0 ].fx;
+		final double y = cy + geometries[ 0 ].fy;
+		final int coarsest = nLevels - 1;
+		final int scale = 1 << coarsest;
+		int lx = ( int ) Math.round( x / scale - geometries[ coarsest ].fx );
+		int ly = ( int ) Math.round( y / scale - geometries[ coarsest ].fy );
+		double score = 0.;
+		for ( int l = coarsest; l >= 0; l-- )
+		{
+			final int levelWindow = ( l == coarsest ) ? ( window + scale - 1 ) / scale : REFINE_WINDOW;
+			score = searches[ l ].search( planes[ l ], lx, ly, levelWindow, bestLevelOffset );
+			lx += bestLevelOffset[ 0 ];
+			ly += bestLevelOffset[ 1 ];
+			if ( l > 0 )
+			{
+				// Same continuous position, on the next finer level.
+				lx = ( int ) Math.round( 2 * ( lx + geometries[ l ].fx ) - geometries[ l - 1 ].fx );
+				ly = ( int ) Math.round( 2 * ( ly + geometries[ l ].fy ) - geometries[ l - 1 ].fy );
+			}
+		}
+
+		// The center cannot move further than the search window.
+		bestOffset[ 0 ] = Math.max( -window, Math.min( window, lx - cx ) );
+		bestOffset[ 1 ] = Math.max( -window, Math.min( window, ly - cy ) );
+		if ( bestOffset[ 0 ] != lx - cx || bestOffset[ 1 ] != ly - cy )
+			score = searches[ 0 ].search( plane, cx + bestOffset[ 0 ], cy + bestOffset[ 1 ], 0, bestLevelOffset );
+		return score;
+	}
+}
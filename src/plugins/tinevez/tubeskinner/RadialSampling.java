@@ -0,0 +1,46 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * The interpolation used to sample the segmentation channel along the rays of
+ * the radial scan.
+ */
+public enum RadialSampling
+{
+	/**
+	 * Reads the nearest pixel of each sample, at whole-pixel radii. The fitted
+	 * radii are whole pixels.
+	 */
+	NEAREST( "Nearest pixel", 1 ),
+
+	/**
+	 * Interpolates each sample bilinearly from its 4 neighbor pixels, and
+	 * refines the fitted radius to sub-pixel precision.
+	 */
+	BILINEAR( "Bilinear", 2 ),
+
+	/**
+	 * Interpolates each sample with a cubic convolution kernel over its 16
+	 * neighbor pixels, and refines the fitted radius to sub-pixel precision.
+	 * Smoother than bilinear, at a higher cost.
+	 */
+	CUBIC( "Cubic", 4 );
+
+	private final String name;
+
+	/**
+	 * Number of neighbor pixels along X and Y used to interpolate a sample.
+	 */
+	final int support;
+
+	private RadialSampling( final String name, final int support )
+	{
+		this.name = name;
+		this.support = support;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
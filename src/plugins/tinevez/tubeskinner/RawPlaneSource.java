@@ -0,0 +1,278 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the Z-planes of one time-point from a raw image file, one plane at a
+ * time.
+ * <p>
+ * The file holds the stack without header (or with a header of known size),
+ * planes ordered channel first, then Z, then time. Planes are read with
+ * positional reads on the file channel into a buffer reused for all planes, so
+ * only one Z-slice is held in memory whatever the file size.
+ * <p>
+ * Regions are read row by row, into a buffer sized for the largest region
+ * read so far. The buffers of whole planes are only created if whole planes
+ * are read.
+ */
+public class RawPlaneSource implements RegionPlaneSource
+{
+
+	/**
+	 * The pixel types of raw files.
+	 */
+	public static enum PixelType
+	{
+		UINT8( 1, false ),
+		INT8( 1, true ),
+		UINT16( 2, false ),
+		INT16( 2, true ),
+		UINT32( 4, false ),
+		INT32( 4, true ),
+		FLOAT32( 4, true ),
+		FLOAT64( 8, true );
+
+		private final int bytes;
+
+		private final boolean signed;
+
+		private PixelType( final int bytes, final boolean signed )
+		{
+			this.bytes = bytes;
+			this.signed = signed;
+		}
+	}
+
+	private final FileChannel channel;
+
+	private final long offset;
+
+	private final int width;
+
+	private final int height;
+
+	private final int sizeZ;
+
+	private final int sizeC;
+
+	private final int timepoint;
+
+	private final PixelType pixelType;
+
+	private final ByteOrder order;
+
+	/**
+	 * Buffer of whole planes, created on the first plane read.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * One reused array per channel, for whole planes.
+	 */
+	private final Object[] planes;
+
+	/**
+	 * Buffer of regions, grown to the largest region read.
+	 */
+	private ByteBuffer regionBuffer;
+
+	/**
+	 * One reused array per channel, for regions.
+	 */
+	private final Object[] regions;
+
+	/**
+	 * Creates a source for the specified time-point of a raw file.
+	 *
+	 * @param channel
+	 *            the file channel to read from. It is not closed by this
+	 *            source.
+	 * @param offset
+	 *            the size (in bytes) of the header of the file.
+	 * @param width
+	 *            the width of the planes.
+	 * @param height
+	 *            the height of the planes.
+	 * @param sizeZ
+	 *            the number of Z-planes.
+	 * @param sizeC
+	 *            the number of channels.
+	 * @param timepoint
+	 *            the time-point to read.
+	 * @param pixelType
+	 *            the pixel type.
+	 * @param order
+	 *            the byte order of the file.
+	 */
+	public RawPlaneSource( final FileChannel channel, final long offset, final int width, final int height, final int sizeZ,
+			final int sizeC, final int timepoint, final PixelType pixelType, final ByteOrder order )
+	{
+		this.channel = channel;
+		this.offset = offset;
+		this.width = width;
+		this.height = height;
+		this.sizeZ = sizeZ;
+		this.sizeC = sizeC;
+		this.timepoint = timepoint;
+		this.pixelType = pixelType;
+		this.order = order;
+		this.planes = new Object[ sizeC ];
+		this.regions = new Object[ sizeC ];
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return height;
+	}
+
+	@Override
+	public int getSizeZ()
+	{
+		return sizeZ;
+	}
+
+	@Override
+	public int getSizeC()
+	{
+		return sizeC;
+	}
+
+	@Override
+	public boolean isSigned()
+	{
+		return pixelType.signed;
+	}
+
+	@Override
+	public Object getPlane( final int z, final int c )
+	{
+		if ( null == buffer )
+			buffer = ByteBuffer.allocateDirect( width * height * pixelType.bytes ).order( order );
+		buffer.clear();
+		read( buffer, planePosition( z, c ), z, c );
+		buffer.flip();
+
+		if ( null == planes[ c ] )
+			planes[ c ] = newArray( width * height );
+		convert( buffer, planes[ c ], width * height );
+		return planes[ c ];
+	}
+
+	@Override
+	public Object getRegion( final int z, final int c, final int x, final int y, final int regionWidth, final int regionHeight )
+	{
+		final int n = regionWidth * regionHeight;
+		if ( null == regionBuffer || regionBuffer.capacity() < n * pixelType.bytes )
+			regionBuffer = ByteBuffer.allocateDirect( n * pixelType.bytes ).order( order );
+		final int rowBytes = regionWidth * pixelType.bytes;
+		final long position = planePosition( z, c ) + ( ( long ) y * width + x ) * pixelType.bytes;
+		regionBuffer.clear();
+		for ( int j = 0; j < regionHeight; j++ )
+		{
+			regionBuffer.limit( ( j + 1 ) * rowBytes );
+			read( regionBuffer, position + ( long ) j * width * pixelType.bytes, z, c );
+		}
+		regionBuffer.flip();
+
+		if ( null == regions[ c ] || Array.getLength( regions[ c ] ) < n )
+			regions[ c ] = newArray( n );
+		convert( regionBuffer, regions[ c ], n );
+		return regions[ c ];
+	}
+
+	/**
+	 * Returns the position in the file of the specified plane.
+	 */
+	private long planePosition( final int z, final int c )
+	{
+		final long planeIndex = ( ( long ) timepoint * sizeZ + z ) * sizeC + c;
+		return offset + planeIndex * width * height * pixelType.bytes;
+	}
+
+	/**
+	 * Fills the remaining bytes of the buffer from the specified position.
+	 */
+	private void read( final ByteBuffer target, final long start, final int z, final int c )
+	{
+		long position = start;
+		try
+		{
+			while ( target.hasRemaining() )
+			{
+				final int n = channel.read( target, position );
+				if ( n < 0 )
+					throw new IOException( "Unexpected end of file when reading plane z=" + z + ", c=" + c + ", t=" + timepoint + "." );
+				position += n;
+			}
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	/**
+	 * Creates a pixel array of the pixel type.
+	 */
+	private Object newArray( final int n )
+	{
+		switch ( pixelType )
+		{
+		case UINT8:
+		case INT8:
+			return new byte[ n ];
+		case UINT16:
+		case INT16:
+			return new short[ n ];
+		case UINT32:
+		case INT32:
+			return new int[ n ];
+		case FLOAT32:
+			return new float[ n ];
+		case FLOAT64:
+		default:
+			return new double[ n ];
+		}
+	}
+
+	/**
+	 * Converts the first pixels of the buffer into the specified array.
+	 */
+	private void convert( final ByteBuffer source, final Object array, final int n )
+	{
+		switch ( pixelType )
+		{
+		case UINT8:
+		case INT8:
+			source.get( ( byte[] ) array, 0, n );
+			break;
+		case UINT16:
+		case INT16:
+			source.asShortBuffer().get( ( short[] ) array, 0, n );
+			break;
+		case UINT32:
+		case INT32:
+			source.asIntBuffer().get( ( int[] ) array, 0, n );
+			break;
+		case FLOAT32:
+			source.asFloatBuffer().get( ( float[] ) array, 0, n );
+			break;
+		case FLOAT64:
+		default:
+			source.asDoubleBuffer().get( ( double[] ) array, 0, n );
+			break;
+		}
+	}
+}
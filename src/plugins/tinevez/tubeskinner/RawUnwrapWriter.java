@@ -0,0 +1,90 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the rows of the unwrapped image to a raw 32-bit float file, as they
+ * are produced.
+ * <p>
+ * The unwrapped image of a time-point is stored as <code>nc</code> planes of
+ * <code>nx x nz</code> pixels, channel after channel, starting at the
+ * specified offset in the file. Several time-points can share the same file at
+ * different offsets, one after the other. Only one row is buffered in memory.
+ */
+public class RawUnwrapWriter implements UnwrapWriter
+{
+
+	private final FileChannel channel;
+
+	private final long offset;
+
+	private final int nx;
+
+	private final int nz;
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Creates a writer.
+	 *
+	 * @param channel
+	 *            the file channel to write to. It is not closed by this writer.
+	 * @param offset
+	 *            the position (in bytes) of the unwrapped image in the file.
+	 * @param nx
+	 *            the width of the unwrapped image.
+	 * @param nz
+	 *            the height of the unwrapped image, that is the number of
+	 *            Z-slices.
+	 * @param order
+	 *            the byte order of the file.
+	 */
+	public RawUnwrapWriter( final FileChannel channel, final long offset, final int nx, final int nz, final ByteOrder order )
+	{
+		this.channel = channel;
+		this.offset = offset;
+		this.nx = nx;
+		this.nz = nz;
+		this.buffer = ByteBuffer.allocateDirect( 4 * nx ).order( order );
+	}
+
+	/**
+	 * Returns the size (in bytes) of the unwrapped image of one time-point.
+	 *
+	 * @param nx
+	 *            the width of the unwrapped image.
+	 * @param nz
+	 *            the number of Z-slices.
+	 * @param nc
+	 *            the number of channels.
+	 * @return the size in bytes.
+	 */
+	public static long sizeInBytes( final int nx, final int nz, final int nc )
+	{
+		return 4l * nx * nz * nc;
+	}
+
+	@Override
+	public void writeRow( final int z, final float[][] row )
+	{
+		try
+		{
+			for ( int c = 0; c < row.length; c++ )
+			{
+				buffer.clear();
+				buffer.asFloatBuffer().put( row[ c ], 0, nx );
+				long position = offset + 4l * ( ( long ) c * nz + z ) * nx;
+				while ( buffer.hasRemaining() )
+					position += channel.write( buffer, position );
+			}
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+}
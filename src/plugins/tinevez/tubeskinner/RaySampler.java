@@ -0,0 +1,316 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Samples the segmentation channel along the rays of the radial scan with
+ * bilinear or cubic interpolation, at a configurable radial step.
+ * <p>
+ * As for the nearest pixel sampling of {@link CrownGeometry}, the sub-pixel
+ * part of the tube center never changes during a run. The interpolation
+ * weights of every sample are therefore constant, and are precomputed once,
+ * as separable weights along X and Y, together with the offset of the first
+ * neighbor pixel relative to the integer part of the center. Sampling a ray
+ * on a Z-slice is then one tight loop over the plane array, without any
+ * floating-point position or weight computation. When the whole ray falls
+ * inside the image, the loop has no bounds check.
+ * <p>
+ * The fitted radius is refined to sub-pixel precision by fitting a parabola
+ * through the sampled profile around its local max, over about one pixel on
+ * each side.
+ */
+class RaySampler
+{
+
+	/**
+	 * Step (in pixels) between the samples along a ray.
+	 */
+	final double step;
+
+	/**
+	 * Number of samples along each ray.
+	 */
+	final int nRadii;
+
+	/**
+	 * Radius of each sample along a ray.
+	 */
+	final double[] radii;
+
+	private final int support;
+
+	/**
+	 * Distance, in samples, between the local max of a profile and the two
+	 * samples the parabola is fitted through: about one pixel, so that the
+	 * fit does not degrade as the step shrinks.
+	 */
+	private final int spread;
+
+	/**
+	 * X and Y offsets of the first neighbor pixel of each sample, relative to
+	 * the integer part of the center. Sample <code>ir</code> of ray
+	 * <code>iTheta</code> is stored at <code>iTheta * nRadii + ir</code>.
+	 */
+	private final int[] baseDx;
+
+	private final int[] baseDy;
+
+	/**
+	 * Interpolation weights of the neighbor pixels of each sample, along X
+	 * and Y. The weights of sample <code>k</code> are stored at
+	 * <code>k * support</code>.
+	 */
+	private final double[] wx;
+
+	private final double[] wy;
+
+	/**
+	 * Bounding box of the neighbor pixels of each ray, relative to the
+	 * integer part of the center.
+	 */
+	private final int[] minDx;
+
+	private final int[] maxDx;
+
+	private final int[] minDy;
+
+	private final int[] maxDy;
+
+	/**
+	 * Precomputes the sample positions and weights.
+	 *
+	 * @param geometry
+	 *            the crown and ray geometry.
+	 * @param sampling
+	 *            the interpolation. Must not be {@link RadialSampling#NEAREST}.
+	 * @param step
+	 *            the step (in pixels) between samples along a ray.
+	 * @param rOuter
+	 *            the radius of the outer crown circle.
+	 * @param windowRay
+	 *            the search window for the local max of intensity along a ray.
+	 */
+	RaySampler( final CrownGeometry geometry, final RadialSampling sampling, final double step, final double rOuter,
+			final int windowRay )
+	{
+		this.step = step;
+		this.support = sampling.support;
+		this.spread = Math.max( 1, ( int ) Math.round( 1. / step ) );
+
+		int n = 0;
+		while ( rOuter - windowRay + n * step < rOuter + windowRay )
+			n++;
+		this.nRadii = n;
+		this.radii = new double[ nRadii ];
+		for ( int ir = 0; ir < nRadii; ir++ )
+			radii[ ir ] = rOuter - windowRay + ir * step;
+
+		final int nAngles = geometry.nAngles;
+		this.baseDx = new int[ nAngles * nRadii ];
+		this.baseDy = new int[ nAngles * nRadii ];
+		this.wx = new double[ nAngles * nRadii * support ];
+		this.wy = new double[ nAngles * nRadii * support ];
+		this.minDx = new int[ nAngles ];
+		this.maxDx = new int[ nAngles ];
+		this.minDy = new int[ nAngles ];
+		this.maxDy = new int[ nAngles ];
+		for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+		{
+			minDx[ iTheta ] = Integer.MAX_VALUE;
+			maxDx[ iTheta ] = Integer.MIN_VALUE;
+			minDy[ iTheta ] = Integer.MAX_VALUE;
+			maxDy[ iTheta ] = Integer.MIN_VALUE;
+			for ( int ir = 0; ir < nRadii; ir++ )
+			{
+				final int k = iTheta * nRadii + ir;
+				// Position relative to the integer part of the center.
+				final double px = geometry.fx + geometry.cos[ iTheta ] * radii[ ir ];
+				final double py = geometry.fy + geometry.sin[ iTheta ] * radii[ ir ];
+				final int ix = ( int ) Math.floor( px );
+				final int iy = ( int ) Math.floor( py );
+				baseDx[ k ] = ix - ( support / 2 - 1 );
+				baseDy[ k ] = iy - ( support / 2 - 1 );
+				weights( px - ix, wx, k * support );
+				weights( py - iy, wy, k * support );
+
+				minDx[ iTheta ] = Math.min( minDx[ iTheta ], baseDx[ k ] );
+				maxDx[ iTheta ] = Math.max( maxDx[ iTheta ], baseDx[ k ] + support - 1 );
+				minDy[ iTheta ] = Math.min( minDy[ iTheta ], baseDy[ k ] );
+				maxDy[ iTheta ] = Math.max( maxDy[ iTheta ], baseDy[ k ] + support - 1 );
+			}
+		}
+	}
+
+	/**
+	 * Computes the interpolation weights of the neighbor pixels for the
+	 * specified fractional position.
+	 */
+	private void weights( final double t, final double[] w, final int offset )
+	{
+		if ( support == 2 )
+		{
+			w[ offset ] = 1. - t;
+			w[ offset + 1 ] = t;
+			return;
+		}
+
+		// Cubic convolution, a = -0.5.
+		w[ offset ] = ( ( -0.5 * t + 1. ) * t - 0.5 ) * t;
+		w[ offset + 1 ] = ( 1.5 * t - 2.5 ) * t * t + 1.;
+		w[ offset + 2 ] = ( ( -1.5 * t + 2. ) * t + 0.5 ) * t;
+		w[ offset + 3 ] = ( 0.5 * t - 0.5 ) * t * t;
+	}
+
+	/**
+	 * Samples the specified ray around the specified integer center. Samples
+	 * whose neighbor pixels are not all inside the plane are set to
+	 * <code>NaN</code>.
+	 *
+	 * @param plane
+	 *            the Z-slice to sample.
+	 * @param cx
+	 *            the integer part of the center.
+	 * @param cy
+	 *            the integer part of the center.
+	 * @param iTheta
+	 *            the ray.
+	 * @param profile
+	 *            the array to write the <code>nRadii</code> samples in.
+	 */
+	void sample( final Plane plane, final int cx, final int cy, final int iTheta, final double[] profile )
+	{
+		final int width = plane.width;
+		final int height = plane.height;
+		final boolean inside = cx + minDx[ iTheta ] >= 0 && cy + minDy[ iTheta ] >= 0
+				&& cx + maxDx[ iTheta ] < width && cy + maxDy[ iTheta ] < height;
+		if ( !inside )
+		{
+			for ( int ir = 0; ir < nRadii; ir++ )
+				profile[ ir ] = sampleAt( plane, cx, cy, iTheta, ir );
+			return;
+		}
+
+		final int offset = iTheta * nRadii;
+		if ( support == 2 )
+		{
+			for ( int ir = 0; ir < nRadii; ir++ )
+			{
+				final int k = offset + ir;
+				final int i = ( cy + baseDy[ k ] ) * width + cx + baseDx[ k ];
+				profile[ ir ] = bilinear( plane, i, width, k * 2 );
+			}
+		}
+		else
+		{
+			for ( int ir = 0; ir < nRadii; ir++ )
+			{
+				final int k = offset + ir;
+				final int i = ( cy + baseDy[ k ] ) * width + cx + baseDx[ k ];
+				profile[ ir ] = cubic( plane, i, width, k * 4 );
+			}
+		}
+	}
+
+	/**
+	 * Returns the value of one sample of the specified ray, or
+	 * <code>NaN</code> if its neighbor pixels are not all inside the plane.
+	 */
+	double sampleAt( final Plane plane, final int cx, final int cy, final int iTheta, final int ir )
+	{
+		final int k = iTheta * nRadii + ir;
+		final int x0 = cx + baseDx[ k ];
+		final int y0 = cy + baseDy[ k ];
+		if ( x0 < 0 || y0 < 0 || x0 + support > plane.width || y0 + support > plane.height )
+			return Double.NaN;
+
+		final int i = y0 * plane.width + x0;
+		return ( support == 2 ) ? bilinear( plane, i, plane.width, k * 2 ) : cubic( plane, i, plane.width, k * 4 );
+	}
+
+	private double bilinear( final Plane plane, final int i, final int width, final int w )
+	{
+		final double ax = wx[ w ];
+		final double bx = wx[ w + 1 ];
+		return wy[ w ] * ( ax * plane.get( i ) + bx * plane.get( i + 1 ) )
+				+ wy[ w + 1 ] * ( ax * plane.get( i + width ) + bx * plane.get( i + width + 1 ) );
+	}
+
+	private double cubic( final Plane plane, final int i, final int width, final int w )
+	{
+		final double ax = wx[ w ];
+		final double bx = wx[ w + 1 ];
+		final double cx = wx[ w + 2 ];
+		final double dx = wx[ w + 3 ];
+		double value = 0.;
+		for ( int j = 0; j < 4; j++ )
+		{
+			final int row = i + j * width;
+			value += wy[ w + j ] * ( ax * plane.get( row ) + bx * plane.get( row + 1 ) + cx * plane.get( row + 2 ) + dx * plane.get( row + 3 ) );
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the sub-pixel offset (in pixels) of the max of a sampled
+	 * profile, from the sample <code>ir</code>. The max is first moved to the
+	 * local max of the profile around <code>ir</code>, as the sample picked by
+	 * the scan is weighted by its distance to the previous ray. A parabola is
+	 * then fitted through this local max and the two samples
+	 * {@link #spread} samples away on each side, about one pixel away whatever
+	 * the step. Returns the offset of the local max if the parabola cannot be
+	 * fitted.
+	 */
+	double refine( final double[] profile, final int ir )
+	{
+		int i = ir;
+		while ( i + 1 < nRadii && profile[ i + 1 ] > profile[ i ] )
+			i++;
+		if ( i == ir )
+			while ( i > 0 && profile[ i - 1 ] > profile[ i ] )
+				i--;
+		final double offset = ( i - ir ) * step;
+		if ( i < spread || i + spread >= nRadii )
+			return offset;
+		return offset + refine( profile[ i - spread ], profile[ i ], profile[ i + spread ] );
+	}
+
+	/**
+	 * Returns the sub-pixel offset (in pixels) of the max of the specified
+	 * ray, sampling only the samples around <code>ir</code> that are needed.
+	 * Gives the same value as {@link #refine(double[], int)} on the whole
+	 * profile.
+	 */
+	double refine( final Plane plane, final int cx, final int cy, final int iTheta, final int ir )
+	{
+		int i = ir;
+		double max = sampleAt( plane, cx, cy, iTheta, i );
+		double next;
+		while ( i + 1 < nRadii && ( next = sampleAt( plane, cx, cy, iTheta, i + 1 ) ) > max )
+		{
+			max = next;
+			i++;
+		}
+		if ( i == ir )
+		{
+			while ( i > 0 && ( next = sampleAt( plane, cx, cy, iTheta, i - 1 ) ) > max )
+			{
+				max = next;
+				i--;
+			}
+		}
+		final double offset = ( i - ir ) * step;
+		if ( i < spread || i + spread >= nRadii )
+			return offset;
+		return offset + refine( sampleAt( plane, cx, cy, iTheta, i - spread ), max,
+				sampleAt( plane, cx, cy, iTheta, i + spread ) );
+	}
+
+	private double refine( final double before, final double max, final double after )
+	{
+		final double curvature = before - 2. * max + after;
+		// Also false if one of the samples is NaN.
+		if ( !( curvature < 0. ) )
+			return 0.;
+		final double delta = 0.5 * ( before - after ) / curvature;
+		// Within the half-distance to the outer samples.
+		return Math.max( -0.5, Math.min( 0.5, delta ) ) * spread * step;
+	}
+}
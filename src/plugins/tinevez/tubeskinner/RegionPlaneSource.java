@@ -0,0 +1,41 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * A {@link PlaneSource} that can also read a rectangular region of a plane,
+ * without reading the rest of it.
+ * <p>
+ * The fit only reads the pixels around the tube, within the search window and
+ * the rays of the previous Z-slice center. When the engine reads regions
+ * (see {@link TubeSkinnerEngine#setRegionReading(boolean)}), it only requests
+ * the bounding box of this crown region on each Z-slice, so that the bytes
+ * read and converted scale with the tube size rather than with the frame
+ * size. Sources backed by tiled files should only read the tiles the region
+ * overlaps.
+ */
+public interface RegionPlaneSource extends PlaneSource
+{
+
+	/**
+	 * Returns the pixel array of a region of the specified plane, laid out
+	 * line by line with a stride of <code>width</code>: the pixel at
+	 * <code>(x + i, y + j)</code> in the plane is at index
+	 * <code>j * width + i</code>. The array can be larger than the region, and
+	 * is only read until another region is requested.
+	 *
+	 * @param z
+	 *            the Z position of the plane.
+	 * @param c
+	 *            the channel of the plane.
+	 * @param x
+	 *            the X position of the region in the plane.
+	 * @param y
+	 *            the Y position of the region in the plane.
+	 * @param width
+	 *            the width of the region.
+	 * @param height
+	 *            the height of the region.
+	 * @return the region pixel array, of the same type as the plane arrays.
+	 */
+	public Object getRegion( int z, int c, int x, int y, int width, int height );
+
+}
@@ -0,0 +1,74 @@
+package plugins.tinevez.tubeskinner;
+
+import java.lang.reflect.Array;
+
+/**
+ * Reads the planes of a {@link RegionPlaneSource} for the fit, by requesting
+ * only the bounding box of the crown region of each Z-slice.
+ * <p>
+ * The region is a square around the tube center of the previous Z-slice,
+ * with a margin that covers every pixel the crown search, the rays and the
+ * channel samples can read on the next one. It is copied at its place into
+ * one full-size plane array per channel, reused over all the Z-slices, so
+ * that the fit indexes the planes as usual. The pixels outside the region are
+ * stale, but are never read.
+ */
+class RegionReader
+{
+
+	private final RegionPlaneSource source;
+
+	private final int margin;
+
+	/**
+	 * One reused plane array per channel, created on the first read.
+	 */
+	private final Object[] planes;
+
+	/**
+	 * Creates a reader.
+	 *
+	 * @param source
+	 *            the source to read from.
+	 * @param margin
+	 *            the half-size (in pixels) of the region around the center.
+	 */
+	RegionReader( final RegionPlaneSource source, final int margin )
+	{
+		this.source = source;
+		this.margin = margin;
+		this.planes = new Object[ source.getSizeC() ];
+	}
+
+	/**
+	 * Reads the region of the specified plane around the specified center.
+	 *
+	 * @param z
+	 *            the Z position of the plane.
+	 * @param c
+	 *            the channel of the plane.
+	 * @param cx
+	 *            the X position of the tube center.
+	 * @param cy
+	 *            the Y position of the tube center.
+	 * @return the full-size plane array, holding the region.
+	 */
+	Object read( final int z, final int c, final double cx, final double cy )
+	{
+		final int width = source.getWidth();
+		final int height = source.getHeight();
+		// At least one pixel, even if the tube left the image.
+		final int x0 = Math.min( width - 1, Math.max( 0, ( int ) Math.floor( cx ) - margin ) );
+		final int y0 = Math.min( height - 1, Math.max( 0, ( int ) Math.floor( cy ) - margin ) );
+		final int x1 = Math.max( x0 + 1, Math.min( width, ( int ) Math.floor( cx ) + margin + 1 ) );
+		final int y1 = Math.max( y0 + 1, Math.min( height, ( int ) Math.floor( cy ) + margin + 1 ) );
+		final int regionWidth = x1 - x0;
+
+		final Object region = source.getRegion( z, c, x0, y0, regionWidth, y1 - y0 );
+		if ( null == planes[ c ] )
+			planes[ c ] = Array.newInstance( region.getClass().getComponentType(), width * height );
+		for ( int y = y0; y < y1; y++ )
+			System.arraycopy( region, ( y - y0 ) * regionWidth, planes[ c ], y * width + x0, regionWidth );
+		return planes[ c ];
+	}
+}
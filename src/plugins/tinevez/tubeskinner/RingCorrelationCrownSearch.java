@@ -0,0 +1,714 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.Arrays;
+
+/**
+ * Searches for the tube center by computing the crown score of all the
+ * candidate offsets in one pass, in the Fourier domain.
+ * <p>
+ * The crown score of an offset is the mean of the outer circle samples inside
+ * the image, minus the mean of the inner circle samples inside the image. The
+ * sums of the samples of each circle, over the whole search window, are the
+ * correlation of the Z-slice with a ring kernel of unit weights, one per
+ * circle. They are computed with 2D FFTs of the block of the Z-slice covering
+ * the window, padded to a power of 2, and with the spectrum of the two
+ * kernels, computed once per FFT size. The block is real, so its rows are
+ * transformed two by two, and only half of the spectrum is transformed along
+ * the columns. The numbers of samples inside the image are the correlation of
+ * the in-image indicator with each kernel. The indicator is separable, so they
+ * are counted exactly for each row of offsets, from the histogram of the X
+ * offsets of the samples inside the image along Y. Dividing the sums by these
+ * counts scores the offsets whose crowns leave the image with the FFT too.
+ * When the crowns of all the offsets lie inside the image, the counts are all
+ * equal to the number of crown samples, and the block is only correlated with
+ * a single kernel: the outer circle samples weighted by <code>1 / n</code>,
+ * and the inner circle samples weighted by <code>-1 / n</code>. The cost
+ * grows with the area of the block, instead of the area of the window times
+ * the number of crown samples for {@link BruteForceCrownSearch}.
+ * <p>
+ * The block repeats the first row and column of the image before them, so
+ * that samples floored to -1 with a sub-pixel part read pixel 0, as in
+ * {@link CrownGeometry#ringMean(Plane, int, int, int[], int[], boolean[], boolean[])}.
+ * The few samples lying exactly on a pixel row or column must not read this
+ * repeated row or column: they are left out of the kernels and summed
+ * directly.
+ * <p>
+ * The offsets whose FFT score is within a tolerance of the maximum, far larger
+ * than the rounding errors of the FFT, are then re-scored directly. The offset
+ * and the score returned are therefore exactly those of the brute-force
+ * search, for all pixel types.
+ * <p>
+ * For small search windows, the FFT costs more than scoring the offsets
+ * directly, and the search is delegated to the brute-force search.
+ */
+class RingCorrelationCrownSearch implements CrownSearch
+{
+
+	/**
+	 * Tolerance on the FFT scores, relative to the largest pixel value of the
+	 * block, under which the offsets are re-scored directly.
+	 */
+	private static final double TOLERANCE = 1e-9;
+
+	/**
+	 * Cost of an FFT butterfly, relative to the cost of a crown sample in the
+	 * brute-force search.
+	 */
+	private static final double BUTTERFLY_COST = 2.;
+
+	private final CrownGeometry geometry;
+
+	private final CrownSearch bruteForce;
+
+	/**
+	 * Bounds of the pixel offsets of the crown circles.
+	 */
+	private final int dxMin;
+
+	private final int dxMax;
+
+	private final int dyMin;
+
+	private final int dyMax;
+
+	/**
+	 * Samples of the outer and inner crown circles without a sub-pixel part
+	 * along X or Y, summed directly.
+	 */
+	private final int[] outerDirect;
+
+	private final int[] innerDirect;
+
+	/**
+	 * Cumulative histograms of the X offsets of the samples of a circle, with
+	 * and without a sub-pixel part along X: element <code>i</code> counts the
+	 * samples with an X offset below <code>dxMin + i</code>.
+	 */
+	private final int[] cumulativeSub;
+
+	private final int[] cumulative;
+
+	/**
+	 * FFT size, or 0 before the first FFT search.
+	 */
+	private int size = 0;
+
+	/**
+	 * Work arrays of <code>size * size</code> elements, row-major: the block,
+	 * then its spectrum for the columns <code>0</code> to
+	 * <code>size / 2</code>.
+	 */
+	private double[] re;
+
+	private double[] im;
+
+	/**
+	 * Product of the block spectrum with the outer kernel spectrum, in the
+	 * same layout as the work arrays.
+	 */
+	private double[] productRe;
+
+	private double[] productIm;
+
+	/**
+	 * Spectrum of the outer, inner and single ring kernels, for the columns
+	 * <code>0</code> to <code>size / 2</code>, with a row stride of
+	 * <code>size / 2 + 1</code>.
+	 */
+	private double[] outerRe;
+
+	private double[] outerIm;
+
+	private double[] innerRe;
+
+	private double[] innerIm;
+
+	private double[] ringRe;
+
+	private double[] ringIm;
+
+	/**
+	 * One row of the work arrays.
+	 */
+	private double[] lineRe;
+
+	private double[] lineIm;
+
+	private double[] cosTable;
+
+	private double[] sinTable;
+
+	private int[] reversed;
+
+	/**
+	 * Sums of the outer and inner circle samples, and score, of each offset of
+	 * the window.
+	 */
+	private double[] outerSums = new double[ 0 ];
+
+	private double[] innerSums = new double[ 0 ];
+
+	private double[] scores = new double[ 0 ];
+
+	/**
+	 * Numbers of outer and inner circle samples inside the image, for one row
+	 * of offsets.
+	 */
+	private int[] outerCounts = new int[ 0 ];
+
+	private int[] innerCounts = new int[ 0 ];
+
+	RingCorrelationCrownSearch( final CrownGeometry geometry )
+	{
+		this.geometry = geometry;
+		this.bruteForce = new BruteForceCrownSearch( geometry );
+		int xMin = 0;
+		int xMax = 0;
+		int yMin = 0;
+		int yMax = 0;
+		int nOuterDirect = 0;
+		int nInnerDirect = 0;
+		for ( int k = 0; k < geometry.nCrown; k++ )
+		{
+			xMin = Math.min( xMin, Math.min( geometry.outerDx[ k ], geometry.innerDx[ k ] ) );
+			xMax = Math.max( xMax, Math.max( geometry.outerDx[ k ], geometry.innerDx[ k ] ) );
+			yMin = Math.min( yMin, Math.min( geometry.outerDy[ k ], geometry.innerDy[ k ] ) );
+			yMax = Math.max( yMax, Math.max( geometry.outerDy[ k ], geometry.innerDy[ k ] ) );
+			if ( !geometry.outerSubX[ k ] || !geometry.outerSubY[ k ] )
+				nOuterDirect++;
+			if ( !geometry.innerSubX[ k ] || !geometry.innerSubY[ k ] )
+				nInnerDirect++;
+		}
+		this.dxMin = xMin;
+		this.dxMax = xMax;
+		this.dyMin = yMin;
+		this.dyMax = yMax;
+		this.outerDirect = new int[ nOuterDirect ];
+		this.innerDirect = new int[ nInnerDirect ];
+		nOuterDirect = 0;
+		nInnerDirect = 0;
+		for ( int k = 0; k < geometry.nCrown; k++ )
+		{
+			if ( !geometry.outerSubX[ k ] || !geometry.outerSubY[ k ] )
+				outerDirect[ nOuterDirect++ ] = k;
+			if ( !geometry.innerSubX[ k ] || !geometry.innerSubY[ k ] )
+				innerDirect[ nInnerDirect++ ] = k;
+		}
+		this.cumulativeSub = new int[ dxMax - dxMin + 2 ];
+		this.cumulative = new int[ dxMax - dxMin + 2 ];
+	}
+
+	@Override
+	public double search( final Plane plane, final int cx, final int cy, final int window, final int[] bestOffset )
+	{
+		final int n = 2 * window + 1;
+		final int blockWidth = n + dxMax - dxMin;
+		final int blockHeight = n + dyMax - dyMin;
+		final int p = Integer.highestOneBit( Math.max( blockWidth, blockHeight ) - 1 ) << 1;
+		// Whether the crowns of all the offsets are inside the image.
+		final boolean inside = cx - window + dxMin >= 0 && cy - window + dyMin >= 0 && cx + window + dxMax < plane.width
+				&& cy + window + dyMax < plane.height;
+		if ( ( double ) n * n * 2 * geometry.nCrown < BUTTERFLY_COST * butterflies( p, blockHeight, n, inside ) )
+			return bruteForce.search( plane, cx, cy, window, bestOffset );
+
+		if ( p != size )
+			init( p );
+		if ( scores.length < n * n )
+		{
+			outerSums = new double[ n * n ];
+			innerSums = new double[ n * n ];
+			scores = new double[ n * n ];
+			outerCounts = new int[ n ];
+			innerCounts = new int[ n ];
+		}
+		final int x0 = cx - window;
+		final int y0 = cy - window;
+		final double maxAbs = correlate( plane, x0 + dxMin, y0 + dyMin, blockWidth, blockHeight, n, inside );
+
+		double max = Double.NEGATIVE_INFINITY;
+		if ( inside )
+		{
+			for ( int o = 0; o < n * n; o++ )
+				if ( scores[ o ] > max )
+					max = scores[ o ];
+		}
+		else
+		{
+			// Mean of the samples inside the image on each circle.
+			for ( int j = 0; j < n; j++ )
+			{
+				final int y = y0 + j;
+				count( plane, x0, y, n, geometry.outerDx, geometry.outerDy, geometry.outerSubX, geometry.outerSubY, outerCounts );
+				count( plane, x0, y, n, geometry.innerDx, geometry.innerDy, geometry.innerSubX, geometry.innerSubY, innerCounts );
+				for ( int i = 0; i < n; i++ )
+				{
+					final int o = j * n + i;
+					if ( outerCounts[ i ] == 0 || innerCounts[ i ] == 0 )
+					{
+						// No sample inside the image, as 0 / 0 in ringMean.
+						scores[ o ] = Double.NaN;
+						continue;
+					}
+					final double outer = outerSums[ o ]
+							+ directSum( plane, x0 + i, y, outerDirect, geometry.outerDx, geometry.outerDy, geometry.outerSubX, geometry.outerSubY );
+					final double inner = innerSums[ o ]
+							+ directSum( plane, x0 + i, y, innerDirect, geometry.innerDx, geometry.innerDy, geometry.innerSubX, geometry.innerSubY );
+					scores[ o ] = outer / outerCounts[ i ] - inner / innerCounts[ i ];
+					if ( scores[ o ] > max )
+						max = scores[ o ];
+				}
+			}
+		}
+
+		// Same scanning order as the brute-force search, on the candidates.
+		final double threshold = max - TOLERANCE * maxAbs;
+		double currentMax = Integer.MIN_VALUE;
+		bestOffset[ 0 ] = 0;
+		bestOffset[ 1 ] = 0;
+		for ( int xOffset = -window; xOffset <= window; xOffset++ )
+		{
+			for ( int yOffset = -window; yOffset <= window; yOffset++ )
+			{
+				// Also skips the offsets without samples, never picked.
+				if ( !( scores[ ( yOffset + window ) * n + xOffset + window ] >= threshold ) )
+					continue;
+
+				final double val = score( plane, cx + xOffset, cy + yOffset );
+				if ( val > currentMax )
+				{
+					currentMax = val;
+					bestOffset[ 0 ] = xOffset;
+					bestOffset[ 1 ] = yOffset;
+				}
+			}
+		}
+		return currentMax;
+	}
+
+	/**
+	 * Returns the crown score of the specified center, computed as by the
+	 * brute-force search.
+	 */
+	private double score( final Plane plane, final int x, final int y )
+	{
+		return CrownGeometry.ringMean( plane, x, y, geometry.outerDx, geometry.outerDy, geometry.outerSubX, geometry.outerSubY )
+				- CrownGeometry.ringMean( plane, x, y, geometry.innerDx, geometry.innerDy, geometry.innerSubX, geometry.innerSubY );
+	}
+
+	/**
+	 * Returns the sum of the pixel values of the specified samples of a crown
+	 * circle centered on <code>(x, y)</code>, read as by
+	 * {@link CrownGeometry#ringMean(Plane, int, int, int[], int[], boolean[], boolean[])}.
+	 */
+	private static double directSum( final Plane plane, final int x, final int y, final int[] samples, final int[] dx, final int[] dy,
+			final boolean[] subX, final boolean[] subY )
+	{
+		double s = 0.;
+		for ( final int k : samples )
+		{
+			int xx = x + dx[ k ];
+			int yy = y + dy[ k ];
+			if ( xx == -1 && subX[ k ] )
+				xx = 0;
+			if ( yy == -1 && subY[ k ] )
+				yy = 0;
+			if ( xx < 0 || yy < 0 || xx >= plane.width || yy >= plane.height )
+				continue;
+			s += plane.get( yy * plane.width + xx );
+		}
+		return s;
+	}
+
+	/**
+	 * Counts the samples of a crown circle inside the image, for the
+	 * <code>n</code> centers <code>(x0, y)</code> to
+	 * <code>(x0 + n - 1, y)</code>. Samples floored to -1 with a sub-pixel
+	 * part are inside, as they read pixel 0.
+	 */
+	private void count( final Plane plane, final int x0, final int y, final int n, final int[] dx, final int[] dy, final boolean[] subX,
+			final boolean[] subY, final int[] counts )
+	{
+		Arrays.fill( cumulativeSub, 0 );
+		Arrays.fill( cumulative, 0 );
+		for ( int k = 0; k < dx.length; k++ )
+		{
+			final int yy = y + dy[ k ];
+			if ( yy < ( subY[ k ] ? -1 : 0 ) || yy >= plane.height )
+				continue;
+			if ( subX[ k ] )
+				cumulativeSub[ dx[ k ] - dxMin + 1 ]++;
+			else
+				cumulative[ dx[ k ] - dxMin + 1 ]++;
+		}
+		for ( int i = 1; i < cumulative.length; i++ )
+		{
+			cumulativeSub[ i ] += cumulativeSub[ i - 1 ];
+			cumulative[ i ] += cumulative[ i - 1 ];
+		}
+		for ( int i = 0; i < n; i++ )
+		{
+			final int x = x0 + i;
+			counts[ i ] = countRange( cumulativeSub, -1 - x, plane.width - 1 - x ) + countRange( cumulative, -x, plane.width - 1 - x );
+		}
+	}
+
+	/**
+	 * Returns the number of samples of a cumulative histogram with an X
+	 * offset from <code>from</code> to <code>to</code>, included.
+	 */
+	private int countRange( final int[] histogram, final int from, final int to )
+	{
+		final int a = Math.max( from, dxMin ) - dxMin;
+		final int b = Math.min( to, dxMax ) - dxMin;
+		return ( b < a ) ? 0 : histogram[ b + 1 ] - histogram[ a ];
+	}
+
+	/**
+	 * Returns the number of FFT butterflies of a search.
+	 */
+	private static double butterflies( final int p, final int blockHeight, final int n, final boolean inside )
+	{
+		final int nKernels = inside ? 1 : 2;
+		final int nTransforms = ( blockHeight + 1 ) / 2 + ( 1 + nKernels ) * ( p / 2 + 1 ) + nKernels * ( ( n + 1 ) / 2 );
+		return ( double ) nTransforms * ( p / 2 ) * Integer.numberOfTrailingZeros( p );
+	}
+
+	/**
+	 * Correlates the block of the Z-slice starting at <code>(x0, y0)</code>
+	 * with the outer and inner ring kernels, and writes the sums of the
+	 * <code>n x n</code> offsets in the sum arrays. Pixels outside the image
+	 * count as 0, except on the row and the column before the image, which
+	 * repeat its first row and column. If the crowns of all the offsets are
+	 * inside the image, correlates the block with the single ring kernel
+	 * instead, and writes the scores in the score array.
+	 *
+	 * @return the largest absolute pixel value of the block.
+	 */
+	private double correlate( final Plane plane, final int x0, final int y0, final int blockWidth, final int blockHeight,
+			final int n, final boolean inside )
+	{
+		final int p = size;
+		final int h = p / 2;
+		double maxAbs = 0.;
+		for ( int y = 0; y < blockHeight; y++ )
+		{
+			final int row = y * p;
+			Arrays.fill( re, row, row + p, 0. );
+			final int yy = ( y0 + y == -1 ) ? 0 : y0 + y;
+			if ( yy < 0 || yy >= plane.height )
+				continue;
+			final int xStart = Math.max( 0, -x0 );
+			final int xEnd = Math.min( blockWidth, plane.width - x0 );
+			final int src = yy * plane.width + x0;
+			for ( int x = xStart; x < xEnd; x++ )
+			{
+				final double v = plane.get( src + x );
+				re[ row + x ] = v;
+				maxAbs = Math.max( maxAbs, Math.abs( v ) );
+			}
+			if ( x0 <= -1 && x0 + blockWidth > -1 )
+				re[ row - 1 - x0 ] = plane.get( yy * plane.width );
+		}
+		forwardRows( blockHeight );
+
+		// Along the columns, then product with the conjugate kernel spectra.
+		fftColumns( re, im, false );
+		if ( inside )
+		{
+			for ( int y = 0; y < p; y++ )
+			{
+				final int row = y * p;
+				final int kernelRow = y * ( h + 1 );
+				for ( int u = 0; u <= h; u++ )
+				{
+					final double ar = re[ row + u ];
+					final double ai = im[ row + u ];
+					final double br = ringRe[ kernelRow + u ];
+					final double bi = ringIm[ kernelRow + u ];
+					re[ row + u ] = ar * br + ai * bi;
+					im[ row + u ] = ai * br - ar * bi;
+				}
+			}
+			fftColumns( re, im, true );
+			inverseRows( re, im, n, scores );
+			return maxAbs;
+		}
+
+		for ( int y = 0; y < p; y++ )
+		{
+			final int row = y * p;
+			final int kernelRow = y * ( h + 1 );
+			for ( int u = 0; u <= h; u++ )
+			{
+				final double ar = re[ row + u ];
+				final double ai = im[ row + u ];
+				final double or = outerRe[ kernelRow + u ];
+				final double oi = outerIm[ kernelRow + u ];
+				productRe[ row + u ] = ar * or + ai * oi;
+				productIm[ row + u ] = ai * or - ar * oi;
+				final double ir = innerRe[ kernelRow + u ];
+				final double ii = innerIm[ kernelRow + u ];
+				re[ row + u ] = ar * ir + ai * ii;
+				im[ row + u ] = ai * ir - ar * ii;
+			}
+		}
+		fftColumns( productRe, productIm, true );
+		inverseRows( productRe, productIm, n, outerSums );
+		fftColumns( re, im, true );
+		inverseRows( re, im, n, innerSums );
+		return maxAbs;
+	}
+
+	/**
+	 * Inverse transforms the rows <code>0</code> to <code>n - 1</code> of a
+	 * real signal from its spectrum for the columns <code>0</code> to
+	 * <code>size / 2</code>, two rows per transform, and writes their
+	 * <code>n</code> first values in the specified array.
+	 */
+	private void inverseRows( final double[] sRe, final double[] sIm, final int n, final double[] out )
+	{
+		final int p = size;
+		final int h = p / 2;
+		final double scale = 1. / ( ( double ) p * p );
+		for ( int y = 0; y < n; y += 2 )
+		{
+			final int a = y * p;
+			final int b = a + p;
+			final boolean pair = y + 1 < n;
+			for ( int u = 0; u <= h; u++ )
+			{
+				final double xr = sRe[ a + u ];
+				final double xi = sIm[ a + u ];
+				final double yr = pair ? sRe[ b + u ] : 0.;
+				final double yi = pair ? sIm[ b + u ] : 0.;
+				lineRe[ u ] = xr - yi;
+				lineIm[ u ] = xi + yr;
+				if ( u > 0 && u < h )
+				{
+					lineRe[ p - u ] = xr + yi;
+					lineIm[ p - u ] = yr - xi;
+				}
+			}
+			fft( lineRe, lineIm, true );
+			for ( int x = 0; x < n; x++ )
+			{
+				out[ y * n + x ] = lineRe[ x ] * scale;
+				if ( pair )
+					out[ ( y + 1 ) * n + x ] = lineIm[ x ] * scale;
+			}
+		}
+	}
+
+	/**
+	 * Transforms the real rows <code>0</code> to <code>nRows - 1</code> of
+	 * {@link #re}, two by two, and writes their spectrum for the columns
+	 * <code>0</code> to <code>size / 2</code> in {@link #re} and {@link #im}.
+	 * The spectrum of the other rows is set to 0.
+	 */
+	private void forwardRows( final int nRows )
+	{
+		final int p = size;
+		final int h = p / 2;
+		for ( int y = 0; y < nRows; y += 2 )
+		{
+			final int a = y * p;
+			final int b = a + p;
+			final boolean pair = y + 1 < nRows;
+			for ( int x = 0; x < p; x++ )
+			{
+				lineRe[ x ] = re[ a + x ];
+				lineIm[ x ] = pair ? re[ b + x ] : 0.;
+			}
+			fft( lineRe, lineIm, false );
+			for ( int u = 0; u <= h; u++ )
+			{
+				final int v = ( p - u ) & ( p - 1 );
+				final double zr = lineRe[ u ];
+				final double zi = lineIm[ u ];
+				final double wr = lineRe[ v ];
+				final double wi = lineIm[ v ];
+				re[ a + u ] = 0.5 * ( zr + wr );
+				im[ a + u ] = 0.5 * ( zi - wi );
+				re[ b + u ] = 0.5 * ( zi + wi );
+				im[ b + u ] = -0.5 * ( zr - wr );
+			}
+		}
+		for ( int y = ( nRows + 1 ) / 2 * 2; y < p; y++ )
+		{
+			Arrays.fill( re, y * p, y * p + h + 1, 0. );
+			Arrays.fill( im, y * p, y * p + h + 1, 0. );
+		}
+	}
+
+	/**
+	 * In-place radix-2 FFT of a line of {@link #size} elements, without
+	 * normalization.
+	 */
+	private void fft( final double[] lre, final double[] lim, final boolean inverse )
+	{
+		final int p = size;
+		for ( int i = 0; i < p; i++ )
+		{
+			final int j = reversed[ i ];
+			if ( j > i )
+			{
+				final double tr = lre[ i ];
+				lre[ i ] = lre[ j ];
+				lre[ j ] = tr;
+				final double ti = lim[ i ];
+				lim[ i ] = lim[ j ];
+				lim[ j ] = ti;
+			}
+		}
+		for ( int half = 1; half < p; half <<= 1 )
+		{
+			final int step = p / ( 2 * half );
+			for ( int k = 0; k < half; k++ )
+			{
+				final double c = cosTable[ k * step ];
+				final double s = inverse ? sinTable[ k * step ] : -sinTable[ k * step ];
+				for ( int a = k; a < p; a += 2 * half )
+				{
+					final int b = a + half;
+					final double tr = c * lre[ b ] - s * lim[ b ];
+					final double ti = c * lim[ b ] + s * lre[ b ];
+					lre[ b ] = lre[ a ] - tr;
+					lim[ b ] = lim[ a ] - ti;
+					lre[ a ] += tr;
+					lim[ a ] += ti;
+				}
+			}
+		}
+	}
+
+	/**
+	 * In-place radix-2 FFT of the columns <code>0</code> to
+	 * <code>size / 2</code> of the specified arrays, without
+	 * normalization. The butterflies are applied to whole rows, so that the
+	 * inner loop runs over contiguous memory.
+	 */
+	private void fftColumns( final double[] re, final double[] im, final boolean inverse )
+	{
+		final int p = size;
+		final int h = p / 2;
+		for ( int i = 0; i < p; i++ )
+		{
+			final int j = reversed[ i ];
+			if ( j > i )
+			{
+				for ( int u = 0; u <= h; u++ )
+				{
+					final double tr = re[ i * p + u ];
+					re[ i * p + u ] = re[ j * p + u ];
+					re[ j * p + u ] = tr;
+					final double ti = im[ i * p + u ];
+					im[ i * p + u ] = im[ j * p + u ];
+					im[ j * p + u ] = ti;
+				}
+			}
+		}
+		for ( int half = 1; half < p; half <<= 1 )
+		{
+			final int step = p / ( 2 * half );
+			for ( int k = 0; k < half; k++ )
+			{
+				final double c = cosTable[ k * step ];
+				final double s = inverse ? sinTable[ k * step ] : -sinTable[ k * step ];
+				for ( int a = k; a < p; a += 2 * half )
+				{
+					final int rowA = a * p;
+					final int rowB = ( a + half ) * p;
+					for ( int u = 0; u <= h; u++ )
+					{
+						final double br = re[ rowB + u ];
+						final double bi = im[ rowB + u ];
+						final double tr = c * br - s * bi;
+						final double ti = c * bi + s * br;
+						re[ rowB + u ] = re[ rowA + u ] - tr;
+						im[ rowB + u ] = im[ rowA + u ] - ti;
+						re[ rowA + u ] += tr;
+						im[ rowA + u ] += ti;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Allocates the work arrays for the specified FFT size, and computes the
+	 * spectra of the ring kernels.
+	 */
+	private void init( final int p )
+	{
+		size = p;
+		re = new double[ p * p ];
+		im = new double[ p * p ];
+		productRe = new double[ p * p ];
+		productIm = new double[ p * p ];
+		lineRe = new double[ p ];
+		lineIm = new double[ p ];
+		cosTable = new double[ p / 2 ];
+		sinTable = new double[ p / 2 ];
+		for ( int k = 0; k < p / 2; k++ )
+		{
+			cosTable[ k ] = Math.cos( 2. * Math.PI * k / p );
+			sinTable[ k ] = Math.sin( 2. * Math.PI * k / p );
+		}
+		reversed = new int[ p ];
+		final int bits = Integer.numberOfTrailingZeros( p );
+		for ( int i = 0; i < p; i++ )
+			reversed[ i ] = Integer.reverse( i ) >>> ( 32 - bits );
+
+		outerRe = new double[ p * ( p / 2 + 1 ) ];
+		outerIm = new double[ p * ( p / 2 + 1 ) ];
+		kernelSpectrum( geometry.outerDx, geometry.outerDy, geometry.outerSubX, geometry.outerSubY, outerRe, outerIm );
+		innerRe = new double[ p * ( p / 2 + 1 ) ];
+		innerIm = new double[ p * ( p / 2 + 1 ) ];
+		kernelSpectrum( geometry.innerDx, geometry.innerDy, geometry.innerSubX, geometry.innerSubY, innerRe, innerIm );
+
+		// Single kernel, with all the samples, inside the image.
+		final double w = 1. / geometry.nCrown;
+		Arrays.fill( re, 0. );
+		for ( int k = 0; k < geometry.nCrown; k++ )
+		{
+			re[ ( geometry.outerDy[ k ] - dyMin ) * p + geometry.outerDx[ k ] - dxMin ] += w;
+			re[ ( geometry.innerDy[ k ] - dyMin ) * p + geometry.innerDx[ k ] - dxMin ] -= w;
+		}
+		ringRe = new double[ p * ( p / 2 + 1 ) ];
+		ringIm = new double[ p * ( p / 2 + 1 ) ];
+		spectrum( ringRe, ringIm );
+	}
+
+	/**
+	 * Computes the spectrum of the ring kernel of a crown circle, indexed from
+	 * the smallest crown offsets, with a unit weight for the samples with a
+	 * sub-pixel part along X and Y. Uses the work arrays.
+	 */
+	private void kernelSpectrum( final int[] dx, final int[] dy, final boolean[] subX, final boolean[] subY, final double[] kRe,
+			final double[] kIm )
+	{
+		final int p = size;
+		Arrays.fill( re, 0. );
+		for ( int k = 0; k < dx.length; k++ )
+			if ( subX[ k ] && subY[ k ] )
+				re[ ( dy[ k ] - dyMin ) * p + dx[ k ] - dxMin ] += 1.;
+		spectrum( kRe, kIm );
+	}
+
+	/**
+	 * Computes the spectrum of the kernel written in {@link #re}, and copies
+	 * it in the specified arrays, with a row stride of <code>size / 2 + 1</code>.
+	 */
+	private void spectrum( final double[] kRe, final double[] kIm )
+	{
+		final int p = size;
+		final int h = p / 2;
+		forwardRows( dyMax - dyMin + 1 );
+		fftColumns( re, im, false );
+		for ( int y = 0; y < p; y++ )
+		{
+			System.arraycopy( re, y * p, kRe, y * ( h + 1 ), h + 1 );
+			System.arraycopy( im, y * p, kIm, y * ( h + 1 ), h + 1 );
+		}
+	}
+}
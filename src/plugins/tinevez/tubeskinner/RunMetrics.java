@@ -0,0 +1,423 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Performance metrics of the tube fit on one time-point: the wall time spent
+ * in each stage of the processing, the bytes allocated and the crown score,
+ * for each Z-slice.
+ * <p>
+ * The metrics are filled by the engine while it runs, and can be read live
+ * from a {@link Listener}, for instance to report progress. The crown score
+ * of each Z-slice is also a tracking quality signal: a sudden drop usually
+ * means that the tracking went wrong. Metrics can be exported as CSV or JSON.
+ * <p>
+ * Allocations are measured on the fitting thread only, and are reported as -1
+ * if the JVM cannot measure them. With the prefetch pipeline, the plane fetch
+ * time is the time spent waiting for the prefetched planes, and the unwrap
+ * write time is the time spent handing the rows over to the writer thread.
+ */
+public class RunMetrics
+{
+
+	/**
+	 * The stages of the processing.
+	 */
+	public static enum Stage
+	{
+		/**
+		 * Reading the planes of a Z-slice from the source.
+		 */
+		PLANE_FETCH( "planeFetch" ),
+		/**
+		 * Searching for the tube center.
+		 */
+		CROWN_SEARCH( "crownSearch" ),
+		/**
+		 * Fitting the radius along each ray, and sampling the channels on the
+		 * fitted contour.
+		 */
+		RADIAL_SCAN( "radialScan" ),
+		/**
+		 * Writing the row of the unwrapped image.
+		 */
+		UNWRAP_WRITE( "unwrapWrite" ),
+		/**
+		 * Building the 3D ROIs of the time-point. Not measured per Z-slice.
+		 */
+		ROI_RASTERIZATION( "roiRasterization" );
+
+		private final String key;
+
+		private Stage( final String key )
+		{
+			this.key = key;
+		}
+	}
+
+	/**
+	 * How the tube center was searched on a Z-slice.
+	 */
+	public static enum CenterSearch
+	{
+		/**
+		 * Over the full search window.
+		 */
+		FULL( "full" ),
+		/**
+		 * Around the center predicted from the previous Z-slices only.
+		 */
+		PREDICTED( "predicted" ),
+		/**
+		 * Around the predicted center, or the center of the previous
+		 * time-point, then over the full search window because the center
+		 * was not found there.
+		 */
+		FALLBACK( "fallback" ),
+		/**
+		 * Around the center fitted on the same Z-slice of the previous
+		 * time-point only.
+		 */
+		REFINED( "refined" ),
+		/**
+		 * Not searched: the center was restored from the fit cache.
+		 */
+		NONE( "none" );
+
+		private final String key;
+
+		private CenterSearch( final String key )
+		{
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Listener notified when the metrics of a Z-slice have been measured.
+	 */
+	public static interface Listener
+	{
+		/**
+		 * Called on the fitting thread, after the specified Z-slice has been
+		 * fitted.
+		 *
+		 * @param metrics
+		 *            the metrics of the time-point being processed.
+		 * @param z
+		 *            the Z-slice.
+		 */
+		public void sliceMeasured( RunMetrics metrics, int z );
+	}
+
+	/**
+	 * Number of stages measured per Z-slice.
+	 */
+	private static final int N_SLICE_STAGES = 4;
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final int nz;
+
+	/**
+	 * Wall time of stage <code>s</code> on Z-slice <code>z</code>, in ns, at
+	 * <code>z * N_SLICE_STAGES + s</code>.
+	 */
+	private final long[] sliceNanos;
+
+	private final long[] allocatedBytes;
+
+	private final double[] scores;
+
+	private final CenterSearch[] centerSearches;
+
+	private long roiNanos = 0;
+
+	private final long startNanos;
+
+	private volatile long endNanos = -1;
+
+	private volatile int nProcessed = 0;
+
+	RunMetrics( final int nz )
+	{
+		this.nz = nz;
+		this.sliceNanos = new long[ nz * N_SLICE_STAGES ];
+		this.allocatedBytes = new long[ nz ];
+		this.scores = new double[ nz ];
+		this.centerSearches = new CenterSearch[ nz ];
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Stores the metrics of the specified Z-slice.
+	 */
+	void set( final int z, final long fetchNanos, final long searchNanos, final long scanNanos, final long writeNanos,
+			final long allocated, final double score, final CenterSearch centerSearch )
+	{
+		final int i = z * N_SLICE_STAGES;
+		sliceNanos[ i ] = fetchNanos;
+		sliceNanos[ i + 1 ] = searchNanos;
+		sliceNanos[ i + 2 ] = scanNanos;
+		sliceNanos[ i + 3 ] = writeNanos;
+		allocatedBytes[ z ] = allocated;
+		scores[ z ] = score;
+		if ( null == centerSearches[ z ] )
+			nProcessed++;
+		centerSearches[ z ] = centerSearch;
+	}
+
+	/**
+	 * Marks the end of the fit of the time-point.
+	 */
+	void finish()
+	{
+		endNanos = System.nanoTime();
+	}
+
+	/**
+	 * Adds time spent building the ROIs of the time-point.
+	 */
+	synchronized void addRoiNanos( final long nanos )
+	{
+		roiNanos += nanos;
+	}
+
+	/**
+	 * Returns the number of bytes allocated so far by the calling thread, or
+	 * -1 if the JVM cannot measure it.
+	 */
+	static long currentThreadAllocatedBytes()
+	{
+		if ( THREADS instanceof com.sun.management.ThreadMXBean )
+		{
+			final com.sun.management.ThreadMXBean threads = ( com.sun.management.ThreadMXBean ) THREADS;
+			if ( threads.isThreadAllocatedMemoryEnabled() )
+				return threads.getThreadAllocatedBytes( Thread.currentThread().getId() );
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of Z-slices of the time-point.
+	 */
+	public int getSizeZ()
+	{
+		return nz;
+	}
+
+	/**
+	 * Returns the number of Z-slices processed so far. With a warm start on
+	 * several threads, they are not processed in order: after a cancel, the
+	 * processed Z-slices can be separated by gaps. See
+	 * {@link #isProcessed(int)}.
+	 */
+	public int getProcessedSlices()
+	{
+		return nProcessed;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified Z-slice has been processed.
+	 * The metrics of the other Z-slices are not set.
+	 */
+	public boolean isProcessed( final int z )
+	{
+		return null != centerSearches[ z ];
+	}
+
+	/**
+	 * Returns the wall time (in ns) of the fit, from its start to its end, or
+	 * to now if it is still running.
+	 */
+	public long getElapsedNanos()
+	{
+		final long end = endNanos;
+		return ( ( end < 0 ) ? System.nanoTime() : end ) - startNanos;
+	}
+
+	/**
+	 * Returns the number of Z-slices processed per second.
+	 */
+	public double getSlicesPerSecond()
+	{
+		final long elapsed = getElapsedNanos();
+		return ( elapsed <= 0 ) ? 0. : nProcessed * 1e9 / elapsed;
+	}
+
+	/**
+	 * Returns the wall time (in ns) spent in the specified stage, over all the
+	 * Z-slices processed.
+	 */
+	public long getStageNanos( final Stage stage )
+	{
+		if ( stage == Stage.ROI_RASTERIZATION )
+		{
+			synchronized ( this )
+			{
+				return roiNanos;
+			}
+		}
+
+		long total = 0;
+		for ( int z = 0; z < nz; z++ )
+			total += sliceNanos[ z * N_SLICE_STAGES + stage.ordinal() ];
+		return total;
+	}
+
+	/**
+	 * Returns the wall time (in ns) spent in the specified stage on the
+	 * specified Z-slice. Returns 0 for the ROI rasterization, which is not
+	 * measured per Z-slice.
+	 */
+	public long getStageNanos( final int z, final Stage stage )
+	{
+		if ( stage == Stage.ROI_RASTERIZATION )
+			return 0;
+		return sliceNanos[ z * N_SLICE_STAGES + stage.ordinal() ];
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the fitting thread on the
+	 * specified Z-slice, or -1 if it could not be measured.
+	 */
+	public long getAllocatedBytes( final int z )
+	{
+		return allocatedBytes[ z ];
+	}
+
+	/**
+	 * Returns the crown score of the center fitted on the specified Z-slice.
+	 */
+	public double getScore( final int z )
+	{
+		return scores[ z ];
+	}
+
+	/**
+	 * Returns how the tube center was searched on the specified Z-slice, or
+	 * <code>null</code> if it has not been processed.
+	 */
+	public CenterSearch getCenterSearch( final int z )
+	{
+		return centerSearches[ z ];
+	}
+
+	/**
+	 * Returns the number of Z-slices processed so far on which the tube center
+	 * was searched as specified. With motion prediction, the number of
+	 * {@link CenterSearch#FALLBACK} searches tells how often the prediction
+	 * failed.
+	 */
+	public int getCenterSearchCount( final CenterSearch centerSearch )
+	{
+		int count = 0;
+		for ( int z = 0; z < nz; z++ )
+			if ( centerSearches[ z ] == centerSearch )
+				count++;
+		return count;
+	}
+
+	/**
+	 * Writes the metrics of each Z-slice as CSV, one line per processed
+	 * Z-slice. Times are in ms.
+	 *
+	 * @param writer
+	 *            the writer to write to. It is not closed by this method.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	public void writeCSV( final Writer writer ) throws IOException
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( 'z' );
+		for ( int s = 0; s < N_SLICE_STAGES; s++ )
+			str.append( ',' ).append( Stage.values()[ s ].key ).append( "Ms" );
+		str.append( ",allocatedBytes,score,centerSearch\n" );
+		for ( int z = 0; z < nz; z++ )
+		{
+			if ( !isProcessed( z ) )
+				continue;
+
+			str.append( z );
+			for ( int s = 0; s < N_SLICE_STAGES; s++ )
+			{
+				str.append( ',' );
+				ContourExporter.appendFixed( str, sliceNanos[ z * N_SLICE_STAGES + s ] / 1e6 );
+			}
+			str.append( ',' ).append( allocatedBytes[ z ] ).append( ',' );
+			appendScore( str, scores[ z ], "" );
+			str.append( ',' ).append( centerSearches[ z ].key );
+			str.append( '\n' );
+		}
+		writer.append( str );
+	}
+
+	/**
+	 * Writes the metrics as JSON: the totals, then the metrics of each
+	 * processed Z-slice. Times are in ms.
+	 *
+	 * @param writer
+	 *            the writer to write to. It is not closed by this method.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	public void writeJSON( final Writer writer ) throws IOException
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( "{\n  \"slices\": " ).append( nProcessed );
+		str.append( ",\n  \"elapsedMs\": " );
+		ContourExporter.appendFixed( str, getElapsedNanos() / 1e6 );
+		str.append( ",\n  \"slicesPerSecond\": " );
+		ContourExporter.appendFixed( str, getSlicesPerSecond() );
+		str.append( ",\n  \"stagesMs\": {" );
+		for ( final Stage stage : Stage.values() )
+		{
+			str.append( ( stage.ordinal() == 0 ) ? "\n" : ",\n" );
+			str.append( "    \"" ).append( stage.key ).append( "\": " );
+			ContourExporter.appendFixed( str, getStageNanos( stage ) / 1e6 );
+		}
+		str.append( "\n  },\n  \"centerSearches\": {" );
+		for ( final CenterSearch centerSearch : CenterSearch.values() )
+		{
+			str.append( ( centerSearch.ordinal() == 0 ) ? "\n" : ",\n" );
+			str.append( "    \"" ).append( centerSearch.key ).append( "\": " ).append( getCenterSearchCount( centerSearch ) );
+		}
+		str.append( "\n  },\n  \"perSlice\": [" );
+		boolean first = true;
+		for ( int z = 0; z < nz; z++ )
+		{
+			if ( !isProcessed( z ) )
+				continue;
+
+			str.append( first ? "\n" : ",\n" );
+			first = false;
+			str.append( "    { \"z\": " ).append( z );
+			for ( int s = 0; s < N_SLICE_STAGES; s++ )
+			{
+				str.append( ", \"" ).append( Stage.values()[ s ].key ).append( "Ms\": " );
+				ContourExporter.appendFixed( str, sliceNanos[ z * N_SLICE_STAGES + s ] / 1e6 );
+			}
+			str.append( ", \"allocatedBytes\": " ).append( allocatedBytes[ z ] );
+			str.append( ", \"score\": " );
+			appendScore( str, scores[ z ], "null" );
+			str.append( ", \"centerSearch\": \"" ).append( centerSearches[ z ].key ).append( '"' );
+			str.append( " }" );
+		}
+		str.append( "\n  ]\n}\n" );
+		writer.append( str );
+	}
+
+	/**
+	 * Appends a score, or the specified string if it is not finite.
+	 */
+	private static void appendScore( final StringBuilder str, final double score, final String notFinite )
+	{
+		if ( Double.isNaN( score ) || Double.isInfinite( score ) )
+			str.append( notFinite );
+		else
+			ContourExporter.appendFixed( str, score );
+	}
+}
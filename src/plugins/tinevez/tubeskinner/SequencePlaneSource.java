@@ -0,0 +1,59 @@
+package plugins.tinevez.tubeskinner;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+
+/**
+ * Supplies the Z-planes of one time-point of an Icy sequence to the
+ * {@link TubeSkinnerEngine}, without copying them.
+ */
+class SequencePlaneSource implements PlaneSource
+{
+
+	private final Sequence sequence;
+
+	private final int timepoint;
+
+	SequencePlaneSource( final Sequence sequence, final int timepoint )
+	{
+		this.sequence = sequence;
+		this.timepoint = timepoint;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return sequence.getWidth();
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return sequence.getHeight();
+	}
+
+	@Override
+	public int getSizeZ()
+	{
+		return sequence.getSizeZ();
+	}
+
+	@Override
+	public int getSizeC()
+	{
+		return sequence.getSizeC();
+	}
+
+	@Override
+	public boolean isSigned()
+	{
+		return sequence.getImage( timepoint, 0 ).isSignedDataType();
+	}
+
+	@Override
+	public Object getPlane( final int z, final int c )
+	{
+		final IcyBufferedImage image = sequence.getImage( timepoint, z );
+		return image.getDataXY( c );
+	}
+}
@@ -0,0 +1,251 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.Arrays;
+
+/**
+ * Resamples a stack in the planes orthogonal to a {@link Centerline}, so that
+ * an oblique tube is seen as a straight tube along Z, with circular sections
+ * centered in the planes.
+ * <p>
+ * Plane <code>i</code> of this source is the square of <code>size</code>
+ * pixels orthogonal to the centerline at sample <code>i</code>, centered on
+ * it: its pixel <code>(size / 2, size / 2)</code> is on the centerline. Its
+ * pixels are trilinearly interpolated in the stack, and are 0 outside of it.
+ * <p>
+ * The Z-slices of the stack the planes cross are converted to
+ * <code>float</code> and kept in a sliding window, deep enough for the
+ * steepest plane. As the planes are requested in order along the centerline,
+ * each Z-slice of the stack is read once. The planes must be requested one
+ * at a time, from one thread.
+ */
+public class StraightenedPlaneSource implements PlaneSource
+{
+
+	private final PlaneSource source;
+
+	private final Centerline centerline;
+
+	private final int size;
+
+	private final int width;
+
+	private final int height;
+
+	private final int nc;
+
+	/**
+	 * Sliding window of stack Z-slices: slice <code>z</code> is held in slot
+	 * <code>z % depth</code>, one array per channel.
+	 */
+	private final float[][][] window;
+
+	/**
+	 * Z-slice held in each slot, or -1.
+	 */
+	private final int[] windowZ;
+
+	private final int depth;
+
+	/**
+	 * One reused array per channel for the resampled planes.
+	 */
+	private final float[][] planes;
+
+	/**
+	 * The sample of the planes last resampled, or -1.
+	 */
+	private int current = -1;
+
+	/**
+	 * Creates a source of planes orthogonal to the specified centerline.
+	 *
+	 * @param source
+	 *            the stack to resample.
+	 * @param centerline
+	 *            the centerline of the tube in the stack.
+	 * @param size
+	 *            the size (in pixels) of the square planes.
+	 */
+	public StraightenedPlaneSource( final PlaneSource source, final Centerline centerline, final int size )
+	{
+		this.source = source;
+		this.centerline = centerline;
+		this.size = size;
+		this.width = source.getWidth();
+		this.height = source.getHeight();
+		this.nc = source.getSizeC();
+
+		double maxExtent = 0.;
+		for ( int i = 0; i < centerline.size(); i++ )
+			maxExtent = Math.max( maxExtent, centerline.getHalfExtentZ( i, size / 2 + 1 ) );
+		this.depth = Math.min( source.getSizeZ(), 2 * ( int ) Math.ceil( maxExtent ) + 3 );
+		this.window = new float[ depth ][][];
+		this.windowZ = new int[ depth ];
+		Arrays.fill( windowZ, -1 );
+		this.planes = new float[ nc ][ size * size ];
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return size;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the number of samples along the centerline.
+	 */
+	@Override
+	public int getSizeZ()
+	{
+		return centerline.size();
+	}
+
+	@Override
+	public int getSizeC()
+	{
+		return nc;
+	}
+
+	@Override
+	public boolean isSigned()
+	{
+		return true;
+	}
+
+	/**
+	 * Returns the plane orthogonal to the centerline at the specified sample.
+	 * All the channels are resampled on the first request of the sample.
+	 */
+	@Override
+	public Object getPlane( final int i, final int c )
+	{
+		if ( i != current )
+		{
+			resample( i );
+			current = i;
+		}
+		return planes[ c ];
+	}
+
+	private void resample( final int i )
+	{
+		final double half = size / 2;
+		final double ux = centerline.getUx( i );
+		final double uy = centerline.getUy( i );
+		final double uz = centerline.getUz( i );
+		final double vx = centerline.getVx( i );
+		final double vy = centerline.getVy( i );
+		final double vz = centerline.getVz( i );
+
+		// Load the Z-slices the plane crosses, and their upper neighbors.
+		final double extent = centerline.getHalfExtentZ( i, half + 1 );
+		final int zMin = Math.max( 0, ( int ) Math.floor( centerline.getZ( i ) - extent ) );
+		final int zMax = Math.min( source.getSizeZ() - 1, ( int ) Math.floor( centerline.getZ( i ) + extent ) + 1 );
+		for ( int z = zMin; z <= zMax; z++ )
+			load( z );
+
+		for ( int c = 0; c < nc; c++ )
+		{
+			final float[] plane = planes[ c ];
+			for ( int j = 0; j < size; j++ )
+			{
+				// Start of the row, then step along u.
+				double x = centerline.getX( i ) - half * ux + ( j - half ) * vx;
+				double y = centerline.getY( i ) - half * uy + ( j - half ) * vy;
+				double z = centerline.getZ( i ) - half * uz + ( j - half ) * vz;
+				for ( int k = 0; k < size; k++ )
+				{
+					plane[ j * size + k ] = ( float ) trilinear( c, x, y, z );
+					x += ux;
+					y += uy;
+					z += uz;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the value at the specified position, trilinearly interpolated
+	 * from its 8 neighbor voxels. Neighbors falling outside the stack count as
+	 * 0.
+	 */
+	private double trilinear( final int c, final double x, final double y, final double z )
+	{
+		final int x0 = ( int ) Math.floor( x );
+		final int y0 = ( int ) Math.floor( y );
+		final int z0 = ( int ) Math.floor( z );
+		final double fx = x - x0;
+		final double fy = y - y0;
+		final double fz = z - z0;
+		final int sizeZ = source.getSizeZ();
+
+		if ( x0 >= 0 && y0 >= 0 && z0 >= 0 && x0 + 1 < width && y0 + 1 < height && z0 + 1 < sizeZ )
+		{
+			// Whole neighborhood inside the stack.
+			final float[] p0 = window[ z0 % depth ][ c ];
+			final float[] p1 = window[ ( z0 + 1 ) % depth ][ c ];
+			final int i = y0 * width + x0;
+			final double a = p0[ i ] + fx * ( p0[ i + 1 ] - p0[ i ] );
+			final double b = p0[ i + width ] + fx * ( p0[ i + width + 1 ] - p0[ i + width ] );
+			final double d = p1[ i ] + fx * ( p1[ i + 1 ] - p1[ i ] );
+			final double e = p1[ i + width ] + fx * ( p1[ i + width + 1 ] - p1[ i + width ] );
+			final double lower = a + fy * ( b - a );
+			final double upper = d + fy * ( e - d );
+			return lower + fz * ( upper - lower );
+		}
+
+		double value = 0.;
+		for ( int dz = 0; dz < 2; dz++ )
+		{
+			final int zz = z0 + dz;
+			if ( zz < 0 || zz >= sizeZ )
+				continue;
+			final float[] p = window[ zz % depth ][ c ];
+			final double wz = ( dz == 0 ) ? 1. - fz : fz;
+			for ( int dy = 0; dy < 2; dy++ )
+			{
+				final int yy = y0 + dy;
+				if ( yy < 0 || yy >= height )
+					continue;
+				final double wy = ( dy == 0 ) ? 1. - fy : fy;
+				for ( int dx = 0; dx < 2; dx++ )
+				{
+					final int xx = x0 + dx;
+					if ( xx < 0 || xx >= width )
+						continue;
+					final double wx = ( dx == 0 ) ? 1. - fx : fx;
+					value += wx * wy * wz * p[ yy * width + xx ];
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Converts the specified Z-slice of the stack into its slot of the
+	 * window, if it is not there already.
+	 */
+	private void load( final int z )
+	{
+		final int slot = z % depth;
+		if ( windowZ[ slot ] == z )
+			return;
+
+		if ( null == window[ slot ] )
+			window[ slot ] = new float[ nc ][ width * height ];
+		for ( int c = 0; c < nc; c++ )
+		{
+			final Plane plane = Plane.wrap( source.getPlane( z, c ), source.isSigned(), width, height );
+			final float[] target = window[ slot ][ c ];
+			for ( int p = 0; p < target.length; p++ )
+				target[ p ] = ( float ) plane.get( p );
+		}
+		windowZ[ slot ] = z;
+	}
+}
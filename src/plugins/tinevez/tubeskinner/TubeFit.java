@@ -0,0 +1,246 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * The result of the tube fit on one time-point: the crown center fitted on
+ * each Z-slice, the tube radius fitted along each ray, and the unwrapped
+ * image.
+ * <p>
+ * The unwrapped image has one column per position along the tube
+ * circumference, projected on the initial circle, and one row per Z-slice. It
+ * is stored as one <code>float[]</code> array per channel, line by line.
+ */
+public class TubeFit
+{
+
+	private final int nz;
+
+	private final double[] theta;
+
+	private final double crownRadius;
+
+	private final double initialX;
+
+	private final double initialY;
+
+	private final double[] centerX;
+
+	private final double[] centerY;
+
+	private final double[] scores;
+
+	/**
+	 * Fitted radius of ray <code>iTheta</code> on Z-slice <code>z</code> is
+	 * stored at <code>z * nAngles + iTheta</code>.
+	 */
+	private final float[] radii;
+
+	private final int unwrapWidth;
+
+	private final float[][] unwrapped;
+
+	private final RunMetrics metrics;
+
+	private Centerline centerline;
+
+	TubeFit( final int nz, final double[] theta, final double crownRadius, final double initialX, final double initialY,
+			final int unwrapWidth, final float[][] unwrapped )
+	{
+		this.nz = nz;
+		this.theta = theta;
+		this.crownRadius = crownRadius;
+		this.initialX = initialX;
+		this.initialY = initialY;
+		this.centerX = new double[ nz ];
+		this.centerY = new double[ nz ];
+		this.scores = new double[ nz ];
+		this.radii = new float[ nz * theta.length ];
+		this.unwrapWidth = unwrapWidth;
+		this.unwrapped = unwrapped;
+		this.metrics = new RunMetrics( nz );
+	}
+
+	/**
+	 * Stores the fit of the specified Z-slice.
+	 */
+	void set( final int z, final double cx, final double cy, final double[] sliceRadii, final double score )
+	{
+		centerX[ z ] = cx;
+		centerY[ z ] = cy;
+		scores[ z ] = score;
+		final int nAngles = theta.length;
+		for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+			radii[ z * nAngles + iTheta ] = ( float ) sliceRadii[ iTheta ];
+	}
+
+	/**
+	 * Returns the number of Z-slices.
+	 */
+	public int getSizeZ()
+	{
+		return nz;
+	}
+
+	/**
+	 * Returns <code>true</code> if all the Z-slices were fitted, or
+	 * <code>false</code> if the process was canceled before.
+	 */
+	public boolean isComplete()
+	{
+		return metrics.getProcessedSlices() == nz;
+	}
+
+	/**
+	 * Returns the number of leading Z-slices that were fitted: all of them if
+	 * the fit is complete. The Z-slices after them are not fitted, except
+	 * for some of them if they were processed out of order, by
+	 * {@link TubeSkinnerEngine#processFrom(PlaneSource, TubeFit, int)}.
+	 */
+	public int getFittedSlices()
+	{
+		if ( isComplete() )
+			return nz;
+
+		int z = 0;
+		while ( z < nz && null != metrics.getCenterSearch( z ) )
+			z++;
+		return z;
+	}
+
+	/**
+	 * Returns the number of rays probed on each Z-slice.
+	 */
+	public int getNAngles()
+	{
+		return theta.length;
+	}
+
+	/**
+	 * Returns the angle (in radians) of the specified ray.
+	 */
+	public double getTheta( final int iTheta )
+	{
+		return theta[ iTheta ];
+	}
+
+	/**
+	 * Returns the radius of the outer crown circle, which is also the radius of
+	 * the rough tube section.
+	 */
+	public double getCrownRadius()
+	{
+		return crownRadius;
+	}
+
+	/**
+	 * Returns the X position of the center of the circle the fit started from,
+	 * on the first Z-slice.
+	 */
+	public double getInitialCenterX()
+	{
+		return initialX;
+	}
+
+	/**
+	 * Returns the Y position of the center of the circle the fit started from,
+	 * on the first Z-slice.
+	 */
+	public double getInitialCenterY()
+	{
+		return initialY;
+	}
+
+	/**
+	 * Returns the X position of the crown center fitted on the specified
+	 * Z-slice.
+	 */
+	public double getCenterX( final int z )
+	{
+		return centerX[ z ];
+	}
+
+	/**
+	 * Returns the Y position of the crown center fitted on the specified
+	 * Z-slice.
+	 */
+	public double getCenterY( final int z )
+	{
+		return centerY[ z ];
+	}
+
+	/**
+	 * Returns the crown score of the center fitted on the specified Z-slice.
+	 * Higher is better.
+	 */
+	public double getScore( final int z )
+	{
+		return scores[ z ];
+	}
+
+	/**
+	 * Returns the tube radius fitted along the specified ray, on the specified
+	 * Z-slice.
+	 */
+	public double getRadius( final int z, final int iTheta )
+	{
+		return radii[ z * theta.length + iTheta ];
+	}
+
+	/**
+	 * Returns the X position of the tube contour along the specified ray, on
+	 * the specified Z-slice.
+	 */
+	public double getContourX( final int z, final int iTheta )
+	{
+		return centerX[ z ] + Math.cos( theta[ iTheta ] ) * getRadius( z, iTheta );
+	}
+
+	/**
+	 * Returns the Y position of the tube contour along the specified ray, on
+	 * the specified Z-slice.
+	 */
+	public double getContourY( final int z, final int iTheta )
+	{
+		return centerY[ z ] + Math.sin( theta[ iTheta ] ) * getRadius( z, iTheta );
+	}
+
+	/**
+	 * Returns the width of the unwrapped image.
+	 */
+	public int getUnwrapWidth()
+	{
+		return unwrapWidth;
+	}
+
+	/**
+	 * Returns the unwrapped image, as one array per channel of size
+	 * <code>getUnwrapWidth() x getSizeZ()</code>, or <code>null</code> if the
+	 * rows were passed to an {@link UnwrapWriter}.
+	 */
+	public float[][] getUnwrapped()
+	{
+		return unwrapped;
+	}
+
+	/**
+	 * Returns the performance metrics of the fit.
+	 */
+	public RunMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Returns the centerline along which the stack was resampled for this
+	 * fit, or <code>null</code> if the tube was fitted in the XY slices. See
+	 * {@link TubeSkinnerEngine#processAlong(PlaneSource, Centerline, double)}.
+	 */
+	public Centerline getCenterline()
+	{
+		return centerline;
+	}
+
+	void setCenterline( final Centerline centerline )
+	{
+		this.centerline = centerline;
+	}
+}
@@ -0,0 +1,674 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Fits the tube section on successive Z-slices of one time-point, and writes
+ * the unwrapped rows.
+ * <p>
+ * The tracking state (the crown center and the fitted radii) is kept as
+ * primitives, and all the buffers are allocated once at construction, so that
+ * fitting a Z-slice does not allocate. Instances are not thread-safe: each
+ * time-point must use its own fitter.
+ */
+class TubeFitter
+{
+
+	private final CrownGeometry geometry;
+
+	private final CrownSearch crownSearch;
+
+	private final int searchWindow;
+
+	private final int windowRay;
+
+	/**
+	 * Radius of the outer crown circle.
+	 */
+	private final double r0;
+
+	/**
+	 * Width of the unwrapped image.
+	 */
+	private final int nx;
+
+	/**
+	 * Integer part of the current crown center.
+	 */
+	private int cx;
+
+	private int cy;
+
+	private final int[] bestOffset = new int[ 2 ];
+
+	/**
+	 * Predictor of the center on the next Z-slice, or <code>null</code> to
+	 * always search the full window.
+	 */
+	private MotionPredictor predictor;
+
+	/**
+	 * How the center was searched on the last Z-slice.
+	 */
+	RunMetrics.CenterSearch lastSearch = RunMetrics.CenterSearch.NONE;
+
+	/**
+	 * Index in the ray samples of the fitted radius along each ray, for the
+	 * last Z-slice, or -1 if no max was found. No max is found if the ray
+	 * falls entirely outside the image.
+	 */
+	final int[] radiusIndices;
+
+	/**
+	 * Values of each channel sampled on the fitted contour, for each ray of
+	 * the last Z-slice.
+	 */
+	private final double[][] samples;
+
+	/**
+	 * Channels of the Z-slice being sampled.
+	 */
+	private Plane[] channels;
+
+	/**
+	 * Tasks sampling each channel, when channels are sampled in parallel.
+	 */
+	private final List< Callable< Void > > samplingTasks;
+
+	private ExecutorService executor;
+
+	/**
+	 * Interpolating sampler of the rays, or <code>null</code> to read the
+	 * nearest pixels.
+	 */
+	private RaySampler sampler;
+
+	/**
+	 * Projector of the channels over the tube wall, or <code>null</code> to
+	 * sample them on the fitted contour only.
+	 */
+	private WallProjector projector;
+
+	/**
+	 * Profile sampled along the current ray, by the interpolating sampler.
+	 */
+	private double[] profile;
+
+	/**
+	 * Fitted radius along each ray, for the last Z-slice.
+	 */
+	final double[] radii;
+
+	/**
+	 * Fitted contour of the tube, for the last Z-slice.
+	 */
+	final double[] contourX;
+
+	final double[] contourY;
+
+	/**
+	 * Creates a fitter.
+	 *
+	 * @param geometry
+	 *            the precomputed crown and ray geometry.
+	 * @param crownSearch
+	 *            the algorithm used to search for the crown center.
+	 * @param searchWindow
+	 *            the window size in which to search for the tube center.
+	 * @param windowRay
+	 *            the search window for the local max of intensity along a ray.
+	 * @param r0
+	 *            the radius of the outer crown circle.
+	 * @param nx
+	 *            the width of the unwrapped image.
+	 * @param nc
+	 *            the number of channels to unwrap.
+	 * @param cx0
+	 *            the X position of the tube center on the first Z-slice.
+	 * @param cy0
+	 *            the Y position of the tube center on the first Z-slice.
+	 */
+	TubeFitter( final CrownGeometry geometry, final CrownSearch crownSearch, final int searchWindow, final int windowRay,
+			final double r0, final int nx, final int nc, final double cx0, final double cy0 )
+	{
+		this.geometry = geometry;
+		this.crownSearch = crownSearch;
+		this.searchWindow = searchWindow;
+		this.windowRay = windowRay;
+		this.r0 = r0;
+		this.nx = nx;
+		this.cx = ( int ) Math.floor( cx0 );
+		this.cy = ( int ) Math.floor( cy0 );
+		this.radiusIndices = new int[ geometry.nAngles ];
+		this.samples = new double[ nc ][ geometry.nAngles ];
+		this.samplingTasks = new ArrayList<>( nc );
+		for ( int c = 0; c < nc; c++ )
+		{
+			final int channel = c;
+			samplingTasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					sampleChannel( channel );
+					return null;
+				}
+			} );
+		}
+		this.radii = new double[ geometry.nAngles ];
+		this.contourX = new double[ geometry.nAngles ];
+		this.contourY = new double[ geometry.nAngles ];
+	}
+
+	/**
+	 * Fits the tube section on the next Z-slice and writes the unwrapped row.
+	 *
+	 * @param segmentation
+	 *            the Z-slice in the segmentation channel.
+	 * @param channels
+	 *            the Z-slice in all the channels to unwrap.
+	 * @param unwrapped
+	 *            the arrays of the unwrapped image, one per channel.
+	 * @param iy
+	 *            the row to write in the unwrapped image.
+	 * @return the crown score of the fitted center.
+	 */
+	double fit( final Plane segmentation, final Plane[] channels, final float[][] unwrapped, final int iy )
+	{
+		final double score = searchCenter( segmentation );
+		unwrap( segmentation, channels, unwrapped, iy );
+		return score;
+	}
+
+	/**
+	 * Moves the crown center to the best position on the next Z-slice, within
+	 * the search window around the current center.
+	 *
+	 * @param segmentation
+	 *            the Z-slice in the segmentation channel.
+	 * @return the crown score of the new center.
+	 */
+	double searchCenter( final Plane segmentation )
+	{
+		if ( null == predictor )
+		{
+			lastSearch = RunMetrics.CenterSearch.FULL;
+			final double score = crownSearch.search( segmentation, cx, cy, searchWindow, bestOffset );
+			cx += bestOffset[ 0 ];
+			cy += bestOffset[ 1 ];
+			return score;
+		}
+
+		if ( predictor.isReady() )
+		{
+			final int px = cx + predictor.predictDx();
+			final int py = cy + predictor.predictDy();
+			final double score = crownSearch.search( segmentation, px, py, predictor.window, bestOffset );
+			if ( predictor.accept( score, bestOffset ) )
+			{
+				lastSearch = RunMetrics.CenterSearch.PREDICTED;
+				cx = px + bestOffset[ 0 ];
+				cy = py + bestOffset[ 1 ];
+				predictor.update( cx, cy, score );
+				return score;
+			}
+			lastSearch = RunMetrics.CenterSearch.FALLBACK;
+		}
+		else
+		{
+			lastSearch = RunMetrics.CenterSearch.FULL;
+		}
+
+		final double score = crownSearch.search( segmentation, cx, cy, searchWindow, bestOffset );
+		cx += bestOffset[ 0 ];
+		cy += bestOffset[ 1 ];
+		predictor.update( cx, cy, score );
+		return score;
+	}
+
+	/**
+	 * Moves the crown center to the best position within the specified window
+	 * around the current center, without motion prediction. If the best
+	 * position lies on the border of this window, the center is searched
+	 * again over the full search window.
+	 *
+	 * @param segmentation
+	 *            the Z-slice in the segmentation channel.
+	 * @param window
+	 *            the half-size of the window, at least 1.
+	 * @return the crown score of the new center.
+	 */
+	double refineCenter( final Plane segmentation, final int window )
+	{
+		double score = crownSearch.search( segmentation, cx, cy, window, bestOffset );
+		if ( window < searchWindow && ( Math.abs( bestOffset[ 0 ] ) >= window || Math.abs( bestOffset[ 1 ] ) >= window ) )
+		{
+			lastSearch = RunMetrics.CenterSearch.FALLBACK;
+			score = crownSearch.search( segmentation, cx, cy, searchWindow, bestOffset );
+		}
+		else
+		{
+			lastSearch = RunMetrics.CenterSearch.REFINED;
+		}
+		cx += bestOffset[ 0 ];
+		cy += bestOffset[ 1 ];
+		return score;
+	}
+
+	/**
+	 * Enables the search of the center around its position predicted from the
+	 * previous Z-slices, within the specified window, falling back to the full
+	 * search window when the prediction fails.
+	 *
+	 * @param window
+	 *            the half-size of the search window around the predicted
+	 *            center, or 0 to always search the full window.
+	 */
+	void setPredictionWindow( final int window )
+	{
+		this.predictor = ( window <= 0 ) ? null : new MotionPredictor( window, searchWindow, cx, cy );
+	}
+
+	/**
+	 * Returns a motion predictor in the state the one of this fitter would be
+	 * in after tracking the first Z-slices of a fit from its initial circle,
+	 * or <code>null</code> if the center is not predicted.
+	 *
+	 * @param fit
+	 *            the fit, made with the same parameters as this fitter.
+	 * @param zEnd
+	 *            the Z-slice after the last one to replay.
+	 */
+	MotionPredictor replayPredictor( final TubeFit fit, final int zEnd )
+	{
+		if ( null == predictor )
+			return null;
+
+		final MotionPredictor replay = new MotionPredictor( predictor.window, searchWindow,
+				( int ) Math.round( fit.getInitialCenterX() - geometry.fx ), ( int ) Math.round( fit.getInitialCenterY() - geometry.fy ) );
+		for ( int z = 0; z < zEnd; z++ )
+			replay( replay, fit, z );
+		return replay;
+	}
+
+	/**
+	 * Adds the center and score of a Z-slice of a fit to a replayed motion
+	 * predictor.
+	 */
+	void replay( final MotionPredictor replay, final TubeFit fit, final int z )
+	{
+		replay.update( ( int ) Math.round( fit.getCenterX( z ) - geometry.fx ), ( int ) Math.round( fit.getCenterY( z ) - geometry.fy ),
+				fit.getScore( z ) );
+	}
+
+	/**
+	 * Returns <code>true</code> if the motion predictor of this fitter is in
+	 * the same state as the specified one, or if the center is not predicted.
+	 */
+	boolean samePrediction( final MotionPredictor other )
+	{
+		return null == predictor || predictor.sameState( other );
+	}
+
+	/**
+	 * Sets the executor on which the channels are sampled in parallel. If
+	 * <code>null</code>, they are sampled on the calling thread.
+	 *
+	 * @param executor
+	 *            the executor.
+	 */
+	void setChannelExecutor( final ExecutorService executor )
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the projector used to sample the channels over a band around the
+	 * fitted contour. If <code>null</code>, the channels are sampled on the
+	 * fitted contour only.
+	 *
+	 * @param projector
+	 *            the wall projector.
+	 */
+	void setWallProjector( final WallProjector projector )
+	{
+		this.projector = projector;
+	}
+
+	/**
+	 * Sets the sampler used to interpolate the rays of the radial scan, with
+	 * sub-pixel radii. If <code>null</code>, the nearest pixels are read at
+	 * whole-pixel radii.
+	 *
+	 * @param sampler
+	 *            the ray sampler.
+	 */
+	void setRaySampler( final RaySampler sampler )
+	{
+		this.sampler = sampler;
+		this.profile = ( null == sampler ) ? null : new double[ sampler.nRadii ];
+	}
+
+	/**
+	 * Fits the tube contour along the rays emerging from the current crown
+	 * center, samples all the channels on it, and writes the unwrapped row.
+	 *
+	 * @param segmentation
+	 *            the Z-slice in the segmentation channel.
+	 * @param channels
+	 *            the Z-slice in all the channels to unwrap.
+	 * @param unwrapped
+	 *            the arrays of the unwrapped image, one per channel.
+	 * @param iy
+	 *            the row to write in the unwrapped image.
+	 */
+	void unwrap( final Plane segmentation, final Plane[] channels, final float[][] unwrapped, final int iy )
+	{
+		scanRays( segmentation );
+		sampleChannels( channels );
+		writeRow( unwrapped, iy );
+	}
+
+	/**
+	 * Reads the max value along the rays emerging from the current crown
+	 * center, for all relevant theta, in the segmentation channel only.
+	 *
+	 * @param segmentation
+	 *            the Z-slice in the segmentation channel.
+	 */
+	void scanRays( final Plane segmentation )
+	{
+		if ( null != sampler )
+		{
+			scanInterpolatedRays( segmentation );
+			return;
+		}
+
+		final int width = segmentation.width;
+		final int height = segmentation.height;
+		final int nRadii = geometry.nRadii;
+
+		double rPrev = -1.;
+		final double centerX = getCenterX();
+		final double centerY = getCenterY();
+
+		for ( int iTheta = 0; iTheta < geometry.nAngles; iTheta++ )
+		{
+			double rMax = r0;
+			double intensityMax = Double.NEGATIVE_INFINITY;
+			int irMax = -1;
+
+			for ( int ir = 0; ir < nRadii; ir++ )
+			{
+				final double r = geometry.radii[ ir ];
+				final int xx = cx + geometry.rayDx[ iTheta * nRadii + ir ];
+				final int yy = cy + geometry.rayDy[ iTheta * nRadii + ir ];
+				if ( xx < 0 || yy < 0 || xx >= width || yy >= height )
+					continue;
+
+				/*
+				 * Weight value by its distance to the previous max found.
+				 */
+				double intensityR = segmentation.get( yy * width + xx );
+				if ( rPrev > 0 )
+				{
+					final double alpha = ( r - rPrev ) / windowRay;
+					intensityR = intensityR / ( 1 + alpha * alpha );
+				}
+
+				if ( intensityR > intensityMax )
+				{
+					intensityMax = intensityR;
+					rMax = r;
+					irMax = ir;
+				}
+			}
+			rPrev = rMax;
+
+			radiusIndices[ iTheta ] = irMax;
+			radii[ iTheta ] = rMax;
+			contourX[ iTheta ] = centerX + geometry.cos[ iTheta ] * rMax;
+			contourY[ iTheta ] = centerY + geometry.sin[ iTheta ] * rMax;
+		}
+	}
+
+	/**
+	 * Same as {@link #scanRays(Plane)}, with the rays sampled by the
+	 * interpolating sampler. The fitted radii are refined to sub-pixel
+	 * precision.
+	 */
+	private void scanInterpolatedRays( final Plane segmentation )
+	{
+		final int nRadii = sampler.nRadii;
+
+		double rPrev = -1.;
+		final double centerX = getCenterX();
+		final double centerY = getCenterY();
+
+		for ( int iTheta = 0; iTheta < geometry.nAngles; iTheta++ )
+		{
+			sampler.sample( segmentation, cx, cy, iTheta, profile );
+
+			double rMax = r0;
+			double intensityMax = Double.NEGATIVE_INFINITY;
+			int irMax = -1;
+
+			for ( int ir = 0; ir < nRadii; ir++ )
+			{
+				// Samples outside the image are NaN, and never the max.
+				double intensityR = profile[ ir ];
+				if ( rPrev > 0 )
+				{
+					final double alpha = ( sampler.radii[ ir ] - rPrev ) / windowRay;
+					intensityR = intensityR / ( 1 + alpha * alpha );
+				}
+
+				if ( intensityR > intensityMax )
+				{
+					intensityMax = intensityR;
+					rMax = sampler.radii[ ir ];
+					irMax = ir;
+				}
+			}
+			if ( irMax >= 0 )
+				rMax += sampler.refine( profile, irMax );
+			rPrev = rMax;
+
+			radiusIndices[ iTheta ] = irMax;
+			radii[ iTheta ] = rMax;
+			contourX[ iTheta ] = centerX + geometry.cos[ iTheta ] * rMax;
+			contourY[ iTheta ] = centerY + geometry.sin[ iTheta ] * rMax;
+		}
+	}
+
+	/**
+	 * Moves the crown to the specified position, from which the center is
+	 * searched on the next Z-slice. Used to restart the tracking from a
+	 * corrected position.
+	 *
+	 * @param crownX
+	 *            the integer part of the crown center.
+	 * @param crownY
+	 *            the integer part of the crown center.
+	 */
+	void moveTo( final int crownX, final int crownY )
+	{
+		cx = crownX;
+		cy = crownY;
+		if ( null != predictor )
+			predictor.reset( crownX, crownY );
+	}
+
+	/**
+	 * Restores the fit of the next Z-slice from a previous run, instead of
+	 * searching for the center and scanning the rays. The channels can then
+	 * be sampled on the restored contour.
+	 *
+	 * @param crownX
+	 *            the integer part of the crown center, as returned by
+	 *            {@link #getCrownX()}.
+	 * @param crownY
+	 *            the integer part of the crown center, as returned by
+	 *            {@link #getCrownY()}.
+	 * @param indices
+	 *            the array holding the index of the fitted radius along each
+	 *            ray, as in {@link #radiusIndices}.
+	 * @param offset
+	 *            the position of the first ray in the array.
+	 * @param segmentation
+	 *            the Z-slice in the segmentation channel, read to refine the
+	 *            radii to sub-pixel precision if the rays are interpolated.
+	 */
+	void restore( final int crownX, final int crownY, final short[] indices, final int offset, final Plane segmentation )
+	{
+		cx = crownX;
+		cy = crownY;
+		lastSearch = RunMetrics.CenterSearch.NONE;
+		final double centerX = getCenterX();
+		final double centerY = getCenterY();
+		for ( int iTheta = 0; iTheta < geometry.nAngles; iTheta++ )
+		{
+			final int ir = indices[ offset + iTheta ];
+			final double rMax;
+			if ( ir < 0 )
+				rMax = r0;
+			else if ( null == sampler )
+				rMax = geometry.radii[ ir ];
+			else
+				rMax = sampler.radii[ ir ] + sampler.refine( segmentation, cx, cy, iTheta, ir );
+			radiusIndices[ iTheta ] = ir;
+			radii[ iTheta ] = rMax;
+			contourX[ iTheta ] = centerX + geometry.cos[ iTheta ] * rMax;
+			contourY[ iTheta ] = centerY + geometry.sin[ iTheta ] * rMax;
+		}
+	}
+
+	/**
+	 * Samples all the channels on the contour fitted by
+	 * {@link #scanRays(Plane)}, in one batch.
+	 *
+	 * @param channels
+	 *            the Z-slice in all the channels to unwrap.
+	 */
+	void sampleChannels( final Plane[] channels )
+	{
+		this.channels = channels;
+		if ( null == executor || channels.length < 2 )
+		{
+			for ( int c = 0; c < channels.length; c++ )
+				sampleChannel( c );
+			return;
+		}
+
+		try
+		{
+			for ( final Future< Void > future : executor.invokeAll( samplingTasks ) )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException( "Interrupted while sampling the channels.", e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Samples one channel on the fitted contour.
+	 */
+	private void sampleChannel( final int c )
+	{
+		/*
+		 * deploy the value around the max rather than the single most
+		 * probable pixel
+		 */
+		final Plane channel = channels[ c ];
+		final double[] values = samples[ c ];
+		for ( int iTheta = 0; iTheta < geometry.nAngles; iTheta++ )
+		{
+			// Rays entirely outside the image have no max: they are written 0.
+			if ( radiusIndices[ iTheta ] < 0 )
+				values[ iTheta ] = 0.;
+			else if ( null == projector )
+				values[ iTheta ] = channel.getInterpolated( contourX[ iTheta ], contourY[ iTheta ] );
+			// Interpolated radii are not on the radial grid of the projector.
+			else
+				values[ iTheta ] = projector.project( channel, cx, cy, iTheta, ( null == sampler ) ? radiusIndices[ iTheta ] : -1,
+						contourX[ iTheta ], contourY[ iTheta ] );
+		}
+	}
+
+	/**
+	 * Writes the sampled values in the unwrapped row, projected on the initial
+	 * circle.
+	 *
+	 * @param unwrapped
+	 *            the arrays of the unwrapped image, one per channel.
+	 * @param iy
+	 *            the row to write in the unwrapped image.
+	 */
+	void writeRow( final float[][] unwrapped, final int iy )
+	{
+		for ( int c = 0; c < samples.length; c++ )
+		{
+			final double[] values = samples[ c ];
+			final float[] row = unwrapped[ c ];
+			for ( int iTheta = 0; iTheta < geometry.nAngles; iTheta++ )
+			{
+				final float value = ( float ) values[ iTheta ];
+				// No previous max: only the first column is written.
+				if ( iTheta == 0 || radii[ iTheta - 1 ] < 0 )
+				{
+					row[ iy * nx ] = value;
+					continue;
+				}
+
+				final int i0 = geometry.columns[ iTheta - 1 ];
+				final int i1 = geometry.columns[ iTheta ];
+				if ( i0 < nx && i1 <= nx )
+					for ( int ix = i0; ix < i1; ix++ )
+						row[ iy * nx + ix ] = value;
+			}
+		}
+	}
+
+	/**
+	 * Returns the X position of the integer part of the crown center.
+	 */
+	int getCrownX()
+	{
+		return cx;
+	}
+
+	/**
+	 * Returns the Y position of the integer part of the crown center.
+	 */
+	int getCrownY()
+	{
+		return cy;
+	}
+
+	/**
+	 * Returns the X position of the crown center fitted on the last Z-slice.
+	 */
+	double getCenterX()
+	{
+		return cx + geometry.fx;
+	}
+
+	/**
+	 * Returns the Y position of the crown center fitted on the last Z-slice.
+	 */
+	double getCenterY()
+	{
+		return cy + geometry.fy;
+	}
+}
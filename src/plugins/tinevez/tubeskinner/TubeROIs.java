@@ -0,0 +1,143 @@
+package plugins.tinevez.tubeskinner;
+
+import icy.roi.BooleanMask2D;
+import plugins.kernel.roi.roi3d.ROI3DArea;
+
+/**
+ * Materializes the 3D ROIs of a {@link TubeFit}.
+ * <p>
+ * The ROIs store one boolean mask per Z-slice, which is much bigger and slower
+ * to build than the fit itself. They are only created when they are needed,
+ * for display or for a downstream Icy plugin.
+ */
+class TubeROIs
+{
+
+	/**
+	 * Returns the skin ROI of the specified fit: the fitted tube contour on
+	 * each fitted Z-slice.
+	 *
+	 * @param fit
+	 *            the tube fit.
+	 * @param name
+	 *            the ROI name.
+	 * @param timepoint
+	 *            the time-point of the ROI.
+	 * @return a new ROI.
+	 */
+	static ROI3DArea skin( final TubeFit fit, final String name, final int timepoint )
+	{
+		final ROI3DArea skin = new ROI3DArea();
+		skin.setName( name );
+		skin.setT( timepoint );
+
+		addSkinSlices( skin, fit, 0, fit.getFittedSlices() );
+		return skin;
+	}
+
+	/**
+	 * Replaces the slices of a skin ROI in a range of Z-slices, after they
+	 * have been re-fitted.
+	 *
+	 * @param skin
+	 *            the skin ROI of the fit.
+	 * @param fit
+	 *            the tube fit.
+	 * @param zStart
+	 *            the first Z-slice to replace.
+	 * @param zEnd
+	 *            the Z-slice after the last one to replace.
+	 */
+	static void patchSkin( final ROI3DArea skin, final TubeFit fit, final int zStart, final int zEnd )
+	{
+		skin.beginUpdate();
+		try
+		{
+			for ( int z = zStart; z < zEnd; z++ )
+				skin.removeSlice( z );
+			addSkinSlices( skin, fit, zStart, zEnd );
+		}
+		finally
+		{
+			skin.endUpdate();
+		}
+	}
+
+	private static void addSkinSlices( final ROI3DArea skin, final TubeFit fit, final int zStart, final int zEnd )
+	{
+		final int nAngles = fit.getNAngles();
+		final double[] contourX = new double[ nAngles ];
+		final double[] contourY = new double[ nAngles ];
+		for ( int z = zStart; z < zEnd; z++ )
+		{
+			for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+			{
+				contourX[ iTheta ] = fit.getContourX( z, iTheta );
+				contourY[ iTheta ] = fit.getContourY( z, iTheta );
+			}
+			skin.add( z, MaskRasterizer.polyline( contourX, contourY, nAngles ) );
+		}
+	}
+
+	/**
+	 * Returns the rough tube ROI of the specified fit: the crown outer circle
+	 * on each fitted Z-slice.
+	 *
+	 * @param fit
+	 *            the tube fit.
+	 * @param name
+	 *            the ROI name.
+	 * @param timepoint
+	 *            the time-point of the ROI.
+	 * @return a new ROI.
+	 */
+	static ROI3DArea tube( final TubeFit fit, final String name, final int timepoint )
+	{
+		final ROI3DArea tube = new ROI3DArea();
+		tube.setName( name );
+		tube.setT( timepoint );
+
+		addTubeSlices( tube, fit, 0, fit.getFittedSlices() );
+		return tube;
+	}
+
+	/**
+	 * Replaces the slices of a rough tube ROI in a range of Z-slices, after
+	 * they have been re-fitted.
+	 *
+	 * @param tube
+	 *            the rough tube ROI of the fit.
+	 * @param fit
+	 *            the tube fit.
+	 * @param zStart
+	 *            the first Z-slice to replace.
+	 * @param zEnd
+	 *            the Z-slice after the last one to replace.
+	 */
+	static void patchTube( final ROI3DArea tube, final TubeFit fit, final int zStart, final int zEnd )
+	{
+		tube.beginUpdate();
+		try
+		{
+			for ( int z = zStart; z < zEnd; z++ )
+				tube.removeSlice( z );
+			addTubeSlices( tube, fit, zStart, zEnd );
+		}
+		finally
+		{
+			tube.endUpdate();
+		}
+	}
+
+	private static void addTubeSlices( final ROI3DArea tube, final TubeFit fit, final int zStart, final int zEnd )
+	{
+		for ( int z = zStart; z < zEnd; z++ )
+		{
+			final BooleanMask2D disc = MaskRasterizer.disc( fit.getCenterX( z ), fit.getCenterY( z ), fit.getCrownRadius() );
+			tube.add( z, disc );
+		}
+	}
+
+	private TubeROIs()
+	{}
+}
@@ -1,8 +1,21 @@
 package plugins.tinevez.tubeskinner;
 
 import java.awt.Color;
-import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.SwingUtilities;
 
@@ -10,9 +23,7 @@ import icy.gui.viewer.Viewer;
 import icy.image.IcyBufferedImage;
 import icy.sequence.Sequence;
 import icy.type.DataType;
-import icy.type.collection.array.Array1DUtil;
 import plugins.kernel.roi.roi2d.ROI2DEllipse;
-import plugins.kernel.roi.roi2d.ROI2DPolyLine;
 import plugins.kernel.roi.roi3d.ROI3DArea;
 
 public class TubeSkinner
@@ -25,9 +36,10 @@ public class TubeSkinner
 	private final Sequence sequence;
 
 	/**
-	 * The user provided ellipse contour of the tube on the first Z-slice.
+	 * The user provided ellipse contours of the tubes on the first Z-slice,
+	 * one per tube.
 	 */
-	private final ROI2DEllipse ellipse;
+	private final List< ROI2DEllipse > ellipses;
 
 	/** Size of the crown to localize tube center. */
 	private final double thickness;
@@ -40,11 +52,6 @@ public class TubeSkinner
 	 */
 	private final int segmentationChannel;
 
-	/**
-	 * Search window for the local max of intensity along a radius.
-	 */
-	private final int windowRay = 15;
-
 	/**
 	 * Whether we should process all time-points or just the current time-point.
 	 */
@@ -57,27 +64,148 @@ public class TubeSkinner
 	private final int thetaRange;
 
 	/**
-	 * How many angles are probed when for each section.
+	 * How many time-points can be processed concurrently when all time-points
+	 * are processed, or how many tubes are fitted concurrently on each
+	 * Z-slice otherwise.
+	 */
+	private int numThreads = 1;
+
+	/**
+	 * The algorithm used to search for the tube center on each Z-slice.
+	 */
+	private CrownSearchMethod crownSearchMethod = CrownSearchMethod.BRUTE_FORCE;
+
+	/**
+	 * Number of downsampled levels for the coarse-to-fine center search.
+	 */
+	private int pyramidLevels = 0;
+
+	/**
+	 * Half-size of the search window around the predicted tube center, 0 to
+	 * disable the prediction.
+	 */
+	private int predictionWindow = 0;
+
+	/**
+	 * Whether each time-point starts from the fit of the previous one.
+	 */
+	private boolean warmStart = false;
+
+	/**
+	 * Angle (in degrees) between the rays probed on each Z-slice.
+	 */
+	private double sampleAngle = TubeSkinnerEngine.SAMPLE_ANGLE;
+
+	/**
+	 * How the number of rays probed on each Z-slice is chosen.
+	 */
+	private AngularSampling angularSampling = AngularSampling.FIXED_ANGLE;
+
+	/**
+	 * How the channels are sampled on the tube wall for the unwrapped image.
+	 */
+	private WallProjection wallProjection = WallProjection.CONTOUR;
+
+	/**
+	 * Half-width (in pixels) of the band over which the wall is projected.
+	 */
+	private int projectionBand = 3;
+
+	/**
+	 * How the rays are sampled to fit the tube radius.
+	 */
+	private RadialSampling radialSampling = RadialSampling.NEAREST;
+
+	/**
+	 * Step (in pixels) between the samples along each interpolated ray.
+	 */
+	private double radialStep = 1.;
+
+	/**
+	 * Number of Z-slices read ahead of the fit.
+	 */
+	private int pipelineDepth = 0;
+
+	/**
+	 * Number of threads sampling the channels of each Z-slice.
+	 */
+	private int channelThreads = 1;
+
+	/**
+	 * Directory of the cache of fitted geometry. No cache if
+	 * <code>null</code>.
+	 */
+	private File cacheDirectory = null;
+
+	/**
+	 * File the unwrapped images are written to. Kept in memory if
+	 * <code>null</code>.
+	 */
+	private File unwrapFile = null;
+
+	/**
+	 * The unwrapped image files, one per tube, open during the run.
+	 */
+	private volatile MappedUnwrapFile[] mappedFiles;
+
+	/**
+	 * Listener notified of the metrics of each Z-slice.
+	 */
+	private RunMetrics.Listener metricsListener = null;
+
+	private volatile boolean canceled = false;
+
+	/**
+	 * Number of Z-slices processed in the current run, over all the
+	 * time-points.
+	 */
+	private final AtomicInteger processedSlices = new AtomicInteger( 0 );
+
+	/**
+	 * Number of Z-slices to process in the current run, over all the
+	 * time-points.
+	 */
+	private volatile int totalSlices = 0;
+
+	/**
+	 * The task running this instance, if it was submitted.
+	 */
+	private TubeSkinnerTask task;
+
+	/**
+	 * The engine running the tube fit. Will only be instantiated at the run.
 	 */
-	private int nAngles;
+	private volatile TubeSkinnerEngine engine;
 
 	/**
-	 * Angle between each probed ray. if ==1 then nAngles = thetaRange.
+	 * Whether the 3D ROIs are created and added to the sequence at the end of
+	 * each time-point.
 	 */
-	private final double sampleAngle = 1.;
+	private boolean createROIs = true;
 
-	private boolean canceled = false;
+	/**
+	 * The tube fits of each tube, one per processed time-point. Will be
+	 * instantiated only after the run.
+	 */
+	private TubeFit[][] fits;
 
 	/**
-	 * ROIs associated with the aorta contour Will be instantiated only after
-	 * the run
+	 * ROIs associated with the aorta contour of each tube. Will be
+	 * instantiated only after the run, or on demand if the ROIs are not
+	 * created during the run.
 	 */
-	private ROI3DArea[] skins;
+	private ROI3DArea[][] skins;
 
 	/**
-	 * Unwrapped image will only be instantiated after the run
+	 * Rough tube ROIs of each tube, only instantiated if the ROIs are created
+	 * during the run.
 	 */
-	private Sequence outWrap;
+	private ROI3DArea[][] tubes;
+
+	/**
+	 * Unwrapped image of each tube will only be instantiated after the run
+	 */
+	private Sequence[] outWraps;
 
 	/**
 	 * Specify if the class in called by a protocol
@@ -126,8 +254,55 @@ public class TubeSkinner
 			final double thickness, final int window, final boolean processAllTimePoints, final double thetaStart,
 			final int thetaRange, final boolean isHeadless )
 	{
+		this( sequence, Collections.singletonList( ellipse ), segmentationChannel, thickness, window, processAllTimePoints,
+				thetaStart, thetaRange, isHeadless );
+	}
+
+	/**
+	 * Instantiates a TubeSkinner that processes several tubes at once, in a
+	 * single pass over the Z-slices of each time-point. Each Z-slice is read
+	 * once, and all the tubes are fitted on it, concurrently on the specified
+	 * number of threads (see {@link #setNumThreads(int)}). Each tube gets its
+	 * own unwrapped sequence and skin ROIs.
+	 * <p>
+	 * With several tubes, the time-points are always tracked from the initial
+	 * ellipses, and the fit cache is not used.
+	 *
+	 * @param sequence
+	 *            the input sequence to operate on.
+	 * @param ellipses
+	 *            the circles to initiate the fit of each tube, adjusted on
+	 *            the first z-slice. See
+	 *            {@link #TubeSkinner(Sequence, ROI2DEllipse, int, double, int, boolean, double, int, boolean)}.
+	 * @param segmentationChannel
+	 *            the channel to operate on.
+	 * @param thickness
+	 *            the thickness (in pixels) of the crown in which to search for
+	 *            the tube membrane.
+	 * @param window
+	 *            the window size (in pixels) in which to search for the tube
+	 *            center.
+	 * @param processAllTimePoints
+	 *            if <code>true</code>, all time-points in the input sequence
+	 *            will be processed.
+	 * @param thetaStart
+	 *            what angle (in degrees) should correspond to x=0 in the
+	 *            unwrapped images.
+	 * @param thetaRange
+	 *            what angular arc (in degrees) should be evaluated to fit the
+	 *            tubes.
+	 * @param isHeadless
+	 *            is the TubeSkinner object created in a protocol
+	 */
+	public TubeSkinner( final Sequence sequence, final List< ROI2DEllipse > ellipses, final int segmentationChannel,
+			final double thickness, final int window, final boolean processAllTimePoints, final double thetaStart,
+			final int thetaRange, final boolean isHeadless )
+	{
+		if ( ellipses.isEmpty() )
+			throw new IllegalArgumentException( "At least one ellipse is needed." );
+
 		this.sequence = sequence;
-		this.ellipse = ellipse;
+		this.ellipses = new ArrayList<>( ellipses );
 		this.segmentationChannel = segmentationChannel;
 		this.thickness = thickness;
 		this.searchWindow = window;
@@ -148,12 +323,108 @@ public class TubeSkinner
 	public void run()
 	{
 		canceled = false;
+		execute();
+	}
+
+	/**
+	 * Starts the tube-skinner process on a new thread, and returns the handle
+	 * of the running task. See {@link #submit(ExecutorService)}.
+	 *
+	 * @return the task.
+	 */
+	public TubeSkinnerTask start()
+	{
+		final TubeSkinnerTask t = createTask();
+		final Thread thread = new Thread( t, "TubeSkinner " + sequence.getName() );
+		thread.setDaemon( true );
+		thread.start();
+		return t;
+	}
+
+	/**
+	 * Submits the tube-skinner process to the specified executor, and returns
+	 * the handle of the task. The task can be canceled promptly and
+	 * safely from any thread, reports its progress, and gives back the
+	 * time-points and Z-slices completed before a cancel.
+	 * <p>
+	 * An instance runs one task at a time. Several instances, even on the
+	 * same sequence, can run concurrently: they do not share any mutable
+	 * state.
+	 *
+	 * @param executor
+	 *            the executor to run the task on.
+	 * @return the task.
+	 * @throws IllegalStateException
+	 *             if a task of this instance is still running.
+	 */
+	public TubeSkinnerTask submit( final ExecutorService executor )
+	{
+		final TubeSkinnerTask t = createTask();
+		executor.execute( t );
+		return t;
+	}
+
+	private synchronized TubeSkinnerTask createTask()
+	{
+		if ( null != task && !task.isFinished() )
+			throw new IllegalStateException( "TubeSkinner is already running on " + sequence.getName() + "." );
+
+		// Reset before the task is returned, so that it can be canceled.
+		canceled = false;
+		task = new TubeSkinnerTask( this );
+		return task;
+	}
+
+	/**
+	 * Executes the tube-skinner process, without resetting a cancel requested
+	 * before.
+	 */
+	void execute()
+	{
+		final TubeSkinnerEngine newEngine = createEngine();
+		engine = newEngine;
+		// In case the cancel came before the engine.
+		if ( canceled )
+			newEngine.cancel();
 		final int nt = processAllTimePoints ? sequence.getSizeT() : 1;
+		processedSlices.set( 0 );
+		totalSlices = nt * sequence.getSizeZ();
 
-		outWrap = new Sequence( "Unwrapped " + sequence.getName() );
-		outWrap.setPixelSizeY( sequence.getPixelSizeZ() );
-		outWrap.setPixelSizeX( sequence.getPixelSizeZ() );
-		outWrap.setTimeInterval( sequence.getTimeInterval() );
+		final int nTubes = ellipses.size();
+		if ( null != unwrapFile )
+		{
+			// The unwrapped images go to the files only.
+			outWraps = null;
+			final MappedUnwrapFile[] files = new MappedUnwrapFile[ nTubes ];
+			try
+			{
+				for ( int tube = 0; tube < nTubes; tube++ )
+					files[ tube ] = MappedUnwrapFile.create( getUnwrapFile( tube ), getUnwrapWidth( tube ), sequence.getSizeZ(),
+							sequence.getSizeC(), nt );
+				mappedFiles = files;
+				processTimePoints( nt );
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+			finally
+			{
+				mappedFiles = null;
+				close( files );
+			}
+			return;
+		}
+
+		outWraps = new Sequence[ nTubes ];
+		for ( int tube = 0; tube < nTubes; tube++ )
+		{
+			final Sequence outWrap = new Sequence( "Unwrapped " + sequence.getName() + ( ( nTubes > 1 ) ? " tube " + tube : "" ) );
+			outWrap.setPixelSizeY( sequence.getPixelSizeZ() );
+			outWrap.setPixelSizeX( sequence.getPixelSizeZ() );
+			outWrap.setTimeInterval( sequence.getTimeInterval() );
+			outWraps[ tube ] = outWrap;
+		}
 
 		if ( !isHeadless )
 		{
@@ -165,7 +436,8 @@ public class TubeSkinner
 					@Override
 					public void run()
 					{
-						new Viewer( outWrap );
+						for ( final Sequence outWrap : outWraps )
+							new Viewer( outWrap );
 					}
 				} );
 			}
@@ -179,292 +451,712 @@ public class TubeSkinner
 			}
 		}
 
+		processTimePoints( nt );
+	}
+
+	/**
+	 * Closes the specified unwrapped image files, ignoring the ones that were
+	 * not created.
+	 */
+	private static void close( final MappedUnwrapFile[] files )
+	{
+		IOException error = null;
+		for ( final MappedUnwrapFile file : files )
+		{
+			if ( null == file )
+				continue;
+			try
+			{
+				file.close();
+			}
+			catch ( final IOException e )
+			{
+				error = e;
+			}
+		}
+		if ( null != error )
+			throw new UncheckedIOException( error );
+	}
+
+	private void processTimePoints( final int nt )
+	{
+		final int nTubes = ellipses.size();
+		fits = new TubeFit[ nTubes ][ nt ];
+		skins = new ROI3DArea[ nTubes ][];
+		tubes = new ROI3DArea[ nTubes ][];
+		if ( createROIs )
+		{
+			for ( int tube = 0; tube < nTubes; tube++ )
+			{
+				skins[ tube ] = new ROI3DArea[ nt ];
+				tubes[ tube ] = new ROI3DArea[ nt ];
+			}
+		}
 		if ( processAllTimePoints )
 		{
-			skins = new ROI3DArea[ nt ];
-			for ( int timepoint = 0; timepoint < nt; timepoint++ )
+			// With a warm start, time-points depend on each other.
+			if ( numThreads > 1 && nt > 1 && !isWarmStart() )
 			{
-				final ROI3DArea skin = new ROI3DArea();
-				skin.setName( "Skin_t=" + timepoint );
-				skin.setT( timepoint );
-
-//				if ( canceled )
-//					return outWrap;
-				processTimePoint( timepoint, outWrap, skin );
-				skins[ timepoint ] = skin;
+				processTimePointsInParallel( nt );
+			}
+			else
+			{
+				for ( int timepoint = 0; timepoint < nt; timepoint++ )
+				{
+					if ( canceled )
+					{
+						trim( timepoint );
+						return;
+					}
+
+					final IcyBufferedImage[] unWrapImages = createUnwrapImages();
+					addUnwrapImages( timepoint, unWrapImages );
+
+					final TubeFit previous = ( isWarmStart() && timepoint > 0 ) ? fits[ 0 ][ timepoint - 1 ] : null;
+					final TubeFit[] tubeFits = processTimePoint( timepoint, timepoint, unWrapImages, previous, numThreads );
+					commit( timepoint, timepoint, tubeFits );
+					if ( !isComplete( tubeFits ) )
+					{
+						// Canceled. Keep the Z-slices fitted so far.
+						trim( timepoint + 1 );
+						return;
+					}
+				}
 			}
 		}
 		else
 		{
-			skins = new ROI3DArea[ 1 ];
+			final IcyBufferedImage[] unWrapImages = createUnwrapImages();
+			addUnwrapImages( 0, unWrapImages );
 
-			final ROI3DArea skin = new ROI3DArea();
-			skin.setName( "Skin" );
-			skin.setT( targetTimePoint );
+			final TubeFit[] tubeFits = processTimePoint( targetTimePoint, 0, unWrapImages, null, numThreads );
+			commit( 0, targetTimePoint, tubeFits );
+		}
+
+	}
+
+	/**
+	 * Unwraps all the time-points concurrently on a bounded pool of
+	 * {@link #numThreads} workers. Each time-point reads its own Z-stack and
+	 * writes to its own unwrapped image and fit, so they do not share any
+	 * mutable state. The unwrapped images and the ROIs are added to the output
+	 * in time-point order, as they complete. After a cancel, the output stops
+	 * at the first time-point that was not completed, with the Z-slices it
+	 * fitted, as in the serial loop: the time-points that had not started are
+	 * discarded.
+	 *
+	 * @param nt
+	 *            the number of time-points to process.
+	 */
+	private void processTimePointsInParallel( final int nt )
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( Math.min( numThreads, nt ) );
+		int nCompleted = 0;
+		boolean interrupted = false;
+		try
+		{
+			final IcyBufferedImage[][] unWrapImages = new IcyBufferedImage[ nt ][];
+			final List< Future< TubeFit[] > > futures = new ArrayList<>( nt );
+			for ( int t = 0; t < nt; t++ )
+			{
+				final int timepoint = t;
+				futures.add( executor.submit( new Callable< TubeFit[] >()
+				{
+					@Override
+					public TubeFit[] call()
+					{
+						// Not started before the cancel.
+						if ( canceled )
+							return null;
 
-			processTimePoint( targetTimePoint, outWrap, skin );
+						unWrapImages[ timepoint ] = createUnwrapImages();
+						// The time-points already run in parallel.
+						return processTimePoint( timepoint, timepoint, unWrapImages[ timepoint ], null, 1 );
+					}
+				} ) );
+			}
 
-			skins[ 0 ] = skin;
+			for ( int timepoint = 0; timepoint < nt; timepoint++ )
+			{
+				TubeFit[] tubeFits;
+				while ( true )
+				{
+					try
+					{
+						tubeFits = futures.get( timepoint ).get();
+						break;
+					}
+					catch ( final InterruptedException e )
+					{
+						// Stop the workers, and wait for the Z-slices they
+						// fitted before.
+						cancel();
+						interrupted = true;
+					}
+				}
+				if ( null == tubeFits )
+					break;
+
+				addUnwrapImages( timepoint, unWrapImages[ timepoint ] );
+				commit( timepoint, timepoint, tubeFits );
+				nCompleted++;
+				if ( !isComplete( tubeFits ) )
+					break; // Canceled.
+			}
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
 		}
+		finally
+		{
+			// No worker may write to the output after the run.
+			executor.shutdownNow();
+			try
+			{
+				executor.awaitTermination( 1, TimeUnit.MINUTES );
+			}
+			catch ( final InterruptedException e )
+			{
+				interrupted = true;
+			}
+			if ( nCompleted < nt )
+				trim( nCompleted );
+			if ( interrupted )
+				Thread.currentThread().interrupt();
+		}
+	}
 
+	/**
+	 * Stores the fits of the tubes on a completed time-point, and creates and
+	 * adds their ROIs if they are created during the run.
+	 */
+	private void commit( final int index, final int timepoint, final TubeFit[] tubeFits )
+	{
+		for ( int t = 0; t < tubeFits.length; t++ )
+		{
+			final TubeFit fit = tubeFits[ t ];
+			fits[ t ][ index ] = fit;
+			if ( !createROIs )
+				continue;
+
+			final long start = System.nanoTime();
+			final ROI3DArea skin = TubeROIs.skin( fit, skinName( t, timepoint ), timepoint );
+			final ROI3DArea tube = TubeROIs.tube( fit, roiName( "RoughTube", t ) + "_t=" + timepoint, timepoint );
+			fit.getMetrics().addRoiNanos( System.nanoTime() - start );
+			skins[ t ][ index ] = skin;
+			tubes[ t ][ index ] = tube;
+			addROIs( skin, tube );
+		}
 	}
 
-	public ROI3DArea[] getSkinROIs()
+	/**
+	 * Returns <code>true</code> if the fits of all the tubes are complete.
+	 */
+	private static boolean isComplete( final TubeFit[] tubeFits )
 	{
-		return skins;
+		for ( final TubeFit fit : tubeFits )
+			if ( !fit.isComplete() )
+				return false;
+		return true;
 	}
 
-	public Sequence getOutWrap()
+	/**
+	 * Discards the results past the specified number of time-points, after a
+	 * cancel.
+	 */
+	private void trim( final int nCompleted )
 	{
-		return outWrap;
+		for ( int tube = 0; tube < fits.length; tube++ )
+		{
+			fits[ tube ] = Arrays.copyOf( fits[ tube ], nCompleted );
+			if ( null != skins[ tube ] )
+				skins[ tube ] = Arrays.copyOf( skins[ tube ], nCompleted );
+			if ( null != tubes[ tube ] )
+				tubes[ tube ] = Arrays.copyOf( tubes[ tube ], nCompleted );
+		}
 	}
 
-	private void processTimePoint( final int timepoint, final Sequence outWrap, final ROI3DArea skin )
+	private TubeSkinnerEngine createEngine()
 	{
-		final double pixelSize = 1.;
+		final TubeSkinnerEngine e = new TubeSkinnerEngine( segmentationChannel, thickness, searchWindow, thetaStart, thetaRange );
+		e.setCrownSearchMethod( crownSearchMethod );
+		e.setPyramidLevels( pyramidLevels );
+		e.setPredictionWindow( predictionWindow );
+		e.setSampleAngle( sampleAngle );
+		e.setAngularSampling( angularSampling );
+		e.setWallProjection( wallProjection );
+		e.setProjectionBand( projectionBand );
+		e.setRadialSampling( radialSampling );
+		e.setRadialStep( radialStep );
+		e.setPipelineDepth( pipelineDepth );
+		e.setChannelThreads( channelThreads );
+		e.setMetricsListener( metricsListener );
+		return e;
+	}
 
-		final int nx = ( int ) ( ( thetaRange * 2 * Math.PI / 360 ) * ( ellipse.getBounds2D().getWidth() / 2 ) / pixelSize );
-		final int nz = ( int ) ( sequence.getSizeZ() / pixelSize );
-		final int nc = sequence.getSizeC();
+	private String skinName( final int tube, final int timepoint )
+	{
+		final String name = roiName( "Skin", tube );
+		return processAllTimePoints ? name + "_t=" + timepoint : name;
+	}
 
-		// Create an empty image
-		final IcyBufferedImage unWrapImage = new IcyBufferedImage( nx, nz, nc, DataType.FLOAT );
-		outWrap.addImage( processAllTimePoints ? timepoint : 0, unWrapImage );
+	/**
+	 * Returns the name of a ROI of the specified tube, numbered only if
+	 * there are several tubes.
+	 */
+	private String roiName( final String prefix, final int tube )
+	{
+		return ( ellipses.size() > 1 ) ? prefix + "_tube=" + tube : prefix;
+	}
 
-		final int width = sequence.getWidth();
-		final int height = sequence.getHeight();
+	/**
+	 * Returns <code>true</code> if each time-point starts from the fit of the
+	 * previous one, which is only done with a single tube.
+	 */
+	private boolean isWarmStart()
+	{
+		return warmStart && ellipses.size() == 1;
+	}
 
-		// Adapt the number of rays to the desired thetaRange
-		this.nAngles = ( int ) ( thetaRange / sampleAngle );
+	/**
+	 * Creates the images to unwrap the tubes of a time-point in, one per
+	 * tube, or returns <code>null</code> if the unwrapped images are written
+	 * to files.
+	 */
+	private IcyBufferedImage[] createUnwrapImages()
+	{
+		if ( null != mappedFiles )
+			return null;
 
-		unWrapImage.beginUpdate();
+		final double pixelSize = 1.;
+		final int nz = ( int ) ( sequence.getSizeZ() / pixelSize );
+		final int nc = sequence.getSizeC();
+		final IcyBufferedImage[] images = new IcyBufferedImage[ ellipses.size() ];
+		for ( int tube = 0; tube < images.length; tube++ )
+			images[ tube ] = new IcyBufferedImage( getUnwrapWidth( tube ), nz, nc, DataType.FLOAT );
+		return images;
+	}
 
-		final ROI3DArea tube = new ROI3DArea();
-		tube.setName( "RoughTube_t=" + timepoint );
-		tube.setT( timepoint );
+	private void addUnwrapImages( final int index, final IcyBufferedImage[] unWrapImages )
+	{
+		if ( null == unWrapImages )
+			return;
 
-		// Outer crown circle.
-		final ROI2DEllipse roiOut = ellipse;
+		for ( int tube = 0; tube < unWrapImages.length; tube++ )
+			outWraps[ tube ].addImage( index, unWrapImages[ tube ] );
+	}
 
-		// Inner crown circle.
-		final ROI2DEllipse roiIn = new ROI2DEllipse(
-				roiOut.getBounds2D().getMinX() + thickness,
-				roiOut.getBounds2D().getMinY() + thickness,
-				roiOut.getBounds2D().getMaxX() - thickness,
-				roiOut.getBounds2D().getMaxY() - thickness );
+	private int getUnwrapWidth( final int tube )
+	{
+		return engine.getUnwrapWidth( ellipses.get( tube ).getBounds2D().getWidth() / 2 );
+	}
 
-		ROI2DEllipse innerPrevious = roiIn;
-		ROI2DEllipse outerPrevious = roiOut;
+	/**
+	 * Returns the file the unwrapped images of the specified tube are written
+	 * to. The first tube is written to the unwrapped image file, the next ones
+	 * next to it, with the tube index appended to the file name.
+	 */
+	File getUnwrapFile( final int tube )
+	{
+		if ( tube == 0 )
+			return unwrapFile;
+
+		final String name = unwrapFile.getName();
+		final int dot = name.lastIndexOf( '.' );
+		final String tubeName = ( dot > 0 )
+				? name.substring( 0, dot ) + "_tube" + tube + name.substring( dot )
+				: name + "_tube" + tube;
+		return new File( unwrapFile.getAbsoluteFile().getParentFile(), tubeName );
+	}
 
-		// define starting point of the tube angle
-		final double theta0Rad = 2 * Math.PI * ( thetaStart / 360. );
-		final double thetaRangeRad = 2 * Math.PI * ( thetaRange / 360. );
+	private void addROIs( final ROI3DArea skin, final ROI3DArea tube )
+	{
+		skin.setColor( Color.CYAN );
+		tube.setColor( Color.ORANGE );
 
-		for ( int z = 0; z < sequence.getSizeZ(); z++ )
+		if ( !isHeadless )
 		{
-			if ( canceled )
-				return;
-
-			final int iy = ( int ) ( z / pixelSize );
+			sequence.addROI( skin );
+			sequence.addROI( tube );
+		}
+	}
 
-			// Current crown from previous Z-slice.
-			final ROI2DEllipse inner = ( ROI2DEllipse ) innerPrevious.getCopy();
-			final ROI2DEllipse outer = ( ROI2DEllipse ) outerPrevious.getCopy();
+	/**
+	 * Returns the skin ROIs of the first tube, one per processed time-point.
+	 * See {@link #getSkinROIs(int)}.
+	 */
+	public ROI3DArea[] getSkinROIs()
+	{
+		return getSkinROIs( 0 );
+	}
 
-			// Get pixel data as double (copy current slice).
-			final IcyBufferedImage image = sequence.getImage( timepoint, z );
-			final Object dataXY = image.getDataXY( segmentationChannel );
-			final double[] data = Array1DUtil.arrayToDoubleArray( dataXY, image.isSignedDataType() );
+	/**
+	 * Returns the skin ROIs of the specified tube, one per processed
+	 * time-point. If the ROIs were not created during the run, they are
+	 * created on the first call, but not added to the sequence.
+	 *
+	 * @param tube
+	 *            the index of the tube, in the order of the initial ellipses.
+	 * @return the skin ROIs, or <code>null</code> before the run.
+	 */
+	public ROI3DArea[] getSkinROIs( final int tube )
+	{
+		if ( null == fits )
+			return null;
 
-			double currentMax = Integer.MIN_VALUE;
-			Point2D bestOffset = null;
-			for ( int xOffset = -searchWindow; xOffset <= searchWindow; xOffset++ )
+		if ( null == skins[ tube ] )
+		{
+			final TubeFit[] tubeFits = fits[ tube ];
+			final ROI3DArea[] rois = new ROI3DArea[ tubeFits.length ];
+			for ( int i = 0; i < tubeFits.length; i++ )
 			{
-				for ( int yOffset = -searchWindow; yOffset <= searchWindow; yOffset++ )
-				{
-					double val = 0.;
-					final Point2D center = new Point2D.Double( outer.getBounds2D().getCenterX(), outer.getBounds().getCenterY() );
-					final double rayOuter = outer.getBounds2D().getWidth() / 2;
-					final double rayInner = inner.getBounds2D().getWidth() / 2;
-
-					double s = 0.;
-					int n = 0;
-					for ( float angle = ( float ) theta0Rad; angle < thetaRangeRad + theta0Rad; angle += 0.1 )
-					{
-						final int xx = ( int ) ( xOffset + center.getX() + Math.cos( angle ) * rayOuter );
-						final int yy = ( int ) ( yOffset + center.getY() + Math.sin( angle ) * rayOuter );
-						if ( xx < 0 || yy < 0 || xx >= width || yy >= height )
-							continue;
-						s += data[ yy * image.getWidth() + xx ];
-						n++;
-					}
-					val = s / n;
-
-					s = 0.;
-					n = 0;
-					for ( float angle = ( float ) theta0Rad; angle < thetaRangeRad + theta0Rad; angle += 0.1 )
-					{
-						final int xx = ( int ) ( xOffset + center.getX() + Math.cos( angle ) * rayInner );
-						final int yy = ( int ) ( yOffset + center.getY() + Math.sin( angle ) * rayInner );
-						if ( xx < 0 || yy < 0 || xx >= width || yy >= height )
-							continue;
-						s -= data[ yy * image.getWidth() + xx ];
-						n++;
-					}
-					val += s / n;
-
-					if ( val > currentMax )
-					{
-						currentMax = val;
-						bestOffset = new Point2D.Double( xOffset, yOffset );
-					}
-
-				}
+				final int timepoint = processAllTimePoints ? i : targetTimePoint;
+				final long start = System.nanoTime();
+				rois[ i ] = TubeROIs.skin( tubeFits[ i ], skinName( tube, timepoint ), timepoint );
+				tubeFits[ i ].getMetrics().addRoiNanos( System.nanoTime() - start );
+				rois[ i ].setColor( Color.CYAN );
 			}
+			skins[ tube ] = rois;
+		}
+		return skins[ tube ];
+	}
 
-			// shift roi.
-			inner.translate( bestOffset.getX(), bestOffset.getY() );
-			outer.translate( bestOffset.getX(), bestOffset.getY() );
+	/**
+	 * Returns the tube fits of the first tube, one per processed time-point.
+	 * See {@link #getFits(int)}.
+	 */
+	public TubeFit[] getFits()
+	{
+		return getFits( 0 );
+	}
 
-			// display and manage rois.
+	/**
+	 * Returns the tube fits of the specified tube, one per processed
+	 * time-point. They hold the fitted centers and contours of all the
+	 * Z-slices, and are much more compact than the ROIs.
+	 *
+	 * @param tube
+	 *            the index of the tube, in the order of the initial ellipses.
+	 * @return the tube fits, or <code>null</code> before the run.
+	 */
+	public TubeFit[] getFits( final int tube )
+	{
+		return ( null == fits ) ? null : fits[ tube ];
+	}
 
-			inner.setZ( z );
-			outer.setZ( z );
+	/**
+	 * Returns the number of tubes processed, one per initial ellipse.
+	 */
+	public int getNTubes()
+	{
+		return ellipses.size();
+	}
 
-			inner.setName( "tmp inner " + z );
-			outer.setName( "tmp outer " + z );
+	/**
+	 * Returns the sequence of the unwrapped images of the first tube. See
+	 * {@link #getOutWrap(int)}.
+	 */
+	public Sequence getOutWrap()
+	{
+		return getOutWrap( 0 );
+	}
 
-			final ROI2DEllipse tubeSection = outer;
-			tube.add( z, tubeSection.getBooleanMask( true ) );
+	/**
+	 * Returns the sequence of the unwrapped images of the specified tube, or
+	 * <code>null</code> if they were written to a file. See
+	 * {@link #setUnwrapFile(File)}.
+	 *
+	 * @param tube
+	 *            the index of the tube, in the order of the initial ellipses.
+	 * @return the unwrapped sequence.
+	 */
+	public Sequence getOutWrap( final int tube )
+	{
+		return ( null == outWraps ) ? null : outWraps[ tube ];
+	}
 
-			innerPrevious = inner;
-			outerPrevious = outer;
+	/**
+	 * Returns the unwrapped image of the first tube on one processed
+	 * time-point. See {@link #getUnwrapImage(int, int)}.
+	 *
+	 * @param index
+	 *            the index of the time-point in the output, 0 if only one
+	 *            time-point was processed.
+	 * @return the unwrapped image.
+	 */
+	public IcyBufferedImage getUnwrapImage( final int index )
+	{
+		return getUnwrapImage( 0, index );
+	}
 
-			/*
-			 * Read max value along the rays emerging from the crown center, for
-			 * all relevant theta.
-			 */
+	/**
+	 * Returns the unwrapped image of the specified tube on one processed
+	 * time-point. If the unwrapped images were written to a file, it is read
+	 * from the file, so that only the time-points that are needed are loaded
+	 * in memory.
+	 *
+	 * @param tube
+	 *            the index of the tube, in the order of the initial ellipses.
+	 * @param index
+	 *            the index of the time-point in the output, 0 if only one
+	 *            time-point was processed.
+	 * @return the unwrapped image.
+	 */
+	public IcyBufferedImage getUnwrapImage( final int tube, final int index )
+	{
+		if ( null == unwrapFile )
+			return outWraps[ tube ].getImage( index, 0 );
 
-			ROI2DPolyLine maxFitROI = null;
-			double rPrev = -1.;
-			double thetaPrev = -1.;
+		try (MappedUnwrapFile file = MappedUnwrapFile.open( getUnwrapFile( tube ) ))
+		{
+			final IcyBufferedImage image = new IcyBufferedImage( file.getWidth(), file.getHeight(), file.getSizeC(), DataType.FLOAT );
+			for ( int c = 0; c < file.getSizeC(); c++ )
+				file.readPlane( index, c, ( float[] ) image.getDataXY( c ) );
+			image.dataChanged();
+			return image;
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
 
-			final double R0 = outer.getBounds2D().getWidth() / 2;
-//			final double[] rs = new double[ nc ];
+	/**
+	 * Fits the tubes and unwraps them for the specified time-point. A single
+	 * tube is processed alone. Several tubes are processed in a single pass
+	 * over the Z-slices.
+	 *
+	 * @param timepoint
+	 *            the time-point to process.
+	 * @param index
+	 *            the index of the time-point in the output.
+	 * @param unWrapImages
+	 *            the images to write the unwrapped tubes in, one per tube, or
+	 *            <code>null</code> to write them in the unwrapped image files.
+	 * @param previous
+	 *            the fit of the previous time-point to start from, or
+	 *            <code>null</code> to track the tube from the initial circle.
+	 *            Only used with a single tube.
+	 * @param nThreads
+	 *            the number of threads processing the Z-slices from the
+	 *            previous fit, or the tubes on each Z-slice.
+	 * @return the tube fits, one per tube. If the process was canceled, they
+	 *         only hold the Z-slices processed before.
+	 */
+	private TubeFit[] processTimePoint( final int timepoint, final int index, final IcyBufferedImage[] unWrapImages,
+			final TubeFit previous, final int nThreads )
+	{
+		final int nTubes = ellipses.size();
 
-			for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+		// Initial circles.
+		final double[] r = new double[ nTubes ];
+		final double[] cx = new double[ nTubes ];
+		final double[] cy = new double[ nTubes ];
+		for ( int tube = 0; tube < nTubes; tube++ )
+		{
+			final ROI2DEllipse ellipse = ellipses.get( tube );
+			r[ tube ] = ellipse.getBounds2D().getWidth() / 2;
+			cx[ tube ] = ellipse.getBounds2D().getCenterX();
+			cy[ tube ] = ellipse.getBounds().getCenterY();
+		}
+
+		final PlaneSource source = new SequencePlaneSource( sequence, timepoint );
+		final UnwrapWriter[] writers = new UnwrapWriter[ nTubes ];
+		for ( int tube = 0; tube < nTubes; tube++ )
+		{
+			if ( null == unWrapImages )
 			{
-				final double theta = theta0Rad + 2 * Math.PI * thetaRange / 360 * ( ( double ) iTheta / nAngles );
-				final Point2D center = new Point2D.Double( outer.getBounds2D().getCenterX(), outer.getBounds().getCenterY() );
+				writers[ tube ] = mappedFiles[ tube ].writer( index );
+				continue;
+			}
 
-				double rMax = R0;
-				double intensityMax = java.lang.Double.NEGATIVE_INFINITY;
+			final int nc = sequence.getSizeC();
+			final float[][] unwrapped = new float[ nc ][];
+			for ( int c = 0; c < nc; c++ )
+				unwrapped[ c ] = ( float[] ) unWrapImages[ tube ].getDataXY( c );
+			writers[ tube ] = new ArrayUnwrapWriter( unwrapped, unWrapImages[ tube ].getSizeX() );
+		}
 
-				final double[] values = new double[ nc ];
-//				final double[] newValues = new double[ nc ]; => if need for a more complex int projection
-				for ( double r = R0 - windowRay; r < R0 + windowRay; r++ )
+		final TubeSkinnerEngine.SliceListener listener = new TubeSkinnerEngine.SliceListener()
+		{
+			@Override
+			public void sliceProcessed( final int z )
+			{
+				processedSlices.incrementAndGet();
+				// Update display every 100th line.
+				if ( null != unWrapImages && z % 100 == 0 )
 				{
-					final long xx = Math.round( center.getX() + Math.cos( theta ) * r );
-					final long yy = Math.round( center.getY() + Math.sin( theta ) * r );
-					if ( xx < 0 || yy < 0 || xx >= width || yy >= height )
-						continue;
-
-					/*
-					 * Weight value by its distance to the previous max found.
-					 */
-					double intensityR = data[ ( int ) ( yy * image.getWidth() + xx ) ];
-					if ( rPrev > 0 )
-					{
-						final double alpha = ( r - rPrev ) / windowRay;
-						intensityR = intensityR / ( 1 + alpha * alpha );
-					}
-
-					if ( intensityR > intensityMax )
+					for ( final IcyBufferedImage unWrapImage : unWrapImages )
 					{
-						intensityMax = intensityR;
-						rMax = r;
-						for ( int c = 0; c < nc; c++ )
-						{
-							/*
-							 * deploy the value around the max rather than the
-							 * single most probable pixel
-							 */
-							values[ c ] = image.getDataInterpolated(
-									center.getX() + Math.cos( theta ) * r,
-									center.getY() + Math.sin( theta ) * r,
-									c );
-
-//							rs[ 0 ] = r;
-//							newValues[ c ] = getRadContourInt( center, theta, rs );
-						}
+						unWrapImage.dataChanged();
+						unWrapImage.endUpdate();
+						unWrapImage.beginUpdate();
 					}
 				}
+			}
+		};
+
+		if ( null != unWrapImages )
+			for ( final IcyBufferedImage unWrapImage : unWrapImages )
+				unWrapImage.beginUpdate();
+		try
+		{
+			if ( nTubes > 1 )
+				return engine.processTubes( source, cx, cy, r, writers, listener, nThreads );
 
-				if ( rPrev < 0 )
+			final TubeFit fit = ( null == previous )
+					? engine.process( source, cx[ 0 ], cy[ 0 ], r[ 0 ], writers[ 0 ], listener, createCache( timepoint ) )
+					: engine.processFrom( source, previous, writers[ 0 ], listener, nThreads );
+			return new TubeFit[] { fit };
+		}
+		finally
+		{
+			if ( null != unWrapImages )
+			{
+				for ( final IcyBufferedImage unWrapImage : unWrapImages )
 				{
-					rPrev = rMax;
-					thetaPrev = theta;
-					for ( int c = 0; c < nc; c++ )
-						unWrapImage.setData( 0, iy, c, values[ c ] );
+					unWrapImage.dataChanged();
+					unWrapImage.endUpdate();
 				}
-				else
-				{
-					// Projected on the initial circle.
-					final int i0 = ( int ) Math.round( R0 * ( thetaPrev - thetaStart / 180. * Math.PI ) );
-					final int i1 = ( int ) Math.round( R0 * ( theta - thetaStart / 180. * Math.PI ) );
+			}
+		}
+	}
 
-					if ( i0 < nx && i1 <= nx )
-						for ( int ix = i0; ix < i1; ix++ )
-							for ( int c = 0; c < nc; c++ )
-								unWrapImage.setData( ix, iy, c, values[ c ] );
+	/**
+	 * Creates the cache of fitted geometry for the specified time-point, or
+	 * returns <code>null</code> if there is no cache directory or if the
+	 * sequence was not loaded from a file. The stack is identified by the
+	 * path, size and modification date of its file.
+	 */
+	private FitCache createCache( final int timepoint )
+	{
+		if ( null == cacheDirectory || null == sequence.getFilename() )
+			return null;
 
-					thetaPrev = theta;
-					rPrev = rMax;
-				}
+		final File file = new File( sequence.getFilename() );
+		final String sourceId = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|t=" + timepoint;
+		return new FitCache( cacheDirectory, sourceId );
+	}
 
-				// Build polygon contour.
-				final Point2D point = new Point2D.Double(
-						center.getX() + Math.cos( theta ) * rMax,
-						center.getY() + Math.sin( theta ) * rMax );
+	/**
+	 * Re-fits the tube on a range of Z-slices of a processed time-point, after
+	 * a manual correction of the tube center on the first Z-slice of the
+	 * range. The tube is tracked again from the corrected center until the end
+	 * of the range, or until the new track rejoins the previous one, which is
+	 * much faster than running the whole stack again. The fit, the rows of the
+	 * unwrapped image and the ROIs of the re-fitted Z-slices are updated in
+	 * place, and so is the fitted geometry stored in the cache directory, if
+	 * any.
+	 *
+	 * @param timepoint
+	 *            the time-point to correct. It must have been processed by
+	 *            {@link #run()}.
+	 * @param zStart
+	 *            the Z-slice on which the tube center is corrected.
+	 * @param zEnd
+	 *            the Z-slice after the last one to re-fit, at most. Use the
+	 *            number of Z-slices to re-fit until the new track rejoins the
+	 *            previous one.
+	 * @param cx
+	 *            the corrected X position of the tube center on
+	 *            <code>zStart</code>.
+	 * @param cy
+	 *            the corrected Y position of the tube center on
+	 *            <code>zStart</code>.
+	 * @return the Z-slice after the last one re-fitted.
+	 */
+	public int refit( final int timepoint, final int zStart, final int zEnd, final double cx, final double cy )
+	{
+		return refit( 0, timepoint, zStart, zEnd, cx, cy );
+	}
 
-				if ( maxFitROI == null )
-					maxFitROI = new ROI2DPolyLine( point );
-				else
-					maxFitROI.addNewPoint( point, false );
-			}
+	/**
+	 * Re-fits one of the tubes on a range of Z-slices of a processed
+	 * time-point, after a manual correction of its center on the first
+	 * Z-slice of the range. See
+	 * {@link #refit(int, int, int, double, double)}.
+	 *
+	 * @param tube
+	 *            the index of the tube, in the order of the initial ellipses.
+	 * @param timepoint
+	 *            the time-point to correct.
+	 * @param zStart
+	 *            the Z-slice on which the tube center is corrected.
+	 * @param zEnd
+	 *            the Z-slice after the last one to re-fit, at most.
+	 * @param cx
+	 *            the corrected X position of the tube center on
+	 *            <code>zStart</code>.
+	 * @param cy
+	 *            the corrected Y position of the tube center on
+	 *            <code>zStart</code>.
+	 * @return the Z-slice after the last one re-fitted.
+	 */
+	public int refit( final int tube, final int timepoint, final int zStart, final int zEnd, final double cx, final double cy )
+	{
+		final int index = processAllTimePoints ? timepoint : 0;
+		if ( null == fits || index >= fits[ tube ].length || ( !processAllTimePoints && timepoint != targetTimePoint ) )
+			throw new IllegalStateException( "Time-point " + timepoint + " has not been processed." );
 
-			// Add this Z-slice contour to the 3D ROI.
-			maxFitROI.setZ( z );
-			skin.add( z, maxFitROI.getBooleanMask( true ) );
+		canceled = false;
+		engine = createEngine();
+		final TubeFit fit = fits[ tube ][ index ];
+		// Only the fits made from the initial circle go through the cache.
+		final boolean fromCircle = ellipses.size() == 1 && !( processAllTimePoints && isWarmStart() && timepoint > 0 );
+		final FitCache cache = fromCircle ? createCache( timepoint ) : null;
+
+		// Z-slice after the last one updated, in case of cancel.
+		final int[] updated = new int[] { zStart };
+		final TubeSkinnerEngine.SliceListener listener = new TubeSkinnerEngine.SliceListener()
+		{
+			@Override
+			public void sliceProcessed( final int z )
+			{
+				updated[ 0 ] = z + 1;
+			}
+		};
 
-			// Update display every 100th line.
-			if ( z % 100 == 0 )
+		if ( null != unwrapFile )
+		{
+			try (MappedUnwrapFile file = MappedUnwrapFile.open( getUnwrapFile( tube ) ))
 			{
-				unWrapImage.endUpdate();
-				unWrapImage.beginUpdate();
+				engine.refit( new SequencePlaneSource( sequence, timepoint ), fit, zStart, zEnd, cx, cy, file.writer( index ), listener,
+						cache );
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
 			}
 		}
-
-		unWrapImage.endUpdate();
-
-		skin.setColor( Color.CYAN );
-		tube.setColor( Color.ORANGE );
-
-		if ( !isHeadless )
+		else
 		{
-			sequence.addROI( skin );
-			sequence.addROI( tube );
+			final IcyBufferedImage unWrapImage = outWraps[ tube ].getImage( index, 0 );
+			final int nc = sequence.getSizeC();
+			final float[][] unwrapped = new float[ nc ][];
+			for ( int c = 0; c < nc; c++ )
+				unwrapped[ c ] = ( float[] ) unWrapImage.getDataXY( c );
+
+			unWrapImage.beginUpdate();
+			try
+			{
+				engine.refit( new SequencePlaneSource( sequence, timepoint ), fit, zStart, zEnd, cx, cy,
+						new ArrayUnwrapWriter( unwrapped, unWrapImage.getSizeX() ), listener, cache );
+			}
+			finally
+			{
+				unWrapImage.dataChanged();
+				unWrapImage.endUpdate();
+			}
 		}
 
+		if ( null != skins[ tube ] && null != skins[ tube ][ index ] )
+			TubeROIs.patchSkin( skins[ tube ][ index ], fit, zStart, updated[ 0 ] );
+		if ( null != tubes[ tube ] && null != tubes[ tube ][ index ] )
+			TubeROIs.patchTube( tubes[ tube ][ index ], fit, zStart, updated[ 0 ] );
+		return updated[ 0 ];
 	}
 
-//	private double getRadContourInt( final Point2D center, final double theta, final double[] rs )
-//	{
-//		// Could return a contour value of arbitrary complexity such as convolved with a Guassian kernel
-//
-//		return 0;
-//	}
-
 	/**
 	 * Sets the time-point to unwrap. If the {@link #processAllTimePoints} was
 	 * set to <code>true</code> at instantiation, this parameter is ignored.
@@ -478,10 +1170,262 @@ public class TubeSkinner
 	}
 
 	/**
-	 * Cancels the current process.
+	 * Sets the number of threads used to process time-points concurrently, if
+	 * the {@link #processAllTimePoints} was set to <code>true</code> at
+	 * instantiation. Otherwise, or if the time-points are processed one after
+	 * the other, with several tubes, it is the number of tubes fitted
+	 * concurrently on each Z-slice.
+	 *
+	 * @param numThreads
+	 *            the maximal number of time-points or tubes to process
+	 *            concurrently.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * Sets the algorithm used to search for the tube center on each Z-slice.
+	 * All methods give the same result, but with different speeds.
+	 *
+	 * @param crownSearchMethod
+	 *            the crown search method.
+	 */
+	public void setCrownSearchMethod( final CrownSearchMethod crownSearchMethod )
+	{
+		this.crownSearchMethod = crownSearchMethod;
+	}
+
+	/**
+	 * Sets the number of downsampled levels on which the tube center is
+	 * tracked coarse-to-fine. 0 searches the whole window at full resolution.
+	 * Use 1 or 2 levels to speed up large search windows.
+	 *
+	 * @param pyramidLevels
+	 *            the number of downsampled levels.
+	 */
+	public void setPyramidLevels( final int pyramidLevels )
+	{
+		this.pyramidLevels = pyramidLevels;
+	}
+
+	/**
+	 * Sets the window in which the tube center is searched around its
+	 * position predicted from the previous Z-slices. See
+	 * {@link TubeSkinnerEngine#setPredictionWindow(int)}.
+	 *
+	 * @param predictionWindow
+	 *            the half-size of the window around the predicted center, or
+	 *            0 to always search the full window.
+	 */
+	public void setPredictionWindow( final int predictionWindow )
+	{
+		this.predictionWindow = predictionWindow;
+	}
+
+	/**
+	 * Sets whether, when processing all the time-points, each time-point
+	 * starts from the tube fitted on the previous one, instead of being
+	 * tracked again from the initial ellipse. The tube center is then only
+	 * refined around its position on the previous time-point, and the
+	 * Z-slices are processed in parallel on the specified number of threads,
+	 * instead of the time-points. See
+	 * {@link TubeSkinnerEngine#processFrom(PlaneSource, TubeFit, int)}.
+	 * Only used with a single tube.
+	 *
+	 * @param warmStart
+	 *            whether to start each time-point from the previous one.
+	 */
+	public void setWarmStart( final boolean warmStart )
+	{
+		this.warmStart = warmStart;
+	}
+
+	/**
+	 * Sets the angle between the rays probed on each Z-slice. 1 degree by
+	 * default.
+	 *
+	 * @param sampleAngle
+	 *            the angle (in degrees) between two rays.
+	 */
+	public void setSampleAngle( final double sampleAngle )
+	{
+		this.sampleAngle = sampleAngle;
+	}
+
+	/**
+	 * Sets how the number of rays probed on each Z-slice is chosen. See
+	 * {@link TubeSkinnerEngine#setAngularSampling(AngularSampling)}.
+	 *
+	 * @param angularSampling
+	 *            the angular sampling.
+	 */
+	public void setAngularSampling( final AngularSampling angularSampling )
+	{
+		this.angularSampling = angularSampling;
+	}
+
+	/**
+	 * Sets how the channels are sampled on the tube wall to build the
+	 * unwrapped image. See
+	 * {@link TubeSkinnerEngine#setWallProjection(WallProjection)}.
+	 *
+	 * @param wallProjection
+	 *            the wall projection.
+	 */
+	public void setWallProjection( final WallProjection wallProjection )
+	{
+		this.wallProjection = wallProjection;
+	}
+
+	/**
+	 * Sets the half-width of the radial band over which the wall is
+	 * projected. 3 pixels by default.
+	 *
+	 * @param projectionBand
+	 *            the half-width (in pixels) of the band.
+	 */
+	public void setProjectionBand( final int projectionBand )
+	{
+		this.projectionBand = projectionBand;
+	}
+
+	/**
+	 * Sets how the rays are sampled to fit the tube radius. Interpolated
+	 * sampling gives sub-pixel radii.
+	 *
+	 * @param radialSampling
+	 *            the ray sampling.
+	 */
+	public void setRadialSampling( final RadialSampling radialSampling )
+	{
+		this.radialSampling = radialSampling;
+	}
+
+	/**
+	 * Sets the step (in pixels) between the samples along each interpolated
+	 * ray.
+	 *
+	 * @param radialStep
+	 *            the radial step.
+	 */
+	public void setRadialStep( final double radialStep )
+	{
+		this.radialStep = radialStep;
+	}
+
+	/**
+	 * Sets the number of Z-slices read ahead of the fit, on a separate thread.
+	 * 0 reads, fits and writes each Z-slice in sequence.
+	 *
+	 * @param pipelineDepth
+	 *            the number of Z-slices read ahead.
+	 */
+	public void setPipelineDepth( final int pipelineDepth )
+	{
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	/**
+	 * Sets the number of threads on which the channels of each Z-slice are
+	 * sampled on the fitted contour. Only useful for images with many
+	 * channels.
+	 *
+	 * @param channelThreads
+	 *            the number of threads sampling the channels.
+	 */
+	public void setChannelThreads( final int channelThreads )
+	{
+		this.channelThreads = channelThreads;
+	}
+
+	/**
+	 * Sets the directory in which the fitted geometry is cached. When the same
+	 * file is processed again with the same fit parameters, the geometry is
+	 * read from the cache and only the pixels are sampled again, which is much
+	 * faster. Only sequences loaded from a file are cached, with a single
+	 * tube.
+	 *
+	 * @param cacheDirectory
+	 *            the cache directory, or <code>null</code> to disable the
+	 *            cache.
+	 */
+	public void setCacheDirectory( final File cacheDirectory )
+	{
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * Sets the file to which the unwrapped images are written, instead of
+	 * keeping them in memory. The rows are written through memory mapping as
+	 * they are produced, so that the heap used does not grow with the number
+	 * of time-points and Z-slices. There is then no unwrapped sequence: the
+	 * unwrapped image of each time-point can be loaded on demand with
+	 * {@link #getUnwrapImage(int)}, or the file can be read with
+	 * {@link MappedUnwrapFile}. With several tubes, the unwrapped images of
+	 * the next tubes are written next to this file, with the tube index
+	 * appended to its name: <code>unwrap_tube1.raw</code>, and so on.
+	 *
+	 * @param unwrapFile
+	 *            the file, or <code>null</code> to keep the unwrapped images
+	 *            in memory.
+	 */
+	public void setUnwrapFile( final File unwrapFile )
+	{
+		this.unwrapFile = unwrapFile;
+	}
+
+	/**
+	 * Sets the listener notified of the performance metrics of each Z-slice,
+	 * for instance to report progress. It is called on the fitting threads,
+	 * possibly concurrently when several time-points are processed in
+	 * parallel. The metrics of each time-point are also returned with its fit.
+	 *
+	 * @param metricsListener
+	 *            the listener. Can be <code>null</code>.
+	 */
+	public void setMetricsListener( final RunMetrics.Listener metricsListener )
+	{
+		this.metricsListener = metricsListener;
+	}
+
+	/**
+	 * Sets whether the skin and rough tube 3D ROIs are created and added to the
+	 * sequence during the run. If <code>false</code>, only the compact tube
+	 * fits are stored, and the skin ROIs are created on demand by
+	 * {@link #getSkinROIs()}. Creating the ROIs is slow and memory-heavy on
+	 * long stacks.
+	 *
+	 * @param createROIs
+	 *            whether to create the ROIs during the run.
+	 */
+	public void setCreateROIs( final boolean createROIs )
+	{
+		this.createROIs = createROIs;
+	}
+
+	/**
+	 * Returns the fraction of the Z-slices processed so far in the current
+	 * run, over all the time-points to process, from 0 to 1.
+	 */
+	public double getProgress()
+	{
+		final int total = totalSlices;
+		return ( total == 0 ) ? 0. : Math.min( 1., ( double ) processedSlices.get() / total );
+	}
+
+	/**
+	 * Cancels the current process. It stops before the next Z-slice, and
+	 * keeps the time-points completed so far, plus the Z-slices fitted on the
+	 * time-point it was processing: they are returned by {@link #getFits()},
+	 * with their ROIs and unwrapped rows.
 	 */
 	public void cancel()
 	{
 		canceled = true;
+		final TubeSkinnerEngine e = engine;
+		if ( null != e )
+			e.cancel();
 	}
 }
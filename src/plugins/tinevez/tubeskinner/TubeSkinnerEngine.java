@@ -0,0 +1,1471 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The tube fit and unwrapping algorithm, independent of Icy.
+ * <p>
+ * The engine operates on primitive image planes supplied by a
+ * {@link PlaneSource}, and on a circle that gives the tube section on the
+ * first Z-slice. It tracks the tube center from Z-slice to Z-slice, fits the
+ * tube radius along each ray, and unwraps the tube. It can be used in a plain
+ * JVM, for instance for batch processing on cluster nodes, without starting
+ * Icy.
+ * <p>
+ * An engine only holds its parameters, so the same instance can process
+ * several stacks concurrently.
+ */
+public class TubeSkinnerEngine
+{
+
+	/**
+	 * Search window for the local max of intensity along a radius.
+	 */
+	static final int WINDOW_RAY = 15;
+
+	/**
+	 * Default angle between each probed ray. if ==1 then nAngles = thetaRange.
+	 */
+	static final double SAMPLE_ANGLE = 1.;
+
+	/**
+	 * Number of consecutive Z-slices processed by a thread in a warm start.
+	 */
+	private static final int WARM_START_BLOCK = 16;
+
+	private final int segmentationChannel;
+
+	private final double thickness;
+
+	private final int searchWindow;
+
+	private final double thetaStart;
+
+	private final int thetaRange;
+
+	private CrownSearchMethod crownSearchMethod = CrownSearchMethod.BRUTE_FORCE;
+
+	private int pyramidLevels = 0;
+
+	private double sampleAngle = SAMPLE_ANGLE;
+
+	private AngularSampling angularSampling = AngularSampling.FIXED_ANGLE;
+
+	private RadialSampling radialSampling = RadialSampling.NEAREST;
+
+	private double radialStep = 1.;
+
+	private WallProjection wallProjection = WallProjection.CONTOUR;
+
+	private int projectionBand = 3;
+
+	private boolean regionReading = false;
+
+	private int pipelineDepth = 0;
+
+	private int channelThreads = 1;
+
+	private int predictionWindow = 0;
+
+	private int warmStartWindow = 2;
+
+	private RunMetrics.Listener metricsListener = null;
+
+	private volatile boolean canceled = false;
+
+	/**
+	 * Listener notified when a Z-slice has been processed.
+	 */
+	public static interface SliceListener
+	{
+		/**
+		 * Called after the specified Z-slice has been fitted and its row
+		 * written in the unwrapped image.
+		 *
+		 * @param z
+		 *            the Z-slice.
+		 */
+		public void sliceProcessed( int z );
+	}
+
+	/**
+	 * Instantiates an engine.
+	 *
+	 * @param segmentationChannel
+	 *            the channel in which the tube is fitted. All channels are
+	 *            unwrapped.
+	 * @param thickness
+	 *            the thickness (in pixels) of the crown in which to search for
+	 *            the tube membrane.
+	 * @param searchWindow
+	 *            the window size (in pixels) in which to search for the tube
+	 *            center, around the center found in the previous Z-slice.
+	 * @param thetaStart
+	 *            what angle (in degrees) should correspond to x=0 in the
+	 *            unwrapped image.
+	 * @param thetaRange
+	 *            what angular arc (in degrees) should be evaluated to fit the
+	 *            tube, starting from thetaStart.
+	 */
+	public TubeSkinnerEngine( final int segmentationChannel, final double thickness, final int searchWindow,
+			final double thetaStart, final int thetaRange )
+	{
+		this.segmentationChannel = segmentationChannel;
+		this.thickness = thickness;
+		this.searchWindow = searchWindow;
+		this.thetaStart = thetaStart;
+		this.thetaRange = thetaRange;
+	}
+
+	/**
+	 * Sets the algorithm used to search for the tube center on each Z-slice.
+	 *
+	 * @param crownSearchMethod
+	 *            the crown search method.
+	 */
+	public void setCrownSearchMethod( final CrownSearchMethod crownSearchMethod )
+	{
+		this.crownSearchMethod = crownSearchMethod;
+	}
+
+	/**
+	 * Sets the number of downsampled levels on which the tube center is
+	 * tracked coarse-to-fine. With 0 levels, the center is searched over the
+	 * whole search window at full resolution. With <code>n</code> levels, it
+	 * is searched on Z-slices downsampled by <code>2^n</code>, then refined on
+	 * each finer level. This is much faster for large search windows.
+	 *
+	 * @param pyramidLevels
+	 *            the number of downsampled levels.
+	 */
+	public void setPyramidLevels( final int pyramidLevels )
+	{
+		this.pyramidLevels = Math.max( 0, pyramidLevels );
+	}
+
+	/**
+	 * Sets the angle between the rays probed on each Z-slice. The default is
+	 * 1 degree. With interpolated rays, angles smaller than 1 degree give a
+	 * finer contour. Ignored with {@link AngularSampling#ONE_RAY_PER_PIXEL}.
+	 *
+	 * @param sampleAngle
+	 *            the angle (in degrees) between two rays.
+	 */
+	public void setSampleAngle( final double sampleAngle )
+	{
+		this.sampleAngle = sampleAngle;
+	}
+
+	/**
+	 * Sets how the number of rays probed on each Z-slice is chosen. With
+	 * {@link AngularSampling#FIXED_ANGLE}, the default, the rays are
+	 * separated by the angle set by {@link #setSampleAngle(double)}. With
+	 * {@link AngularSampling#ONE_RAY_PER_PIXEL}, there is one ray per column
+	 * of the unwrapped image: small tubes are probed with fewer rays, none of
+	 * them falling in the same column as another one, and large tubes with
+	 * more rays, so that each column of the unwrapped image is sampled on its
+	 * own ray instead of repeating the value of a wider ray.
+	 *
+	 * @param angularSampling
+	 *            the angular sampling.
+	 */
+	public void setAngularSampling( final AngularSampling angularSampling )
+	{
+		this.angularSampling = angularSampling;
+	}
+
+	/**
+	 * Sets how the segmentation channel is sampled along the rays to fit the
+	 * tube radius. With {@link RadialSampling#NEAREST}, the default, the
+	 * nearest pixels are read every pixel along the rays, and the radii are
+	 * whole pixels. Interpolated sampling reads the rays at the radial step
+	 * set by {@link #setRadialStep(double)}, and refines the radii to
+	 * sub-pixel precision.
+	 *
+	 * @param radialSampling
+	 *            the ray sampling.
+	 */
+	public void setRadialSampling( final RadialSampling radialSampling )
+	{
+		this.radialSampling = radialSampling;
+	}
+
+	/**
+	 * Sets the step (in pixels) between the samples along each ray, for
+	 * interpolated ray sampling. Ignored with nearest pixel sampling.
+	 *
+	 * @param radialStep
+	 *            the radial step, for instance 0.5 to sample every half
+	 *            pixel.
+	 */
+	public void setRadialStep( final double radialStep )
+	{
+		this.radialStep = radialStep;
+	}
+
+	/**
+	 * Sets the window in which the tube center is searched around its
+	 * position predicted from the previous Z-slices. The center is predicted
+	 * assuming it moves at a constant velocity along Z, which is the case on
+	 * smoothly curved tubes. A small window around the prediction is much
+	 * cheaper to search than the full search window. The full window is still
+	 * searched if the center found around the prediction lies on the border of
+	 * the small window, or if its crown score drops. The number of such
+	 * fallbacks is reported in the {@link RunMetrics}.
+	 * <p>
+	 * The result can differ from the full search on Z-slices where the crown
+	 * score has several local max in the search window.
+	 *
+	 * @param predictionWindow
+	 *            the half-size (in pixels) of the window around the predicted
+	 *            center, smaller than the search window. 0, the default,
+	 *            disables the prediction.
+	 */
+	public void setPredictionWindow( final int predictionWindow )
+	{
+		this.predictionWindow = Math.max( 0, predictionWindow );
+	}
+
+	/**
+	 * Sets the window in which the tube center is refined, around the center
+	 * of the previous time-point, when processing a time-point with
+	 * {@link #processFrom(PlaneSource, TubeFit, int)}.
+	 *
+	 * @param warmStartWindow
+	 *            the half-size (in pixels) of the window, at least 1. The
+	 *            default is 2.
+	 */
+	public void setWarmStartWindow( final int warmStartWindow )
+	{
+		this.warmStartWindow = Math.max( 1, warmStartWindow );
+	}
+
+	/**
+	 * Sets how the channels are sampled on the tube wall to build the
+	 * unwrapped image. With {@link WallProjection#CONTOUR}, the default, each
+	 * channel is interpolated at the fitted radius only. The other projections
+	 * aggregate the channel over a radial band around the fitted radius, set
+	 * by {@link #setProjectionBand(int)}, which gives a less noisy unwrapped
+	 * image of thick walls. The fitted contour is the same.
+	 *
+	 * @param wallProjection
+	 *            the wall projection.
+	 */
+	public void setWallProjection( final WallProjection wallProjection )
+	{
+		this.wallProjection = wallProjection;
+	}
+
+	/**
+	 * Sets the half-width of the radial band around the fitted radius over
+	 * which the channels are projected. Ignored with
+	 * {@link WallProjection#CONTOUR}.
+	 *
+	 * @param projectionBand
+	 *            the half-width (in pixels) of the band, at least 1. The
+	 *            default is 3.
+	 */
+	public void setProjectionBand( final int projectionBand )
+	{
+		this.projectionBand = Math.max( 1, projectionBand );
+	}
+
+	/**
+	 * Sets whether only the crown region of each Z-slice is read from sources
+	 * that support it. When the source is a {@link RegionPlaneSource}, the
+	 * engine then requests, on each Z-slice, only the bounding box of the
+	 * pixels the fit can read: a square around the tube center of the
+	 * previous Z-slice, with a margin of the crown radius, the search window,
+	 * the ray window and the wall projection band. With a small tube in a
+	 * large frame, this saves most of the reading and the conversion of the
+	 * planes. The result is the same as when reading whole planes.
+	 * <p>
+	 * Regions are not read when the pipeline is enabled (see
+	 * {@link #setPipelineDepth(int)}), as the planes are then read before the
+	 * center of the previous Z-slice is known.
+	 *
+	 * @param regionReading
+	 *            whether to read only the crown region of each Z-slice.
+	 */
+	public void setRegionReading( final boolean regionReading )
+	{
+		this.regionReading = regionReading;
+	}
+
+	/**
+	 * Sets the number of Z-slices that are read ahead of the fit. With a depth
+	 * of 0, the planes are read, the tube is fitted and the rows are written
+	 * in sequence on the calling thread. With a depth <code>n &gt; 0</code>,
+	 * the processing is pipelined over three threads: a producer reads and
+	 * copies the planes of up to <code>n</code> next Z-slices, the calling
+	 * thread fits the tube, and a consumer writes the unwrapped rows and
+	 * notifies the slice listener. This hides the latency of sources that
+	 * read from disk or from a network mount. The result is the same.
+	 *
+	 * @param pipelineDepth
+	 *            the number of Z-slices read ahead.
+	 */
+	public void setPipelineDepth( final int pipelineDepth )
+	{
+		this.pipelineDepth = Math.max( 0, pipelineDepth );
+	}
+
+	/**
+	 * Sets the number of threads on which the channels are sampled on the
+	 * fitted contour, for each Z-slice. The contour is fitted in the
+	 * segmentation channel alone, then all the channels are sampled on it in
+	 * one batch, that can be split across channels. This only helps for
+	 * images with many channels.
+	 *
+	 * @param channelThreads
+	 *            the number of threads sampling the channels.
+	 */
+	public void setChannelThreads( final int channelThreads )
+	{
+		this.channelThreads = Math.max( 1, channelThreads );
+	}
+
+	/**
+	 * Sets the listener notified of the metrics of each Z-slice, on the
+	 * fitting thread. The metrics of a time-point are also returned with its
+	 * fit.
+	 *
+	 * @param metricsListener
+	 *            the listener. Can be <code>null</code>.
+	 */
+	public void setMetricsListener( final RunMetrics.Listener metricsListener )
+	{
+		this.metricsListener = metricsListener;
+	}
+
+	/**
+	 * Returns the number of rays probed on each Z-slice, for a tube of the
+	 * specified initial radius.
+	 *
+	 * @param r
+	 *            the radius of the circle on the first Z-slice.
+	 * @return the number of rays.
+	 */
+	public int getNAngles( final double r )
+	{
+		if ( angularSampling == AngularSampling.ONE_RAY_PER_PIXEL )
+			return Math.max( 1, getUnwrapWidth( r ) );
+		return ( int ) ( thetaRange / sampleAngle );
+	}
+
+	/**
+	 * Returns the width of the unwrapped image for a tube of the specified
+	 * initial radius.
+	 *
+	 * @param r
+	 *            the radius of the circle on the first Z-slice.
+	 * @return the unwrapped image width.
+	 */
+	public int getUnwrapWidth( final double r )
+	{
+		final double pixelSize = 1.;
+		return ( int ) ( ( thetaRange * 2 * Math.PI / 360 ) * r / pixelSize );
+	}
+
+	/**
+	 * Fits and unwraps the tube in the specified stack. The unwrapped image is
+	 * kept in memory, and is returned with the fit.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param cx
+	 *            the X position of the tube center on the first Z-slice.
+	 * @param cy
+	 *            the Y position of the tube center on the first Z-slice.
+	 * @param r
+	 *            the radius of the tube on the first Z-slice.
+	 * @return the tube fit. If the process was canceled, it only holds the
+	 *         Z-slices processed before (see {@link TubeFit#isComplete()}).
+	 */
+	public TubeFit process( final PlaneSource source, final double cx, final double cy, final double r )
+	{
+		final int nx = getUnwrapWidth( r );
+		final float[][] unwrapped = new float[ source.getSizeC() ][ nx * source.getSizeZ() ];
+		return process( source, cx, cy, r, new ArrayUnwrapWriter( unwrapped, nx ), unwrapped, null, null );
+	}
+
+	/**
+	 * Fits and unwraps the tube in the specified stack, passing the rows of
+	 * the unwrapped image to the specified writer as they are produced.
+	 * <p>
+	 * The planes are requested one Z-slice at a time, and no per-slice data is
+	 * kept apart from the fitted centers and radii. With a streaming source
+	 * and writer, the memory used does not depend on the number of Z-slices,
+	 * except for these few values per Z-slice.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param cx
+	 *            the X position of the tube center on the first Z-slice.
+	 * @param cy
+	 *            the Y position of the tube center on the first Z-slice.
+	 * @param r
+	 *            the radius of the tube on the first Z-slice.
+	 * @param writer
+	 *            the writer that receives the unwrapped rows, of width
+	 *            <code>getUnwrapWidth(r)</code>.
+	 * @param listener
+	 *            a listener notified after each Z-slice. Can be
+	 *            <code>null</code>. If the pipeline is enabled, it is notified
+	 *            on the writer thread.
+	 * @return the tube fit. If the process was canceled, it only holds the
+	 *         Z-slices processed before (see {@link TubeFit#isComplete()}).
+	 *         The fit does not hold the unwrapped image.
+	 */
+	public TubeFit process( final PlaneSource source, final double cx, final double cy, final double r,
+			final UnwrapWriter writer, final SliceListener listener )
+	{
+		return process( source, cx, cy, r, writer, null, listener, null );
+	}
+
+	/**
+	 * Fits and unwraps the tube in the specified stack, reusing the geometry
+	 * stored in the specified cache if it was fitted before with the same
+	 * parameters. Otherwise, the fitted geometry is stored in the cache once
+	 * all the Z-slices have been processed. The unwrapped image is kept in
+	 * memory, and is returned with the fit.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param cx
+	 *            the X position of the tube center on the first Z-slice.
+	 * @param cy
+	 *            the Y position of the tube center on the first Z-slice.
+	 * @param r
+	 *            the radius of the tube on the first Z-slice.
+	 * @param cache
+	 *            the cache of fitted geometry for this stack.
+	 * @return the tube fit. If the process was canceled, it only holds the
+	 *         Z-slices processed before (see {@link TubeFit#isComplete()}).
+	 */
+	public TubeFit process( final PlaneSource source, final double cx, final double cy, final double r, final FitCache cache )
+	{
+		final int nx = getUnwrapWidth( r );
+		final float[][] unwrapped = new float[ source.getSizeC() ][ nx * source.getSizeZ() ];
+		return process( source, cx, cy, r, new ArrayUnwrapWriter( unwrapped, nx ), unwrapped, null, cache );
+	}
+
+	/**
+	 * Fits and unwraps the tube in the specified stack, passing the rows of
+	 * the unwrapped image to the specified writer as they are produced, and
+	 * reusing the geometry stored in the specified cache if it was fitted
+	 * before with the same parameters.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param cx
+	 *            the X position of the tube center on the first Z-slice.
+	 * @param cy
+	 *            the Y position of the tube center on the first Z-slice.
+	 * @param r
+	 *            the radius of the tube on the first Z-slice.
+	 * @param writer
+	 *            the writer that receives the unwrapped rows, of width
+	 *            <code>getUnwrapWidth(r)</code>.
+	 * @param listener
+	 *            a listener notified after each Z-slice. Can be
+	 *            <code>null</code>.
+	 * @param cache
+	 *            the cache of fitted geometry for this stack. Can be
+	 *            <code>null</code>.
+	 * @return the tube fit. If the process was canceled, it only holds the
+	 *         Z-slices processed before (see {@link TubeFit#isComplete()}).
+	 *         The fit does not hold the unwrapped image.
+	 */
+	public TubeFit process( final PlaneSource source, final double cx, final double cy, final double r,
+			final UnwrapWriter writer, final SliceListener listener, final FitCache cache )
+	{
+		return process( source, cx, cy, r, writer, null, listener, cache );
+	}
+
+	/**
+	 * Fits and unwraps the tube in the stack of a time-point, starting from
+	 * the fit of the previous time-point instead of tracking it from the
+	 * initial circle. The unwrapped image is kept in memory, and is returned
+	 * with the fit.
+	 * <p>
+	 * On each Z-slice, the tube center is only refined within the warm start
+	 * window (see {@link #setWarmStartWindow(int)}) around the center fitted
+	 * on the same Z-slice of the previous time-point. The full search window
+	 * is searched if the center is not found inside the warm start window.
+	 * The Z-slices then do not depend on each other, and are processed in
+	 * parallel, by blocks of consecutive Z-slices.
+	 * <p>
+	 * With more than one thread, the planes of several Z-slices are requested
+	 * concurrently, and are in use at the same time. This is supported by
+	 * sources serving planes held in memory, such as the planes of an Icy
+	 * sequence, but not by streaming sources that reuse their arrays.
+	 * <p>
+	 * The engine must have the same parameters as the one that produced the
+	 * previous fit. The fit cache and the motion prediction are not used.
+	 *
+	 * @param source
+	 *            the stack of the time-point.
+	 * @param previous
+	 *            the fit of the previous time-point, on a stack of the same
+	 *            size.
+	 * @param nThreads
+	 *            the number of threads processing the Z-slices.
+	 * @return the tube fit. If the process was canceled, it only holds the
+	 *         Z-slices processed before (see {@link TubeFit#isComplete()}).
+	 */
+	public TubeFit processFrom( final PlaneSource source, final TubeFit previous, final int nThreads )
+	{
+		final int nx = getUnwrapWidth( previous.getCrownRadius() );
+		final float[][] unwrapped = new float[ source.getSizeC() ][ nx * source.getSizeZ() ];
+		return processFrom( source, previous, new ArrayUnwrapWriter( unwrapped, nx ), unwrapped, null, nThreads );
+	}
+
+	/**
+	 * Fits and unwraps the tube in the stack of a time-point, starting from
+	 * the fit of the previous time-point, and passing the rows of the
+	 * unwrapped image to the specified writer. See
+	 * {@link #processFrom(PlaneSource, TubeFit, int)}.
+	 *
+	 * @param source
+	 *            the stack of the time-point.
+	 * @param previous
+	 *            the fit of the previous time-point.
+	 * @param writer
+	 *            the writer that receives the unwrapped rows. With several
+	 *            threads, rows are passed in no particular order, one at a
+	 *            time.
+	 * @param listener
+	 *            a listener notified after each Z-slice, one at a time, in no
+	 *            particular order. Can be <code>null</code>.
+	 * @param nThreads
+	 *            the number of threads processing the Z-slices.
+	 * @return the tube fit. If the process was canceled, it only holds the
+	 *         Z-slices processed before (see {@link TubeFit#isComplete()}).
+	 *         The fit does not hold the unwrapped image.
+	 */
+	public TubeFit processFrom( final PlaneSource source, final TubeFit previous, final UnwrapWriter writer,
+			final SliceListener listener, final int nThreads )
+	{
+		return processFrom( source, previous, writer, null, listener, nThreads );
+	}
+
+	/**
+	 * Fits and unwraps a tube that runs obliquely through the stack, in the
+	 * planes orthogonal to its centerline instead of the XY slices.
+	 * <p>
+	 * The tube is first fitted in the XY slices, without unwrapping, and a
+	 * smooth 3D centerline is fitted on its centers (see
+	 * {@link Centerline#fit(TubeFit, double)}). The stack is then resampled in
+	 * the planes orthogonal to this centerline, in which the sections of the
+	 * tube are circles that barely move from one plane to the next, and the
+	 * tube is fitted and unwrapped again in these planes (see
+	 * {@link #processAlong(PlaneSource, Centerline, double)}). The unwrapped
+	 * image then has one row per pixel of length along the tube, and is not
+	 * stretched where the tube is tilted.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param cx
+	 *            the X position of the tube center on the first Z-slice.
+	 * @param cy
+	 *            the Y position of the tube center on the first Z-slice.
+	 * @param r
+	 *            the radius of the tube on the first Z-slice.
+	 * @param sigma
+	 *            the standard deviation (in Z-slices) of the Gaussian kernel
+	 *            smoothing the centers of the first fit along Z.
+	 * @return the tube fit in the planes orthogonal to the centerline. If the
+	 *         process was canceled during the first fit, the partial fit in
+	 *         the XY slices, without centerline.
+	 */
+	public TubeFit processStraightened( final PlaneSource source, final double cx, final double cy, final double r,
+			final double sigma )
+	{
+		final TubeFit first = process( source, cx, cy, r, new UnwrapWriter()
+		{
+			@Override
+			public void writeRow( final int z, final float[][] row )
+			{}
+		}, null );
+		if ( !first.isComplete() )
+			return first;
+
+		return processAlong( source, Centerline.fit( first, sigma ), r );
+	}
+
+	/**
+	 * Fits and unwraps the tube in the planes orthogonal to the specified
+	 * centerline, resampled from the stack by a
+	 * {@link StraightenedPlaneSource}. The unwrapped image is kept in memory,
+	 * and is returned with the fit.
+	 * <p>
+	 * Z-slice <code>i</code> of the fit is the plane orthogonal to the
+	 * centerline at its sample <code>i</code>, and its centers and contours
+	 * are in the coordinates of this plane. The centerline passes through the
+	 * initial center of the fit: a point <code>(x, y)</code> of the fit is at
+	 * <code>u = x - getInitialCenterX()</code> and
+	 * <code>v = y - getInitialCenterY()</code> along the normals of the
+	 * centerline (see {@link Centerline#toStack(int, double, double, double[])}).
+	 * <p>
+	 * Near the ends of a tilted tube, the planes leave the stack and hold
+	 * zeros outside of it, so the sections fitted there are not reliable.
+	 * <p>
+	 * The planes are resampled one at a time, in order, so this is not meant
+	 * for {@link #processFrom(PlaneSource, TubeFit, int)}.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param centerline
+	 *            the centerline of the tube in the stack.
+	 * @param r
+	 *            the radius of the tube.
+	 * @return the tube fit, with its centerline (see
+	 *         {@link TubeFit#getCenterline()}). If the process was canceled,
+	 *         it only holds the samples processed before.
+	 */
+	public TubeFit processAlong( final PlaneSource source, final Centerline centerline, final double r )
+	{
+		// Room for the search window and the rays around the centerline.
+		final int half = ( int ) Math.ceil( r ) + searchWindow + WINDOW_RAY + 3;
+		final StraightenedPlaneSource straightened = new StraightenedPlaneSource( source, centerline, 2 * half + 1 );
+		final TubeFit fit = process( straightened, half, half, r );
+		fit.setCenterline( centerline );
+		return fit;
+	}
+
+	/**
+	 * Fits and unwraps several tubes in the specified stack, in a single pass
+	 * over its Z-slices. The unwrapped images are kept in memory, and are
+	 * returned with the fits. See
+	 * {@link #processTubes(PlaneSource, double[], double[], double[], UnwrapWriter[], SliceListener, int)}.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param cx
+	 *            the X position of the center of each tube on the first
+	 *            Z-slice.
+	 * @param cy
+	 *            the Y position of the center of each tube on the first
+	 *            Z-slice.
+	 * @param r
+	 *            the radius of each tube on the first Z-slice.
+	 * @param nThreads
+	 *            the number of threads fitting the tubes on each Z-slice.
+	 * @return the tube fits, one per tube. If the process was canceled, they
+	 *         only hold the Z-slices processed before (see
+	 *         {@link TubeFit#isComplete()}).
+	 */
+	public TubeFit[] processTubes( final PlaneSource source, final double[] cx, final double[] cy, final double[] r,
+			final int nThreads )
+	{
+		final int nTubes = cx.length;
+		final UnwrapWriter[] writers = new UnwrapWriter[ nTubes ];
+		final float[][][] unwrapped = new float[ nTubes ][][];
+		for ( int i = 0; i < nTubes; i++ )
+		{
+			final int nx = getUnwrapWidth( r[ i ] );
+			unwrapped[ i ] = new float[ source.getSizeC() ][ nx * source.getSizeZ() ];
+			writers[ i ] = new ArrayUnwrapWriter( unwrapped[ i ], nx );
+		}
+		return processTubes( source, cx, cy, r, writers, unwrapped, null, nThreads );
+	}
+
+	/**
+	 * Fits and unwraps several tubes in the specified stack, in a single pass
+	 * over its Z-slices, passing the rows of the unwrapped image of each tube
+	 * to its writer as they are produced.
+	 * <p>
+	 * The planes of each Z-slice are requested once, and all the tubes are
+	 * fitted on them, in parallel, before moving to the next Z-slice. The
+	 * stack is thus read once, whatever the number of tubes, and each tube
+	 * is fitted as by {@link #process(PlaneSource, double, double, double)}.
+	 * The planes are shared by the tubes, so whole planes are read even if
+	 * region reading is enabled, and the fit cache is not used.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param cx
+	 *            the X position of the center of each tube on the first
+	 *            Z-slice.
+	 * @param cy
+	 *            the Y position of the center of each tube on the first
+	 *            Z-slice.
+	 * @param r
+	 *            the radius of each tube on the first Z-slice.
+	 * @param writers
+	 *            the writers that receive the unwrapped rows of each tube, of
+	 *            width <code>getUnwrapWidth(r[i])</code>. Each writer receives
+	 *            the rows of its tube in order, from one thread at a time.
+	 * @param listener
+	 *            a listener notified after each Z-slice, once all the tubes
+	 *            have been fitted on it. Can be <code>null</code>.
+	 * @param nThreads
+	 *            the number of threads fitting the tubes on each Z-slice.
+	 * @return the tube fits, one per tube. If the process was canceled, they
+	 *         only hold the Z-slices processed before (see
+	 *         {@link TubeFit#isComplete()}). The fits do not hold the
+	 *         unwrapped images.
+	 */
+	public TubeFit[] processTubes( final PlaneSource source, final double[] cx, final double[] cy, final double[] r,
+			final UnwrapWriter[] writers, final SliceListener listener, final int nThreads )
+	{
+		return processTubes( source, cx, cy, r, writers, null, listener, nThreads );
+	}
+
+	private TubeFit[] processTubes( final PlaneSource source, final double[] cx, final double[] cy, final double[] r,
+			final UnwrapWriter[] writers, final float[][][] unwrapped, final SliceListener listener, final int nThreads )
+	{
+		final int nTubes = cx.length;
+		if ( cy.length != nTubes || r.length != nTubes || writers.length != nTubes )
+			throw new IllegalArgumentException( "Expected " + nTubes + " centers, radii and writers, got " + cy.length + ", "
+					+ r.length + " and " + writers.length + "." );
+
+		if ( pipelineDepth == 0 )
+			return fitTubes( source, cx, cy, r, writers, unwrapped, listener, nThreads );
+
+		try (final PrefetchPlaneSource prefetched = new PrefetchPlaneSource( source, pipelineDepth ))
+		{
+			return fitTubes( prefetched, cx, cy, r, writers, unwrapped, listener, nThreads );
+		}
+	}
+
+	private TubeFit[] fitTubes( final PlaneSource source, final double[] cx, final double[] cy, final double[] r,
+			final UnwrapWriter[] writers, final float[][][] unwrapped, final SliceListener listener, final int nThreads )
+	{
+		final int nTubes = cx.length;
+		final int nz = source.getSizeZ();
+		final int nc = source.getSizeC();
+
+		final List< TubeTrack > tracks = new ArrayList<>( nTubes );
+		for ( int i = 0; i < nTubes; i++ )
+			tracks.add( new TubeTrack( cx[ i ], cy[ i ], r[ i ], nz, nc, writers[ i ], ( null == unwrapped ) ? null : unwrapped[ i ] ) );
+
+		// Planes re-pointed for every Z-slice, shared by the tubes.
+		final Plane[] channels = new Plane[ nc ];
+		// The tracks clear their own rows.
+		final float[][] noRow = new float[ 0 ][];
+
+		final ExecutorService executor = ( nThreads > 1 && nTubes > 1 )
+				? Executors.newFixedThreadPool( Math.min( nThreads, nTubes ) )
+				: null;
+		try
+		{
+			for ( int z = 0; z < nz; z++ )
+			{
+				if ( isCanceled() )
+					break;
+
+				final long t0 = System.nanoTime();
+				readPlanes( source, null, z, 0., 0., channels, noRow );
+				final long fetchNanos = System.nanoTime() - t0;
+				for ( final TubeTrack track : tracks )
+					track.prepare( z, channels, fetchNanos );
+
+				if ( null == executor )
+				{
+					for ( final TubeTrack track : tracks )
+						track.call();
+				}
+				else
+				{
+					try
+					{
+						for ( final Future< Void > future : executor.invokeAll( tracks ) )
+							future.get();
+					}
+					catch ( final InterruptedException e )
+					{
+						// Canceled. Some tubes may not have been fitted on this Z-slice.
+						executor.shutdownNow();
+						awaitTermination( executor );
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+
+				if ( null != listener )
+					listener.sliceProcessed( z );
+			}
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			if ( null != executor )
+				executor.shutdownNow();
+		}
+
+		final TubeFit[] fits = new TubeFit[ nTubes ];
+		for ( int i = 0; i < nTubes; i++ )
+		{
+			fits[ i ] = tracks.get( i ).fit;
+			fits[ i ].getMetrics().finish();
+		}
+		return fits;
+	}
+
+	private TubeFit processFrom( final PlaneSource source, final TubeFit previous, final UnwrapWriter writer,
+			final float[][] unwrapped, final SliceListener listener, final int nThreads )
+	{
+		final int nz = source.getSizeZ();
+		final int nc = source.getSizeC();
+		final int nAngles = getNAngles( previous.getCrownRadius() );
+		if ( previous.getSizeZ() != nz || previous.getNAngles() != nAngles )
+			throw new IllegalArgumentException( "The previous fit has " + previous.getSizeZ() + " Z-slices and " + previous.getNAngles()
+					+ " rays, instead of " + nz + " and " + nAngles + "." );
+
+		final double r = previous.getCrownRadius();
+		final double cx = previous.getInitialCenterX();
+		final double cy = previous.getInitialCenterY();
+		final int nx = getUnwrapWidth( r );
+		// Same geometry as the previous time-point.
+		final CrownGeometry geometry = new CrownGeometry( thetaStart, thetaRange, nAngles, r, r - thickness, WINDOW_RAY, cx, cy );
+		final TubeFit fit = new TubeFit( nz, geometry.theta, r, cx, cy, nx, unwrapped );
+		final RunMetrics metrics = fit.getMetrics();
+
+		final AtomicInteger nextBlock = new AtomicInteger( 0 );
+		final Callable< Boolean > worker = new Callable< Boolean >()
+		{
+			@Override
+			public Boolean call()
+			{
+				final double pixelSize = 1.;
+				final TubeFitter fitter = createFitter( geometry, r, nx, nc, cx, cy );
+				fitter.setPredictionWindow( 0 );
+				final Plane[] channels = new Plane[ nc ];
+				final float[][] row = new float[ nc ][ nx ];
+				final RegionReader region = createRegionReader( source, r );
+				int block;
+				while ( ( block = nextBlock.getAndIncrement() ) * WARM_START_BLOCK < nz )
+				{
+					final int end = Math.min( nz, ( block + 1 ) * WARM_START_BLOCK );
+					for ( int z = block * WARM_START_BLOCK; z < end; z++ )
+					{
+						if ( isCanceled() )
+							return Boolean.FALSE;
+
+						final long allocated = RunMetrics.currentThreadAllocatedBytes();
+						final long t0 = System.nanoTime();
+						readPlanes( source, region, z, previous.getCenterX( z ), previous.getCenterY( z ), channels, row );
+						final long t1 = System.nanoTime();
+
+						final Plane segmentation = channels[ segmentationChannel ];
+						fitter.moveTo( ( int ) Math.round( previous.getCenterX( z ) - geometry.fx ),
+								( int ) Math.round( previous.getCenterY( z ) - geometry.fy ) );
+						final double score = fitter.refineCenter( segmentation, warmStartWindow );
+						final long t2 = System.nanoTime();
+						fitter.scanRays( segmentation );
+						fitter.sampleChannels( channels );
+						final long t3 = System.nanoTime();
+
+						fitter.writeRow( row, 0 );
+						synchronized ( writer )
+						{
+							writer.writeRow( ( int ) ( z / pixelSize ), row );
+						}
+						fit.set( z, fitter.getCenterX(), fitter.getCenterY(), fitter.radii, score );
+						final long t4 = System.nanoTime();
+
+						synchronized ( metrics )
+						{
+							metrics.set( z, t1 - t0, t2 - t1, t3 - t2, t4 - t3,
+									( allocated < 0 ) ? -1 : RunMetrics.currentThreadAllocatedBytes() - allocated, score, fitter.lastSearch );
+							if ( null != metricsListener )
+								metricsListener.sliceMeasured( metrics, z );
+							if ( null != listener )
+								listener.sliceProcessed( z );
+						}
+					}
+				}
+				return Boolean.TRUE;
+			}
+		};
+
+		final int nWorkers = Math.max( 1, Math.min( nThreads, ( nz + WARM_START_BLOCK - 1 ) / WARM_START_BLOCK ) );
+		try
+		{
+			if ( nWorkers == 1 )
+			{
+				worker.call();
+			}
+			else
+			{
+				final ExecutorService executor = Executors.newFixedThreadPool( nWorkers );
+				try
+				{
+					final List< Future< Boolean > > futures = new ArrayList<>( nWorkers );
+					for ( int i = 0; i < nWorkers; i++ )
+						futures.add( executor.submit( worker ) );
+					for ( final Future< Boolean > future : futures )
+						future.get();
+				}
+				catch ( final InterruptedException e )
+				{
+					// Canceled. The workers stop at their next Z-slice.
+					executor.shutdownNow();
+					awaitTermination( executor );
+					Thread.currentThread().interrupt();
+				}
+				finally
+				{
+					executor.shutdownNow();
+				}
+			}
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		catch ( final RuntimeException e )
+		{
+			throw e;
+		}
+		catch ( final Exception e )
+		{
+			// Not thrown by the worker.
+			throw new RuntimeException( e );
+		}
+
+		metrics.finish();
+		return fit;
+	}
+
+	private TubeFit process( final PlaneSource source, final double cx, final double cy, final double r,
+			final UnwrapWriter writer, final float[][] unwrapped, final SliceListener listener, final FitCache cache )
+	{
+		if ( pipelineDepth == 0 )
+			return fit( source, cx, cy, r, writer, unwrapped, listener, cache );
+
+		try (final PrefetchPlaneSource prefetched = new PrefetchPlaneSource( source, pipelineDepth );
+				final AsyncUnwrapWriter asyncWriter = new AsyncUnwrapWriter( writer, listener, source.getSizeC(),
+						getUnwrapWidth( r ), pipelineDepth ))
+		{
+			return fit( prefetched, cx, cy, r, asyncWriter, unwrapped, null, cache );
+		}
+	}
+
+	private TubeFit fit( final PlaneSource source, final double cx, final double cy, final double r,
+			final UnwrapWriter writer, final float[][] unwrapped, final SliceListener listener, final FitCache cache )
+	{
+		final int nx = getUnwrapWidth( r );
+		final int nz = source.getSizeZ();
+		final int nc = source.getSizeC();
+
+		// Adapt the number of rays to the desired thetaRange
+		final int nAngles = getNAngles( r );
+
+		/*
+		 * Outer and inner crown circles. The crown only moves by integer
+		 * offsets, so we can precompute its geometry.
+		 */
+		final CrownGeometry geometry = new CrownGeometry( thetaStart, thetaRange, nAngles, r, r - thickness, WINDOW_RAY, cx, cy );
+		final TubeFitter fitter = createFitter( geometry, r, nx, nc, cx, cy );
+		final TubeFit fit = new TubeFit( nz, geometry.theta, r, cx, cy, nx, unwrapped );
+
+		final ExecutorService executor = createChannelExecutor( nc );
+		fitter.setChannelExecutor( executor );
+
+		final String parameters = ( null == cache ) ? null : cacheParameters( source, cx, cy, r );
+		final FitCache.Track cached = ( null == cache ) ? null : cache.read( parameters, nz, nAngles );
+		final FitCache.Track track = ( null == cache || null != cached ) ? null : new FitCache.Track( nz, nAngles );
+		try
+		{
+			final TubeFit result = fit( source, fitter, fit, writer, listener, cached, track );
+			// Only complete fits are stored.
+			if ( result.isComplete() && null != track )
+				cache.write( parameters, track );
+			return result;
+		}
+		finally
+		{
+			if ( null != executor )
+				executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs the fit over all the Z-slices. If <code>cached</code> is not
+	 * <code>null</code>, the geometry is restored from it instead of being
+	 * fitted. If <code>track</code> is not <code>null</code>, the fitted
+	 * geometry is recorded in it.
+	 */
+	private TubeFit fit( final PlaneSource source, final TubeFitter fitter, final TubeFit fit, final UnwrapWriter writer,
+			final SliceListener listener, final FitCache.Track cached, final FitCache.Track track )
+	{
+		final double pixelSize = 1.;
+		final int nx = fit.getUnwrapWidth();
+		final int nz = source.getSizeZ();
+		final int nc = source.getSizeC();
+		final RunMetrics metrics = fit.getMetrics();
+
+		// Planes re-pointed for every Z-slice.
+		final Plane[] channels = new Plane[ nc ];
+
+		// Unwrapped row, reused for every Z-slice.
+		final float[][] row = new float[ nc ][ nx ];
+
+		final RegionReader region = createRegionReader( source, fit.getCrownRadius() );
+
+		for ( int z = 0; z < nz; z++ )
+		{
+			if ( isCanceled() )
+				break;
+
+			final int iy = ( int ) ( z / pixelSize );
+			final long allocated = RunMetrics.currentThreadAllocatedBytes();
+			final long t0 = System.nanoTime();
+			// Around the center of the previous Z-slice.
+			readPlanes( source, region, z, fitter.getCenterX(), fitter.getCenterY(), channels, row );
+			final long t1 = System.nanoTime();
+
+			final double score;
+			final long t2;
+			if ( null == cached )
+			{
+				final Plane segmentation = channels[ segmentationChannel ];
+				score = fitter.searchCenter( segmentation );
+				t2 = System.nanoTime();
+				fitter.scanRays( segmentation );
+				fitter.sampleChannels( channels );
+				if ( null != track )
+					track.record( z, fitter, score );
+			}
+			else
+			{
+				t2 = t1;
+				fitter.restore( cached.crownX[ z ], cached.crownY[ z ], cached.radiusIndices, z * cached.nAngles,
+						channels[ segmentationChannel ] );
+				fitter.sampleChannels( channels );
+				score = cached.scores[ z ];
+			}
+			final long t3 = System.nanoTime();
+
+			fitter.writeRow( row, 0 );
+			writer.writeRow( iy, row );
+			fit.set( z, fitter.getCenterX(), fitter.getCenterY(), fitter.radii, score );
+			final long t4 = System.nanoTime();
+
+			metrics.set( z, t1 - t0, t2 - t1, t3 - t2, t4 - t3,
+					( allocated < 0 ) ? -1 : RunMetrics.currentThreadAllocatedBytes() - allocated, score, fitter.lastSearch );
+			if ( null != metricsListener )
+				metricsListener.sliceMeasured( metrics, z );
+			if ( null != listener )
+				listener.sliceProcessed( z );
+		}
+
+		metrics.finish();
+		return fit;
+	}
+
+	/**
+	 * Re-fits the tube on a range of Z-slices of a stack already processed,
+	 * after a manual correction of the tube center on the first Z-slice of the
+	 * range. The tube center is tracked again from the corrected position,
+	 * until the end of the range, or until the new track rejoins the previous
+	 * one: once the crown center found on a Z-slice is the same as before,
+	 * and with motion prediction, once the predictor is in the same state as
+	 * along the previous track, the next Z-slices would be fitted the same.
+	 * The fit is updated in place, and the rows of the re-fitted Z-slices are
+	 * passed to the writer.
+	 * <p>
+	 * The engine must have the same parameters as the one that produced the
+	 * fit.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param fit
+	 *            the fit to correct.
+	 * @param zStart
+	 *            the first Z-slice to re-fit, on which the center is corrected.
+	 * @param zEnd
+	 *            the Z-slice after the last one to re-fit, at most.
+	 * @param cx
+	 *            the corrected X position of the tube center on
+	 *            <code>zStart</code>.
+	 * @param cy
+	 *            the corrected Y position of the tube center on
+	 *            <code>zStart</code>.
+	 * @param writer
+	 *            the writer that receives the re-fitted unwrapped rows.
+	 * @param listener
+	 *            a listener notified after each re-fitted Z-slice. Can be
+	 *            <code>null</code>.
+	 * @return the Z-slice after the last one re-fitted, or -1 if the process
+	 *         was canceled. The Z-slices from <code>zStart</code> to this value
+	 *         (exclusive) have been updated.
+	 */
+	public int refit( final PlaneSource source, final TubeFit fit, final int zStart, final int zEnd, final double cx,
+			final double cy, final UnwrapWriter writer, final SliceListener listener )
+	{
+		return refit( source, fit, zStart, zEnd, cx, cy, writer, listener, null );
+	}
+
+	/**
+	 * Re-fits the tube on a range of Z-slices of a stack already processed,
+	 * and updates the geometry stored for this stack in the specified cache.
+	 * See {@link #refit(PlaneSource, TubeFit, int, int, double, double, UnwrapWriter, SliceListener)}.
+	 * <p>
+	 * The cache is only updated if it holds the geometry of the fit, that is
+	 * if the fit was made or restored through it. The re-fitted Z-slices are
+	 * written back to it, also if the process is canceled, so that running
+	 * the stack again restores the corrected fit.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param fit
+	 *            the fit to correct.
+	 * @param zStart
+	 *            the first Z-slice to re-fit, on which the center is corrected.
+	 * @param zEnd
+	 *            the Z-slice after the last one to re-fit, at most.
+	 * @param cx
+	 *            the corrected X position of the tube center on
+	 *            <code>zStart</code>.
+	 * @param cy
+	 *            the corrected Y position of the tube center on
+	 *            <code>zStart</code>.
+	 * @param writer
+	 *            the writer that receives the re-fitted unwrapped rows.
+	 * @param listener
+	 *            a listener notified after each re-fitted Z-slice. Can be
+	 *            <code>null</code>.
+	 * @param cache
+	 *            the cache of fitted geometry for this stack. Can be
+	 *            <code>null</code>.
+	 * @return the Z-slice after the last one re-fitted, or -1 if the process
+	 *         was canceled. The Z-slices from <code>zStart</code> to this value
+	 *         (exclusive) have been updated.
+	 */
+	public int refit( final PlaneSource source, final TubeFit fit, final int zStart, final int zEnd, final double cx,
+			final double cy, final UnwrapWriter writer, final SliceListener listener, final FitCache cache )
+	{
+		final double pixelSize = 1.;
+		final int nc = source.getSizeC();
+		final int nx = fit.getUnwrapWidth();
+		final int end = Math.min( zEnd, source.getSizeZ() );
+		final double r = fit.getCrownRadius();
+		final double x0 = fit.getInitialCenterX();
+		final double y0 = fit.getInitialCenterY();
+
+		final CrownGeometry geometry = new CrownGeometry( thetaStart, thetaRange, getNAngles( r ), r, r - thickness, WINDOW_RAY, x0, y0 );
+		final TubeFitter fitter = createFitter( geometry, r, nx, nc, x0, y0 );
+		// Same sub-pixel part as the initial circle.
+		fitter.moveTo( ( int ) Math.round( cx - geometry.fx ), ( int ) Math.round( cy - geometry.fy ) );
+		// Predictor along the previous track, to tell when the new one rejoins it.
+		final MotionPredictor previous = fitter.replayPredictor( fit, zStart );
+
+		final String parameters = ( null == cache ) ? null : cacheParameters( source, x0, y0, r );
+		final FitCache.Track track = ( null == cache ) ? null : cache.read( parameters, source.getSizeZ(), geometry.nAngles );
+
+		final Plane[] channels = new Plane[ nc ];
+		final float[][] row = new float[ nc ][ nx ];
+		final RegionReader region = createRegionReader( source, r );
+		final ExecutorService executor = createChannelExecutor( nc );
+		fitter.setChannelExecutor( executor );
+		boolean canceled = false;
+		int zNext = zStart;
+		try
+		{
+			while ( zNext < end )
+			{
+				if ( isCanceled() )
+				{
+					canceled = true;
+					break;
+				}
+
+				final int z = zNext++;
+				readPlanes( source, region, z, fitter.getCenterX(), fitter.getCenterY(), channels, row );
+				final double score = fitter.fit( channels[ segmentationChannel ], channels, row, 0 );
+				writer.writeRow( ( int ) ( z / pixelSize ), row );
+
+				if ( null != previous )
+					fitter.replay( previous, fit, z );
+				final boolean rejoined = fitter.getCenterX() == fit.getCenterX( z ) && fitter.getCenterY() == fit.getCenterY( z )
+						&& fitter.samePrediction( previous );
+				fit.set( z, fitter.getCenterX(), fitter.getCenterY(), fitter.radii, score );
+				if ( null != track )
+					track.record( z, fitter, score );
+
+				if ( null != listener )
+					listener.sliceProcessed( z );
+				if ( rejoined )
+					break;
+			}
+		}
+		finally
+		{
+			if ( null != executor )
+				executor.shutdownNow();
+		}
+
+		if ( null != track && zNext > zStart )
+			cache.write( parameters, track );
+		return canceled ? -1 : zNext;
+	}
+
+	/**
+	 * Points the channel planes to the specified Z-slice, and clears the
+	 * unwrapped row, as not all its columns are written by the fitter. If
+	 * the region reader is not <code>null</code>, only the crown region
+	 * around the specified center is read.
+	 */
+	private static void readPlanes( final PlaneSource source, final RegionReader region, final int z, final double cx,
+			final double cy, final Plane[] channels, final float[][] row )
+	{
+		for ( int c = 0; c < channels.length; c++ )
+		{
+			final Object array = ( null == region ) ? source.getPlane( z, c ) : region.read( z, c, cx, cy );
+			if ( null == channels[ c ] )
+				channels[ c ] = Plane.wrap( array, source.isSigned(), source.getWidth(), source.getHeight() );
+			else
+				channels[ c ].setData( array );
+		}
+		for ( int c = 0; c < row.length; c++ )
+			Arrays.fill( row[ c ], 0f );
+	}
+
+	/**
+	 * Creates the reader of the crown region of each Z-slice, or returns
+	 * <code>null</code> if whole planes are read.
+	 */
+	private RegionReader createRegionReader( final PlaneSource source, final double r )
+	{
+		if ( !regionReading || !( source instanceof RegionPlaneSource ) )
+			return null;
+
+		/*
+		 * The crown search reads within the crown radius of the centers in
+		 * the search window, the rays and the channel samples within the ray
+		 * window of the crown radius, plus the interpolation support, around
+		 * the new center.
+		 */
+		int margin = Math.max( searchWindow, warmStartWindow ) + ( int ) Math.ceil( r ) + WINDOW_RAY + 3;
+		if ( wallProjection != WallProjection.CONTOUR )
+			margin += projectionBand;
+		// Blocks of the coarse levels, and refinement beyond the window.
+		if ( pyramidLevels > 0 )
+			margin += ( PyramidCrownSearch.REFINE_WINDOW + 1 ) << pyramidLevels;
+		return new RegionReader( ( RegionPlaneSource ) source, margin );
+	}
+
+	/**
+	 * Creates the executor on which the channels are sampled, or returns
+	 * <code>null</code> if they are sampled on the fitting thread.
+	 */
+	private ExecutorService createChannelExecutor( final int nc )
+	{
+		return ( channelThreads > 1 && nc > 1 )
+				? Executors.newFixedThreadPool( Math.min( channelThreads, nc ) )
+				: null;
+	}
+
+	/**
+	 * Returns the parameters the fitted geometry depends on, as a cache key.
+	 * The crown search method is not part of it, as all methods find the same
+	 * centers.
+	 */
+	private String cacheParameters( final PlaneSource source, final double cx, final double cy, final double r )
+	{
+		return "segmentationChannel=" + segmentationChannel
+				+ ";thickness=" + thickness
+				+ ";searchWindow=" + searchWindow
+				+ ";windowRay=" + WINDOW_RAY
+				+ ";thetaStart=" + thetaStart
+				+ ";thetaRange=" + thetaRange
+				+ ";pyramidLevels=" + pyramidLevels
+				+ ( ( predictionWindow == 0 ) ? "" : ";predictionWindow=" + predictionWindow )
+				+ ";nAngles=" + getNAngles( r )
+				+ ";radialSampling=" + radialSampling.name()
+				+ ( ( radialSampling == RadialSampling.NEAREST ) ? "" : ";radialStep=" + radialStep )
+				+ ";circle=" + cx + "," + cy + "," + r
+				+ ";size=" + source.getWidth() + "x" + source.getHeight() + "x" + source.getSizeZ() + "x" + source.getSizeC();
+	}
+
+	/**
+	 * Creates the fitter of one time-point, with its crown search, its ray
+	 * sampler and its wall projector.
+	 */
+	private TubeFitter createFitter( final CrownGeometry geometry, final double r, final int nx, final int nc,
+			final double cx, final double cy )
+	{
+		final TubeFitter fitter = new TubeFitter( geometry, createCrownSearch( geometry, r, cx, cy ), searchWindow, WINDOW_RAY,
+				r, nx, nc, cx, cy );
+		if ( radialSampling != RadialSampling.NEAREST )
+			fitter.setRaySampler( new RaySampler( geometry, radialSampling, radialStep, r, WINDOW_RAY ) );
+		if ( wallProjection != WallProjection.CONTOUR )
+			fitter.setWallProjector( new WallProjector( geometry, wallProjection, projectionBand ) );
+		fitter.setPredictionWindow( predictionWindow );
+		return fitter;
+	}
+
+	/**
+	 * Creates the crown search for the specified full resolution geometry,
+	 * possibly on a pyramid of downsampled levels.
+	 */
+	private CrownSearch createCrownSearch( final CrownGeometry geometry, final double r, final double cx, final double cy )
+	{
+		if ( pyramidLevels == 0 )
+			return crownSearchMethod.create( geometry );
+
+		final int nLevels = pyramidLevels + 1;
+		final CrownGeometry[] geometries = new CrownGeometry[ nLevels ];
+		final CrownSearch[] searches = new CrownSearch[ nLevels ];
+		geometries[ 0 ] = geometry;
+		searches[ 0 ] = crownSearchMethod.create( geometry );
+		for ( int l = 1; l < nLevels; l++ )
+		{
+			final double scale = 1 << l;
+			geometries[ l ] = new CrownGeometry( thetaStart, thetaRange, geometry.nAngles, r / scale, ( r - thickness ) / scale,
+					WINDOW_RAY, cx / scale, cy / scale );
+			searches[ l ] = crownSearchMethod.create( geometries[ l ] );
+		}
+		return new PyramidCrownSearch( geometries, searches );
+	}
+
+	/**
+	 * Returns an estimate of the heap (in bytes) used to fit and unwrap the
+	 * specified stack with a streaming source and writer, assuming planes of
+	 * at most 4 bytes per pixel. It accounts for the planes and unwrapped rows
+	 * held at a time, and for the fitted geometry kept for every Z-slice, but
+	 * not for the unwrapped image itself.
+	 *
+	 * @param source
+	 *            the stack.
+	 * @param r
+	 *            the radius of the tube on the first Z-slice.
+	 * @return the estimated heap size, in bytes.
+	 */
+	public long estimateMemory( final PlaneSource source, final double r )
+	{
+		long planes = 4l * source.getWidth() * source.getHeight() * source.getSizeC() * ( pipelineDepth + 1 );
+		if ( pyramidLevels > 0 )
+			planes += planes / 3;
+		final long rows = 4l * source.getSizeC() * getUnwrapWidth( r ) * ( pipelineDepth + 1 );
+		// Center, score, radii and metrics of each Z-slice.
+		final long track = ( long ) source.getSizeZ() * ( 3 * 8 + 4 * getNAngles( r ) + 8 * 8 );
+		return planes + rows + track;
+	}
+
+	/**
+	 * Cancels all the processes running on this engine. They stop before
+	 * their next Z-slice, and return the Z-slices processed so far.
+	 */
+	public void cancel()
+	{
+		canceled = true;
+	}
+
+	/**
+	 * Returns <code>true</code> if the processes running on this engine were
+	 * canceled, or if the current thread was interrupted.
+	 */
+	private boolean isCanceled()
+	{
+		return canceled || Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * Waits for the workers of a canceled process to stop, even if the
+	 * current thread is interrupted. The interrupted status is cleared.
+	 */
+	private static void awaitTermination( final ExecutorService executor )
+	{
+		while ( !executor.isTerminated() )
+		{
+			try
+			{
+				executor.awaitTermination( 1, TimeUnit.SECONDS );
+			}
+			catch ( final InterruptedException e )
+			{
+				// Keep waiting.
+			}
+		}
+	}
+
+	/**
+	 * The fit of one of the tubes processed in a single pass, on the planes
+	 * of the current Z-slice.
+	 */
+	private class TubeTrack implements Callable< Void >
+	{
+
+		private final TubeFitter fitter;
+
+		private final TubeFit fit;
+
+		private final UnwrapWriter writer;
+
+		private final float[][] row;
+
+		private int z;
+
+		private Plane[] channels;
+
+		private long fetchNanos;
+
+		private TubeTrack( final double cx, final double cy, final double r, final int nz, final int nc,
+				final UnwrapWriter writer, final float[][] unwrapped )
+		{
+			final int nx = getUnwrapWidth( r );
+			final CrownGeometry geometry = new CrownGeometry( thetaStart, thetaRange, getNAngles( r ), r, r - thickness, WINDOW_RAY,
+					cx, cy );
+			this.fitter = createFitter( geometry, r, nx, nc, cx, cy );
+			this.fit = new TubeFit( nz, geometry.theta, r, cx, cy, nx, unwrapped );
+			this.writer = writer;
+			this.row = new float[ nc ][ nx ];
+		}
+
+		/**
+		 * Sets the Z-slice to fit on the next call, and its planes.
+		 */
+		private void prepare( final int z, final Plane[] channels, final long fetchNanos )
+		{
+			this.z = z;
+			this.channels = channels;
+			this.fetchNanos = fetchNanos;
+		}
+
+		@Override
+		public Void call()
+		{
+			final double pixelSize = 1.;
+			final long allocated = RunMetrics.currentThreadAllocatedBytes();
+			final long t1 = System.nanoTime();
+			for ( int c = 0; c < row.length; c++ )
+				Arrays.fill( row[ c ], 0f );
+
+			final Plane segmentation = channels[ segmentationChannel ];
+			final double score = fitter.searchCenter( segmentation );
+			final long t2 = System.nanoTime();
+			fitter.scanRays( segmentation );
+			fitter.sampleChannels( channels );
+			final long t3 = System.nanoTime();
+
+			fitter.writeRow( row, 0 );
+			writer.writeRow( ( int ) ( z / pixelSize ), row );
+			fit.set( z, fitter.getCenterX(), fitter.getCenterY(), fitter.radii, score );
+			final long t4 = System.nanoTime();
+
+			final RunMetrics metrics = fit.getMetrics();
+			metrics.set( z, fetchNanos, t2 - t1, t3 - t2, t4 - t3,
+					( allocated < 0 ) ? -1 : RunMetrics.currentThreadAllocatedBytes() - allocated, score, fitter.lastSearch );
+			if ( null != metricsListener )
+				metricsListener.sliceMeasured( metrics, z );
+			return null;
+		}
+	}
+}
@@ -1,20 +1,37 @@
 package plugins.tinevez.tubeskinner;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import icy.gui.dialog.MessageDialog;
 import icy.gui.viewer.Viewer;
 import icy.roi.ROI;
+import icy.roi.ROI2D;
 import icy.sequence.Sequence;
 import plugins.adufour.blocks.lang.Block;
 import plugins.adufour.blocks.util.VarList;
+import plugins.adufour.ezplug.EzButton;
+import plugins.adufour.ezplug.EzGUI;
 import plugins.adufour.ezplug.EzPlug;
 import plugins.adufour.ezplug.EzStoppable;
 import plugins.adufour.ezplug.EzVarBoolean;
 import plugins.adufour.ezplug.EzVarDouble;
+import plugins.adufour.ezplug.EzVarEnum;
+import plugins.adufour.ezplug.EzVarFile;
+import plugins.adufour.ezplug.EzVarFolder;
 import plugins.adufour.ezplug.EzVarInteger;
 import plugins.adufour.ezplug.EzVarSequence;
 import plugins.adufour.vars.lang.VarROIArray;
 import plugins.adufour.vars.lang.VarSequence;
 import plugins.kernel.roi.roi2d.ROI2DEllipse;
+import plugins.kernel.roi.roi3d.ROI3DArea;
 
 public class TubeSkinnerGUI extends EzPlug implements EzStoppable, Block
 {
@@ -23,20 +40,84 @@ public class TubeSkinnerGUI extends EzPlug implements EzStoppable, Block
 
 	private static final String PLUGIN_NAME = "TubeSkinner v" + PLUGIN_VERSION;
 
+	/**
+	 * Folder, next to the image file, in which the fitted geometry is cached.
+	 */
+	private static final String CACHE_FOLDER = "TubeSkinnerCache";
+
 	private final EzVarInteger segmentationChannel = new EzVarInteger( "Segmentation channel", 0, 0, 10, 1 );
 
 	private final EzVarInteger crownThickness = new EzVarInteger( "Crown thickness", 15, 1, 1000, 1 );
 
 	private final EzVarInteger searchWindow = new EzVarInteger( "Tube center search window", 5, 0, 1000, 1 );
 
+	private final EzVarEnum< CrownSearchMethod > crownSearchMethod = new EzVarEnum<>( "Tube center search method", CrownSearchMethod.values(), CrownSearchMethod.BRUTE_FORCE );
+
+	private final EzVarInteger pyramidLevels = new EzVarInteger( "Coarse-to-fine levels", 0, 0, 4, 1 );
+
+	private final EzVarInteger predictionWindow = new EzVarInteger( "Predicted center window (0 for none)", 0, 0, 1000, 1 );
+
+	private final EzVarEnum< RadialSampling > radialSampling = new EzVarEnum<>( "Radial sampling", RadialSampling.values(), RadialSampling.NEAREST );
+
+	private final EzVarDouble radialStep = new EzVarDouble( "Radial step (pixels)", 1., 0.1, 1., 0.1 );
+
+	private final EzVarEnum< AngularSampling > angularSampling = new EzVarEnum<>( "Angular sampling", AngularSampling.values(), AngularSampling.FIXED_ANGLE );
+
+	private final EzVarDouble sampleAngle = new EzVarDouble( "Angle between rays", 1., 0.1, 10., 0.1 );
+
+	private final EzVarEnum< WallProjection > wallProjection = new EzVarEnum<>( "Wall projection", WallProjection.values(), WallProjection.CONTOUR );
+
+	private final EzVarInteger projectionBand = new EzVarInteger( "Projection band (pixels)", 3, 1, 100, 1 );
+
 	private final EzVarBoolean allTimePoints = new EzVarBoolean( "Process all time-points", false );
 
+	private final EzVarBoolean warmStart = new EzVarBoolean( "Start from previous time-point", false );
+
+	private final EzVarInteger numThreads = new EzVarInteger( "Number of threads", Runtime.getRuntime().availableProcessors(), 1, 256, 1 );
+
 	private final EzVarDouble thetaStart = new EzVarDouble( "Start at theta = ", 0., -360., 360., 45. );
 
 	private final EzVarInteger thetaRange = new EzVarInteger( "Evaluate theta over = ", 360, 90, 360, 45 );
 
+	private final EzVarBoolean createROIs = new EzVarBoolean( "Create 3D ROIs", true );
+
+	private final EzVarBoolean cacheFits = new EzVarBoolean( "Cache fitted geometry", false );
+
+	private final EzVarBoolean exportMetrics = new EzVarBoolean( "Export run metrics", false );
+
+	private final EzVarFolder metricsFolder = new EzVarFolder( "Metrics folder", null );
+
+	private final EzVarBoolean unwrapToFile = new EzVarBoolean( "Write unwrapped image to file", false );
+
+	private final EzVarFile unwrapFile = new EzVarFile( "Unwrapped image file", null );
+
+	private final EzVarInteger refitRange = new EzVarInteger( "Re-fit at most (slices, 0 for all)", 0, 0, 100000, 1 );
+
+	private final EzButton refit = new EzButton( "Re-fit from corrected circle", new ActionListener()
+	{
+		@Override
+		public void actionPerformed( final ActionEvent e )
+		{
+			new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					refit();
+				}
+			}, "TubeSkinner re-fit" ).start();
+		}
+	} );
+
 	private TubeSkinner aortaTracker;
 
+	/**
+	 * The sequence and the initial ellipses of the last run, used to re-fit.
+	 */
+	private Sequence processedSequence;
+
+	private List< ROI2DEllipse > processedEllipses;
+
 	private final EzVarSequence inImage = new EzVarSequence( "Input image" );
 
 	private final VarSequence outWrap = new VarSequence( "Unwrapped image", ( Sequence ) null ); // output
@@ -89,19 +170,20 @@ public class TubeSkinnerGUI extends EzPlug implements EzStoppable, Block
 				sequence.removeROI( roi );
 		}
 
-		// tracking.
-		final ROI2DEllipse ellipse;
-		final int currentTimePoint;
-		try
-		{
-			ellipse = ( ROI2DEllipse ) sequence.getROI2Ds().get( 0 );
-		}
-		catch ( final Exception e )
+		// tracking, one tube per ellipse on the first slice. Correction
+		// ellipses added on other Z-slices for a re-fit are not seeds.
+		final List< ROI2DEllipse > ellipses = new ArrayList<>();
+		for ( final ROI2D roi : sequence.getROI2Ds() )
+			if ( roi instanceof ROI2DEllipse && ( roi.getZ() == -1 || roi.getZ() == 0 ) )
+				ellipses.add( ( ROI2DEllipse ) roi );
+		if ( ellipses.isEmpty() )
 		{
 			MessageDialog.showDialog( "Please adjust a ROI Ellipse on the first slice of the stack." );
 			return;
 		}
 
+		final ROI2DEllipse ellipse = ellipses.get( 0 );
+		final int currentTimePoint;
 		if ( ellipse.getT() == -1 ) // ROI is not bound a specific timepoint
 		{
 			currentTimePoint = 0; // Default is first time point
@@ -111,9 +193,19 @@ public class TubeSkinnerGUI extends EzPlug implements EzStoppable, Block
 			currentTimePoint = ellipse.getT();
 		}
 
+		// All the tubes are tracked on the time-point of the first ellipse.
+		for ( final ROI2DEllipse seed : ellipses )
+		{
+			if ( Math.max( 0, seed.getT() ) != currentTimePoint )
+			{
+				MessageDialog.showDialog( "Please adjust all the ROI Ellipses on the same time-point." );
+				return;
+			}
+		}
+
 		this.aortaTracker = new TubeSkinner(
 				sequence,
-				ellipse,
+				ellipses,
 				segmentationChannel.getValue( true ).intValue(),
 				crownThickness.getValue( true ).intValue(),
 				searchWindow.getValue( true ).intValue(),
@@ -122,10 +214,148 @@ public class TubeSkinnerGUI extends EzPlug implements EzStoppable, Block
 				thetaRange.getValue( true ).intValue(),
 				this.isHeadLess() );
 		aortaTracker.setTimePoint( currentTimePoint );
+		aortaTracker.setCrownSearchMethod( crownSearchMethod.getValue( true ) );
+		aortaTracker.setPyramidLevels( pyramidLevels.getValue( true ).intValue() );
+		aortaTracker.setPredictionWindow( predictionWindow.getValue( true ).intValue() );
+		aortaTracker.setRadialSampling( radialSampling.getValue( true ) );
+		aortaTracker.setRadialStep( radialStep.getValue( true ).doubleValue() );
+		aortaTracker.setAngularSampling( angularSampling.getValue( true ) );
+		aortaTracker.setSampleAngle( sampleAngle.getValue( true ).doubleValue() );
+		aortaTracker.setWallProjection( wallProjection.getValue( true ) );
+		aortaTracker.setProjectionBand( projectionBand.getValue( true ).intValue() );
+		aortaTracker.setNumThreads( numThreads.getValue( true ).intValue() );
+		aortaTracker.setWarmStart( warmStart.getValue( true ) );
+		aortaTracker.setCreateROIs( createROIs.getValue( true ) );
+		// The cache sits next to the image file.
+		if ( cacheFits.getValue( true ) && null != sequence.getFilename() )
+			aortaTracker.setCacheDirectory( new File( new File( sequence.getFilename() ).getAbsoluteFile().getParentFile(), CACHE_FOLDER ) );
+		if ( unwrapToFile.getValue( true ) && null != unwrapFile.getValue( true ) )
+			aortaTracker.setUnwrapFile( unwrapFile.getValue( true ) );
+		final EzGUI ui = getUI();
+		if ( null != ui )
+		{
+			// Progress over all the time-points to process.
+			final int nSlices = sequence.getSizeZ() * ( allTimePoints.getValue( true ) ? sequence.getSizeT() : 1 ) * ellipses.size();
+			final AtomicInteger nProcessed = new AtomicInteger( 0 );
+			aortaTracker.setMetricsListener( new RunMetrics.Listener()
+			{
+				@Override
+				public void sliceMeasured( final RunMetrics metrics, final int z )
+				{
+					final int n = nProcessed.incrementAndGet();
+					if ( n % 100 == 0 )
+					{
+						ui.setProgressBarValue( ( double ) n / nSlices );
+						ui.setProgressBarMessage( String.format( "%d / %d slices, %.0f slices/s", n, nSlices, metrics.getSlicesPerSecond() ) );
+					}
+				}
+			} );
+		}
 		aortaTracker.run();
 		outWrap.setValue( aortaTracker.getOutWrap() );
-		skins.setValue( aortaTracker.getSkinROIs() );
+		final int nTubes = aortaTracker.getNTubes();
+		if ( null == aortaTracker.getOutWrap() && !isHeadLess() && null != aortaTracker.getFits() && aortaTracker.getFits().length > 0 )
+		{
+			// Only show the first time-point, read back from the files.
+			for ( int tube = 0; tube < nTubes; tube++ )
+			{
+				final Sequence preview = new Sequence( "Unwrapped " + sequence.getName() + ( ( nTubes > 1 ) ? " tube " + tube : "" ) + " t=0" );
+				preview.addImage( 0, aortaTracker.getUnwrapImage( tube, 0 ) );
+				addSequence( preview );
+			}
+		}
+		// The skins of all the tubes.
+		final List< ROI3DArea > allSkins = new ArrayList<>();
+		for ( int tube = 0; tube < nTubes; tube++ )
+			for ( final ROI3DArea skin : aortaTracker.getSkinROIs( tube ) )
+				allSkins.add( skin );
+		skins.setValue( allSkins.toArray( new ROI3DArea[ allSkins.size() ] ) );
+		if ( exportMetrics.getValue( true ) && null != metricsFolder.getValue( true ) )
+			exportMetrics( sequence.getName(), metricsFolder.getValue( true ) );
+		processedSequence = sequence;
+		processedEllipses = ellipses;
+
+	}
 
+	/**
+	 * Writes the metrics of each processed time-point as CSV and JSON files in
+	 * the specified folder.
+	 */
+	private void exportMetrics( final String name, final File folder )
+	{
+		final int nTubes = aortaTracker.getNTubes();
+		for ( int tube = 0; tube < nTubes; tube++ )
+		{
+			final TubeFit[] fits = aortaTracker.getFits( tube );
+			for ( int i = 0; i < fits.length; i++ )
+			{
+				final RunMetrics metrics = fits[ i ].getMetrics();
+				final String prefix = name + ( ( nTubes > 1 ) ? "_tube" + tube : "" ) + "_metrics_" + i;
+				try (Writer csv = new FileWriter( new File( folder, prefix + ".csv" ) );
+						Writer json = new FileWriter( new File( folder, prefix + ".json" ) ))
+				{
+					metrics.writeCSV( csv );
+					metrics.writeJSON( json );
+				}
+				catch ( final IOException e )
+				{
+					MessageDialog.showDialog( "Could not export the run metrics: " + e.getMessage(), MessageDialog.ERROR_MESSAGE );
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Re-fits the last run from a corrected circle: an ellipse ROI adjusted
+	 * on the Z-slice where the tracking went wrong.
+	 */
+	private void refit()
+	{
+		final TubeSkinner tracker = aortaTracker;
+		if ( null == tracker || null == tracker.getFits() || null == processedSequence )
+		{
+			MessageDialog.showDialog( "Please run TubeSkinner first." );
+			return;
+		}
+
+		// The last ellipse added on a Z-slice, other than the initial ones.
+		ROI2DEllipse corrected = null;
+		for ( final ROI2D roi : processedSequence.getROI2Ds() )
+			if ( roi instanceof ROI2DEllipse && !processedEllipses.contains( roi ) && roi.getZ() >= 0 )
+				corrected = ( ROI2DEllipse ) roi;
+		if ( null == corrected )
+		{
+			MessageDialog.showDialog( "Please adjust a ROI Ellipse on the Z-slice to correct." );
+			return;
+		}
+
+		final int timepoint = ( corrected.getT() == -1 ) ? Math.max( 0, processedEllipses.get( 0 ).getT() ) : corrected.getT();
+		final int zStart = corrected.getZ();
+		final int range = refitRange.getValue( true ).intValue();
+		final int zEnd = ( range == 0 ) ? processedSequence.getSizeZ() : zStart + range;
+		final double cx = corrected.getBounds2D().getCenterX();
+		final double cy = corrected.getBounds2D().getCenterY();
+
+		// The tube fitted closest to the corrected circle on its Z-slice.
+		final int index = ( tracker.getFits().length == 1 ) ? 0 : timepoint;
+		int tube = 0;
+		double minDistance = Double.POSITIVE_INFINITY;
+		for ( int i = 0; i < tracker.getNTubes(); i++ )
+		{
+			final TubeFit[] fits = tracker.getFits( i );
+			if ( index >= fits.length || zStart >= fits[ index ].getSizeZ() )
+				continue;
+			final double dx = fits[ index ].getCenterX( zStart ) - cx;
+			final double dy = fits[ index ].getCenterY( zStart ) - cy;
+			final double distance = dx * dx + dy * dy;
+			if ( distance < minDistance )
+			{
+				minDistance = distance;
+				tube = i;
+			}
+		}
+		tracker.refit( tube, timepoint, zStart, zEnd, cx, cy );
 	}
 
 	@Override
@@ -135,9 +365,35 @@ public class TubeSkinnerGUI extends EzPlug implements EzStoppable, Block
 		addEzComponent( segmentationChannel );
 		addEzComponent( crownThickness );
 		addEzComponent( searchWindow );
+		addEzComponent( crownSearchMethod );
+		addEzComponent( pyramidLevels );
+		addEzComponent( predictionWindow );
+		addEzComponent( radialSampling );
+		addEzComponent( radialStep );
+		radialSampling.addVisibilityTriggerTo( radialStep, RadialSampling.BILINEAR, RadialSampling.CUBIC );
+		addEzComponent( angularSampling );
+		addEzComponent( sampleAngle );
+		angularSampling.addVisibilityTriggerTo( sampleAngle, AngularSampling.FIXED_ANGLE );
+		addEzComponent( wallProjection );
+		addEzComponent( projectionBand );
+		wallProjection.addVisibilityTriggerTo( projectionBand, WallProjection.MAX, WallProjection.MEAN, WallProjection.GAUSSIAN );
 		addEzComponent( allTimePoints );
+		// Also used to fit several tubes concurrently.
+		addEzComponent( numThreads );
+		addEzComponent( warmStart );
+		allTimePoints.addVisibilityTriggerTo( warmStart, true );
 		addEzComponent( thetaStart );
 		addEzComponent( thetaRange );
+		addEzComponent( createROIs );
+		addEzComponent( cacheFits );
+		addEzComponent( exportMetrics );
+		addEzComponent( metricsFolder );
+		exportMetrics.addVisibilityTriggerTo( metricsFolder, true );
+		addEzComponent( unwrapToFile );
+		addEzComponent( unwrapFile );
+		unwrapToFile.addVisibilityTriggerTo( unwrapFile, true );
+		addEzComponent( refitRange );
+		addEzComponent( refit );
 	}
 
 	@Override
@@ -153,9 +409,26 @@ public class TubeSkinnerGUI extends EzPlug implements EzStoppable, Block
 		inputMap.add( "Segmentation channel", this.segmentationChannel.getVariable() );
 		inputMap.add( "Crown thickness", this.crownThickness.getVariable() );
 		inputMap.add( "Tube center search window", this.searchWindow.getVariable() );
+		inputMap.add( "Tube center search method", this.crownSearchMethod.getVariable() );
+		inputMap.add( "Coarse-to-fine levels", this.pyramidLevels.getVariable() );
+		inputMap.add( "Predicted center window (0 for none)", this.predictionWindow.getVariable() );
+		inputMap.add( "Radial sampling", this.radialSampling.getVariable() );
+		inputMap.add( "Radial step (pixels)", this.radialStep.getVariable() );
+		inputMap.add( "Angular sampling", this.angularSampling.getVariable() );
+		inputMap.add( "Angle between rays", this.sampleAngle.getVariable() );
+		inputMap.add( "Wall projection", this.wallProjection.getVariable() );
+		inputMap.add( "Projection band (pixels)", this.projectionBand.getVariable() );
 		inputMap.add( "Process all time-points", this.allTimePoints.getVariable() );
+		inputMap.add( "Number of threads", this.numThreads.getVariable() );
+		inputMap.add( "Start from previous time-point", this.warmStart.getVariable() );
 		inputMap.add( "Start at theta = ", this.thetaStart.getVariable() );
 		inputMap.add( "Evaluate theta over = ", this.thetaRange.getVariable() );
+		inputMap.add( "Create 3D ROIs", this.createROIs.getVariable() );
+		inputMap.add( "Cache fitted geometry", this.cacheFits.getVariable() );
+		inputMap.add( "Export run metrics", this.exportMetrics.getVariable() );
+		inputMap.add( "Metrics folder", this.metricsFolder.getVariable() );
+		inputMap.add( "Write unwrapped image to file", this.unwrapToFile.getVariable() );
+		inputMap.add( "Unwrapped image file", this.unwrapFile.getVariable() );
 	}
 
 	@Override
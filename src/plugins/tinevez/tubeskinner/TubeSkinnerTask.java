@@ -0,0 +1,215 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import plugins.kernel.roi.roi3d.ROI3DArea;
+
+/**
+ * The handle of a {@link TubeSkinner} process running on another thread,
+ * returned by {@link TubeSkinner#start()} and
+ * {@link TubeSkinner#submit(java.util.concurrent.ExecutorService)}.
+ * <p>
+ * As a {@link Future}, it gives the tube fits of all the processed
+ * time-points once the process has completed, for the first tube if several
+ * tubes are processed. It can be canceled from any
+ * thread. The process then stops before its next Z-slice, and the results
+ * completed so far, time-points and Z-slices, are given by
+ * {@link #getPartialFits()} and {@link #getPartialSkinROIs()}. The running
+ * thread is never interrupted, so that these partial results and the
+ * unwrapped image stay consistent.
+ */
+public class TubeSkinnerTask implements Future< TubeFit[] >, Runnable
+{
+
+	private final TubeSkinner skinner;
+
+	private final FutureTask< TubeFit[] > future;
+
+	/**
+	 * Set once the process has started, or once the task was canceled before
+	 * it started.
+	 */
+	private final AtomicBoolean started = new AtomicBoolean( false );
+
+	/**
+	 * Released once the process has returned, or could not start any more.
+	 */
+	private final CountDownLatch finished = new CountDownLatch( 1 );
+
+	/**
+	 * Whether the process was executed, so that the results of the instance
+	 * are those of this task.
+	 */
+	private volatile boolean executed = false;
+
+	TubeSkinnerTask( final TubeSkinner skinner )
+	{
+		this.skinner = skinner;
+		this.future = new FutureTask<>( new Callable< TubeFit[] >()
+		{
+			@Override
+			public TubeFit[] call()
+			{
+				if ( !started.compareAndSet( false, true ) )
+					return null;
+
+				try
+				{
+					executed = true;
+					skinner.execute();
+					return skinner.getFits();
+				}
+				finally
+				{
+					finished.countDown();
+				}
+			}
+		} );
+	}
+
+	@Override
+	public void run()
+	{
+		future.run();
+		// Canceled before it started.
+		if ( started.compareAndSet( false, true ) )
+			finished.countDown();
+	}
+
+	/**
+	 * Cancels the process. It stops before its next Z-slice.
+	 *
+	 * @param mayInterruptIfRunning
+	 *            ignored: the running thread is never interrupted.
+	 * @return <code>false</code> if the process had already completed.
+	 */
+	@Override
+	public boolean cancel( final boolean mayInterruptIfRunning )
+	{
+		skinner.cancel();
+		final boolean canceled = future.cancel( false );
+		if ( canceled && started.compareAndSet( false, true ) )
+			finished.countDown();
+		return canceled;
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		return future.isCancelled();
+	}
+
+	/**
+	 * Returns <code>true</code> if the process has completed, or if it was
+	 * canceled, even if it has not stopped yet. See {@link #isFinished()}.
+	 */
+	@Override
+	public boolean isDone()
+	{
+		return future.isDone();
+	}
+
+	/**
+	 * Returns <code>true</code> if the process has stopped, after it
+	 * completed or was canceled.
+	 */
+	public boolean isFinished()
+	{
+		return finished.getCount() == 0;
+	}
+
+	/**
+	 * Returns the fraction of the Z-slices processed so far, over all the
+	 * time-points to process, from 0 to 1.
+	 */
+	public double getProgress()
+	{
+		return skinner.getProgress();
+	}
+
+	@Override
+	public TubeFit[] get() throws InterruptedException, ExecutionException
+	{
+		return future.get();
+	}
+
+	@Override
+	public TubeFit[] get( final long timeout, final TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		return future.get( timeout, unit );
+	}
+
+	/**
+	 * Waits until the process has stopped, and returns the tube fits it
+	 * completed: all of them if it was not canceled. Otherwise, the fits of
+	 * the time-points completed before the cancel, followed by the fit of the
+	 * time-point it was processing, which only holds the Z-slices fitted
+	 * before (see {@link TubeFit#isComplete()}).
+	 *
+	 * @return the tube fits, one per processed time-point, or an empty array
+	 *         if the task was canceled before it started.
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted while waiting.
+	 */
+	public TubeFit[] getPartialFits() throws InterruptedException
+	{
+		return getPartialFits( 0 );
+	}
+
+	/**
+	 * Waits until the process has stopped, and returns the tube fits it
+	 * completed for the specified tube. See {@link #getPartialFits()}.
+	 *
+	 * @param tube
+	 *            the index of the tube, in the order of the initial ellipses.
+	 * @return the tube fits, one per processed time-point, or an empty array
+	 *         if the task was canceled before it started.
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted while waiting.
+	 */
+	public TubeFit[] getPartialFits( final int tube ) throws InterruptedException
+	{
+		finished.await();
+		final TubeFit[] fits = executed ? skinner.getFits( tube ) : null;
+		return ( null == fits ) ? new TubeFit[ 0 ] : fits;
+	}
+
+	/**
+	 * Waits until the process has stopped, and returns the skin ROIs of the
+	 * fits given by {@link #getPartialFits()}.
+	 *
+	 * @return the skin ROIs, one per processed time-point, or an empty array
+	 *         if the task was canceled before it started.
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted while waiting.
+	 */
+	public ROI3DArea[] getPartialSkinROIs() throws InterruptedException
+	{
+		return getPartialSkinROIs( 0 );
+	}
+
+	/**
+	 * Waits until the process has stopped, and returns the skin ROIs of the
+	 * fits given by {@link #getPartialFits(int)} for the specified tube.
+	 *
+	 * @param tube
+	 *            the index of the tube, in the order of the initial ellipses.
+	 * @return the skin ROIs, one per processed time-point, or an empty array
+	 *         if the task was canceled before it started.
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted while waiting.
+	 */
+	public ROI3DArea[] getPartialSkinROIs( final int tube ) throws InterruptedException
+	{
+		finished.await();
+		final ROI3DArea[] skins = executed ? skinner.getSkinROIs( tube ) : null;
+		return ( null == skins ) ? new ROI3DArea[ 0 ] : skins;
+	}
+}
@@ -0,0 +1,24 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Receives the rows of the unwrapped image as they are produced by the
+ * {@link TubeSkinnerEngine}, one row per Z-slice.
+ * <p>
+ * Writers that store the rows outside of the heap allow to unwrap stacks with
+ * a memory footprint that does not grow with the number of Z-slices.
+ */
+public interface UnwrapWriter
+{
+
+	/**
+	 * Writes the unwrapped row of the specified Z-slice.
+	 *
+	 * @param z
+	 *            the Z-slice, that is the row in the unwrapped image.
+	 * @param row
+	 *            the row values, one array per channel. The arrays are reused
+	 *            for the next row, and must not be kept after this call.
+	 */
+	public void writeRow( int z, float[][] row );
+
+}
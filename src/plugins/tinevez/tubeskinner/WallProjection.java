@@ -0,0 +1,43 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * How the value of each channel is taken on the tube wall, along each ray,
+ * to build the unwrapped image.
+ */
+public enum WallProjection
+{
+	/**
+	 * The value interpolated at the fitted radius only.
+	 */
+	CONTOUR( "Fitted contour" ),
+
+	/**
+	 * The maximal value over a radial band around the fitted radius.
+	 */
+	MAX( "Max over the wall" ),
+
+	/**
+	 * The mean value over a radial band around the fitted radius.
+	 */
+	MEAN( "Mean over the wall" ),
+
+	/**
+	 * The mean value over a radial band around the fitted radius, weighted
+	 * by a Gaussian centered on the fitted radius, of standard deviation half
+	 * the band half-width.
+	 */
+	GAUSSIAN( "Gaussian-weighted over the wall" );
+
+	private final String name;
+
+	private WallProjection( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
@@ -0,0 +1,229 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Projects the values of a channel over a radial band around the fitted
+ * contour, along each ray, with a {@link WallProjection}.
+ * <p>
+ * With nearest pixel ray sampling, the fitted radii are whole pixels of the
+ * radial grid of {@link CrownGeometry}, and the sub-pixel part of the center
+ * never changes during a run. The band samples of a ray are then always on
+ * the same radial grid, extended by the band on each side, and their bilinear
+ * weights and neighbor pixel offsets are precomputed once per ray and grid
+ * radius, as in {@link RaySampler}. Projecting a ray is a single pass over
+ * the plane array, without bounds checks when the ray is inside the image.
+ * <p>
+ * With interpolated ray sampling, the fitted radii are sub-pixel, and each
+ * band sample is interpolated at its position with
+ * {@link Plane#getInterpolated(double, double)}: this is the straightforward
+ * version.
+ */
+class WallProjector
+{
+
+	private final WallProjection projection;
+
+	/**
+	 * Number of samples in the band of each ray.
+	 */
+	private final int nSamples;
+
+	/**
+	 * Offset of each sample from the contour point. Sample <code>k</code> of
+	 * ray <code>iTheta</code> is stored at <code>iTheta * nSamples + k</code>.
+	 */
+	private final double[] dx;
+
+	private final double[] dy;
+
+	/**
+	 * Normalized weight of each sample, the same for all the rays.
+	 */
+	private final double[] weights;
+
+	/**
+	 * Number of radii of the radial grid of each ray, extended by the band on
+	 * each side. Grid radius <code>j</code> is the radius
+	 * <code>j - band</code> of the crown geometry.
+	 */
+	private final int nGrid;
+
+	/**
+	 * X and Y offsets of the first neighbor pixel of each grid radius,
+	 * relative to the integer part of the center. Grid radius <code>j</code>
+	 * of ray <code>iTheta</code> is stored at <code>iTheta * nGrid + j</code>.
+	 */
+	private final int[] baseDx;
+
+	private final int[] baseDy;
+
+	/**
+	 * Bilinear weights of the neighbor pixels of each grid radius, along X
+	 * and Y, at <code>2 * ( iTheta * nGrid + j )</code>.
+	 */
+	private final double[] wx;
+
+	private final double[] wy;
+
+	/**
+	 * Bounding box of the neighbor pixels of the grid of each ray, relative
+	 * to the integer part of the center.
+	 */
+	private final int[] minDx;
+
+	private final int[] maxDx;
+
+	private final int[] minDy;
+
+	private final int[] maxDy;
+
+	/**
+	 * Precomputes the band of each ray.
+	 *
+	 * @param geometry
+	 *            the crown and ray geometry.
+	 * @param projection
+	 *            the projection. Must not be {@link WallProjection#CONTOUR}.
+	 * @param band
+	 *            the half-width (in pixels) of the band, at least 1. Samples
+	 *            are taken every pixel, from <code>-band</code> to
+	 *            <code>+band</code> along the ray.
+	 */
+	WallProjector( final CrownGeometry geometry, final WallProjection projection, final int band )
+	{
+		this.projection = projection;
+		this.nSamples = 2 * band + 1;
+		this.dx = new double[ geometry.nAngles * nSamples ];
+		this.dy = new double[ geometry.nAngles * nSamples ];
+		for ( int iTheta = 0; iTheta < geometry.nAngles; iTheta++ )
+		{
+			for ( int k = 0; k < nSamples; k++ )
+			{
+				dx[ iTheta * nSamples + k ] = ( k - band ) * geometry.cos[ iTheta ];
+				dy[ iTheta * nSamples + k ] = ( k - band ) * geometry.sin[ iTheta ];
+			}
+		}
+
+		this.weights = new double[ nSamples ];
+		final double sigma = band / 2.;
+		double sum = 0.;
+		for ( int k = 0; k < nSamples; k++ )
+		{
+			final double d = k - band;
+			weights[ k ] = ( projection == WallProjection.GAUSSIAN ) ? Math.exp( -d * d / ( 2 * sigma * sigma ) ) : 1.;
+			sum += weights[ k ];
+		}
+		for ( int k = 0; k < nSamples; k++ )
+			weights[ k ] /= sum;
+
+		final int nAngles = geometry.nAngles;
+		this.nGrid = geometry.nRadii + 2 * band;
+		this.baseDx = new int[ nAngles * nGrid ];
+		this.baseDy = new int[ nAngles * nGrid ];
+		this.wx = new double[ 2 * nAngles * nGrid ];
+		this.wy = new double[ 2 * nAngles * nGrid ];
+		this.minDx = new int[ nAngles ];
+		this.maxDx = new int[ nAngles ];
+		this.minDy = new int[ nAngles ];
+		this.maxDy = new int[ nAngles ];
+		for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+		{
+			minDx[ iTheta ] = Integer.MAX_VALUE;
+			maxDx[ iTheta ] = Integer.MIN_VALUE;
+			minDy[ iTheta ] = Integer.MAX_VALUE;
+			maxDy[ iTheta ] = Integer.MIN_VALUE;
+			for ( int j = 0; j < nGrid; j++ )
+			{
+				final int i = iTheta * nGrid + j;
+				final double r = geometry.radii[ 0 ] + j - band;
+				// Position relative to the integer part of the center.
+				final double px = geometry.fx + geometry.cos[ iTheta ] * r;
+				final double py = geometry.fy + geometry.sin[ iTheta ] * r;
+				baseDx[ i ] = ( int ) Math.floor( px );
+				baseDy[ i ] = ( int ) Math.floor( py );
+				wx[ 2 * i + 1 ] = px - baseDx[ i ];
+				wx[ 2 * i ] = 1. - wx[ 2 * i + 1 ];
+				wy[ 2 * i + 1 ] = py - baseDy[ i ];
+				wy[ 2 * i ] = 1. - wy[ 2 * i + 1 ];
+
+				minDx[ iTheta ] = Math.min( minDx[ iTheta ], baseDx[ i ] );
+				maxDx[ iTheta ] = Math.max( maxDx[ iTheta ], baseDx[ i ] + 1 );
+				minDy[ iTheta ] = Math.min( minDy[ iTheta ], baseDy[ i ] );
+				maxDy[ iTheta ] = Math.max( maxDy[ iTheta ], baseDy[ i ] + 1 );
+			}
+		}
+	}
+
+	/**
+	 * Returns the projection of the band of the specified ray.
+	 *
+	 * @param plane
+	 *            the Z-slice in the channel to project.
+	 * @param cx
+	 *            the integer part of the center.
+	 * @param cy
+	 *            the integer part of the center.
+	 * @param iTheta
+	 *            the ray.
+	 * @param ir
+	 *            the index of the fitted radius in the radial grid of the
+	 *            crown geometry, or -1 if the fitted radius is not on this
+	 *            grid.
+	 * @param x
+	 *            the X position of the contour point of the ray.
+	 * @param y
+	 *            the Y position of the contour point of the ray.
+	 * @return the projected value.
+	 */
+	double project( final Plane plane, final int cx, final int cy, final int iTheta, final int ir, final double x, final double y )
+	{
+		final int width = plane.width;
+		if ( ir < 0 || cx + minDx[ iTheta ] < 0 || cy + minDy[ iTheta ] < 0 || cx + maxDx[ iTheta ] >= width
+				|| cy + maxDy[ iTheta ] >= plane.height )
+			return project( plane, x, y, iTheta );
+
+		// Band sample k is grid radius ir + k.
+		final int offset = iTheta * nGrid + ir;
+		if ( projection == WallProjection.MAX )
+		{
+			double max = Double.NEGATIVE_INFINITY;
+			for ( int k = 0; k < nSamples; k++ )
+				max = Math.max( max, bilinear( plane, cx, cy, width, offset + k ) );
+			return max;
+		}
+
+		double sum = 0.;
+		for ( int k = 0; k < nSamples; k++ )
+			sum += weights[ k ] * bilinear( plane, cx, cy, width, offset + k );
+		return sum;
+	}
+
+	private double bilinear( final Plane plane, final int cx, final int cy, final int width, final int i )
+	{
+		final int p = ( cy + baseDy[ i ] ) * width + cx + baseDx[ i ];
+		final double ax = wx[ 2 * i ];
+		final double bx = wx[ 2 * i + 1 ];
+		return wy[ 2 * i ] * ( ax * plane.get( p ) + bx * plane.get( p + 1 ) )
+				+ wy[ 2 * i + 1 ] * ( ax * plane.get( p + width ) + bx * plane.get( p + width + 1 ) );
+	}
+
+	/**
+	 * Returns the projection of the band of the specified ray, interpolating
+	 * each sample at its position.
+	 */
+	private double project( final Plane plane, final double x, final double y, final int iTheta )
+	{
+		final int offset = iTheta * nSamples;
+		if ( projection == WallProjection.MAX )
+		{
+			double max = Double.NEGATIVE_INFINITY;
+			for ( int k = 0; k < nSamples; k++ )
+				max = Math.max( max, plane.getInterpolated( x + dx[ offset + k ], y + dy[ offset + k ] ) );
+			return max;
+		}
+
+		double sum = 0.;
+		for ( int k = 0; k < nSamples; k++ )
+			sum += weights[ k ] * plane.getInterpolated( x + dx[ offset + k ], y + dy[ offset + k ] );
+		return sum;
+	}
+}
@@ -0,0 +1,64 @@
+package plugins.tinevez.tubeskinner;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures how many bytes are allocated on the heap per Z-slice by the tube
+ * fit, on a synthetic 16-bit tube. After warm-up, the fit of a Z-slice should
+ * not allocate at all, so that GC pauses do not grow with the stack size.
+ */
+public class AllocationBenchmark
+{
+
+	public static void main( final String[] args )
+	{
+		final com.sun.management.ThreadMXBean threadBean = ( com.sun.management.ThreadMXBean ) ManagementFactory.getThreadMXBean();
+		final long threadId = Thread.currentThread().getId();
+
+		final SyntheticTube tube = new SyntheticTube( 512, 512, 80., 10., 5., 64, 1l );
+		final int width = tube.getWidth();
+		final int height = tube.getHeight();
+
+		// Pre-render a cycle of 16-bit planes.
+		final int nPlanes = tube.getPeriod();
+		final short[][][] planes = tube.renderStack( 1 );
+
+		for ( final CrownSearchMethod method : CrownSearchMethod.values() )
+		{
+			final double r0 = tube.getRadius();
+			final double cx0 = tube.centerX( 0 );
+			final double cy0 = tube.centerY( 0 );
+			final int nAngles = 360;
+			final int nx = ( int ) ( 2 * Math.PI * r0 );
+			final CrownGeometry geometry = new CrownGeometry( 0., 360, nAngles, r0, r0 - 15., 15, cx0, cy0 );
+			final TubeFitter fitter = new TubeFitter( geometry, method.create( geometry ), 10, 15, r0, nx, 1, cx0, cy0 );
+			final Plane plane = Plane.wrap( planes[ 0 ][ 0 ], false, width, height );
+			final Plane[] channels = new Plane[] { plane };
+			final float[][] unwrapped = new float[][] { new float[ nx * nPlanes ] };
+
+			// Warm-up.
+			for ( int z = 0; z < 20 * nPlanes; z++ )
+			{
+				plane.setData( planes[ z % nPlanes ][ 0 ] );
+				fitter.fit( plane, channels, unwrapped, z % nPlanes );
+			}
+
+			final int nz = 2000;
+			final long bytesBefore = threadBean.getThreadAllocatedBytes( threadId );
+			final long start = System.nanoTime();
+			for ( int z = 0; z < nz; z++ )
+			{
+				plane.setData( planes[ z % nPlanes ][ 0 ] );
+				fitter.fit( plane, channels, unwrapped, z % nPlanes );
+			}
+			final long end = System.nanoTime();
+			final long bytesAfter = threadBean.getThreadAllocatedBytes( threadId );
+
+			System.out.println( String.format( "%-16s %8.3f ms/slice, %8.1f bytes allocated/slice",
+					method, ( end - start ) / 1e6 / nz, ( double ) ( bytesAfter - bytesBefore ) / nz ) );
+		}
+	}
+
+	private AllocationBenchmark()
+	{}
+}
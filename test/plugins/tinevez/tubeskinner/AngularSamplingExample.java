@@ -0,0 +1,47 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Compares the fixed angle between rays with one ray per unwrapped pixel, on
+ * a small and on a large synthetic tube. Reports the number of rays, the time
+ * spent on the radial scan, and the fraction of the unwrapped pixels that
+ * only repeat the value of their left neighbor, because they are covered by
+ * the same ray.
+ */
+public class AngularSamplingExample
+{
+
+	private static final int WARMUP_RUNS = 3;
+
+	public static void main( final String[] args )
+	{
+		System.out.println( String.format( "%-8s %-30s %8s %8s %16s %10s", "Radius", "Angular sampling", "Rays", "Width",
+				"Scan ms/slice", "Repeated" ) );
+		for ( final double radius : new double[] { 20., 200. } )
+		{
+			final int size = ( int ) ( 2 * radius + 160 );
+			final SyntheticTube tube = new SyntheticTube( size, size, radius, 16., 8., 200, 1l );
+			final int nz = tube.getPeriod();
+			final PlaneSource source = tube.asPlaneSource( nz );
+
+			for ( final AngularSampling sampling : AngularSampling.values() )
+			{
+				final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, Math.min( 15., radius / 2 ), 5, 0., 360 );
+				engine.setAngularSampling( sampling );
+				final TubeFit fit = tube.fit( engine, source, radius, WARMUP_RUNS );
+
+				final int nx = fit.getUnwrapWidth();
+				final float[] unwrapped = fit.getUnwrapped()[ 0 ];
+				long nRepeated = 0;
+				for ( int z = 0; z < nz; z++ )
+					for ( int ix = 1; ix < nx; ix++ )
+						if ( unwrapped[ z * nx + ix ] == unwrapped[ z * nx + ix - 1 ] )
+							nRepeated++;
+				System.out.println( String.format( "%-8.0f %-30s %8d %8d %16.3f %9.1f%%", radius, sampling, fit.getNAngles(), nx,
+						fit.getMetrics().getStageNanos( RunMetrics.Stage.RADIAL_SCAN ) / 1e6 / nz, 100. * nRepeated / ( nz * ( nx - 1 ) ) ) );
+			}
+		}
+	}
+
+	private AngularSamplingExample()
+	{}
+}
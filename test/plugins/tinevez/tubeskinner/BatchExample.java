@@ -0,0 +1,140 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a batch of synthetic tubes stored as raw files, listed in a manifest
+ * with one missing file. Checks that the failed job does not stop the others,
+ * that the memory budget is respected, and that the unwrapped images are the
+ * same as with a direct run of the engine.
+ */
+public class BatchExample
+{
+
+	private static final int SIZE = 256;
+
+	private static final int NZ = 400;
+
+	private static final int N_FILES = 6;
+
+	/**
+	 * Raw stack source closing its file channel.
+	 */
+	private static class RawFileSource extends RawPlaneSource implements Closeable
+	{
+
+		private final FileChannel channel;
+
+		private RawFileSource( final FileChannel channel, final int timepoint )
+		{
+			super( channel, 0l, SIZE, SIZE, NZ, 1, timepoint, RawPlaneSource.PixelType.UINT16, ByteOrder.BIG_ENDIAN );
+			this.channel = channel;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final File folder = Files.createTempDirectory( "tubeskinner-batch" ).toFile();
+		final File output = new File( folder, "results" );
+
+		final SyntheticTube tube = new SyntheticTube( SIZE, SIZE, 40., 8., 4., 200, 1l );
+		final double[] values = new double[ SIZE * SIZE ];
+		final ByteBuffer buffer = ByteBuffer.allocate( 2 * SIZE * SIZE ).order( ByteOrder.BIG_ENDIAN );
+		try (FileChannel channel = FileChannel.open( new File( folder, "tube_0.raw" ).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE ))
+		{
+			for ( int z = 0; z < NZ; z++ )
+			{
+				tube.render( z, values );
+				buffer.clear();
+				for ( final double v : values )
+					buffer.putShort( ( short ) v );
+				buffer.flip();
+				while ( buffer.hasRemaining() )
+					channel.write( buffer );
+			}
+		}
+		for ( int i = 1; i < N_FILES; i++ )
+			Files.copy( new File( folder, "tube_0.raw" ).toPath(), new File( folder, "tube_" + i + ".raw" ).toPath() );
+
+		final File manifest = new File( folder, "manifest.csv" );
+		try (Writer writer = new FileWriter( manifest ))
+		{
+			writer.write( "# Synthetic tubes.\n" );
+			writer.write( "file,cx,cy,r,thickness,sampling\n" );
+			for ( int i = 0; i < N_FILES; i++ )
+				writer.write( "tube_" + i + ".raw," + tube.centerX( 0 ) + "," + tube.centerY( 0 ) + "," + tube.getRadius() + ",15,\n" );
+			writer.write( "missing.raw," + tube.centerX( 0 ) + "," + tube.centerY( 0 ) + "," + tube.getRadius() + ",,bilinear\n" );
+		}
+
+		final List< BatchRunner.Job > jobs = BatchRunner.readManifest( manifest );
+		final TubeSkinnerEngine engine = jobs.get( 0 ).createEngine();
+		final RawFileSource first = new RawFileSource( FileChannel.open( new File( folder, "tube_0.raw" ).toPath(), StandardOpenOption.READ ), 0 );
+		final long estimate = engine.estimateMemory( first, tube.getRadius() );
+
+		// Room for 2 jobs at once, on 3 threads.
+		final BatchRunner runner = new BatchRunner( output, 3, 2 * estimate + estimate / 2 );
+		runner.setSourceOpener( new BatchRunner.SourceOpener()
+		{
+			@Override
+			public PlaneSource open( final File file, final int timepoint ) throws IOException
+			{
+				return new RawFileSource( FileChannel.open( file.toPath(), StandardOpenOption.READ ), timepoint );
+			}
+		} );
+		final long start = System.nanoTime();
+		final List< BatchRunner.Result > results = runner.run( jobs );
+		final long end = System.nanoTime();
+
+		for ( final BatchRunner.Result result : results )
+			System.out.println( String.format( "%-10s %-5s waited %6.1f ms, processed in %6.1f ms%s", result.getJob().getName(),
+					result.isSuccess() ? "OK" : "ERROR", result.getWaitNanos() / 1e6, result.getProcessNanos() / 1e6,
+					result.isSuccess() ? "" : " - " + result.getError() ) );
+		System.out.println( String.format( "%d jobs in %.1f ms. Estimate per job: %.1f MB, peak admitted: %.1f MB.", results.size(),
+				( end - start ) / 1e6, estimate / 1e6, runner.getPeakAdmittedBytes() / 1e6 ) );
+		System.out.println( "Output files: " + Arrays.toString( output.list() ) );
+
+		// Compare with a direct run.
+		final TubeFit fit = engine.process( first, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+		first.close();
+		boolean same = true;
+		try (MappedUnwrapFile unwrapped = MappedUnwrapFile.open( new File( output, jobs.get( N_FILES - 1 ).getName() + ".tsku" ) ))
+		{
+			same = Arrays.equals( fit.getUnwrapped()[ 0 ], unwrapped.readPlane( 0, 0, null ) );
+		}
+		System.out.println( "Batch output identical to a direct run: " + same + "." );
+
+		if ( !same || results.get( N_FILES ).isSuccess() || runner.getPeakAdmittedBytes() > 2 * estimate + estimate / 2 )
+			throw new AssertionError( "Unexpected batch result." );
+		for ( int i = 0; i < N_FILES; i++ )
+			if ( !results.get( i ).isSuccess() )
+				throw new AssertionError( "Job " + i + " failed." );
+
+		for ( final File file : output.listFiles() )
+			file.delete();
+		output.delete();
+		for ( final File file : folder.listFiles() )
+			file.delete();
+		folder.delete();
+	}
+
+	private BatchExample()
+	{}
+}
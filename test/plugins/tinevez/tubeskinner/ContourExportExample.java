@@ -0,0 +1,59 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Fits a synthetic tube, then compares the time needed to materialize the
+ * skin 3D ROI with the time needed to export the contours as a polyline set
+ * and as a mesh.
+ */
+public class ContourExportExample
+{
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final SyntheticTube tube = new SyntheticTube( 256, 256, 40., 8., 4., 200, 1l );
+		final int nz = 1000;
+		final PlaneSource source = tube.asPlaneSource( nz );
+
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+		final TubeFit fit = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+
+		// Second round is after JIT warm-up.
+		for ( int round = 0; round < 2; round++ )
+		{
+			final long t0 = System.currentTimeMillis();
+			TubeROIs.skin( fit, "Skin", 0 );
+			final long t1 = System.currentTimeMillis();
+
+			final File polylines = File.createTempFile( "contours", ".csv" );
+			final File mesh = File.createTempFile( "contours", ".ply" );
+			polylines.deleteOnExit();
+			mesh.deleteOnExit();
+			try (Writer writer = new BufferedWriter( new FileWriter( polylines ) ))
+			{
+				ContourExporter.writePolylines( fit, writer );
+			}
+			final long t2 = System.currentTimeMillis();
+			try (OutputStream out = new FileOutputStream( mesh ))
+			{
+				ContourExporter.writeMesh( fit, out );
+			}
+			final long t3 = System.currentTimeMillis();
+
+			System.out.println( String.format( "%d slices x %d rays.", fit.getSizeZ(), fit.getNAngles() ) );
+			System.out.println( String.format( "Skin ROI: %d ms.", t1 - t0 ) );
+			System.out.println( String.format( "Polylines: %d ms, %d kB.", t2 - t1, polylines.length() / 1024 ) );
+			System.out.println( String.format( "Mesh: %d ms, %d kB.", t3 - t2, mesh.length() / 1024 ) );
+		}
+	}
+
+	private ContourExportExample()
+	{}
+}
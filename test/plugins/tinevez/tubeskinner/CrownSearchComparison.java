@@ -0,0 +1,94 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Checks that the ring-correlation crown search picks the same tube center
+ * offsets as the brute-force search, on a synthetic drifting tube, for several
+ * search windows, with the tube close to the image borders and in the middle
+ * of a large image. Reports the time per Z-slice of both searches, and the
+ * speedup of the ring correlation.
+ */
+public class CrownSearchComparison
+{
+
+	private static final int WARMUP_RUNS = 2;
+
+	public static void main( final String[] args )
+	{
+		final int[] windows = new int[] { 0, 1, 5, 10, 20, 40, 60, 80, 160 };
+		for ( int i = 0; i < WARMUP_RUNS; i++ )
+			compare( new SyntheticTube( 640, 640, 40., 20., 10., 150, 1l ), 60, false );
+
+		int nMismatches = 0;
+		System.out.println( "Tube close to the image borders:" );
+		for ( final int window : windows )
+			nMismatches += compare( new SyntheticTube( 256, 200, 40., 100., 30., 150, 1l ), window, true );
+		System.out.println( "Tube in the middle of a large image:" );
+		for ( final int window : windows )
+			nMismatches += compare( new SyntheticTube( 640, 640, 40., 20., 10., 150, 1l ), window, true );
+
+		if ( nMismatches > 0 )
+			throw new AssertionError( nMismatches + " mismatches between the crown search methods." );
+		System.out.println( "All crown search methods agree." );
+	}
+
+	private static int compare( final SyntheticTube tube, final int window, final boolean report )
+	{
+		final int width = tube.getWidth();
+		final int height = tube.getHeight();
+		final double[] data = new double[ width * height ];
+		final Plane plane = Plane.wrap( data, true, width, height );
+
+		final double r = tube.getRadius() + 5.;
+		final CrownGeometry geometry = new CrownGeometry( 45., 360, 360, r, r - 15., 15, tube.centerX( 0 ), tube.centerY( 0 ) );
+		final CrownSearch bruteForce = CrownSearchMethod.BRUTE_FORCE.create( geometry );
+		final CrownSearch ringCorrelation = CrownSearchMethod.RING_CORRELATION.create( geometry );
+		final int[] expected = new int[ 2 ];
+		final int[] actual = new int[ 2 ];
+
+		int nMismatches = 0;
+		long tBruteForce = 0;
+		long tRingCorrelation = 0;
+		final int nz = 150;
+		for ( int z = 0; z < nz; z++ )
+		{
+			tube.render( z, data );
+			// Guess from the true center, shifted to test off-center windows.
+			final int cx = ( int ) Math.floor( tube.centerX( z ) ) + ( z % 7 ) - 3;
+			final int cy = ( int ) Math.floor( tube.centerY( z ) ) + ( z % 5 ) - 2;
+
+			// Alternate the order, so that both find the Z-slice in cache
+			// equally often.
+			double expectedScore = 0.;
+			double actualScore = 0.;
+			for ( int k = 0; k < 2; k++ )
+			{
+				final long t0 = System.nanoTime();
+				if ( ( z + k ) % 2 == 0 )
+				{
+					expectedScore = bruteForce.search( plane, cx, cy, window, expected );
+					tBruteForce += System.nanoTime() - t0;
+				}
+				else
+				{
+					actualScore = ringCorrelation.search( plane, cx, cy, window, actual );
+					tRingCorrelation += System.nanoTime() - t0;
+				}
+			}
+
+			if ( expected[ 0 ] != actual[ 0 ] || expected[ 1 ] != actual[ 1 ] || expectedScore != actualScore )
+			{
+				System.out.println( String.format( "window=%d z=%d: brute force (%d, %d) score %f, ring correlation (%d, %d) score %f",
+						window, z, expected[ 0 ], expected[ 1 ], expectedScore, actual[ 0 ], actual[ 1 ], actualScore ) );
+				nMismatches++;
+			}
+		}
+		if ( report )
+			System.out.println( String.format(
+					"window=%3d: brute force %8.3f ms/slice, ring correlation %8.3f ms/slice, speedup %5.2f, %d mismatches.", window,
+					tBruteForce / 1e6 / nz, tRingCorrelation / 1e6 / nz, ( double ) tBruteForce / tRingCorrelation, nMismatches ) );
+		return nMismatches;
+	}
+
+	private CrownSearchComparison()
+	{}
+}
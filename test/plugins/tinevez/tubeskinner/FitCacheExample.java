@@ -0,0 +1,68 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Fits a synthetic 2-channel tube with a cache of fitted geometry, then
+ * processes it again to re-unwrap it from the cache. Checks that the cached
+ * run gives the same unwrapped image, and that changing a fit parameter
+ * misses the cache.
+ */
+public class FitCacheExample
+{
+
+	private static final int NC = 2;
+
+	private static final int SEARCH_WINDOW = 15;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final SyntheticTube tube = new SyntheticTube( 512, 512, 80., 16., 8., 200, 1l );
+		final int nz = tube.getPeriod();
+		final PlaneSource source = tube.asPlaneSource( nz, NC );
+
+		final File directory = Files.createTempDirectory( "tubeskinner-cache" ).toFile();
+		directory.deleteOnExit();
+		final FitCache cache = new FitCache( directory, "synthetic-tube|t=0" );
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., SEARCH_WINDOW, 0., 360 );
+
+		long start = System.currentTimeMillis();
+		final TubeFit reference = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius(), cache );
+		final long fitTime = System.currentTimeMillis() - start;
+		final File[] files = directory.listFiles();
+		for ( final File file : files )
+			file.deleteOnExit();
+		System.out.println( String.format( "Fitted %d slices in %d ms. Cache files: %d, %d bytes.",
+				nz, fitTime, files.length, files[ 0 ].length() ) );
+
+		start = System.currentTimeMillis();
+		final TubeFit cached = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius(), cache );
+		final long cachedTime = System.currentTimeMillis() - start;
+
+		boolean same = true;
+		for ( int c = 0; c < NC; c++ )
+			same &= Arrays.equals( reference.getUnwrapped()[ c ], cached.getUnwrapped()[ c ] );
+		for ( int z = 0; z < nz; z++ )
+			same &= reference.getCenterX( z ) == cached.getCenterX( z ) && reference.getCenterY( z ) == cached.getCenterY( z );
+		System.out.println( String.format( "Re-unwrapped from the cache in %d ms (%.1fx faster). Same unwrapped image and centers: %s.",
+				cachedTime, ( double ) fitTime / Math.max( 1, cachedTime ), same ) );
+		if ( !same )
+			throw new AssertionError( "Unwrapping from the cache changed the result." );
+
+		// Another thickness must not reuse the cached geometry.
+		final TubeSkinnerEngine other = new TubeSkinnerEngine( 0, 10., SEARCH_WINDOW, 0., 360 );
+		other.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius(), cache );
+		final File[] after = directory.listFiles();
+		for ( final File file : after )
+			file.deleteOnExit();
+		System.out.println( String.format( "Cache files after a run with another thickness: %d.", after.length ) );
+		if ( after.length != 2 )
+			throw new AssertionError( "Another thickness should be cached separately." );
+	}
+
+	private FitCacheExample()
+	{}
+}
@@ -0,0 +1,35 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Runs the tube fit on a synthetic tube with the {@link TubeSkinnerEngine}
+ * alone, in a plain JVM without Icy.
+ */
+public class HeadlessExample
+{
+
+	public static void main( final String[] args )
+	{
+		final SyntheticTube tube = new SyntheticTube( 256, 256, 40., 8., 4., 200, 1l );
+		final int nz = 200;
+		final PlaneSource source = tube.asPlaneSource( nz );
+
+		final int segmentationChannel = 0;
+		final double thickness = 15.;
+		final int window = 5;
+		final double thetaStart = 0.;
+		final int thetaRange = 360;
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( segmentationChannel, thickness, window, thetaStart, thetaRange );
+		final long start = System.currentTimeMillis();
+		final TubeFit fit = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+		final long end = System.currentTimeMillis();
+
+		double error = 0.;
+		for ( int z = 0; z < nz; z++ )
+			error = Math.max( error, Math.hypot( fit.getCenterX( z ) - tube.centerX( z ), fit.getCenterY( z ) - tube.centerY( z ) ) );
+		System.out.println( String.format( "Unwrapped %d slices in %d ms. Image size: %d x %d. Max center error: %.2f pixels.",
+				nz, end - start, fit.getUnwrapWidth(), fit.getSizeZ(), error ) );
+	}
+
+	private HeadlessExample()
+	{}
+}
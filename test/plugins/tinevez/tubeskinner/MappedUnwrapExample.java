@@ -0,0 +1,73 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Unwraps a long synthetic tube over several time-points into a memory-mapped
+ * file, compares the result with the unwrapped images kept in memory, and
+ * prints the heap used by both.
+ */
+public class MappedUnwrapExample
+{
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final SyntheticTube tube = new SyntheticTube( 512, 512, 80., 16., 8., 200, 1l );
+		final int nz = 2000;
+		final int nt = 4;
+		final PlaneSource source = tube.asPlaneSource( nz );
+
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+		final double r = tube.getRadius();
+		final int nx = engine.getUnwrapWidth( r );
+
+		// In memory.
+		final long heapBefore = usedHeap();
+		final TubeFit[] fits = new TubeFit[ nt ];
+		for ( int t = 0; t < nt; t++ )
+			fits[ t ] = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), r );
+		final long heapInMemory = usedHeap() - heapBefore;
+
+		// Memory-mapped.
+		final File file = File.createTempFile( "unwrapped", ".tsku" );
+		file.deleteOnExit();
+		final long heapBeforeMapped = usedHeap();
+		final TubeFit[] mappedFits = new TubeFit[ nt ];
+		final long start = System.nanoTime();
+		try (MappedUnwrapFile mapped = MappedUnwrapFile.create( file, nx, nz, 1, nt ))
+		{
+			for ( int t = 0; t < nt; t++ )
+				mappedFits[ t ] = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), r, mapped.writer( t ), null );
+		}
+		final long heapMapped = usedHeap() - heapBeforeMapped;
+		System.out.println( String.format( "Unwrapped %d time-points of %d x %d pixels to a %.1f MB file in %.1f ms.",
+				nt, nx, nz, file.length() / 1e6, ( System.nanoTime() - start ) / 1e6 ) );
+		System.out.println( String.format( "Heap retained by %d fits: %.1f MB in memory, %.1f MB memory-mapped.",
+				mappedFits.length, heapInMemory / 1e6, heapMapped / 1e6 ) );
+
+		// Read back one time-point at a time.
+		boolean same = true;
+		try (MappedUnwrapFile mapped = MappedUnwrapFile.open( file ))
+		{
+			final float[] plane = new float[ nx * nz ];
+			for ( int t = 0; t < nt; t++ )
+				same &= Arrays.equals( fits[ t ].getUnwrapped()[ 0 ], mapped.readPlane( t, 0, plane ) );
+		}
+		System.out.println( "File identical to the in-memory unwrapped images: " + same + "." );
+		if ( !same )
+			throw new AssertionError( "The memory-mapped file differs from the in-memory unwrapped images." );
+	}
+
+	private static long usedHeap()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		for ( int i = 0; i < 3; i++ )
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private MappedUnwrapExample()
+	{}
+}
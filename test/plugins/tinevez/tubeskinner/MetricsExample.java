@@ -0,0 +1,61 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Fits a synthetic tube while reporting live progress from the metrics
+ * listener, then prints the time spent in each stage and exports the metrics
+ * of each Z-slice as CSV and JSON.
+ */
+public class MetricsExample
+{
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final SyntheticTube tube = new SyntheticTube( 512, 512, 80., 16., 8., 200, 1l );
+		final int nz = 1000;
+		final PlaneSource source = tube.asPlaneSource( nz );
+
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+		engine.setMetricsListener( new RunMetrics.Listener()
+		{
+			@Override
+			public void sliceMeasured( final RunMetrics metrics, final int z )
+			{
+				if ( ( z + 1 ) % 250 == 0 )
+					System.out.println( String.format( "%4d / %d slices, %.0f slices/s", z + 1, metrics.getSizeZ(), metrics.getSlicesPerSecond() ) );
+			}
+		} );
+		final TubeFit fit = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+		final RunMetrics metrics = fit.getMetrics();
+
+		final long start = System.nanoTime();
+		TubeROIs.skin( fit, "Skin", 0 );
+		metrics.addRoiNanos( System.nanoTime() - start );
+
+		System.out.println( String.format( "Total: %.1f ms, %.0f slices/s.", metrics.getElapsedNanos() / 1e6, metrics.getSlicesPerSecond() ) );
+		for ( final RunMetrics.Stage stage : RunMetrics.Stage.values() )
+			System.out.println( String.format( "  %-18s %8.1f ms", stage, metrics.getStageNanos( stage ) / 1e6 ) );
+		long allocated = 0;
+		for ( int z = 0; z < nz; z++ )
+			allocated += metrics.getAllocatedBytes( z );
+		System.out.println( String.format( "  Allocated on the fitting thread: %d bytes per slice.", allocated / nz ) );
+
+		final File csv = File.createTempFile( "metrics", ".csv" );
+		final File json = File.createTempFile( "metrics", ".json" );
+		csv.deleteOnExit();
+		json.deleteOnExit();
+		try (Writer csvWriter = new FileWriter( csv ); Writer jsonWriter = new FileWriter( json ))
+		{
+			metrics.writeCSV( csvWriter );
+			metrics.writeJSON( jsonWriter );
+		}
+		System.out.println( "Exported " + csv.length() + " bytes of CSV and " + json.length() + " bytes of JSON." );
+	}
+
+	private MetricsExample()
+	{}
+}
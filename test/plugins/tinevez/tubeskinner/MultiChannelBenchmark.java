@@ -0,0 +1,92 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.Arrays;
+
+/**
+ * Benchmarks the unwrapping of a 6-channel synthetic tube, with the channels
+ * sampled on one thread and split across several threads. Checks that all
+ * settings give the same unwrapped image.
+ * <p>
+ * Then fits a tube that crosses the image border, so that some rays fall
+ * entirely outside the image, and checks that the unwrapped rows only depend
+ * on their own Z-slice: re-fitting from a middle Z-slice gives the same rows
+ * as the full run, and the rays without a max are written 0.
+ */
+public class MultiChannelBenchmark
+{
+
+	private static final int NC = 6;
+
+	private static final int ITERATIONS = 5;
+
+	public static void main( final String[] args )
+	{
+		final SyntheticTube tube = new SyntheticTube( 512, 512, 80., 16., 8., 100, 1l );
+		final int nz = tube.getPeriod();
+		final PlaneSource source = tube.asPlaneSource( nz, NC );
+
+		final int nThreads = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+		float[][] reference = null;
+		for ( final int threads : new int[] { 1, nThreads } )
+		{
+			final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+			engine.setChannelThreads( threads );
+			TubeFit fit = null;
+			long best = Long.MAX_VALUE;
+			for ( int i = 0; i < ITERATIONS; i++ )
+			{
+				final long start = System.nanoTime();
+				fit = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+				best = Math.min( best, System.nanoTime() - start );
+			}
+
+			if ( null == reference )
+				reference = fit.getUnwrapped();
+			boolean same = true;
+			for ( int c = 0; c < NC; c++ )
+				same &= Arrays.equals( reference[ c ], fit.getUnwrapped()[ c ] );
+			System.out.println( String.format( "%d channels, %2d sampling threads: %.3f ms/slice. Same unwrapped image: %s.",
+					NC, threads, best / 1e6 / nz, same ) );
+			if ( !same )
+				throw new AssertionError( "Sampling the channels in parallel changed the unwrapped image." );
+		}
+
+		checkBorder( tube.translate( 230., 0., 2l ) );
+	}
+
+	private static void checkBorder( final SyntheticTube tube )
+	{
+		final int nz = tube.getPeriod();
+		final PlaneSource source = tube.asPlaneSource( nz, NC );
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+		final double cx = tube.centerX( 0 );
+		final double cy = tube.centerY( 0 );
+		final double r = tube.getRadius();
+		final TubeFit reference = engine.process( source, cx, cy, r );
+		final int nx = reference.getUnwrapWidth();
+
+		// The ray at 0 degrees points out of the image on every Z-slice.
+		int nZeros = 0;
+		for ( int z = 0; z < nz; z++ )
+			for ( int c = 0; c < NC; c++ )
+				if ( reference.getUnwrapped()[ c ][ z * nx ] == 0f )
+					nZeros++;
+
+		final int k = nz / 2;
+		final TubeFit fit = engine.process( source, cx, cy, r );
+		engine.refit( source, fit, k, nz, reference.getCenterX( k - 1 ), reference.getCenterY( k - 1 ),
+				new ArrayUnwrapWriter( fit.getUnwrapped(), nx ), null );
+		boolean same = true;
+		for ( int c = 0; c < NC; c++ )
+			same &= Arrays.equals( reference.getUnwrapped()[ c ], fit.getUnwrapped()[ c ] );
+		System.out.println( String.format( "Tube across the border: %d / %d rows start with a 0 ray. Same unwrapped image after a re-fit from slice %d: %s.",
+				nZeros, nz * NC, k, same ) );
+		if ( nZeros != nz * NC )
+			throw new AssertionError( "Rays outside the image should be written 0." );
+		if ( !same )
+			throw new AssertionError( "The unwrapped rows depend on the previous Z-slices." );
+	}
+
+	private MultiChannelBenchmark()
+	{}
+}
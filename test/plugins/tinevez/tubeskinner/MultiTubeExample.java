@@ -0,0 +1,193 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import plugins.kernel.roi.roi2d.ROI2DEllipse;
+
+/**
+ * Fits several synthetic tubes lying side by side in the same stack, one pass
+ * per tube, then all of them in a single pass. Checks that both give the same
+ * fits and unwrapped images, and reports the planes read and the time spent.
+ * Then runs a TubeSkinner on the tubes, and checks that it gives one unwrapped
+ * sequence and one set of skin ROIs per tube.
+ */
+public class MultiTubeExample
+{
+
+	private static final int N_TUBES = 3;
+
+	private static final int TILE = 160;
+
+	private static final int NZ = 100;
+
+	private static final int N_TIMEPOINTS = 2;
+
+	public static void main( final String[] args )
+	{
+		// One tube per tile, with their own radius and drift.
+		final SyntheticTube[] tubes = new SyntheticTube[ N_TUBES ];
+		for ( int i = 0; i < N_TUBES; i++ )
+			tubes[ i ] = new SyntheticTube( TILE, TILE, 30. + 8. * i, 6. + 2. * i, 3., 100, 1l + i );
+
+		final Sequence sequence = new Sequence( "synthetic-tubes" );
+		final double[] buffer = new double[ TILE * TILE ];
+		for ( int t = 0; t < N_TIMEPOINTS; t++ )
+		{
+			for ( int z = 0; z < NZ; z++ )
+			{
+				final IcyBufferedImage image = new IcyBufferedImage( N_TUBES * TILE, TILE, 1, DataType.USHORT );
+				final short[] data = ( short[] ) image.getDataXY( 0 );
+				for ( int i = 0; i < N_TUBES; i++ )
+				{
+					tubes[ i ].render( z, buffer );
+					for ( int y = 0; y < TILE; y++ )
+						for ( int x = 0; x < TILE; x++ )
+							data[ y * N_TUBES * TILE + i * TILE + x ] = ( short ) buffer[ y * TILE + x ];
+				}
+				sequence.setImage( t, z, image );
+			}
+		}
+
+		final double[] cx = new double[ N_TUBES ];
+		final double[] cy = new double[ N_TUBES ];
+		final double[] r = new double[ N_TUBES ];
+		final List< ROI2DEllipse > ellipses = new ArrayList<>();
+		for ( int i = 0; i < N_TUBES; i++ )
+		{
+			cx[ i ] = i * TILE + tubes[ i ].centerX( 0 );
+			cy[ i ] = tubes[ i ].centerY( 0 );
+			r[ i ] = tubes[ i ].getRadius();
+			ellipses.add( new ROI2DEllipse( cx[ i ] - r[ i ], cy[ i ] - r[ i ], cx[ i ] + r[ i ], cy[ i ] + r[ i ] ) );
+		}
+
+		/*
+		 * Engine: one pass per tube, then a single pass.
+		 */
+
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+		final CountingSource separateSource = new CountingSource( new SequencePlaneSource( sequence, 0 ) );
+		final TubeFit[] separate = new TubeFit[ N_TUBES ];
+		long start = System.nanoTime();
+		for ( int i = 0; i < N_TUBES; i++ )
+			separate[ i ] = engine.process( separateSource, cx[ i ], cy[ i ], r[ i ] );
+		final double separateTime = ( System.nanoTime() - start ) / 1e6;
+
+		System.out.println( String.format( "%-22s %12s %10s", "Processing", "Planes read", "Time (ms)" ) );
+		System.out.println( String.format( "%-22s %12d %10.0f", "One pass per tube", separateSource.planes, separateTime ) );
+		for ( final int nThreads : new int[] { 1, N_TUBES } )
+		{
+			final CountingSource source = new CountingSource( new SequencePlaneSource( sequence, 0 ) );
+			start = System.nanoTime();
+			final TubeFit[] single = engine.processTubes( source, cx, cy, r, nThreads );
+			final double time = ( System.nanoTime() - start ) / 1e6;
+			System.out.println( String.format( "%-22s %12d %10.0f", "Single pass, " + nThreads + " thr.", source.planes, time ) );
+
+			check( source.planes == NZ, "The single pass read " + source.planes + " planes instead of " + NZ + "." );
+			for ( int i = 0; i < N_TUBES; i++ )
+			{
+				check( sameFit( single[ i ], separate[ i ] ), "The single pass changed the fit of tube " + i + "." );
+				check( Arrays.equals( single[ i ].getUnwrapped()[ 0 ], separate[ i ].getUnwrapped()[ 0 ] ),
+						"The single pass changed the unwrapped image of tube " + i + "." );
+			}
+		}
+
+		/*
+		 * TubeSkinner: one unwrapped sequence and one set of skin ROIs per
+		 * tube.
+		 */
+
+		final TubeSkinner skinner = new TubeSkinner( sequence, ellipses, 0, 15., 5, true, 0., 360, true );
+		skinner.setNumThreads( N_TUBES );
+		skinner.run();
+		check( skinner.getNTubes() == N_TUBES, "Unexpected number of tubes." );
+		for ( int i = 0; i < N_TUBES; i++ )
+		{
+			check( skinner.getOutWrap( i ).getSizeT() == N_TIMEPOINTS, "Missing unwrapped time-points for tube " + i + "." );
+			check( skinner.getSkinROIs( i ).length == N_TIMEPOINTS, "Missing skin ROIs for tube " + i + "." );
+			for ( int t = 0; t < N_TIMEPOINTS; t++ )
+				check( sameFit( skinner.getFits( i )[ t ], separate[ i ] ), "TubeSkinner changed the fit of tube " + i + " at t=" + t + "." );
+		}
+		System.out.println( String.format( "TubeSkinner processed %d tubes over %d time-points in one pass per time-point.", N_TUBES,
+				N_TIMEPOINTS ) );
+	}
+
+	private static boolean sameFit( final TubeFit fit, final TubeFit reference )
+	{
+		for ( int z = 0; z < NZ; z++ )
+		{
+			if ( fit.getCenterX( z ) != reference.getCenterX( z ) || fit.getCenterY( z ) != reference.getCenterY( z ) )
+				return false;
+			for ( int iTheta = 0; iTheta < fit.getNAngles(); iTheta++ )
+				if ( fit.getRadius( z, iTheta ) != reference.getRadius( z, iTheta ) )
+					return false;
+		}
+		return true;
+	}
+
+	private static void check( final boolean condition, final String message )
+	{
+		if ( !condition )
+			throw new AssertionError( message );
+	}
+
+	/**
+	 * Counts the planes requested from a source, over all the channels.
+	 */
+	private static class CountingSource implements PlaneSource
+	{
+
+		private final PlaneSource source;
+
+		private int planes = 0;
+
+		private CountingSource( final PlaneSource source )
+		{
+			this.source = source;
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return source.getWidth();
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return source.getHeight();
+		}
+
+		@Override
+		public int getSizeZ()
+		{
+			return source.getSizeZ();
+		}
+
+		@Override
+		public int getSizeC()
+		{
+			return source.getSizeC();
+		}
+
+		@Override
+		public boolean isSigned()
+		{
+			return source.isSigned();
+		}
+
+		@Override
+		public Object getPlane( final int z, final int c )
+		{
+			planes++;
+			return source.getPlane( z, c );
+		}
+	}
+
+	private MultiTubeExample()
+	{}
+}
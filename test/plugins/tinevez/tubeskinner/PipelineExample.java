@@ -0,0 +1,93 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.Arrays;
+
+/**
+ * Fits a synthetic tube read from a source with a fixed latency per plane, as
+ * a source reading from a network mount would have, with and without the
+ * prefetch pipeline. Checks that the pipeline gives the same result.
+ */
+public class PipelineExample
+{
+
+	private static final long LATENCY_MS = 1;
+
+	public static void main( final String[] args )
+	{
+		final SyntheticTube tube = new SyntheticTube( 512, 512, 80., 16., 8., 200, 1l );
+		final int nz = 400;
+		final PlaneSource stack = tube.asPlaneSource( nz );
+
+		final PlaneSource source = new PlaneSource()
+		{
+			// One reused array, as streaming sources do.
+			private final short[] plane = new short[ stack.getWidth() * stack.getHeight() ];
+
+			@Override
+			public int getWidth()
+			{
+				return stack.getWidth();
+			}
+
+			@Override
+			public int getHeight()
+			{
+				return stack.getHeight();
+			}
+
+			@Override
+			public int getSizeZ()
+			{
+				return stack.getSizeZ();
+			}
+
+			@Override
+			public int getSizeC()
+			{
+				return 1;
+			}
+
+			@Override
+			public boolean isSigned()
+			{
+				return false;
+			}
+
+			@Override
+			public Object getPlane( final int z, final int c )
+			{
+				try
+				{
+					Thread.sleep( LATENCY_MS );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+				System.arraycopy( stack.getPlane( z, c ), 0, plane, 0, plane.length );
+				return plane;
+			}
+		};
+
+		TubeFit reference = null;
+		for ( final int depth : new int[] { 0, 1, 4, 16 } )
+		{
+			final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+			engine.setPipelineDepth( depth );
+			final long start = System.currentTimeMillis();
+			final TubeFit fit = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+			final long end = System.currentTimeMillis();
+
+			if ( null == reference )
+				reference = fit;
+			final boolean same = Arrays.equals( reference.getUnwrapped()[ 0 ], fit.getUnwrapped()[ 0 ] );
+			System.out.println( String.format( "Pipeline depth %2d: %5d ms for %d slices. Same unwrapped image: %s.",
+					depth, end - start, nz, same ) );
+			if ( !same )
+				throw new AssertionError( "The pipeline changed the unwrapped image." );
+		}
+	}
+
+	private PipelineExample()
+	{}
+}
@@ -0,0 +1,60 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Measures the speed and the tracking accuracy of the center search around
+ * the predicted center, against the full search window, on a smoothly curved
+ * synthetic tube. Also reports how often the prediction failed and the full
+ * window was searched.
+ */
+public class PredictionTrackingAccuracy
+{
+
+	private static final int SIZE = 512;
+
+	private static final int SEARCH_WINDOW = 10;
+
+	private static final int[] PREDICTION_WINDOWS = new int[] { 0, 1, 2, 3 };
+
+	private static final int WARMUP_RUNS = 3;
+
+	public static void main( final String[] args )
+	{
+		final SyntheticTube tube = new SyntheticTube( SIZE, SIZE, 80., 60., 40., 300, 1l );
+		final int nz = tube.getPeriod();
+		final PlaneSource source = tube.asPlaneSource( nz );
+
+		System.out.println( String.format( "%-10s %16s %10s %10s %10s %10s %10s", "Predicted", "Search ms/slice", "Mean err", "Max err",
+				"Predicted", "Fallbacks", "Same" ) );
+		TubeFit reference = null;
+		for ( final int predictionWindow : PREDICTION_WINDOWS )
+		{
+			final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., SEARCH_WINDOW, 0., 360 );
+			engine.setPredictionWindow( predictionWindow );
+
+			final TubeFit fit = tube.fit( engine, source, tube.getRadius(), WARMUP_RUNS );
+			if ( null == reference )
+				reference = fit;
+
+			double meanError = 0.;
+			double maxError = 0.;
+			int nSame = 0;
+			for ( int z = 0; z < nz; z++ )
+			{
+				final double error = Math.hypot( fit.getCenterX( z ) - tube.centerX( z ), fit.getCenterY( z ) - tube.centerY( z ) );
+				meanError += error / nz;
+				maxError = Math.max( maxError, error );
+				if ( fit.getCenterX( z ) == reference.getCenterX( z ) && fit.getCenterY( z ) == reference.getCenterY( z ) )
+					nSame++;
+			}
+			final RunMetrics metrics = fit.getMetrics();
+			System.out.println( String.format( "%-10s %16.3f %10.2f %10.2f %10d %10d %9.1f%%",
+					( predictionWindow == 0 ) ? "none" : "+/-" + predictionWindow,
+					metrics.getStageNanos( RunMetrics.Stage.CROWN_SEARCH ) / 1e6 / nz, meanError, maxError,
+					metrics.getCenterSearchCount( RunMetrics.CenterSearch.PREDICTED ),
+					metrics.getCenterSearchCount( RunMetrics.CenterSearch.FALLBACK ), 100. * nSame / nz ) );
+		}
+	}
+
+	private PredictionTrackingAccuracy()
+	{}
+}
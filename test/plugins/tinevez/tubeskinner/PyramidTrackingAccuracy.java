@@ -0,0 +1,58 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Measures the speed and the tracking accuracy of the coarse-to-fine pyramid
+ * search, against the full resolution search, on a synthetic tube drifting by
+ * more than 10 pixels per Z-slice.
+ * <p>
+ * The tracking error is the distance between the fitted center and the true
+ * center of the synthetic tube, reported as mean and max over all Z-slices.
+ */
+public class PyramidTrackingAccuracy
+{
+
+	private static final int SIZE = 1024;
+
+	private static final int[] SEARCH_WINDOWS = new int[] { 16, 48 };
+
+	private static final double THICKNESS = 15.;
+
+	private static final int WARMUP_RUNS = 5;
+
+	public static void main( final String[] args )
+	{
+		final SyntheticTube tube = new SyntheticTube( SIZE, SIZE, 150., 120., 80., 60, 1l );
+		final int nz = 2 * tube.getPeriod();
+		final PlaneSource source = tube.asPlaneSource( nz );
+
+		System.out.println( String.format( "%-16s %8s %8s %12s %12s %12s", "Method", "Window", "Levels", "ms/slice", "Mean error", "Max error" ) );
+		for ( final int window : SEARCH_WINDOWS )
+		{
+			for ( final CrownSearchMethod method : CrownSearchMethod.values() )
+			{
+				for ( int levels = 0; levels <= 2; levels++ )
+				{
+					final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, THICKNESS, window, 0., 360 );
+					engine.setCrownSearchMethod( method );
+					engine.setPyramidLevels( levels );
+
+					final TubeFit fit = tube.fit( engine, source, tube.getRadius(), WARMUP_RUNS );
+
+					double meanError = 0.;
+					double maxError = 0.;
+					for ( int z = 0; z < nz; z++ )
+					{
+						final double error = Math.hypot( fit.getCenterX( z ) - tube.centerX( z ), fit.getCenterY( z ) - tube.centerY( z ) );
+						meanError += error / nz;
+						maxError = Math.max( maxError, error );
+					}
+					System.out.println( String.format( "%-16s %8d %8d %12.3f %12.2f %12.2f",
+							method, window, levels, fit.getMetrics().getElapsedNanos() / 1e6 / nz, meanError, maxError ) );
+				}
+			}
+		}
+	}
+
+	private PyramidTrackingAccuracy()
+	{}
+}
@@ -0,0 +1,111 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Compares the accuracy and the speed of the ray sampling modes on a
+ * synthetic tube of known wall position. The error of a contour point is its
+ * distance to the true tube center, minus the true tube radius. The error is
+ * also measured on the same tube without noise, where it must decrease as the
+ * radial step shrinks. Also checks that a run with interpolated rays is
+ * replayed identically from the fit cache.
+ */
+public class RadialSamplingAccuracy
+{
+
+	private static final int WARMUP_RUNS = 3;
+
+	private static final int RUNS = 5;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final SyntheticTube tube = new SyntheticTube( 512, 512, 80.3, 16., 8., 200, 1l );
+		final int nz = tube.getPeriod();
+		final PlaneSource source = tube.asPlaneSource( nz );
+
+		final SyntheticTube clean = tube.withoutNoise();
+		final PlaneSource cleanSource = clean.asPlaneSource( nz );
+
+		final Object[][] settings = new Object[][] {
+				{ RadialSampling.NEAREST, 1., 1. },
+				{ RadialSampling.BILINEAR, 1., 1. },
+				{ RadialSampling.BILINEAR, 0.5, 1. },
+				{ RadialSampling.BILINEAR, 0.25, 1. },
+				{ RadialSampling.CUBIC, 1., 1. },
+				{ RadialSampling.CUBIC, 0.5, 1. },
+				{ RadialSampling.CUBIC, 0.25, 1. },
+				{ RadialSampling.BILINEAR, 0.5, 0.5 } };
+		System.out.println( String.format( "%-14s %6s %5s %12s %12s %9s", "Sampling", "Step", "Rays", "RMS error", "No noise", "ms/slice" ) );
+		RadialSampling previousSampling = null;
+		double previousError = Double.POSITIVE_INFINITY;
+		for ( final Object[] setting : settings )
+		{
+			final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+			engine.setRadialSampling( ( RadialSampling ) setting[ 0 ] );
+			engine.setRadialStep( ( Double ) setting[ 1 ] );
+			engine.setSampleAngle( ( Double ) setting[ 2 ] );
+
+			TubeFit fit = tube.fit( engine, source, 80., WARMUP_RUNS );
+			long best = fit.getMetrics().getElapsedNanos();
+			for ( int i = 1; i < RUNS; i++ )
+			{
+				fit = tube.fit( engine, source, 80., 0 );
+				best = Math.min( best, fit.getMetrics().getElapsedNanos() );
+			}
+			final double rms = rmsError( fit, tube );
+			final double cleanRms = rmsError( clean.fit( engine, cleanSource, 80., 0 ), clean );
+			System.out.println( String.format( "%-14s %6.2f %5d %9.3f px %9.3f px %9.3f",
+					setting[ 0 ], setting[ 1 ], fit.getNAngles(), rms, cleanRms, best / 1e6 / nz ) );
+
+			// Without noise, a finer step must give a more accurate wall.
+			if ( setting[ 0 ] == previousSampling && ( Double ) setting[ 2 ] == 1. && cleanRms >= previousError )
+				throw new AssertionError( "The wall error did not decrease with the step for " + setting[ 0 ] + "." );
+			previousSampling = ( RadialSampling ) setting[ 0 ];
+			previousError = cleanRms;
+		}
+
+		// Interpolated rays replayed from the cache.
+		final File directory = Files.createTempDirectory( "tubeskinner-cache" ).toFile();
+		directory.deleteOnExit();
+		final FitCache cache = new FitCache( directory, "synthetic-tube|t=0" );
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+		engine.setRadialSampling( RadialSampling.CUBIC );
+		engine.setRadialStep( 0.5 );
+		final TubeFit fitted = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), 80., cache );
+		final TubeFit cached = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), 80., cache );
+		for ( final File file : directory.listFiles() )
+			file.deleteOnExit();
+		boolean same = Arrays.equals( fitted.getUnwrapped()[ 0 ], cached.getUnwrapped()[ 0 ] );
+		for ( int z = 0; z < nz; z++ )
+			for ( int iTheta = 0; iTheta < fitted.getNAngles(); iTheta++ )
+				same &= fitted.getRadius( z, iTheta ) == cached.getRadius( z, iTheta );
+		System.out.println( "Interpolated fit replayed identically from the cache: " + same + "." );
+		if ( !same )
+			throw new AssertionError( "The cache changed the interpolated fit." );
+	}
+
+	/**
+	 * Returns the RMS distance of the fitted contour points to the true tube
+	 * wall.
+	 */
+	private static double rmsError( final TubeFit fit, final SyntheticTube tube )
+	{
+		double sse = 0.;
+		for ( int z = 0; z < fit.getSizeZ(); z++ )
+		{
+			for ( int iTheta = 0; iTheta < fit.getNAngles(); iTheta++ )
+			{
+				final double error = Math.hypot( fit.getContourX( z, iTheta ) - tube.centerX( z ),
+						fit.getContourY( z, iTheta ) - tube.centerY( z ) ) - tube.getRadius();
+				sse += error * error;
+			}
+		}
+		return Math.sqrt( sse / ( fit.getSizeZ() * fit.getNAngles() ) );
+	}
+
+	private RadialSamplingAccuracy()
+	{}
+}
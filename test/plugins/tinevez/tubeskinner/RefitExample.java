@@ -0,0 +1,97 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Corrupts the track of a synthetic tube from a middle Z-slice, by re-fitting
+ * it from a wrong center, then corrects it by re-fitting from the right
+ * center, with and without motion prediction. Checks that the re-fits stop
+ * where the tracks rejoin, that the correction restores the result of a full
+ * run, and compares its time with a full run. The fit goes through a cache of
+ * fitted geometry: checks that the re-fits are written back to it.
+ */
+public class RefitExample
+{
+
+	private static final int NZ = 2000;
+
+	private static final int K = 1200;
+
+	private static final int ERROR = 12;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final SyntheticTube tube = new SyntheticTube( 512, 512, 80., 16., 8., 200, 1l );
+		final PlaneSource source = tube.asPlaneSource( NZ );
+
+		for ( final int predictionWindow : new int[] { 0, 2 } )
+		{
+			final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+			engine.setPredictionWindow( predictionWindow );
+			System.out.println( ( predictionWindow == 0 ) ? "Without prediction:" : "Predicted within +/-" + predictionWindow + ":" );
+			run( engine, tube, source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+		}
+	}
+
+	private static void run( final TubeSkinnerEngine engine, final SyntheticTube tube, final PlaneSource source, final double cx, final double cy,
+			final double r ) throws IOException
+	{
+		final File directory = Files.createTempDirectory( "tubeskinner-cache" ).toFile();
+		directory.deleteOnExit();
+		final FitCache cache = new FitCache( directory, "synthetic-tube|t=0" );
+
+		long start = System.currentTimeMillis();
+		final TubeFit reference = engine.process( source, cx, cy, r );
+		final long fullTime = System.currentTimeMillis() - start;
+		final TubeFit fit = engine.process( source, cx, cy, r, cache );
+		for ( final File file : directory.listFiles() )
+			file.deleteOnExit();
+		final int nx = fit.getUnwrapWidth();
+		final UnwrapWriter writer = new ArrayUnwrapWriter( fit.getUnwrapped(), nx );
+
+		// Corrupt the track from slice K.
+		final int wrongEnd = engine.refit( source, fit, K, NZ, reference.getCenterX( K ) + ERROR, reference.getCenterY( K ) - ERROR, writer, null, cache );
+		System.out.println( String.format( "  Re-fitted from a wrong center on slice %d: rejoined the track on slice %d.", K, wrongEnd - 1 ) );
+		if ( wrongEnd >= NZ )
+			throw new AssertionError( "The corrupted track should have rejoined the previous one." );
+
+		/*
+		 * The stack repeats itself from slice K: tracking it from the wrong
+		 * center is a re-fit that does not stop where the tracks rejoin.
+		 */
+		final TubeFit tracked = engine.process( tube.asPlaneSource( NZ - K ), reference.getCenterX( K ) + ERROR, reference.getCenterY( K ) - ERROR, r );
+		for ( int z = K; z < NZ; z++ )
+			if ( tracked.getCenterX( z - K ) != fit.getCenterX( z ) || tracked.getCenterY( z - K ) != fit.getCenterY( z ) )
+				throw new AssertionError( "The re-fit stopped on slice " + wrongEnd + " before the tracks rejoined, they differ on slice " + z + "." );
+		if ( !sameFit( fit, engine.process( source, cx, cy, r, cache ) ) )
+			throw new AssertionError( "The corrupted track was not written back to the cache." );
+
+		// Correct it, starting the search where the full run did.
+		start = System.currentTimeMillis();
+		final int end = engine.refit( source, fit, K, NZ, reference.getCenterX( K - 1 ), reference.getCenterY( K - 1 ), writer, null, cache );
+		final long refitTime = System.currentTimeMillis() - start;
+
+		final boolean same = sameFit( reference, fit );
+		final boolean sameCached = sameFit( reference, engine.process( source, cx, cy, r, cache ) );
+		System.out.println( String.format( "  Full run: %d ms for %d slices. Correction: %d ms for %d slices. Same result as a full run: %s, from the cache: %s.",
+				fullTime, NZ, refitTime, end - K, same, sameCached ) );
+		if ( !same )
+			throw new AssertionError( "The correction did not restore the result of a full run." );
+		if ( !sameCached )
+			throw new AssertionError( "The correction was not written back to the cache." );
+	}
+
+	private static boolean sameFit( final TubeFit reference, final TubeFit fit )
+	{
+		boolean same = Arrays.equals( reference.getUnwrapped()[ 0 ], fit.getUnwrapped()[ 0 ] );
+		for ( int z = 0; z < NZ; z++ )
+			same &= reference.getCenterX( z ) == fit.getCenterX( z ) && reference.getCenterY( z ) == fit.getCenterY( z );
+		return same;
+	}
+
+	private RefitExample()
+	{}
+}
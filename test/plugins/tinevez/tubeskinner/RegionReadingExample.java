@@ -0,0 +1,172 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streams a small synthetic tube in large frames from a raw file, reading
+ * either whole planes or only the crown region of each Z-slice. Checks that
+ * both give the same fit and unwrapped image, with several fit settings, and
+ * reports the bytes read and the time spent fetching the planes per Z-slice.
+ */
+public class RegionReadingExample
+{
+
+	private static final int SIZE = 1536;
+
+	private static final int NZ = 40;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final SyntheticTube tube = new SyntheticTube( SIZE, SIZE, 40., 8., 4., NZ, 1l );
+		final File input = File.createTempFile( "tube", ".raw" );
+		input.deleteOnExit();
+
+		/*
+		 * Write the stack plane by plane, as 16-bit big endian.
+		 */
+
+		try (FileChannel channel = FileChannel.open( input.toPath(), StandardOpenOption.WRITE ))
+		{
+			final double[] values = new double[ SIZE * SIZE ];
+			final ByteBuffer buffer = ByteBuffer.allocate( 2 * SIZE * SIZE ).order( ByteOrder.BIG_ENDIAN );
+			for ( int z = 0; z < NZ; z++ )
+			{
+				tube.render( z, values );
+				buffer.clear();
+				for ( final double v : values )
+					buffer.putShort( ( short ) v );
+				buffer.flip();
+				while ( buffer.hasRemaining() )
+					channel.write( buffer );
+			}
+		}
+
+		System.out.println( String.format( "%-44s %-8s %14s %14s", "Settings", "Reading", "kB/slice", "Fetch ms/slice" ) );
+		try (FileChannel in = FileChannel.open( input.toPath(), StandardOpenOption.READ ))
+		{
+			for ( int setting = 0; setting < 3; setting++ )
+			{
+				TubeFit reference = null;
+				for ( final boolean regionReading : new boolean[] { false, true } )
+				{
+					final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+					final String name;
+					if ( setting == 1 )
+					{
+						name = "Pyramid, cubic rays, max wall projection";
+						engine.setPyramidLevels( 2 );
+						engine.setRadialSampling( RadialSampling.CUBIC );
+						engine.setRadialStep( 0.5 );
+						engine.setWallProjection( WallProjection.MAX );
+					}
+					else if ( setting == 2 )
+					{
+						name = "Warm start from the default fit";
+					}
+					else
+					{
+						name = "Default";
+					}
+					engine.setRegionReading( regionReading );
+
+					final CountingSource source = new CountingSource(
+							new RawPlaneSource( in, 0l, SIZE, SIZE, NZ, 1, 0, RawPlaneSource.PixelType.UINT16, ByteOrder.BIG_ENDIAN ) );
+					TubeFit fit = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+					if ( setting == 2 )
+					{
+						source.bytes = 0;
+						fit = engine.processFrom( source, fit, 1 );
+					}
+					System.out.println( String.format( "%-44s %-8s %14.1f %14.3f", name, regionReading ? "region" : "plane",
+							source.bytes / 1024. / NZ, fit.getMetrics().getStageNanos( RunMetrics.Stage.PLANE_FETCH ) / 1e6 / NZ ) );
+
+					if ( null == reference )
+					{
+						reference = fit;
+						continue;
+					}
+					for ( int z = 0; z < NZ; z++ )
+					{
+						if ( fit.getCenterX( z ) != reference.getCenterX( z ) || fit.getCenterY( z ) != reference.getCenterY( z ) )
+							throw new AssertionError( "Reading regions changed the center on Z-slice " + z + "." );
+						for ( int iTheta = 0; iTheta < fit.getNAngles(); iTheta++ )
+							if ( fit.getRadius( z, iTheta ) != reference.getRadius( z, iTheta ) )
+								throw new AssertionError( "Reading regions changed the radius on Z-slice " + z + "." );
+					}
+					if ( !Arrays.equals( fit.getUnwrapped()[ 0 ], reference.getUnwrapped()[ 0 ] ) )
+						throw new AssertionError( "Reading regions changed the unwrapped image." );
+				}
+			}
+		}
+		System.out.println( "Reading regions gave the same fits and unwrapped images." );
+	}
+
+	/**
+	 * Counts the bytes of the pixels read from a raw source.
+	 */
+	private static class CountingSource implements RegionPlaneSource
+	{
+
+		private final RawPlaneSource source;
+
+		private long bytes = 0;
+
+		private CountingSource( final RawPlaneSource source )
+		{
+			this.source = source;
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return source.getWidth();
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return source.getHeight();
+		}
+
+		@Override
+		public int getSizeZ()
+		{
+			return source.getSizeZ();
+		}
+
+		@Override
+		public int getSizeC()
+		{
+			return source.getSizeC();
+		}
+
+		@Override
+		public boolean isSigned()
+		{
+			return source.isSigned();
+		}
+
+		@Override
+		public Object getPlane( final int z, final int c )
+		{
+			bytes += 2l * source.getWidth() * source.getHeight();
+			return source.getPlane( z, c );
+		}
+
+		@Override
+		public Object getRegion( final int z, final int c, final int x, final int y, final int width, final int height )
+		{
+			bytes += 2l * width * height;
+			return source.getRegion( z, c, x, y, width, height );
+		}
+	}
+
+	private RegionReadingExample()
+	{}
+}
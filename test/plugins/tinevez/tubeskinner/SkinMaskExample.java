@@ -0,0 +1,112 @@
+package plugins.tinevez.tubeskinner;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+
+import icy.roi.BooleanMask2D;
+import plugins.kernel.roi.roi2d.ROI2DEllipse;
+import plugins.kernel.roi.roi2d.ROI2DPolyLine;
+
+/**
+ * Fits a synthetic tube over a full turn and over half a turn, and checks
+ * that the masks of the skin and rough tube ROIs are pixel for pixel those of
+ * the Icy ROIs they replace: the inclusive mask of a
+ * <code>ROI2DPolyLine</code> through the contour points, and of a
+ * <code>ROI2DEllipse</code> on the crown outer circle.
+ */
+public class SkinMaskExample
+{
+
+	public static void main( final String[] args )
+	{
+		final SyntheticTube tube = new SyntheticTube( 256, 256, 40., 8., 4., 100, 1l );
+		final PlaneSource source = tube.asPlaneSource( tube.getPeriod() );
+		for ( final int thetaRange : new int[] { 360, 180 } )
+		{
+			final TubeFit fit = new TubeSkinnerEngine( 0, 15., 5, 0., thetaRange ).process( source, tube.centerX( 0 ),
+					tube.centerY( 0 ), tube.getRadius() );
+
+			int nSkinPixels = 0;
+			final int nAngles = fit.getNAngles();
+			final double[] contourX = new double[ nAngles ];
+			final double[] contourY = new double[ nAngles ];
+			for ( int z = 0; z < fit.getSizeZ(); z++ )
+			{
+				ROI2DPolyLine polyline = null;
+				for ( int iTheta = 0; iTheta < nAngles; iTheta++ )
+				{
+					contourX[ iTheta ] = fit.getContourX( z, iTheta );
+					contourY[ iTheta ] = fit.getContourY( z, iTheta );
+					final Point2D point = new Point2D.Double( contourX[ iTheta ], contourY[ iTheta ] );
+					if ( polyline == null )
+						polyline = new ROI2DPolyLine( point );
+					else
+						polyline.addNewPoint( point, false );
+				}
+				final BooleanMask2D skin = MaskRasterizer.polyline( contourX, contourY, nAngles );
+				check( samePixels( skin, polyline.getBooleanMask( true ) ),
+						"The skin mask differs from the polyline ROI mask at z=" + z + " over " + thetaRange + " degrees." );
+				nSkinPixels += count( skin );
+
+				final double r = fit.getCrownRadius();
+				final double cx = fit.getCenterX( z );
+				final double cy = fit.getCenterY( z );
+				final ROI2DEllipse ellipse = new ROI2DEllipse( cx - r, cy - r, cx + r, cy + r );
+				check( samePixels( MaskRasterizer.disc( cx, cy, r ), ellipse.getBooleanMask( true ) ),
+						"The tube mask differs from the ellipse ROI mask at z=" + z + "." );
+			}
+			System.out.println( String.format( "Theta range %3d: %d Z-slices, %.1f skin pixels per Z-slice, same masks as the Icy ROIs.",
+					thetaRange, fit.getSizeZ(), ( double ) nSkinPixels / fit.getSizeZ() ) );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the two masks hold the same pixels, whatever
+	 * their bounds.
+	 */
+	private static boolean samePixels( final BooleanMask2D a, final BooleanMask2D b )
+	{
+		return contains( a, b ) && contains( b, a );
+	}
+
+	/**
+	 * Returns <code>true</code> if all the pixels of <code>b</code> are in
+	 * <code>a</code>.
+	 */
+	private static boolean contains( final BooleanMask2D a, final BooleanMask2D b )
+	{
+		final Rectangle ra = a.bounds;
+		final Rectangle rb = b.bounds;
+		for ( int y = 0; y < rb.height; y++ )
+		{
+			for ( int x = 0; x < rb.width; x++ )
+			{
+				if ( !b.mask[ y * rb.width + x ] )
+					continue;
+				final int xa = rb.x + x - ra.x;
+				final int ya = rb.y + y - ra.y;
+				if ( xa < 0 || ya < 0 || xa >= ra.width || ya >= ra.height || !a.mask[ ya * ra.width + xa ] )
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static int count( final BooleanMask2D mask )
+	{
+		int n = 0;
+		for ( final boolean b : mask.mask )
+			if ( b )
+				n++;
+		return n;
+	}
+
+	private static void check( final boolean condition, final String message )
+	{
+		if ( !condition )
+			throw new AssertionError( message );
+	}
+
+	private SkinMaskExample()
+	{}
+}
@@ -0,0 +1,154 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.Random;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Fits synthetic tubes tilted away from the Z axis, in the XY slices and in
+ * the planes orthogonal to their fitted centerline. Reports, for each tilt,
+ * the largest step of the fitted center from one plane to the next, which
+ * the search window must cover, the mean distance between the fitted
+ * contours and the true tube wall, and the time spent per plane, including
+ * the first fit in the XY slices for the straightened fit.
+ * <p>
+ * Near the ends of a tilted tube, the orthogonal planes leave the stack, and
+ * the sections there are not fitted. The wall error of the straightened fit
+ * is measured on the planes whose crown lies inside the stack.
+ */
+public class StraightenedTubeExample
+{
+
+	private static final int SIZE = 192;
+
+	private static final int NZ = 80;
+
+	private static final double RADIUS = 25.;
+
+	private static final double X0 = 50.;
+
+	private static final double Y0 = 96.;
+
+	public static void main( final String[] args )
+	{
+		System.out.println(
+				String.format( "%-6s %-12s %10s %10s %12s %10s", "Tilt", "Fit", "Planes", "Max step", "Wall error", "ms/plane" ) );
+		for ( final double tilt : new double[] { 0., 20., 35., 45. } )
+		{
+			final double alpha = Math.toRadians( tilt );
+			final Sequence sequence = render( alpha );
+			final PlaneSource source = new SequencePlaneSource( sequence, 0 );
+
+			final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+			long start = System.nanoTime();
+			final TubeFit xy = engine.process( source, X0, Y0, RADIUS );
+			final double xyTime = ( System.nanoTime() - start ) / 1e6 / NZ;
+
+			start = System.nanoTime();
+			final TubeFit straightened = engine.processStraightened( source, X0, Y0, RADIUS, 5. );
+			final int ns = straightened.getSizeZ();
+			final double straightenedTime = ( System.nanoTime() - start ) / 1e6 / ns;
+
+			final double xyError = xyError( xy, alpha );
+			final double straightenedError = straightenedError( straightened, alpha );
+			System.out.println( String.format( "%-6.0f %-12s %10d %10.0f %12.2f %10.3f", tilt, "XY slices", NZ, maxStep( xy ),
+					xyError, xyTime ) );
+			System.out.println( String.format( "%-6.0f %-12s %10d %10.0f %12.2f %10.3f", tilt, "Straightened", ns,
+					maxStep( straightened ), straightenedError, straightenedTime ) );
+
+			if ( null == straightened.getCenterline() || !straightened.isComplete() )
+				throw new AssertionError( "The straightened fit is incomplete or has no centerline." );
+			if ( straightenedError > 1. )
+				throw new AssertionError( "The straightened fit is off the tube wall at a tilt of " + tilt + " degrees." );
+		}
+	}
+
+	/**
+	 * Renders a tube along the line through <code>(X0, Y0, 0)</code>, tilted
+	 * by <code>alpha</code> from the Z axis towards X.
+	 */
+	private static Sequence render( final double alpha )
+	{
+		final Random random = new Random( 1l );
+		final Sequence sequence = new Sequence( "tilted-tube" );
+		for ( int z = 0; z < NZ; z++ )
+		{
+			final IcyBufferedImage image = new IcyBufferedImage( SIZE, SIZE, 1, DataType.USHORT );
+			final short[] data = ( short[] ) image.getDataXY( 0 );
+			for ( int y = 0; y < SIZE; y++ )
+			{
+				for ( int x = 0; x < SIZE; x++ )
+				{
+					final double d = distance( x, y, z, alpha ) - RADIUS;
+					data[ y * SIZE + x ] = ( short ) Math.round( 200. * Math.exp( -d * d / 8. ) + 20. * random.nextDouble() );
+				}
+			}
+			sequence.setImage( 0, z, image );
+		}
+		return sequence;
+	}
+
+	/**
+	 * Returns the distance of the specified point to the tube axis.
+	 */
+	private static double distance( final double x, final double y, final double z, final double alpha )
+	{
+		final double px = x - X0;
+		final double py = y - Y0;
+		final double along = px * Math.sin( alpha ) + z * Math.cos( alpha );
+		return Math.sqrt( Math.max( 0., px * px + py * py + z * z - along * along ) );
+	}
+
+	private static double xyError( final TubeFit fit, final double alpha )
+	{
+		double sum = 0.;
+		for ( int z = 0; z < fit.getSizeZ(); z++ )
+			for ( int iTheta = 0; iTheta < fit.getNAngles(); iTheta++ )
+				sum += Math.abs( distance( fit.getContourX( z, iTheta ), fit.getContourY( z, iTheta ), z, alpha ) - RADIUS );
+		return sum / fit.getSizeZ() / fit.getNAngles();
+	}
+
+	private static double straightenedError( final TubeFit fit, final double alpha )
+	{
+		final Centerline centerline = fit.getCenterline();
+		final double[] position = new double[ 3 ];
+		double sum = 0.;
+		int n = 0;
+		for ( int i = 0; i < fit.getSizeZ(); i++ )
+		{
+			// Skip the planes whose crown leaves the stack.
+			final double extent = ( RADIUS + 10. ) * Math.sin( centerline.getTilt( i ) );
+			if ( centerline.getZ( i ) - extent < 0. || centerline.getZ( i ) + extent > NZ - 1 )
+				continue;
+
+			n++;
+			for ( int iTheta = 0; iTheta < fit.getNAngles(); iTheta++ )
+			{
+				centerline.toStack( i, fit.getContourX( i, iTheta ) - fit.getInitialCenterX(),
+						fit.getContourY( i, iTheta ) - fit.getInitialCenterY(), position );
+				sum += Math.abs( distance( position[ 0 ], position[ 1 ], position[ 2 ], alpha ) - RADIUS );
+			}
+		}
+		return sum / n / fit.getNAngles();
+	}
+
+	/**
+	 * Returns the largest step (in pixels) of the fitted center between two
+	 * consecutive planes.
+	 */
+	private static double maxStep( final TubeFit fit )
+	{
+		double max = 0.;
+		for ( int z = 1; z < fit.getSizeZ(); z++ )
+		{
+			max = Math.max( max, Math.abs( fit.getCenterX( z ) - fit.getCenterX( z - 1 ) ) );
+			max = Math.max( max, Math.abs( fit.getCenterY( z ) - fit.getCenterY( z - 1 ) ) );
+		}
+		return max;
+	}
+
+	private StraightenedTubeExample()
+	{}
+}
@@ -0,0 +1,99 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams synthetic tubes of increasing depth from a raw file on disk, and
+ * writes the unwrapped image to another raw file. The heap used during the
+ * processing is measured, and should not depend on the number of Z-slices.
+ */
+public class StreamingExample
+{
+
+	private static final int SIZE = 256;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		for ( final int nz : new int[] { 500, 2000 } )
+			run( nz );
+	}
+
+	private static void run( final int nz ) throws IOException
+	{
+		final SyntheticTube tube = new SyntheticTube( SIZE, SIZE, 40., 8., 4., 200, 1l );
+		final File input = File.createTempFile( "tube", ".raw" );
+		final File output = File.createTempFile( "unwrapped", ".raw" );
+		input.deleteOnExit();
+		output.deleteOnExit();
+
+		/*
+		 * Write the stack plane by plane, as 16-bit big endian.
+		 */
+
+		try (FileChannel channel = FileChannel.open( input.toPath(), StandardOpenOption.WRITE ))
+		{
+			final double[] values = new double[ SIZE * SIZE ];
+			final ByteBuffer buffer = ByteBuffer.allocate( 2 * SIZE * SIZE ).order( ByteOrder.BIG_ENDIAN );
+			for ( int z = 0; z < nz; z++ )
+			{
+				tube.render( z, values );
+				buffer.clear();
+				for ( final double v : values )
+					buffer.putShort( ( short ) v );
+				buffer.flip();
+				while ( buffer.hasRemaining() )
+					channel.write( buffer );
+			}
+		}
+
+		/*
+		 * Stream it through the engine.
+		 */
+
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+		final int nx = engine.getUnwrapWidth( tube.getRadius() );
+		final long[] maxUsed = new long[ 1 ];
+		final long start = System.currentTimeMillis();
+		final TubeFit fit;
+		try (FileChannel in = FileChannel.open( input.toPath(), StandardOpenOption.READ );
+				FileChannel out = FileChannel.open( output.toPath(), StandardOpenOption.WRITE ))
+		{
+			final PlaneSource source = new RawPlaneSource( in, 0l, SIZE, SIZE, nz, 1, 0, RawPlaneSource.PixelType.UINT16, ByteOrder.BIG_ENDIAN );
+			final UnwrapWriter writer = new RawUnwrapWriter( out, 0l, nx, nz, ByteOrder.BIG_ENDIAN );
+			fit = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius(), writer, new TubeSkinnerEngine.SliceListener()
+			{
+				@Override
+				public void sliceProcessed( final int z )
+				{
+					if ( z % 100 == 99 )
+						maxUsed[ 0 ] = Math.max( maxUsed[ 0 ], usedHeap() );
+				}
+			} );
+		}
+		final long end = System.currentTimeMillis();
+
+		double error = 0.;
+		for ( int z = 0; z < nz; z++ )
+			error = Math.max( error, Math.hypot( fit.getCenterX( z ) - tube.centerX( z ), fit.getCenterY( z ) - tube.centerY( z ) ) );
+		System.out.println( String.format( "Streamed %d slices (%d MB on disk) in %d ms. Max heap used: %.1f MB. Unwrapped file: %d MB. Max center error: %.2f pixels.",
+				nz, input.length() >> 20, end - start, maxUsed[ 0 ] / 1024. / 1024., output.length() >> 20, error ) );
+
+		input.delete();
+		output.delete();
+	}
+
+	private static long usedHeap()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private StreamingExample()
+	{}
+}
@@ -0,0 +1,327 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.Random;
+
+import icy.image.IcyBufferedImage;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+
+/**
+ * Generates in-memory Z-slices of a bright-walled tube laid out along Z, with
+ * a known drift of its center. The center oscillates around the middle of the
+ * Z-slice with the specified amplitude and period, so that a cycle of
+ * <code>period</code> Z-slices can be reused to emulate arbitrarily long
+ * stacks. Pixel values are rounded to integers, as they would be for an 8-bit
+ * or 16-bit acquisition.
+ * <p>
+ * The examples and benchmarks read the tube through
+ * {@link #asPlaneSource(int)} or {@link #asSequence(int, int)}, and fit it
+ * with {@link #fit(TubeSkinnerEngine, PlaneSource, double, int)}.
+ */
+public class SyntheticTube
+{
+
+	/**
+	 * Amplitude of the uniform noise added to the pixel values.
+	 */
+	private static final double NOISE = 20.;
+
+	private final int width;
+
+	private final int height;
+
+	private final double radius;
+
+	private final double amplitudeX;
+
+	private final double amplitudeY;
+
+	private final int period;
+
+	private final long seed;
+
+	private final double offsetX;
+
+	private final double offsetY;
+
+	private final double noise;
+
+	/**
+	 * Creates a synthetic tube.
+	 *
+	 * @param width
+	 *            the width of the Z-slices.
+	 * @param height
+	 *            the height of the Z-slices.
+	 * @param radius
+	 *            the radius of the tube wall.
+	 * @param amplitudeX
+	 *            the amplitude (in pixels) of the tube center drift in X.
+	 * @param amplitudeY
+	 *            the amplitude (in pixels) of the tube center drift in Y.
+	 * @param period
+	 *            the period (in Z-slices) of the tube center drift.
+	 * @param seed
+	 *            the seed of the noise.
+	 */
+	public SyntheticTube( final int width, final int height, final double radius, final double amplitudeX, final double amplitudeY, final int period, final long seed )
+	{
+		this( width, height, radius, amplitudeX, amplitudeY, period, seed, 0., 0., NOISE );
+	}
+
+	private SyntheticTube( final int width, final int height, final double radius, final double amplitudeX, final double amplitudeY, final int period, final long seed,
+			final double offsetX, final double offsetY, final double noise )
+	{
+		this.width = width;
+		this.height = height;
+		this.radius = radius;
+		this.amplitudeX = amplitudeX;
+		this.amplitudeY = amplitudeY;
+		this.period = period;
+		this.seed = seed;
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.noise = noise;
+	}
+
+	/**
+	 * Returns the same tube translated by the specified offset, with another
+	 * noise.
+	 *
+	 * @param dx
+	 *            the X offset (in pixels).
+	 * @param dy
+	 *            the Y offset (in pixels).
+	 * @param newSeed
+	 *            the seed of the noise of the translated tube.
+	 * @return a new synthetic tube.
+	 */
+	public SyntheticTube translate( final double dx, final double dy, final long newSeed )
+	{
+		return new SyntheticTube( width, height, radius, amplitudeX, amplitudeY, period, newSeed, offsetX + dx, offsetY + dy, noise );
+	}
+
+	/**
+	 * Returns the same tube without noise. Only the rounding of the pixel
+	 * values remains.
+	 *
+	 * @return a new synthetic tube.
+	 */
+	public SyntheticTube withoutNoise()
+	{
+		return new SyntheticTube( width, height, radius, amplitudeX, amplitudeY, period, seed, offsetX, offsetY, 0. );
+	}
+
+	public double centerX( final int z )
+	{
+		return width / 2. + offsetX + amplitudeX * Math.sin( 2. * Math.PI * z / period );
+	}
+
+	public double centerY( final int z )
+	{
+		return height / 2. + offsetY + amplitudeY * ( 1. - Math.cos( 2. * Math.PI * z / period ) );
+	}
+
+	/**
+	 * Renders the specified Z-slice.
+	 *
+	 * @param z
+	 *            the Z-slice position.
+	 * @param data
+	 *            the array to write the pixel values in, of size width x
+	 *            height.
+	 */
+	public void render( final int z, final double[] data )
+	{
+		final Random random = new Random( seed + z % period );
+		final double cx = centerX( z );
+		final double cy = centerY( z );
+		for ( int y = 0; y < height; y++ )
+		{
+			for ( int x = 0; x < width; x++ )
+			{
+				final double d = Math.hypot( x - cx, y - cy ) - radius;
+				data[ y * width + x ] = Math.round( 200. * Math.exp( -d * d / 8. ) + noise * random.nextDouble() );
+			}
+		}
+	}
+
+	/**
+	 * Renders one cycle of {@link #getPeriod()} Z-slices as 16-bit planes.
+	 *
+	 * @param nc
+	 *            the number of channels. Channel <code>c</code> is the tube
+	 *            scaled by <code>c + 1</code>, plus a pattern that differs
+	 *            from channel to channel. Channel 0 is the tube itself.
+	 * @return the planes, indexed by Z-slice then channel.
+	 */
+	public short[][][] renderStack( final int nc )
+	{
+		final short[][][] planes = new short[ period ][ nc ][ width * height ];
+		final double[] buffer = new double[ width * height ];
+		for ( int z = 0; z < period; z++ )
+		{
+			render( z, buffer );
+			for ( int c = 0; c < nc; c++ )
+				for ( int i = 0; i < buffer.length; i++ )
+					planes[ z ][ c ][ i ] = ( short ) ( buffer[ i ] * ( c + 1 ) + c * ( i % 7 ) );
+		}
+		return planes;
+	}
+
+	/**
+	 * Returns a single-channel stack of this tube, in unsigned 16-bit planes.
+	 * One cycle of {@link #getPeriod()} Z-slices is rendered up front, and
+	 * repeated over the stack.
+	 *
+	 * @param nz
+	 *            the number of Z-slices of the stack.
+	 * @return a new plane source.
+	 */
+	public PlaneSource asPlaneSource( final int nz )
+	{
+		return asPlaneSource( nz, 1 );
+	}
+
+	/**
+	 * Returns a stack of this tube, in unsigned 16-bit planes. See
+	 * {@link #asPlaneSource(int)} and {@link #renderStack(int)}.
+	 *
+	 * @param nz
+	 *            the number of Z-slices of the stack.
+	 * @param nc
+	 *            the number of channels.
+	 * @return a new plane source.
+	 */
+	public PlaneSource asPlaneSource( final int nz, final int nc )
+	{
+		return new StackSource( renderStack( nc ), width, height, nz );
+	}
+
+	/**
+	 * Returns a single-channel, unsigned 16-bit sequence of this tube, with
+	 * the same stack at each time-point.
+	 *
+	 * @param nz
+	 *            the number of Z-slices.
+	 * @param nt
+	 *            the number of time-points.
+	 * @return a new sequence.
+	 */
+	public Sequence asSequence( final int nz, final int nt )
+	{
+		final short[][][] planes = renderStack( 1 );
+		final Sequence sequence = new Sequence( "synthetic-tube" );
+		for ( int t = 0; t < nt; t++ )
+		{
+			for ( int z = 0; z < nz; z++ )
+			{
+				final IcyBufferedImage image = new IcyBufferedImage( width, height, 1, DataType.USHORT );
+				System.arraycopy( planes[ z % period ][ 0 ], 0, image.getDataXY( 0 ), 0, width * height );
+				sequence.setImage( t, z, image );
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * Fits this tube from its initial circle, after the specified number of
+	 * runs to let the JIT compile the hot paths. The metrics of the fit
+	 * returned only cover the last run.
+	 *
+	 * @param engine
+	 *            the engine to fit the tube with.
+	 * @param source
+	 *            the stack of the tube.
+	 * @param r
+	 *            the radius of the initial circle.
+	 * @param warmupRuns
+	 *            the number of runs before the one returned.
+	 * @return the fit of the last run.
+	 */
+	public TubeFit fit( final TubeSkinnerEngine engine, final PlaneSource source, final double r, final int warmupRuns )
+	{
+		for ( int i = 0; i < warmupRuns; i++ )
+			engine.process( source, centerX( 0 ), centerY( 0 ), r );
+		return engine.process( source, centerX( 0 ), centerY( 0 ), r );
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public double getRadius()
+	{
+		return radius;
+	}
+
+	public int getPeriod()
+	{
+		return period;
+	}
+
+	/**
+	 * A stack repeating a cycle of pre-rendered planes.
+	 */
+	private static class StackSource implements PlaneSource
+	{
+
+		private final short[][][] planes;
+
+		private final int width;
+
+		private final int height;
+
+		private final int nz;
+
+		private StackSource( final short[][][] planes, final int width, final int height, final int nz )
+		{
+			this.planes = planes;
+			this.width = width;
+			this.height = height;
+			this.nz = nz;
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+
+		@Override
+		public int getSizeZ()
+		{
+			return nz;
+		}
+
+		@Override
+		public int getSizeC()
+		{
+			return planes[ 0 ].length;
+		}
+
+		@Override
+		public boolean isSigned()
+		{
+			return false;
+		}
+
+		@Override
+		public Object getPlane( final int z, final int c )
+		{
+			return planes[ z % planes.length ][ c ];
+		}
+	}
+}
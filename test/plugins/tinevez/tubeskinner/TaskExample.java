@@ -0,0 +1,127 @@
+package plugins.tinevez.tubeskinner;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import icy.sequence.Sequence;
+import plugins.kernel.roi.roi2d.ROI2DEllipse;
+
+/**
+ * Runs two unwraps of the same synthetic time-lapse concurrently, as tasks on
+ * one executor, and cancels one of them midway. Checks that the other one is
+ * not affected, reports how fast the canceled one stopped, and checks that it
+ * gave back consistent partial results: the completed time-points, and the
+ * Z-slices of the interrupted one, with their unwrapped rows. The canceled
+ * unwrap is run with its time-points processed one after the other, then
+ * concurrently, which must give back partial results of the same form.
+ */
+public class TaskExample
+{
+
+	private static final int N_TIMEPOINTS = 4;
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final SyntheticTube tube = new SyntheticTube( 256, 256, 50., 8., 4., 300, 1l );
+		final int nz = tube.getPeriod();
+		final Sequence sequence = tube.asSequence( nz, N_TIMEPOINTS );
+		final double r = tube.getRadius();
+		final ROI2DEllipse ellipse = new ROI2DEllipse( tube.centerX( 0 ) - r, tube.centerY( 0 ) - r, tube.centerX( 0 ) + r,
+				tube.centerY( 0 ) + r );
+
+		// Reference, run alone.
+		final TubeSkinner reference = new TubeSkinner( sequence, ellipse, 0, 15., 5, true, 0., 360, true );
+		reference.run();
+
+		for ( final int nThreads : new int[] { 1, 2 } )
+		{
+			System.out.println( String.format( "Canceled unwrap on %d thread(s):", nThreads ) );
+			runConcurrently( sequence, ellipse, reference, nz, nThreads );
+		}
+	}
+
+	private static void runConcurrently( final Sequence sequence, final ROI2DEllipse ellipse, final TubeSkinner reference,
+			final int nz, final int nThreads ) throws Exception
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			final TubeSkinner completed = new TubeSkinner( sequence, ellipse, 0, 15., 5, true, 0., 360, true );
+			final TubeSkinner canceled = new TubeSkinner( sequence, ellipse, 0, 15., 5, true, 0., 360, true );
+			canceled.setNumThreads( nThreads );
+			final TubeSkinnerTask completedTask = completed.submit( executor );
+			final TubeSkinnerTask canceledTask = canceled.submit( executor );
+
+			// Cancel midway through the second time-point.
+			while ( canceledTask.getProgress() < 1.5 / N_TIMEPOINTS )
+				Thread.sleep( 1 );
+			final double progress = canceledTask.getProgress();
+			final long start = System.nanoTime();
+			canceledTask.cancel( true );
+			final TubeFit[] partial = canceledTask.getPartialFits();
+			final long latency = System.nanoTime() - start;
+
+			try
+			{
+				canceledTask.get();
+				throw new AssertionError( "A canceled task returned its results." );
+			}
+			catch ( final CancellationException e )
+			{
+				// Expected.
+			}
+
+			final TubeFit[] fits = completedTask.get();
+			System.out.println( String.format( "Canceled at %.0f%% progress, stopped in %.2f ms.", 100. * progress, latency / 1e6 ) );
+			System.out.println( String.format( "Concurrent task completed %d / %d time-points, progress %.0f%%.", fits.length,
+					N_TIMEPOINTS, 100. * completedTask.getProgress() ) );
+			check( fits.length == N_TIMEPOINTS, "The concurrent task did not complete all the time-points." );
+			for ( int t = 0; t < N_TIMEPOINTS; t++ )
+				check( sameCenters( fits[ t ], reference.getFits()[ t ], nz ), "The concurrent task changed time-point " + t + "." );
+
+			// Partial results.
+			final int last = partial.length - 1;
+			System.out.println( String.format( "Partial results: %d time-points, the last one with %d / %d Z-slices, %d skin ROIs.",
+					partial.length, partial[ last ].getFittedSlices(), nz, canceledTask.getPartialSkinROIs().length ) );
+			check( partial.length >= 1 && canceledTask.getPartialSkinROIs().length == partial.length, "Inconsistent partial results." );
+			for ( int t = 0; t < last; t++ )
+				check( partial[ t ].isComplete() && sameCenters( partial[ t ], reference.getFits()[ t ], nz ),
+						"Completed time-point " + t + " differs from the reference." );
+			final TubeFit interrupted = partial[ last ];
+			final int fitted = interrupted.getFittedSlices();
+			check( !interrupted.isComplete() && sameCenters( interrupted, reference.getFits()[ last ], fitted ),
+					"The fitted Z-slices of the interrupted time-point differ from the reference." );
+			check( canceled.getOutWrap().getSizeT() == partial.length, "The unwrapped image does not match the partial fits." );
+
+			// Unwrapped rows: written up to the last fitted Z-slice only.
+			final float[] unwrapped = ( float[] ) canceled.getOutWrap().getImage( last, 0 ).getDataXY( 0 );
+			final float[] expected = ( float[] ) reference.getOutWrap().getImage( last, 0 ).getDataXY( 0 );
+			final int nx = interrupted.getUnwrapWidth();
+			for ( int i = 0; i < nx * nz; i++ )
+				check( unwrapped[ i ] == ( ( i < nx * fitted ) ? expected[ i ] : 0f ), "Unexpected unwrapped pixel " + i + "." );
+			System.out.println( "Partial results are consistent." );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private static boolean sameCenters( final TubeFit fit, final TubeFit reference, final int nz )
+	{
+		for ( int z = 0; z < nz; z++ )
+			if ( fit.getCenterX( z ) != reference.getCenterX( z ) || fit.getCenterY( z ) != reference.getCenterY( z ) )
+				return false;
+		return true;
+	}
+
+	private static void check( final boolean condition, final String message )
+	{
+		if ( !condition )
+			throw new AssertionError( message );
+	}
+
+	private TaskExample()
+	{}
+}
@@ -0,0 +1,138 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Benchmarks the hot paths of the tube fit on synthetic drifting tubes
+ * generated in memory. Runs headless, without Icy: it only needs the classes
+ * of the plugin and of the test fixtures on the classpath.
+ * <p>
+ * Three benchmarks are run for each stack size and each crown search method:
+ * <ol>
+ * <li>the crown center search alone;
+ * <li>the radial max scan plus the unwrapped row write;
+ * <li>a full time-point, through {@link TubeSkinnerEngine#process}.
+ * </ol>
+ * Each benchmark goes over the whole stack a few times to warm up the JIT, then
+ * is measured over several iterations. Results are reported per Z-slice and
+ * per time-point: the mean, the standard deviation and the coefficient of
+ * variation over the iterations, and the fastest and slowest iterations.
+ * <p>
+ * Stacks are emulated with a cycle of {@link SyntheticTube#getPeriod()}
+ * distinct Z-slices, so that long stacks fit in memory. Pass
+ * <code>quick</code> as argument to only run a small stack.
+ */
+public class TubeSkinnerBenchmark
+{
+
+	private static final int WARMUP_ITERATIONS = 2;
+
+	private static final int MEASUREMENT_ITERATIONS = 5;
+
+	private static final int SEARCH_WINDOW = 5;
+
+	private static final double THICKNESS = 15.;
+
+	public static void main( final String[] args )
+	{
+		final boolean quick = args.length > 0 && args[ 0 ].equals( "quick" );
+		final int[][] sizes = quick
+				? new int[][] { { 256, 100 } }
+				: new int[][] { { 256, 500 }, { 512, 2000 } };
+
+		System.out.println( String.format( "%-30s %-16s %10s %6s %8s %8s %7s %8s %8s %8s %8s",
+				"Benchmark", "Method", "Size", "Z", "ms/slice", "std", "CV", "min", "max", "s/TP", "std" ) );
+		for ( final int[] size : sizes )
+			for ( final CrownSearchMethod method : CrownSearchMethod.values() )
+				run( size[ 0 ], size[ 1 ], method );
+	}
+
+	private static void run( final int size, final int nz, final CrownSearchMethod method )
+	{
+		final SyntheticTube tube = new SyntheticTube( size, size, size / 6., size / 32., size / 64., 64, 1l );
+		final int nPlanes = tube.getPeriod();
+		final short[][][] planes = tube.renderStack( 1 );
+
+		final double r0 = tube.getRadius();
+		final double cx0 = tube.centerX( 0 );
+		final double cy0 = tube.centerY( 0 );
+		final int nAngles = 360;
+		final int nx = ( int ) ( 2 * Math.PI * r0 );
+		final CrownGeometry geometry = new CrownGeometry( 0., 360, nAngles, r0, r0 - THICKNESS, 15, cx0, cy0 );
+		final Plane plane = Plane.wrap( planes[ 0 ][ 0 ], false, size, size );
+		final Plane[] channels = new Plane[] { plane };
+		final float[][] unwrapped = new float[][] { new float[ nx * nz ] };
+
+		/*
+		 * 1. Crown center search and 2. radial scan, timed separately on
+		 * each Z-slice.
+		 */
+
+		final double[] crownSearch = new double[ MEASUREMENT_ITERATIONS ];
+		final double[] radialScan = new double[ MEASUREMENT_ITERATIONS ];
+		for ( int iteration = -WARMUP_ITERATIONS; iteration < MEASUREMENT_ITERATIONS; iteration++ )
+		{
+			final TubeFitter fitter = new TubeFitter( geometry, method.create( geometry ), SEARCH_WINDOW, 15, r0, nx, 1, cx0, cy0 );
+			long tSearch = 0;
+			long tScan = 0;
+			for ( int z = 0; z < nz; z++ )
+			{
+				plane.setData( planes[ z % nPlanes ][ 0 ] );
+				final long t0 = System.nanoTime();
+				fitter.searchCenter( plane );
+				final long t1 = System.nanoTime();
+				fitter.unwrap( plane, channels, unwrapped, z );
+				final long t2 = System.nanoTime();
+				tSearch += t1 - t0;
+				tScan += t2 - t1;
+			}
+			if ( iteration >= 0 )
+			{
+				crownSearch[ iteration ] = tSearch / 1e6 / nz;
+				radialScan[ iteration ] = tScan / 1e6 / nz;
+			}
+		}
+		report( "Crown search", method, size, nz, crownSearch );
+		report( "Radial scan + unwrap write", method, size, nz, radialScan );
+
+		/*
+		 * 3. Full time-point.
+		 */
+
+		final PlaneSource source = tube.asPlaneSource( nz );
+		final double[] timePoint = new double[ MEASUREMENT_ITERATIONS ];
+		for ( int iteration = -WARMUP_ITERATIONS; iteration < MEASUREMENT_ITERATIONS; iteration++ )
+		{
+			final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, THICKNESS, SEARCH_WINDOW, 0., 360 );
+			engine.setCrownSearchMethod( method );
+			final long t0 = System.nanoTime();
+			engine.process( source, cx0, cy0, r0 );
+			final long t1 = System.nanoTime();
+			if ( iteration >= 0 )
+				timePoint[ iteration ] = ( t1 - t0 ) / 1e6 / nz;
+		}
+		report( "Full time-point", method, size, nz, timePoint );
+	}
+
+	private static void report( final String benchmark, final CrownSearchMethod method, final int size, final int nz, final double[] msPerSlice )
+	{
+		double mean = 0.;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for ( final double v : msPerSlice )
+		{
+			mean += v;
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+		}
+		mean /= msPerSlice.length;
+		double var = 0.;
+		for ( final double v : msPerSlice )
+			var += ( v - mean ) * ( v - mean );
+		final double std = Math.sqrt( var / Math.max( 1, msPerSlice.length - 1 ) );
+
+		System.out.println( String.format( "%-30s %-16s %10s %6d %8.3f %8.3f %6.1f%% %8.3f %8.3f %8.2f %8.2f",
+				benchmark, method, size + "x" + size, nz, mean, std, 100. * std / mean, min, max, mean * nz / 1e3, std * nz / 1e3 ) );
+	}
+
+	private TubeSkinnerBenchmark()
+	{}
+}
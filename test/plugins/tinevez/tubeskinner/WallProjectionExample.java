@@ -0,0 +1,56 @@
+package plugins.tinevez.tubeskinner;
+
+/**
+ * Compares the wall projections on a synthetic tube with a noisy wall. The
+ * tube is uniform along its wall, so all the variations of the unwrapped
+ * image are noise. Reports the mean and the standard deviation of the
+ * unwrapped image, their ratio, and the time spent on the radial scan, which
+ * includes the sampling of the channels.
+ */
+public class WallProjectionExample
+{
+
+	private static final int WARMUP_RUNS = 3;
+
+	private static final int BAND = 3;
+
+	public static void main( final String[] args )
+	{
+		final SyntheticTube tube = new SyntheticTube( 512, 512, 80.3, 16., 8., 200, 1l );
+		final int nz = tube.getPeriod();
+		final PlaneSource source = tube.asPlaneSource( nz );
+
+		System.out.println( String.format( "%-32s %8s %8s %8s %16s", "Wall projection", "Mean", "Std", "SNR", "Scan ms/slice" ) );
+		double contourSNR = 0.;
+		double bestSNR = 0.;
+		for ( final WallProjection projection : WallProjection.values() )
+		{
+			final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 5, 0., 360 );
+			engine.setWallProjection( projection );
+			engine.setProjectionBand( BAND );
+			final TubeFit fit = tube.fit( engine, source, 80., WARMUP_RUNS );
+
+			final float[] unwrapped = fit.getUnwrapped()[ 0 ];
+			double sum = 0.;
+			for ( final float value : unwrapped )
+				sum += value;
+			final double mean = sum / unwrapped.length;
+			double sse = 0.;
+			for ( final float value : unwrapped )
+				sse += ( value - mean ) * ( value - mean );
+			final double std = Math.sqrt( sse / unwrapped.length );
+			final double snr = mean / std;
+			if ( projection == WallProjection.CONTOUR )
+				contourSNR = snr;
+			else
+				bestSNR = Math.max( bestSNR, snr );
+			System.out.println( String.format( "%-32s %8.1f %8.2f %8.1f %16.3f", projection, mean, std, snr,
+					fit.getMetrics().getStageNanos( RunMetrics.Stage.RADIAL_SCAN ) / 1e6 / nz ) );
+		}
+		if ( !( bestSNR > contourSNR ) )
+			throw new AssertionError( "Projecting over the wall did not reduce the noise of the unwrapped image." );
+	}
+
+	private WallProjectionExample()
+	{}
+}
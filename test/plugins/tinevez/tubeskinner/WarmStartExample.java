@@ -0,0 +1,123 @@
+package plugins.tinevez.tubeskinner;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Processes the time-points of a synthetic 4D tube, drifting slowly between
+ * time-points, either each from the initial circle, or each from the fit of
+ * the previous time-point. Compares the time, the tracking error, and the
+ * temporal consistency of the fitted centers: the jitter of the center of
+ * a Z-slice from one time-point to the next, beyond the true drift.
+ * <p>
+ * Then cancels a warm start on 2 threads midway, and exports its metrics.
+ * The threads process blocks of Z-slices, so the processed Z-slices are
+ * separated by gaps: checks that the export only holds them.
+ */
+public class WarmStartExample
+{
+
+	private static final int SIZE = 512;
+
+	private static final int NT = 6;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final int nz = 300;
+		final SyntheticTube tube = new SyntheticTube( SIZE, SIZE, 80., 60., 40., 300, 1l );
+		final PlaneSource[] sources = new PlaneSource[ NT ];
+		for ( int t = 0; t < NT; t++ )
+		{
+			// Same tube, new noise, shifted by one pixel in X per time-point.
+			sources[ t ] = tube.translate( t, 0., 1l + t ).asPlaneSource( nz );
+		}
+
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 10, 0., 360 );
+		for ( int run = 0; run < 2; run++ )
+		{
+			// First run is the JIT warm-up.
+			final boolean print = run == 1;
+			for ( final int mode : new int[] { 0, 1, 2 } )
+			{
+				final TubeFit[] fits = new TubeFit[ NT ];
+				final long start = System.nanoTime();
+				for ( int t = 0; t < NT; t++ )
+				{
+					final PlaneSource source = sources[ t ];
+					if ( mode == 0 || t == 0 )
+						fits[ t ] = engine.process( source, tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+					else
+						fits[ t ] = engine.processFrom( source, fits[ t - 1 ], mode );
+				}
+				final long end = System.nanoTime();
+				if ( !print )
+					continue;
+
+				double error = 0.;
+				double jitter = 0.;
+				int nRefined = 0;
+				int nFallbacks = 0;
+				for ( int t = 0; t < NT; t++ )
+				{
+					for ( int z = 0; z < nz; z++ )
+					{
+						error += Math.hypot( fits[ t ].getCenterX( z ) - tube.centerX( z ) - t, fits[ t ].getCenterY( z ) - tube.centerY( z ) );
+						if ( t > 0 )
+							jitter += Math.hypot( fits[ t ].getCenterX( z ) - fits[ t - 1 ].getCenterX( z ) - 1., fits[ t ].getCenterY( z ) - fits[ t - 1 ].getCenterY( z ) );
+					}
+					nRefined += fits[ t ].getMetrics().getCenterSearchCount( RunMetrics.CenterSearch.REFINED );
+					nFallbacks += fits[ t ].getMetrics().getCenterSearchCount( RunMetrics.CenterSearch.FALLBACK );
+				}
+				System.out.println( String.format( "%-22s %7.1f ms, mean center error %.2f px, mean jitter %.2f px, %d refined, %d fallbacks.",
+						( mode == 0 ) ? "From the initial circle" : "Warm start, " + mode + " thread" + ( mode > 1 ? "s" : "" ),
+						( end - start ) / 1e6, error / ( NT * nz ), jitter / ( ( NT - 1 ) * nz ), nRefined, nFallbacks ) );
+			}
+		}
+
+		exportCanceled( tube, sources, nz );
+	}
+
+	private static void exportCanceled( final SyntheticTube tube, final PlaneSource[] sources, final int nz ) throws IOException
+	{
+		final TubeSkinnerEngine engine = new TubeSkinnerEngine( 0, 15., 10, 0., 360 );
+		final TubeFit first = engine.process( sources[ 0 ], tube.centerX( 0 ), tube.centerY( 0 ), tube.getRadius() );
+		engine.setMetricsListener( new RunMetrics.Listener()
+		{
+			@Override
+			public void sliceMeasured( final RunMetrics metrics, final int z )
+			{
+				if ( metrics.getProcessedSlices() >= nz / 3 )
+					engine.cancel();
+			}
+		} );
+		final RunMetrics metrics = engine.processFrom( sources[ 1 ], first, 2 ).getMetrics();
+
+		final int nProcessed = metrics.getProcessedSlices();
+		int nGaps = 0;
+		for ( int z = 1; z < nz; z++ )
+			if ( metrics.isProcessed( z ) && !metrics.isProcessed( z - 1 ) )
+				nGaps++;
+		int nSearches = 0;
+		for ( final RunMetrics.CenterSearch centerSearch : RunMetrics.CenterSearch.values() )
+			nSearches += metrics.getCenterSearchCount( centerSearch );
+
+		final StringWriter csv = new StringWriter();
+		metrics.writeCSV( csv );
+		final int nLines = csv.toString().split( "\n" ).length - 1;
+		final StringWriter json = new StringWriter();
+		metrics.writeJSON( json );
+		int nEntries = 0;
+		for ( int i = json.toString().indexOf( "{ \"z\": " ); i >= 0; i = json.toString().indexOf( "{ \"z\": ", i + 1 ) )
+			nEntries++;
+
+		System.out.println( String.format( "Canceled warm start, 2 threads: %d / %d slices processed, %d gap(s). Exported %d CSV lines, %d JSON entries, %d center searches.",
+				nProcessed, nz, nGaps, nLines, nEntries, nSearches ) );
+		if ( nProcessed >= nz )
+			throw new AssertionError( "The warm start was not canceled." );
+		if ( nLines != nProcessed || nEntries != nProcessed || nSearches != nProcessed )
+			throw new AssertionError( "The exported metrics do not match the processed Z-slices." );
+	}
+
+	private WarmStartExample()
+	{}
+}